@@ -0,0 +1,32 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj;
+
+/**
+ * A Callback that only reads. SyncUtils.synchronizeRead may run it without
+ * the read lock of an optimistic mutex and run it again under the read lock
+ * if a writer got in first, so doAction must have no side effects, must
+ * cope with seeing the state mid change (including runtime exceptions from
+ * doing so, which are discarded on a retry) and must not lock the mutex
+ * for write.
+ *
+ * @see com.workplacesystems.utilsj.collections.SyncUtils#createMutex(Object, boolean)
+ */
+abstract public class ReadOnlyCallback<T> extends Callback<T>
+{
+    public ReadOnlyCallback() {}
+}
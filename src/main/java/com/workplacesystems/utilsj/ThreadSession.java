@@ -19,6 +19,8 @@ package com.workplacesystems.utilsj;
 import java.util.HashMap;
 import java.util.Iterator;
 
+import com.workplacesystems.utilsj.collections.TransactionId;
+
 /**
  *
  * @author dave
@@ -86,7 +88,7 @@ public class ThreadSession
         {
             Object key = i.next();
             Object value = session.values.get(key);
-            if (value instanceof String)
+            if (value instanceof String || value instanceof TransactionId)
             {
                 result += key + ": " + value + SEPARATOR;
             }
@@ -25,7 +25,7 @@ import java.util.NoSuchElementException;
  *
  * @author  Administrator
  */
-abstract public class AbstractFilterableCollection<E> extends AbstractCollection<E> implements FilterableCollection<E>
+abstract public class AbstractFilterableCollection<E> extends AbstractCollection<E> implements FilterableCollection<E>, SplittableCollection<E>
 {
     /**
      * Sole constructor.  (For invocation by subclass constructors, typically
@@ -34,6 +34,16 @@ abstract public class AbstractFilterableCollection<E> extends AbstractCollection
     protected AbstractFilterableCollection() {
     }
 
+    /**
+     * Returns a traversal that reads the iterator in the calling thread.
+     * Subclasses that can split their elements directly should override
+     * this.
+     */
+    public SplittableTraversal<E> traversal()
+    {
+        return SplittableTraversal.fromIterator(iterator());
+    }
+
     public FilterableCollection<E> filteredCollection(final Filter<? super E> filter)
     {
         return new AbstractFilterableCollection<E>() {
@@ -44,6 +54,11 @@ abstract public class AbstractFilterableCollection<E> extends AbstractCollection
                 return new FilterableCollectionIterator(filter);
             }
 
+            @Override
+            public SplittableTraversal<E> traversal() {
+                return AbstractFilterableCollection.this.traversal().filter(filter);
+            }
+
             @Override
             public int size() {
                 int size = 0;
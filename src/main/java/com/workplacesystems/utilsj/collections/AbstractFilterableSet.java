@@ -25,7 +25,7 @@ import java.util.NoSuchElementException;
  *
  * @author  Administrator
  */
-abstract public class AbstractFilterableSet<E> extends AbstractSet<E> implements FilterableSet<E>
+abstract public class AbstractFilterableSet<E> extends AbstractSet<E> implements FilterableSet<E>, SplittableCollection<E>
 {
     /**
      * Sole constructor.  (For invocation by subclass constructors, typically
@@ -34,6 +34,16 @@ abstract public class AbstractFilterableSet<E> extends AbstractSet<E> implements
     protected AbstractFilterableSet() {
     }
 
+    /**
+     * Returns a traversal that reads the iterator in the calling thread.
+     * Subclasses that can split their elements directly should override
+     * this.
+     */
+    public SplittableTraversal<E> traversal()
+    {
+        return SplittableTraversal.fromIterator(iterator());
+    }
+
     public FilterableCollection<E> filteredCollection(final Filter<? super E> filter)
     {
         return new AbstractFilterableCollection<E>() {
@@ -44,6 +54,11 @@ abstract public class AbstractFilterableSet<E> extends AbstractSet<E> implements
                 return new FilterableSetIterator(filter);
             }
 
+            @Override
+            public SplittableTraversal<E> traversal() {
+                return AbstractFilterableSet.this.traversal().filter(filter);
+            }
+
             @Override
             public int size() {
                 int size = 0;
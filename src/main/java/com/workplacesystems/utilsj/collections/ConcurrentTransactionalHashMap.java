@@ -0,0 +1,1173 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.lang.reflect.Array;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.workplacesystems.utilsj.ThreadSession;
+
+/**
+ * Thread safe version of TransactionalHashMap that doesn't need to be
+ * decorated with a SynchronizedMap.
+ * <p>
+ * The map is split into segments, each a hash table guarded by its own
+ * read/write lock, so operations on keys in different segments don't
+ * block each other and gets in the same segment only share a read lock.
+ * Each segment resizes on its own, so a resize only rehashes a fraction
+ * of the map and only blocks that segment.
+ * <p>
+ * commit and rollback hold the write locks of every segment the
+ * transaction changed, so other threads see all of its changes at once.
+ * Iterators are weakly consistent, each segment is copied when the
+ * iterator reaches it and they never throw ConcurrentModificationException.
+ * setAutoCommit shouldn't be called while other threads are changing the
+ * map.
+ */
+public class ConcurrentTransactionalHashMap<K,V> extends AbstractMap<K,V> implements TransactionalMap<K,V>
+{
+    /**
+     * Object to get hash from.
+     */
+    private final Object hash_object = new Object();
+
+    /**
+     * The default initial capacity of the whole map.
+     */
+    static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The load factor used when none specified in constructor.
+     */
+    static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    /**
+     * The number of segments used when none specified in constructor.
+     */
+    static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /**
+     * The maximum capacity of a segment.
+     */
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The maximum number of segments.
+     */
+    static final int MAXIMUM_SEGMENTS = 1 << 16;
+
+    /**
+     * The segments, the length is a power of two.
+     */
+    private final Segment<K,V>[] segments;
+
+    /**
+     * Shift of the multiplied hash giving the segment index.
+     */
+    private final int segment_shift;
+
+    /**
+     * The transactional mode the map is running in
+     */
+    private volatile boolean auto_commit = true;
+
+    /**
+     * Creates an empty map with the specified initial capacity, load
+     * factor and number of segments.
+     *
+     * @param  initialCapacity  The initial capacity.
+     * @param  loadFactor       The load factor.
+     * @param  concurrencyLevel The number of threads expected to update
+     *                          the map at the same time.
+     * @throws IllegalArgumentException if the initial capacity is negative
+     *         or the load factor or concurrency level are nonpositive.
+     */
+    public ConcurrentTransactionalHashMap(int initialCapacity, float loadFactor, int concurrencyLevel)
+    {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " +
+                    initialCapacity);
+        if (loadFactor <= 0 || Float.isNaN(loadFactor))
+            throw new IllegalArgumentException("Illegal load factor: " +
+                    loadFactor);
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("Illegal concurrency level: " +
+                    concurrencyLevel);
+
+        if (concurrencyLevel > MAXIMUM_SEGMENTS)
+            concurrencyLevel = MAXIMUM_SEGMENTS;
+
+        // Find a power of 2 >= concurrencyLevel
+        int segment_bits = 0;
+        int segment_count = 1;
+        while (segment_count < concurrencyLevel)
+        {
+            segment_count <<= 1;
+            segment_bits++;
+        }
+        segment_shift = 32 - segment_bits;
+
+        int segment_capacity = 1;
+        int per_segment = Math.min(initialCapacity / segment_count + 1, MAXIMUM_CAPACITY);
+        while (segment_capacity < per_segment)
+            segment_capacity <<= 1;
+
+        segments = newArray(Segment.class, segment_count);
+        for (int i = 0; i < segment_count; i++)
+            segments[i] = new Segment<K,V>(segment_capacity, loadFactor);
+    }
+
+    /**
+     * Create an array of segments or entries, whose type parameters can't
+     * be given to the array
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray(final Class<?> component, final int length)
+    {
+        return (T[])Array.newInstance(component, length);
+    }
+
+    /**
+     * Creates an empty map with the specified initial capacity and the
+     * default load factor (0.75) and number of segments (16).
+     *
+     * @param  initialCapacity the initial capacity.
+     * @throws IllegalArgumentException if the initial capacity is negative.
+     */
+    public ConcurrentTransactionalHashMap(int initialCapacity)
+    {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates an empty map with the default initial capacity (16), load
+     * factor (0.75) and number of segments (16).
+     */
+    public ConcurrentTransactionalHashMap()
+    {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates a map with the same mappings as the specified map.
+     *
+     * @param   m the map whose mappings are to be placed in this map.
+     * @throws  NullPointerException if the specified map is null.
+     */
+    public ConcurrentTransactionalHashMap(Map<? extends K,? extends V> m)
+    {
+        this(Math.max((int) (m.size() / DEFAULT_LOAD_FACTOR) + 1,
+                DEFAULT_INITIAL_CAPACITY), DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL);
+        putAll(m);
+    }
+
+    private String thread_session_key = null;
+
+    private final String getThreadSessionKey()
+    {
+        if (thread_session_key == null)
+            thread_session_key = ".ConcurrentTransactionalHashMap(" + hash_object.hashCode() + ")-attach_id";
+        return thread_session_key;
+    }
+
+    /**
+     * Attach the current thread to a specific id rather than using the
+     * current thread for transactional changes. This allows transactional
+     * changes to be done by different threads.
+     */
+    public void attach(final String attach_id)
+    {
+        ThreadSession.putValue(getThreadSessionKey(), TransactionId.getTransactionId(attach_id));
+    }
+
+    /**
+     * Detach the current thread from the attach_id.
+     */
+    public void detach()
+    {
+        ThreadSession.removeValue(getThreadSessionKey());
+    }
+
+    /**
+     * Sets this map's  auto commit state to the given state.
+     * If a map is in auto commit mode then all changes are
+     * available to all threads immediately, otherwise commit
+     * must be called.
+     * <P>
+     * The default for the map is auto commit is on.
+     * <P>
+     * <B>NOTE:</B>  If this method is called while there are outstanding
+     * transactions, commit is called.
+     *
+     * @param auto_commit - false to enable transaction support
+     *                      within this map.
+     */
+    public void setAutoCommit(final boolean auto_commit)
+    {
+        if (!this.auto_commit && auto_commit)
+            commit(null);
+
+        this.auto_commit = auto_commit;
+    }
+
+    public boolean isAutoCommit()
+    {
+        return auto_commit;
+    }
+
+    /**
+     * Commits the changes to the map so that all threads
+     * see them.
+     */
+    public void commit()
+    {
+        if (auto_commit)
+            return;
+
+        commit(getCurrentThreadId());
+    }
+
+    /**
+     * Rolls back the changes to the map.
+     */
+    public void rollback()
+    {
+        if (auto_commit)
+            return;
+
+        TransactionId id = getCurrentThreadId();
+        ArrayList<Segment<K,V>> changed = lockChangedSegments(id);
+        try
+        {
+            for (Segment<K,V> segment : changed)
+                segment.rollback(id);
+        }
+        finally
+        {
+            unlockSegments(changed);
+        }
+    }
+
+    /**
+     * Commits the changes to the map so that all threads
+     * see them.
+     *
+     * @param id the thread id to commit for, null commits
+     *           all threads changes
+     */
+    private void commit(final TransactionId id)
+    {
+        ArrayList<Segment<K,V>> changed = lockChangedSegments(id);
+        try
+        {
+            for (Segment<K,V> segment : changed)
+                segment.commit(id);
+        }
+        finally
+        {
+            unlockSegments(changed);
+        }
+    }
+
+    /**
+     * Write lock the segments with changes in segment order, so two
+     * commits can't deadlock.
+     *
+     * @param id the transaction id or null for any transaction
+     *
+     * @return the locked segments
+     */
+    private ArrayList<Segment<K,V>> lockChangedSegments(final TransactionId id)
+    {
+        ArrayList<Segment<K,V>> changed = new ArrayList<Segment<K,V>>();
+        try
+        {
+            for (Segment<K,V> segment : segments)
+            {
+                if (segment.hasChanges(id))
+                {
+                    segment.writeLock().lock();
+                    changed.add(segment);
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            unlockSegments(changed);
+            throw e;
+        }
+        return changed;
+    }
+
+    private void unlockSegments(final ArrayList<Segment<K,V>> locked)
+    {
+        for (Segment<K,V> segment : locked)
+            segment.writeLock().unlock();
+    }
+
+    /**
+     * Retrieve the current thread id for use by the
+     * transaction code.
+     *
+     * @return the attached transaction id or the transaction
+     *         id of the current thread
+     */
+    private TransactionId getCurrentThreadId()
+    {
+        TransactionId attach_id = (TransactionId)ThreadSession.getValue(getThreadSessionKey());
+        if (attach_id != null)
+            return attach_id;
+
+        return TransactionId.getThreadTransactionId();
+    }
+
+    /**
+     * @return the transaction id the segments should use, null in auto
+     *         commit mode
+     */
+    private TransactionId getTransactionId()
+    {
+        return auto_commit ? null : getCurrentThreadId();
+    }
+
+    /**
+     * The segment for a hash. The hash is multiplied so the segment
+     * index depends on all of its bits, while the index within the
+     * segment uses the low bits.
+     */
+    private Segment<K,V> segmentFor(final int hash)
+    {
+        return segments[segment_shift == 32 ? 0 : (hash * 0x9E3779B9) >>> segment_shift];
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map visible to
+     * the current transaction.
+     *
+     * @return the number of key-value mappings in this map.
+     */
+    @Override
+    public int size()
+    {
+        return size(false);
+    }
+
+    public int size(boolean countAll)
+    {
+        TransactionId id = countAll ? null : getTransactionId();
+        long size = 0;
+        for (Segment<K,V> segment : segments)
+            size += segment.size(id);
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        TransactionId id = getTransactionId();
+        for (Segment<K,V> segment : segments)
+        {
+            if (segment.size(id) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        Object k = TransactionalHashMap.maskNull(key);
+        int hash = TransactionalHashMap.hash(k);
+        return segmentFor(hash).get(k, hash, getTransactionId());
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        Object k = TransactionalHashMap.maskNull(key);
+        int hash = TransactionalHashMap.hash(k);
+        return segmentFor(hash).containsKey(k, hash, getTransactionId());
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     *
+     * @throws ConcurrentModificationException if another transaction has
+     *         a pending add of the key
+     */
+    @Override
+    public V put(K key, V value) throws ConcurrentModificationException
+    {
+        K k = TransactionalHashMap.maskNull(key);
+        int hash = TransactionalHashMap.hash(k);
+        return segmentFor(hash).put(k, hash, value, getTransactionId());
+    }
+
+    /**
+     * Removes the mapping for this key from this map if present.
+     *
+     * @throws ConcurrentModificationException if another transaction has
+     *         a pending removal of the key
+     */
+    @Override
+    public V remove(Object key) throws ConcurrentModificationException
+    {
+        Object k = TransactionalHashMap.maskNull(key);
+        int hash = TransactionalHashMap.hash(k);
+        Entry<K,V> e = segmentFor(hash).remove(k, hash, null, getTransactionId());
+        return (e == null ? null : e.value);
+    }
+
+    /**
+     * Special version of remove for EntrySet.
+     */
+    @SuppressWarnings("unchecked")
+    private Entry<K,V> removeMapping(Object o)
+    {
+        if (!(o instanceof Map.Entry))
+            return null;
+
+        Map.Entry<K,V> entry = (Map.Entry<K,V>)o;
+        Object k = TransactionalHashMap.maskNull(entry.getKey());
+        int hash = TransactionalHashMap.hash(k);
+        return segmentFor(hash).remove(k, hash, entry, getTransactionId());
+    }
+
+    /**
+     * Removes all mappings from this map.
+     */
+    @Override
+    public void clear()
+    {
+        for (Segment<K,V> segment : segments)
+            segment.clear();
+    }
+
+    @Override
+    public boolean containsValue(Object value)
+    {
+        TransactionId id = getTransactionId();
+        for (Segment<K,V> segment : segments)
+        {
+            if (segment.containsValue(value, id))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The number of entries ADDED and DELETED by a transaction id.
+     */
+    private static final class TransactionCounts
+    {
+        private int added = 0;
+        private int deleted = 0;
+    }
+
+    /**
+     * A hash table holding the keys whose hashes select it. All the
+     * fields are guarded by the segment's lock.
+     */
+    private static final class Segment<K,V> extends ReentrantReadWriteLock
+    {
+        private static final long serialVersionUID = -2376812730432897187L;
+
+        private Entry<K,V>[] table;
+        private int size;
+        private int threshold;
+        private final float loadFactor;
+
+        /**
+         * The number of entries in ADDED status for any transaction id.
+         */
+        private int added_count = 0;
+
+        /**
+         * The number of entries ADDED and DELETED by each transaction id.
+         */
+        private final HashMap<TransactionId,TransactionCounts> transaction_counts = new HashMap<TransactionId,TransactionCounts>();
+
+        Segment(final int capacity, final float loadFactor)
+        {
+            this.loadFactor = loadFactor;
+            threshold = (int)(capacity * loadFactor);
+            table = newArray(Entry.class, capacity);
+        }
+
+        /**
+         * Checks that this entry is valid for the transaction
+         *
+         * @param id the transaction id, null in auto commit mode
+         */
+        private static boolean validEntry(final Entry<?,?> entry, final TransactionId id)
+        {
+            if (id == null)
+                return true;
+
+            return !((entry.is(Entry.DELETED, id)) ||
+                    (entry.is(Entry.ADDED, null) && entry.is(Entry.NO_CHANGE, id)));
+        }
+
+        /**
+         * Must hold the lock.
+         */
+        private Entry<K,V> getEntry(final Object k, final int hash, final TransactionId id)
+        {
+            Entry<K,V> e = table[TransactionalHashMap.indexFor(hash, table.length)];
+            while (e != null && !(e.hash == hash && validEntry(e, id) && TransactionalHashMap.eq(k, e.key)))
+                e = e.next;
+            return e;
+        }
+
+        V get(final Object k, final int hash, final TransactionId id)
+        {
+            readLock().lock();
+            try
+            {
+                Entry<K,V> e = getEntry(k, hash, id);
+                return e == null ? null : e.value;
+            }
+            finally
+            {
+                readLock().unlock();
+            }
+        }
+
+        boolean containsKey(final Object k, final int hash, final TransactionId id)
+        {
+            readLock().lock();
+            try
+            {
+                return getEntry(k, hash, id) != null;
+            }
+            finally
+            {
+                readLock().unlock();
+            }
+        }
+
+        V put(final K k, final int hash, final V value, final TransactionId id)
+        {
+            writeLock().lock();
+            try
+            {
+                int i = TransactionalHashMap.indexFor(hash, table.length);
+                V oldValue = null;
+                for (Entry<K,V> e = table[i]; e != null; e = e.next)
+                {
+                    if (e.hash == hash && TransactionalHashMap.eq(k, e.key))
+                    {
+                        //check if someone else has a pending add for the same key
+                        if (e.is(Entry.ADDED, null) && !e.is(Entry.ADDED, id))
+                            throw new ConcurrentModificationException();
+
+                        if (validEntry(e, id))
+                        {
+                            oldValue = e.value;
+                            // Entries that no other transaction can see can be reused
+                            if (id == null || e.is(Entry.ADDED, id))
+                            {
+                                e.value = value;
+                                return oldValue;
+                            }
+                            setStatus(e, Entry.DELETED, id);
+                        }
+                    }
+                }
+
+                Entry<K,V> e = new Entry<K,V>(hash, k, value, table[i]);
+                table[i] = e;
+                if (id != null)
+                    setStatus(e, Entry.ADDED, id);
+                if (size++ >= threshold)
+                    resize();
+                return oldValue;
+            }
+            finally
+            {
+                writeLock().unlock();
+            }
+        }
+
+        /**
+         * Remove the entry for the key.
+         *
+         * @param mapping if not null the value must match this mapping
+         *
+         * @return the removed entry or null
+         */
+        Entry<K,V> remove(final Object k, final int hash, final Map.Entry<K,V> mapping, final TransactionId id)
+        {
+            writeLock().lock();
+            try
+            {
+                int i = TransactionalHashMap.indexFor(hash, table.length);
+                Entry<K,V> prev = null;
+                for (Entry<K,V> e = table[i]; e != null; prev = e, e = e.next)
+                {
+                    if (e.hash == hash && validEntry(e, id) && TransactionalHashMap.eq(k, e.key))
+                    {
+                        if (mapping != null && !e.equals(mapping))
+                            return null;
+
+                        if (e.is(Entry.DELETED, null) && !e.is(Entry.DELETED, id))
+                            throw new ConcurrentModificationException();
+
+                        // Entries that no other transaction can see are removed now
+                        if (id == null || e.is(Entry.ADDED, id))
+                        {
+                            unlink(i, prev, e);
+                            setStatus(e, Entry.NO_CHANGE, null);
+                        }
+                        else
+                            setStatus(e, Entry.DELETED, id);
+                        return e;
+                    }
+                }
+                return null;
+            }
+            finally
+            {
+                writeLock().unlock();
+            }
+        }
+
+        private void unlink(final int i, final Entry<K,V> prev, final Entry<K,V> e)
+        {
+            if (prev == null)
+                table[i] = e.next;
+            else
+                prev.next = e.next;
+            size--;
+        }
+
+        boolean containsValue(final Object value, final TransactionId id)
+        {
+            readLock().lock();
+            try
+            {
+                Entry<K,V> tab[] = table;
+                for (int i = 0; i < tab.length ; i++)
+                    for (Entry<K,V> e = tab[i] ; e != null ; e = e.next)
+                        if (validEntry(e, id) && (value == null ? e.value == null : value.equals(e.value)))
+                            return true;
+                return false;
+            }
+            finally
+            {
+                readLock().unlock();
+            }
+        }
+
+        int size(final TransactionId id)
+        {
+            readLock().lock();
+            try
+            {
+                if (id == null)
+                    return size;
+
+                // Entries added by other transactions and entries deleted by this transaction aren't visible
+                TransactionCounts counts = transaction_counts.get(id);
+                int size = this.size - added_count;
+                if (counts != null)
+                    size += counts.added - counts.deleted;
+                return size;
+            }
+            finally
+            {
+                readLock().unlock();
+            }
+        }
+
+        void clear()
+        {
+            writeLock().lock();
+            try
+            {
+                Entry<K,V> tab[] = table;
+                for (int i = 0; i < tab.length; i++)
+                    tab[i] = null;
+                size = 0;
+                added_count = 0;
+                transaction_counts.clear();
+            }
+            finally
+            {
+                writeLock().unlock();
+            }
+        }
+
+        /**
+         * @param id the transaction id or null for any transaction
+         *
+         * @return true if the transaction has changed this segment
+         */
+        boolean hasChanges(final TransactionId id)
+        {
+            readLock().lock();
+            try
+            {
+                return id == null ? !transaction_counts.isEmpty() : transaction_counts.containsKey(id);
+            }
+            finally
+            {
+                readLock().unlock();
+            }
+        }
+
+        /**
+         * Must hold the write lock.
+         */
+        void commit(final TransactionId id)
+        {
+            Entry<K,V> tab[] = table;
+            for (int i = 0; i < tab.length ; i++)
+            {
+                Entry<K,V> prev = null;
+                for (Entry<K,V> e = tab[i]; e != null; e = e.next)
+                {
+                    if (e.is(Entry.DELETED, id))
+                    {
+                        unlink(i, prev, e);
+                        setStatus(e, Entry.NO_CHANGE, null);
+                    }
+                    else
+                    {
+                        if (e.is(Entry.ADDED, id))
+                            setStatus(e, Entry.NO_CHANGE, null);
+                        prev = e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Must hold the write lock.
+         */
+        void rollback(final TransactionId id)
+        {
+            Entry<K,V> tab[] = table;
+            for (int i = 0; i < tab.length ; i++)
+            {
+                Entry<K,V> prev = null;
+                for (Entry<K,V> e = tab[i]; e != null; e = e.next)
+                {
+                    if (e.is(Entry.ADDED, id))
+                    {
+                        unlink(i, prev, e);
+                        setStatus(e, Entry.NO_CHANGE, null);
+                    }
+                    else
+                    {
+                        if (e.is(Entry.DELETED, id))
+                            setStatus(e, Entry.NO_CHANGE, null);
+                        prev = e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the entries valid for the transaction
+         */
+        ArrayList<Entry<K,V>> validEntries(final TransactionId id)
+        {
+            readLock().lock();
+            try
+            {
+                ArrayList<Entry<K,V>> entries = new ArrayList<Entry<K,V>>(size);
+                Entry<K,V> tab[] = table;
+                for (int i = 0; i < tab.length ; i++)
+                    for (Entry<K,V> e = tab[i] ; e != null ; e = e.next)
+                        if (validEntry(e, id))
+                            entries.add(e);
+                return entries;
+            }
+            finally
+            {
+                readLock().unlock();
+            }
+        }
+
+        /**
+         * Double the table, must hold the write lock.
+         */
+        private void resize()
+        {
+            Entry<K,V>[] oldTable = table;
+            if (oldTable.length == MAXIMUM_CAPACITY)
+            {
+                threshold = Integer.MAX_VALUE;
+                return;
+            }
+
+            Entry<K,V>[] newTable = newArray(Entry.class, oldTable.length * 2);
+            for (int j = 0; j < oldTable.length; j++)
+            {
+                Entry<K,V> e = oldTable[j];
+                while (e != null)
+                {
+                    Entry<K,V> next = e.next;
+                    int i = TransactionalHashMap.indexFor(e.hash, newTable.length);
+                    e.next = newTable[i];
+                    newTable[i] = e;
+                    e = next;
+                }
+            }
+            table = newTable;
+            threshold = (int)(newTable.length * loadFactor);
+        }
+
+        /**
+         * Set the transactional status of an entry keeping the ADDED and
+         * DELETED counts up to date.
+         *
+         * @param e the entry to be changed
+         * @param status the new status
+         * @param id the transaction id making the change or null for NO_CHANGE
+         */
+        private void setStatus(final Entry<K,V> e, final int status, final TransactionId id)
+        {
+            if (e.transactionId != null)
+            {
+                TransactionCounts counts = transaction_counts.get(e.transactionId);
+                if (e.transactionStatus == Entry.ADDED)
+                {
+                    added_count--;
+                    counts.added--;
+                }
+                else if (e.transactionStatus == Entry.DELETED)
+                    counts.deleted--;
+                if (counts.added == 0 && counts.deleted == 0)
+                    transaction_counts.remove(e.transactionId);
+            }
+
+            e.setStatus(status, id);
+
+            if (id != null)
+            {
+                TransactionCounts counts = transaction_counts.get(id);
+                if (counts == null)
+                {
+                    counts = new TransactionCounts();
+                    transaction_counts.put(id, counts);
+                }
+                if (status == Entry.ADDED)
+                {
+                    added_count++;
+                    counts.added++;
+                }
+                else if (status == Entry.DELETED)
+                    counts.deleted++;
+            }
+        }
+    }
+
+    private static final class Entry<K,V> implements Map.Entry<K,V>
+    {
+        final K key;
+        V value;
+        final int hash;
+        Entry<K,V> next;
+        private int           transactionStatus;
+        private TransactionId transactionId;
+
+        private static final int NO_CHANGE = 0;
+        private static final int DELETED = 1;
+        private static final int ADDED = 2;
+
+        /**
+         * Create new entry.
+         */
+        Entry(int h, K k, V v, Entry<K,V> n)
+        {
+            value = v;
+            next = n;
+            key = k;
+            hash = h;
+            transactionStatus = NO_CHANGE;
+            transactionId     = null;
+        }
+
+        private void setStatus(final int status, final TransactionId id)
+        {
+            transactionStatus = status;
+            transactionId = id;
+        }
+
+        private boolean is(final int status, final TransactionId id)
+        {
+            if (transactionId == null)
+                return status == NO_CHANGE;
+
+            if (id == null || transactionId == id)
+                return transactionStatus == status;
+
+            return status == NO_CHANGE;
+        }
+
+        public K getKey()
+        {
+            return TransactionalHashMap.<K>unmaskNull(key);
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(Object newValue)
+        throws UnsupportedOperationException
+        {
+            throw new UnsupportedOperationException(
+                    "Map.Entry.setValue is not supported");
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            Object k1 = getKey();
+            Object k2 = e.getKey();
+            if (k1 == k2 || (k1 != null && k1.equals(k2)))
+            {
+                Object v1 = getValue();
+                Object v2 = e.getValue();
+                if (v1 == v2 || (v1 != null && v1.equals(v2)))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (key==TransactionalHashMap.NULL_KEY ? 0 : key.hashCode()) ^
+                    (value==null   ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    /**
+     * Iterates the entries valid for the transaction of the thread that
+     * created it, copying each segment as it's reached.
+     */
+    private abstract class HashIterator<E> implements Iterator<E>
+    {
+        private final TransactionId id = getTransactionId();
+        private int segment_index = 0;
+        private ArrayList<Entry<K,V>> entries = null;
+        private int index = 0;
+        private Entry<K,V> current = null;
+
+        public boolean hasNext()
+        {
+            while (entries == null || index >= entries.size())
+            {
+                if (segment_index >= segments.length)
+                    return false;
+                entries = segments[segment_index++].validEntries(id);
+                index = 0;
+            }
+            return true;
+        }
+
+        Entry<K,V> nextEntry()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current = entries.get(index++);
+        }
+
+        public void remove()
+        {
+            if (current == null)
+                throw new IllegalStateException();
+            ConcurrentTransactionalHashMap.this.remove(current.getKey());
+            current = null;
+        }
+    }
+
+    private class ValueIterator extends HashIterator<V>
+    {
+        public V next()
+        {
+            return nextEntry().value;
+        }
+    }
+
+    private class KeyIterator extends HashIterator<K>
+    {
+        public K next()
+        {
+            return nextEntry().getKey();
+        }
+    }
+
+    private class EntryIterator extends HashIterator<Map.Entry<K, V>>
+    {
+        public Map.Entry<K, V> next()
+        {
+            return nextEntry();
+        }
+    }
+
+    // Views
+
+    private transient volatile Set<Map.Entry<K,V>> entrySet = null;
+    private transient volatile Set<K> keySet = null;
+    private transient volatile Collection<V> values = null;
+
+    @Override
+    public Set<K> keySet()
+    {
+        Set<K> ks = keySet;
+        return (ks != null ? ks : (keySet = new KeySet()));
+    }
+
+    private class KeySet extends AbstractSet<K>
+    {
+        @Override
+        public Iterator<K> iterator()
+        {
+            return new KeyIterator();
+        }
+        @Override
+        public int size()
+        {
+            return ConcurrentTransactionalHashMap.this.size();
+        }
+        @Override
+        public boolean contains(Object o)
+        {
+            return containsKey(o);
+        }
+        @Override
+        public boolean remove(Object o)
+        {
+            Object k = TransactionalHashMap.maskNull(o);
+            int hash = TransactionalHashMap.hash(k);
+            return segmentFor(hash).remove(k, hash, null, getTransactionId()) != null;
+        }
+        @Override
+        public void clear()
+        {
+            ConcurrentTransactionalHashMap.this.clear();
+        }
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        Collection<V> vs = values;
+        return (vs != null ? vs : (values = new Values()));
+    }
+
+    private class Values extends AbstractCollection<V>
+    {
+        @Override
+        public Iterator<V> iterator()
+        {
+            return new ValueIterator();
+        }
+        @Override
+        public int size()
+        {
+            return ConcurrentTransactionalHashMap.this.size();
+        }
+        @Override
+        public boolean contains(Object o)
+        {
+            return containsValue(o);
+        }
+        @Override
+        public void clear()
+        {
+            ConcurrentTransactionalHashMap.this.clear();
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        Set<Map.Entry<K, V>> es = entrySet;
+        return (es != null ? es : (entrySet = new EntrySet()));
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>>
+    {
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator()
+        {
+            return new EntryIterator();
+        }
+        @Override
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            Object k = TransactionalHashMap.maskNull(e.getKey());
+            int hash = TransactionalHashMap.hash(k);
+            Segment<K,V> segment = segmentFor(hash);
+            segment.readLock().lock();
+            try
+            {
+                Entry<K,V> candidate = segment.getEntry(k, hash, getTransactionId());
+                return candidate != null && candidate.equals(e);
+            }
+            finally
+            {
+                segment.readLock().unlock();
+            }
+        }
+        @Override
+        public boolean remove(Object o)
+        {
+            return removeMapping(o) != null;
+        }
+        @Override
+        public int size()
+        {
+            return ConcurrentTransactionalHashMap.this.size();
+        }
+        @Override
+        public void clear()
+        {
+            ConcurrentTransactionalHashMap.this.clear();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * A NavigableMap in the reverse order of the map it is backed by. Lookups
+ * and navigation are passed to the forward map with the directions swapped
+ * and the sub maps are descending views of its sub maps. The forward map
+ * supplies the iterator over its entries in descending order, which it can
+ * do by walking its trees backwards.
+ */
+abstract class DescendingNavigableMap<K,V> extends AbstractMap<K,V> implements NavigableMap<K,V>
+{
+    private final NavigableMap<K,V> forward;
+
+    private transient Set<Map.Entry<K,V>> entrySet = null;
+
+    DescendingNavigableMap(final NavigableMap<K,V> forward)
+    {
+        this.forward = forward;
+    }
+
+    /**
+     * @return an iterator over the entries of the forward map, greatest
+     *         key first, that supports remove
+     */
+    protected abstract Iterator<Map.Entry<K,V>> descendingIterator();
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        if (entrySet == null)
+        {
+            entrySet = new AbstractSet<Map.Entry<K,V>>()
+            {
+                @Override
+                public Iterator<Map.Entry<K,V>> iterator()
+                {
+                    return descendingIterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    return forward.size();
+                }
+
+                @Override
+                public boolean contains(final Object o)
+                {
+                    return forward.entrySet().contains(o);
+                }
+
+                @Override
+                public boolean remove(final Object o)
+                {
+                    return forward.entrySet().remove(o);
+                }
+
+                @Override
+                public void clear()
+                {
+                    forward.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    @Override
+    public int size()
+    {
+        return forward.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return forward.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return forward.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value)
+    {
+        return forward.containsValue(value);
+    }
+
+    @Override
+    public V get(final Object key)
+    {
+        return forward.get(key);
+    }
+
+    @Override
+    public V put(final K key, final V value)
+    {
+        return forward.put(key, value);
+    }
+
+    @Override
+    public V remove(final Object key)
+    {
+        return forward.remove(key);
+    }
+
+    @Override
+    public void clear()
+    {
+        forward.clear();
+    }
+
+    public Comparator<? super K> comparator()
+    {
+        return Collections.reverseOrder(forward.comparator());
+    }
+
+    public K firstKey()
+    {
+        return forward.lastKey();
+    }
+
+    public K lastKey()
+    {
+        return forward.firstKey();
+    }
+
+    public Map.Entry<K,V> firstEntry()
+    {
+        return forward.lastEntry();
+    }
+
+    public Map.Entry<K,V> lastEntry()
+    {
+        return forward.firstEntry();
+    }
+
+    public Map.Entry<K,V> pollFirstEntry()
+    {
+        return forward.pollLastEntry();
+    }
+
+    public Map.Entry<K,V> pollLastEntry()
+    {
+        return forward.pollFirstEntry();
+    }
+
+    public Map.Entry<K,V> lowerEntry(final K key)
+    {
+        return forward.higherEntry(key);
+    }
+
+    public K lowerKey(final K key)
+    {
+        return forward.higherKey(key);
+    }
+
+    public Map.Entry<K,V> floorEntry(final K key)
+    {
+        return forward.ceilingEntry(key);
+    }
+
+    public K floorKey(final K key)
+    {
+        return forward.ceilingKey(key);
+    }
+
+    public Map.Entry<K,V> ceilingEntry(final K key)
+    {
+        return forward.floorEntry(key);
+    }
+
+    public K ceilingKey(final K key)
+    {
+        return forward.floorKey(key);
+    }
+
+    public Map.Entry<K,V> higherEntry(final K key)
+    {
+        return forward.lowerEntry(key);
+    }
+
+    public K higherKey(final K key)
+    {
+        return forward.lowerKey(key);
+    }
+
+    public NavigableMap<K,V> descendingMap()
+    {
+        return forward;
+    }
+
+    public NavigableSet<K> navigableKeySet()
+    {
+        return new NavigableKeySet<K>(this);
+    }
+
+    public NavigableSet<K> descendingKeySet()
+    {
+        return forward.navigableKeySet();
+    }
+
+    @Override
+    public Set<K> keySet()
+    {
+        return navigableKeySet();
+    }
+
+    public NavigableMap<K,V> subMap(final K fromKey, final boolean fromInclusive, final K toKey, final boolean toInclusive)
+    {
+        return forward.subMap(toKey, toInclusive, fromKey, fromInclusive).descendingMap();
+    }
+
+    public NavigableMap<K,V> headMap(final K toKey, final boolean inclusive)
+    {
+        return forward.tailMap(toKey, inclusive).descendingMap();
+    }
+
+    public NavigableMap<K,V> tailMap(final K fromKey, final boolean inclusive)
+    {
+        return forward.headMap(fromKey, inclusive).descendingMap();
+    }
+
+    public SortedMap<K,V> subMap(final K fromKey, final K toKey)
+    {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    public SortedMap<K,V> headMap(final K toKey)
+    {
+        return headMap(toKey, false);
+    }
+
+    public SortedMap<K,V> tailMap(final K fromKey)
+    {
+        return tailMap(fromKey, true);
+    }
+}
@@ -18,6 +18,7 @@ package com.workplacesystems.utilsj.collections;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -25,7 +26,7 @@ import java.util.NoSuchElementException;
  *
  * @author  Administrator
  */
-public class FilterableArrayList<E> extends ArrayList<E> implements FilterableList<E> {
+public class FilterableArrayList<E> extends ArrayList<E> implements FilterableList<E>, SplittableCollection<E> {
     
     /**
      * 
@@ -63,6 +64,16 @@ public class FilterableArrayList<E> extends ArrayList<E> implements FilterableLi
         super(c);
     }
 
+    /**
+     * Returns a traversal that splits the list by index. A
+     * ConcurrentModificationException is thrown if the list is
+     * structurally modified while the traversal is in use.
+     */
+    public SplittableTraversal<E> traversal()
+    {
+        return new IndexTraversal(0, size(), modCount);
+    }
+
     public FilterableCollection<E> filteredCollection(final Filter<? super E> filter)
     {
         return new AbstractFilterableCollection<E>() {
@@ -73,6 +84,11 @@ public class FilterableArrayList<E> extends ArrayList<E> implements FilterableLi
                 return new FilterableArrayIterator(filter);
             }
 
+            @Override
+            public SplittableTraversal<E> traversal() {
+                return FilterableArrayList.this.traversal().filter(filter);
+            }
+
             @Override
             public int size() {
                 int size = 0;
@@ -180,4 +196,45 @@ public class FilterableArrayList<E> extends ArrayList<E> implements FilterableLi
             }
         };
     }
+
+    private class IndexTraversal extends SplittableTraversal<E>
+    {
+        private int from;
+        private final int to;
+        private final int expectedModCount;
+
+        IndexTraversal(int from, int to, int expectedModCount)
+        {
+            this.from = from;
+            this.to = to;
+            this.expectedModCount = expectedModCount;
+        }
+
+        @Override
+        public SplittableTraversal<E> trySplit() {
+            if (to - from < 2)
+                return null;
+
+            int mid = (from + to) >>> 1;
+            SplittableTraversal<E> prefix = new IndexTraversal(from, mid, expectedModCount);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        boolean traverse(Visitor<? super E> visitor) {
+            for (int i = from; i < to; i++) {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                if (!visitor.visit(get(i)))
+                    return false;
+            }
+            return true;
+        }
+    }
 }
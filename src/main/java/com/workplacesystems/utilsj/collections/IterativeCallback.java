@@ -131,6 +131,7 @@ abstract public class IterativeCallback<T,R>
             if (state.do_break == true)
                 return state.return_object;
         }
+        iterationComplete();
         return state.amended_object;
     }
 
@@ -162,6 +163,21 @@ abstract public class IterativeCallback<T,R>
     /** called by each iteration step */
     protected abstract void nextObject(T obj);
 
+    /**
+     * Called once every object has been visited without a break, before the
+     * amended object is returned. Callbacks that keep a running total can
+     * fold the work of the whole iteration into the amended object here
+     * rather than on each step. In a parallel iteration it is called at the
+     * end of each chunk, before the chunks are merged.
+     */
+    protected void iterationComplete() {}
+
+    /** @return the number of objects visited so far */
+    protected final int getIterations()
+    {
+        return state.iterations;
+    }
+
     protected void _return(R o)
     {
         state.return_object = o;
@@ -203,4 +219,9 @@ abstract public class IterativeCallback<T,R>
         else
             this.delegate.setNextDelegation(delegate);
     }    
+
+    boolean hasDelegations()
+    {
+        return delegate != null;
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.concurrent.ForkJoinPool;
+
+import com.workplacesystems.utilsj.Callback;
+import com.workplacesystems.utilsj.UtilsjException;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedDecorator;
+
+/**
+ * An IterativeCallback whose amended object can be built up in separate
+ * chunks and then merged, which allows the iteration to be split across
+ * the threads of a ForkJoinPool.
+ * <p>
+ * In iterateParallel each chunk of the collection is visited by a shallow
+ * copy of this callback starting from newChunkObject(), so firstObject is
+ * called for the first object of every chunk, and the chunk results are
+ * merged in iteration order before finally being merged into the amended
+ * object this callback started with. Any state beyond the amended object
+ * should not be kept in fields. _break and _return stop the chunks after
+ * the breaking object and the result is the same as a sequential
+ * iteration would give. hasNext and remove can't be used.
+ * <p>
+ * nextObject is called on the pool threads, so it must not lock the
+ * collection and doesn't see the ThreadSession of the calling thread.
+ * Transactional collections resolve visibility for the calling thread when
+ * the traversal is created.
+ */
+abstract public class MergeableIterativeCallback<T,R> extends IterativeCallback<T,R> implements Cloneable
+{
+    /** Creates a new instance of MergeableIterativeCallback */
+    public MergeableIterativeCallback()
+    {
+        super();
+    }
+
+    /** Creates a new instance of MergeableIterativeCallback, accepting an object that may be amended throughout the iteration process */
+    public MergeableIterativeCallback(R amended_object)
+    {
+        super(amended_object);
+    }
+
+    /**
+     * @return the amended object each chunk of a parallel iteration starts
+     *         from
+     */
+    protected abstract R newChunkObject();
+
+    /**
+     * Combines the amended objects of two neighbouring chunks. The left
+     * object may be changed and returned.
+     *
+     * @param left the amended object of the earlier chunk
+     * @param right the amended object of the later chunk
+     *
+     * @return the combined amended object
+     */
+    protected abstract R merge(R left, R right);
+
+    /**
+     * The pool used when none is supplied, created on first use. The
+     * common pool would need Java 8.
+     */
+    private static final class DefaultPool
+    {
+        static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    /** parallel iteration using a shared ForkJoinPool with a thread per processor */
+    public R iterateParallel(final FilterableCollection<? extends T> c)
+    {
+        return iterateParallel(c, DefaultPool.POOL);
+    }
+
+    /**
+     * Parallel iteration using the supplied pool. The read lock of a
+     * synchronized collection is held by the calling thread until all the
+     * chunks have finished. Callbacks with delegations are iterated
+     * sequentially.
+     */
+    public R iterateParallel(final FilterableCollection<? extends T> c, final ForkJoinPool pool)
+    {
+        if (hasDelegations())
+            return iterate(c);
+
+        checkUsed();
+
+        if (c instanceof SynchronizedDecorator)
+        {
+            return SyncUtils.synchronizeRead(c, new Callback<R>() {
+                @Override
+                protected void doAction()
+                {
+                    _return(ParallelIteration.iterate(MergeableIterativeCallback.this, traversal(c), pool));
+                }
+            });
+        }
+        return ParallelIteration.iterate(this, traversal(c), pool);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> SplittableTraversal<? extends E> traversal(final FilterableCollection<? extends E> c)
+    {
+        if (c instanceof SplittableCollection)
+            return ((SplittableCollection<? extends E>)c).traversal();
+        return SplittableTraversal.fromIterator(c.iterator());
+    }
+
+    /**
+     * @return a copy of this callback using the supplied state
+     */
+    @SuppressWarnings("unchecked")
+    MergeableIterativeCallback<T,R> newChunk(final IterativeState<T,R> chunk_state)
+    {
+        MergeableIterativeCallback<T,R> chunk;
+        try
+        {
+            chunk = (MergeableIterativeCallback<T,R>)clone();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            throw new UtilsjException(e);
+        }
+        chunk_state.iterative_callback_used = true;
+        chunk_state.amended_object = newChunkObject();
+        chunk.setState(chunk_state);
+        return chunk;
+    }
+}
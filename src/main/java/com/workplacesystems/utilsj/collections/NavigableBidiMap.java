@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * A SortedBidiMap that is a NavigableMap by key and can be navigated the
+ * same way by value. The ByValue methods find the entry with the nearest
+ * value to the one given, and return it or its key. Like those of
+ * NavigableMap, the entries returned are snapshots that don't support
+ * setValue, and null is returned when there is no such entry.
+ */
+public interface NavigableBidiMap<K,V> extends NavigableMap<K,V>, SortedBidiMap<K,V>
+{
+    /**
+     * @return the entry with the greatest value strictly less than value
+     */
+    Map.Entry<K,V> lowerEntryByValue(V value);
+
+    K lowerKeyByValue(V value);
+
+    /**
+     * @return the entry with the greatest value less than or equal to value
+     */
+    Map.Entry<K,V> floorEntryByValue(V value);
+
+    K floorKeyByValue(V value);
+
+    /**
+     * @return the entry with the least value greater than or equal to value
+     */
+    Map.Entry<K,V> ceilingEntryByValue(V value);
+
+    K ceilingKeyByValue(V value);
+
+    /**
+     * @return the entry with the least value strictly greater than value
+     */
+    Map.Entry<K,V> higherEntryByValue(V value);
+
+    K higherKeyByValue(V value);
+
+    Map.Entry<K,V> firstEntryByValue();
+
+    Map.Entry<K,V> lastEntryByValue();
+
+    /**
+     * Removes and returns the entry with the least value.
+     */
+    Map.Entry<K,V> pollFirstEntryByValue();
+
+    /**
+     * Removes and returns the entry with the greatest value.
+     */
+    Map.Entry<K,V> pollLastEntryByValue();
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+
+/**
+ * The keys of a NavigableMap as a NavigableSet, backed by the map. The
+ * set is iterated in the order of the map's entry set, and everything
+ * else is passed to the map's navigation methods.
+ */
+class NavigableKeySet<K> extends AbstractSet<K> implements NavigableSet<K>
+{
+    private final NavigableMap<K,?> map;
+
+    NavigableKeySet(final NavigableMap<K,?> map)
+    {
+        this.map = map;
+    }
+
+    @Override
+    public Iterator<K> iterator()
+    {
+        return keys(map);
+    }
+
+    public Iterator<K> descendingIterator()
+    {
+        return keys(map.descendingMap());
+    }
+
+    private static <K> Iterator<K> keys(final NavigableMap<K,?> map)
+    {
+        final Iterator<? extends Map.Entry<K,?>> i = map.entrySet().iterator();
+        return new Iterator<K>()
+        {
+            public boolean hasNext()
+            {
+                return i.hasNext();
+            }
+
+            public K next()
+            {
+                return i.next().getKey();
+            }
+
+            public void remove()
+            {
+                i.remove();
+            }
+        };
+    }
+
+    @Override
+    public int size()
+    {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean contains(final Object o)
+    {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(final Object o)
+    {
+        if (!map.containsKey(o))
+            return false;
+        map.remove(o);
+        return true;
+    }
+
+    @Override
+    public void clear()
+    {
+        map.clear();
+    }
+
+    public Comparator<? super K> comparator()
+    {
+        return map.comparator();
+    }
+
+    public K first()
+    {
+        return map.firstKey();
+    }
+
+    public K last()
+    {
+        return map.lastKey();
+    }
+
+    public K lower(final K key)
+    {
+        return map.lowerKey(key);
+    }
+
+    public K floor(final K key)
+    {
+        return map.floorKey(key);
+    }
+
+    public K ceiling(final K key)
+    {
+        return map.ceilingKey(key);
+    }
+
+    public K higher(final K key)
+    {
+        return map.higherKey(key);
+    }
+
+    public K pollFirst()
+    {
+        Map.Entry<K,?> first = map.pollFirstEntry();
+        return first == null ? null : first.getKey();
+    }
+
+    public K pollLast()
+    {
+        Map.Entry<K,?> last = map.pollLastEntry();
+        return last == null ? null : last.getKey();
+    }
+
+    public NavigableSet<K> descendingSet()
+    {
+        return map.descendingKeySet();
+    }
+
+    public NavigableSet<K> subSet(final K fromElement, final boolean fromInclusive, final K toElement, final boolean toInclusive)
+    {
+        return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+    }
+
+    public NavigableSet<K> headSet(final K toElement, final boolean inclusive)
+    {
+        return map.headMap(toElement, inclusive).navigableKeySet();
+    }
+
+    public NavigableSet<K> tailSet(final K fromElement, final boolean inclusive)
+    {
+        return map.tailMap(fromElement, inclusive).navigableKeySet();
+    }
+
+    public SortedSet<K> subSet(final K fromElement, final K toElement)
+    {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    public SortedSet<K> headSet(final K toElement)
+    {
+        return headSet(toElement, false);
+    }
+
+    public SortedSet<K> tailSet(final K fromElement)
+    {
+        return tailSet(fromElement, true);
+    }
+}
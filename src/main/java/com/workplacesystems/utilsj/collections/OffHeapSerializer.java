@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Encodes the keys or values of an OffHeapTransactionalBidiTreeMap into a
+ * fixed number of bytes of its off-heap records, and defines their order.
+ * <p>
+ * compare(T,ByteBuffer,int) compares an object with an encoded one
+ * without decoding it, so lookups don't create any objects. It must agree
+ * with compare(T,T).
+ */
+public interface OffHeapSerializer<T> extends Comparator<T>
+{
+    /**
+     * Longs in their natural order.
+     */
+    OffHeapSerializer<Long> LONG = new Longs();
+
+    /**
+     * Integers in their natural order.
+     */
+    OffHeapSerializer<Integer> INTEGER = new Integers();
+
+    /**
+     * @return the number of bytes every encoded object takes
+     */
+    int size();
+
+    /**
+     * Encode an object at an absolute offset in the buffer.
+     *
+     * @throws IllegalArgumentException if the object doesn't fit in size() bytes
+     */
+    void write(final ByteBuffer buffer, final int offset, final T o);
+
+    /**
+     * Decode the object at an absolute offset in the buffer.
+     */
+    T read(final ByteBuffer buffer, final int offset);
+
+    /**
+     * Compare an object with the one encoded at an absolute offset in the
+     * buffer.
+     *
+     * @return negative if o is less than the encoded object, 0 if they
+     *         are equal or positive if o is greater
+     */
+    int compare(final T o, final ByteBuffer buffer, final int offset);
+
+    public static final class Longs implements OffHeapSerializer<Long>
+    {
+        public int size()
+        {
+            return 8;
+        }
+
+        public void write(final ByteBuffer buffer, final int offset, final Long o)
+        {
+            buffer.putLong(offset, o.longValue());
+        }
+
+        public Long read(final ByteBuffer buffer, final int offset)
+        {
+            return Long.valueOf(buffer.getLong(offset));
+        }
+
+        public int compare(final Long o, final ByteBuffer buffer, final int offset)
+        {
+            long value = o.longValue();
+            long other = buffer.getLong(offset);
+            return value < other ? -1 : (value == other ? 0 : 1);
+        }
+
+        public int compare(final Long o1, final Long o2)
+        {
+            return o1.compareTo(o2);
+        }
+    }
+
+    public static final class Integers implements OffHeapSerializer<Integer>
+    {
+        public int size()
+        {
+            return 4;
+        }
+
+        public void write(final ByteBuffer buffer, final int offset, final Integer o)
+        {
+            buffer.putInt(offset, o.intValue());
+        }
+
+        public Integer read(final ByteBuffer buffer, final int offset)
+        {
+            return Integer.valueOf(buffer.getInt(offset));
+        }
+
+        public int compare(final Integer o, final ByteBuffer buffer, final int offset)
+        {
+            int value = o.intValue();
+            int other = buffer.getInt(offset);
+            return value < other ? -1 : (value == other ? 0 : 1);
+        }
+
+        public int compare(final Integer o1, final Integer o2)
+        {
+            return o1.compareTo(o2);
+        }
+    }
+
+    /**
+     * Strings of up to max_length chars in their natural order. Each takes
+     * 4 + 2 * max_length bytes whatever its length.
+     */
+    public static final class Strings implements OffHeapSerializer<String>
+    {
+        private final int max_length;
+
+        public Strings(final int max_length)
+        {
+            this.max_length = max_length;
+        }
+
+        public int size()
+        {
+            return 4 + 2 * max_length;
+        }
+
+        public void write(final ByteBuffer buffer, final int offset, final String o)
+        {
+            int length = o.length();
+            if (length > max_length)
+                throw new IllegalArgumentException("String of " + length + " chars is longer than " + max_length);
+
+            buffer.putInt(offset, length);
+            for (int i = 0; i < length; i++)
+                buffer.putChar(offset + 4 + 2 * i, o.charAt(i));
+        }
+
+        public String read(final ByteBuffer buffer, final int offset)
+        {
+            int length = buffer.getInt(offset);
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++)
+                chars[i] = buffer.getChar(offset + 4 + 2 * i);
+            return new String(chars);
+        }
+
+        public int compare(final String o, final ByteBuffer buffer, final int offset)
+        {
+            int length = o.length();
+            int other_length = buffer.getInt(offset);
+            int common = Math.min(length, other_length);
+            for (int i = 0; i < common; i++)
+            {
+                int cmp = o.charAt(i) - buffer.getChar(offset + 4 + 2 * i);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return length - other_length;
+        }
+
+        public int compare(final String o1, final String o2)
+        {
+            return o1.compareTo(o2);
+        }
+    }
+}
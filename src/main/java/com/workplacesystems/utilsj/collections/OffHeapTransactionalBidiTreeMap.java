@@ -0,0 +1,1851 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+import com.workplacesystems.utilsj.ThreadSession;
+
+/**
+ * A TransactionalBidiTreeMap whose entries are held outside the Java heap,
+ * for large maps of reference data that would otherwise make the heap big
+ * and the GC pauses long.
+ * <p>
+ * Each entry is a fixed width record in a direct ByteBuffer. A record holds
+ * the links of the entry in the key and the value red-black trees as record
+ * numbers, its colours, its transactional status and the encoded key and
+ * value. The keys and values are encoded, and ordered, by the
+ * OffHeapSerializers given to the constructor. Lookups compare against the
+ * encoded data, so keys and values are only decoded into objects when they
+ * are returned. The only objects kept per entry are those of the
+ * transactions with uncommitted changes.
+ * <p>
+ * The transactional behaviour is the same as TransactionalBidiTreeMap's:
+ * put throws an IllegalArgumentException for a key or value that is
+ * already in the map, and ConcurrentModificationException if another
+ * transaction has an uncommitted change to it. Keys and values can't be
+ * null. Entries returned by the views are copies and don't support
+ * setValue. Like TransactionalBidiTreeMap this map isn't synchronized.
+ * Commit notifiers, versioned snapshot reads and serialization aren't
+ * supported.
+ * <p>
+ * The memory of removed entries is reused by later puts. It is only given
+ * back when the map is cleared in auto commit mode or the map is garbage
+ * collected.
+ */
+public class OffHeapTransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements TransactionalSortedBidiMap<K,V>
+{
+    private static final int KEY = 0;
+    private static final int VALUE = 1;
+    /** View type for the entries rather than the keys or values */
+    private static final int ENTRIES = 2;
+    private static final String[] dataName = new String[] { "key", "value" };
+
+    private static final int NO_CHANGE = 0;
+    private static final int DELETED = 1;
+    private static final int ADDED = 2;
+
+    /** Record 0 is the black sentinel that every leaf links to */
+    private static final int NIL = 0;
+
+    /** Byte offsets of the int fields of a record */
+    private static final int LEFT = 0;
+    private static final int RIGHT = 4;
+    private static final int PARENT = 8;
+    private static final int LINKS_SIZE = 12;
+    private static final int FLAGS = 2 * LINKS_SIZE;
+    private static final int HEADER_SIZE = FLAGS + 4;
+
+    /**
+     * The flags hold a black bit for each tree, the status and the slot
+     * of the transaction that made the status, 0 for a committed record.
+     */
+    private static final int STATUS_SHIFT = 2;
+    private static final int STATUS_MASK = 3 << STATUS_SHIFT;
+    private static final int SLOT_SHIFT = 4;
+
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private static final Object[] UNBOUNDED = new Object[] { null, null };
+
+    private final OffHeapSerializer<? super K> keySerializer;
+    private final OffHeapSerializer<? super V> valueSerializer;
+    /** The key and value serializers by index */
+    private final OffHeapSerializer<?>[] serializers;
+    private final int[] dataOffset = new int[2];
+    private final int recordSize;
+
+    /** Records are allocated in chunks of 2^CHUNK_SHIFT */
+    private ByteBuffer[] chunks;
+    /** The number of records ever allocated, including NIL */
+    private int recordCount;
+    /** Removed records to be reused, linked through their left key link */
+    private int freeRecord = NIL;
+
+    private final int[] rootRecord = new int[] { NIL, NIL };
+    private int nodeCount = 0;
+    private int addedCount = 0;
+    private int modifications = 0;
+    private volatile boolean auto_commit = true;
+
+    /**
+     * The records changed by each transaction. Records refer to their
+     * transaction by the slot it's given here so that it fits in the flags.
+     */
+    private final HashMap<TransactionId,TransactionChanges> transactionChanges = new HashMap<TransactionId,TransactionChanges>();
+    private TransactionChanges[] slots = new TransactionChanges[8];
+
+    private final SubMap whole = new SubMap(UNBOUNDED, UNBOUNDED);
+
+    /**
+     * Construct a new, empty map.
+     *
+     * @param key_serializer encodes and orders the keys
+     * @param value_serializer encodes and orders the values
+     */
+    public OffHeapTransactionalBidiTreeMap(final OffHeapSerializer<? super K> key_serializer,
+            final OffHeapSerializer<? super V> value_serializer)
+    {
+        keySerializer = key_serializer;
+        valueSerializer = value_serializer;
+        serializers = new OffHeapSerializer<?>[] { key_serializer, value_serializer };
+        dataOffset[KEY] = HEADER_SIZE;
+        dataOffset[VALUE] = HEADER_SIZE + key_serializer.size();
+        // Keep the int fields of every record aligned
+        recordSize = (dataOffset[VALUE] + value_serializer.size() + 3) & ~3;
+        initRecords();
+    }
+
+    private void initRecords()
+    {
+        chunks = new ByteBuffer[1];
+        chunks[0] = allocateChunk();
+        recordCount = 1;
+        freeRecord = NIL;
+        setFlags(NIL, 1 << KEY | 1 << VALUE);
+    }
+
+    private ByteBuffer allocateChunk()
+    {
+        return ByteBuffer.allocateDirect(recordSize << CHUNK_SHIFT).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return the bytes of off-heap memory allocated to the records
+     */
+    public long offHeapSize()
+    {
+        long size = 0;
+        for (int i = 0; i < chunks.length; i++)
+        {
+            if (chunks[i] != null)
+                size += chunks[i].capacity();
+        }
+        return size;
+    }
+
+    /* ********** Transactions ********** */
+
+    private transient String thread_session_key = null;
+
+    protected final String getThreadSessionKey()
+    {
+        if (thread_session_key == null)
+            thread_session_key = ".OffHeapTransactionalBidiTreeMap(" + rootRecord.hashCode() + ")-attach_id";
+        return thread_session_key;
+    }
+
+    /**
+     * Attach the current thread to a specific id rather than using the
+     * current thread for transactional changes. This allows transactional
+     * changes to be done by different threads.
+     */
+    public void attach(final String attach_id)
+    {
+        ThreadSession.putValue(getThreadSessionKey(), TransactionId.getTransactionId(attach_id));
+    }
+
+    /**
+     * Detach the current thread from the attach_id.
+     */
+    public void detach()
+    {
+        ThreadSession.removeValue(getThreadSessionKey());
+    }
+
+    /**
+     * Retrieve the current thread id for use by the
+     * transaction code.
+     *
+     * @return the attached transaction id or the transaction
+     *         id of the current thread
+     */
+    protected TransactionId getCurrentThreadId()
+    {
+        TransactionId attach_id = (TransactionId)ThreadSession.getValue(getThreadSessionKey());
+        if (attach_id != null)
+            return attach_id;
+
+        return TransactionId.getThreadTransactionId();
+    }
+
+    /**
+     * Sets this map's auto commit state. Turning auto commit on commits
+     * the outstanding changes of every transaction.
+     *
+     * @param auto_commit false to enable transaction support
+     *                    within this map.
+     */
+    public void setAutoCommit(final boolean auto_commit)
+    {
+        if (!this.auto_commit && auto_commit)
+            commit(null);
+
+        this.auto_commit = auto_commit;
+    }
+
+    public boolean isAutoCommit()
+    {
+        return auto_commit;
+    }
+
+    /**
+     * Commits the changes to the map so that all threads
+     * see them.
+     */
+    public void commit()
+    {
+        if (auto_commit)
+            return;
+
+        commit(getCurrentThreadId());
+    }
+
+    /**
+     * @param id the transaction id to commit, null commits all of them
+     */
+    private void commit(final TransactionId id)
+    {
+        if (id == null)
+        {
+            ArrayList<TransactionId> ids = new ArrayList<TransactionId>(transactionChanges.keySet());
+            for (Iterator<TransactionId> i = ids.iterator(); i.hasNext(); )
+                commit(i.next());
+            return;
+        }
+
+        TransactionChanges changes = transactionChanges.get(id);
+        if (changes == null)
+            return;
+
+        // A record can be listed twice if it was removed and reused, is() skips it the second time
+        for (int i = 0; i < changes.records.size; i++)
+        {
+            int record = changes.records.values[i];
+            if (is(record, DELETED, changes.slot))
+                deleteRecord(record);
+            else if (is(record, ADDED, changes.slot))
+                setStatus(record, NO_CHANGE, null);
+        }
+        removeTransaction(changes);
+    }
+
+    /**
+     * Rolls back the changes to the map.
+     */
+    public void rollback()
+    {
+        if (auto_commit)
+            return;
+
+        TransactionChanges changes = transactionChanges.get(getCurrentThreadId());
+        if (changes == null)
+            return;
+
+        for (int i = changes.records.size - 1; i >= 0; i--)
+        {
+            int record = changes.records.values[i];
+            if (is(record, ADDED, changes.slot))
+                deleteRecord(record);
+            else if (is(record, DELETED, changes.slot))
+                setStatus(record, NO_CHANGE, null);
+        }
+        removeTransaction(changes);
+    }
+
+    private void removeTransaction(final TransactionChanges changes)
+    {
+        transactionChanges.remove(changes.id);
+        slots[changes.slot] = null;
+        modify();
+    }
+
+    /**
+     * The records changed by a transaction id in the order the changes
+     * were made, and the number currently ADDED and DELETED by it.
+     */
+    private static final class TransactionChanges
+    {
+        private final TransactionId id;
+        private final int slot;
+        private final IntList records = new IntList();
+        private int added = 0;
+        private int deleted = 0;
+
+        TransactionChanges(final TransactionId id, final int slot)
+        {
+            this.id = id;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * @return the slot of the current transaction, or 0 if it hasn't
+     *         changed anything
+     */
+    private int currentSlot()
+    {
+        if (auto_commit)
+            return 0;
+
+        TransactionChanges changes = transactionChanges.get(getCurrentThreadId());
+        return changes == null ? 0 : changes.slot;
+    }
+
+    private TransactionChanges currentChanges()
+    {
+        TransactionId id = getCurrentThreadId();
+        TransactionChanges changes = transactionChanges.get(id);
+        if (changes == null)
+        {
+            int slot = 1;
+            while (slot < slots.length && slots[slot] != null)
+                slot++;
+            if (slot == slots.length)
+            {
+                TransactionChanges[] new_slots = new TransactionChanges[slots.length * 2];
+                System.arraycopy(slots, 0, new_slots, 0, slots.length);
+                slots = new_slots;
+            }
+            changes = new TransactionChanges(id, slot);
+            slots[slot] = changes;
+            transactionChanges.put(id, changes);
+        }
+        return changes;
+    }
+
+    private int getStatus(final int record)
+    {
+        return (getFlags(record) & STATUS_MASK) >>> STATUS_SHIFT;
+    }
+
+    private int getSlot(final int record)
+    {
+        return getFlags(record) >>> SLOT_SHIFT;
+    }
+
+    /**
+     * @param slot the transaction's slot, or 0 to match any transaction
+     *
+     * @return true if the record has the status for the transaction
+     */
+    private boolean is(final int record, final int status, final int slot)
+    {
+        int flags = getFlags(record);
+        int record_slot = flags >>> SLOT_SHIFT;
+        if (record_slot == 0)
+            return status == NO_CHANGE;
+
+        if (slot == 0 || record_slot == slot)
+            return (flags & STATUS_MASK) >>> STATUS_SHIFT == status;
+
+        return status == NO_CHANGE;
+    }
+
+    /**
+     * @param slot the slot of the current transaction, 0 if it hasn't
+     *        changed anything
+     *
+     * @return true if the record is visible to the transaction
+     */
+    private boolean validRecord(final int record, final int slot)
+    {
+        if (auto_commit)
+            return true;
+
+        int flags = getFlags(record);
+        int record_slot = flags >>> SLOT_SHIFT;
+        if (record_slot == 0)
+            return true;
+
+        // Hidden if deleted by this transaction or added by another
+        int status = (flags & STATUS_MASK) >>> STATUS_SHIFT;
+        if (record_slot == slot)
+            return status != DELETED;
+        return status != ADDED;
+    }
+
+    /**
+     * Set the transactional status of a record keeping the ADDED and
+     * DELETED counts up to date.
+     *
+     * @param changes the transaction making the change, or null for
+     *        NO_CHANGE
+     */
+    private void setStatus(final int record, final int status, final TransactionChanges changes)
+    {
+        int flags = getFlags(record);
+        int old_slot = flags >>> SLOT_SHIFT;
+        if (old_slot != 0)
+        {
+            TransactionChanges old = slots[old_slot];
+            int old_status = (flags & STATUS_MASK) >>> STATUS_SHIFT;
+            if (old_status == ADDED)
+            {
+                addedCount--;
+                old.added--;
+            }
+            else if (old_status == DELETED)
+                old.deleted--;
+        }
+
+        int colours = flags & ~(STATUS_MASK | -1 << SLOT_SHIFT);
+        if (changes == null)
+            setFlags(record, colours);
+        else
+        {
+            setFlags(record, colours | status << STATUS_SHIFT | changes.slot << SLOT_SHIFT);
+            if (status == ADDED)
+            {
+                addedCount++;
+                changes.added++;
+            }
+            else if (status == DELETED)
+                changes.deleted++;
+        }
+    }
+
+    /* ********** Records ********** */
+
+    private ByteBuffer chunk(final int record)
+    {
+        return chunks[record >>> CHUNK_SHIFT];
+    }
+
+    private int offset(final int record)
+    {
+        return (record & CHUNK_MASK) * recordSize;
+    }
+
+    private int getLeft(final int record, final int index)
+    {
+        return chunk(record).getInt(offset(record) + index * LINKS_SIZE + LEFT);
+    }
+
+    private int getRight(final int record, final int index)
+    {
+        return chunk(record).getInt(offset(record) + index * LINKS_SIZE + RIGHT);
+    }
+
+    private int getParent(final int record, final int index)
+    {
+        return chunk(record).getInt(offset(record) + index * LINKS_SIZE + PARENT);
+    }
+
+    private void setLeft(final int record, final int left, final int index)
+    {
+        chunk(record).putInt(offset(record) + index * LINKS_SIZE + LEFT, left);
+    }
+
+    private void setRight(final int record, final int right, final int index)
+    {
+        chunk(record).putInt(offset(record) + index * LINKS_SIZE + RIGHT, right);
+    }
+
+    private void setParent(final int record, final int parent, final int index)
+    {
+        chunk(record).putInt(offset(record) + index * LINKS_SIZE + PARENT, parent);
+    }
+
+    private int getFlags(final int record)
+    {
+        return chunk(record).getInt(offset(record) + FLAGS);
+    }
+
+    private void setFlags(final int record, final int flags)
+    {
+        chunk(record).putInt(offset(record) + FLAGS, flags);
+    }
+
+    private boolean isBlack(final int record, final int index)
+    {
+        return (getFlags(record) & 1 << index) != 0;
+    }
+
+    private void setBlack(final int record, final int black, final int index)
+    {
+        int flags = getFlags(record);
+        setFlags(record, black != 0 ? flags | 1 << index : flags & ~(1 << index));
+    }
+
+    private void setBlack(final int record, final int index)
+    {
+        setBlack(record, 1, index);
+    }
+
+    private void setRed(final int record, final int index)
+    {
+        setBlack(record, 0, index);
+    }
+
+    /**
+     * The one unchecked cast of the map. The serializers are only given the
+     * keys or values they were created for, or the objects passed to the
+     * lookups which they reject with a ClassCastException as a Comparator
+     * would, and the records only hold keys and values that were put.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(final Object o)
+    {
+        return (T)o;
+    }
+
+    private OffHeapSerializer<Object> serializer(final int index)
+    {
+        return cast(serializers[index]);
+    }
+
+    private Object getData(final int record, final int index)
+    {
+        return serializers[index].read(chunk(record), offset(record) + dataOffset[index]);
+    }
+
+    private K getKey(final int record)
+    {
+        return cast(keySerializer.read(chunk(record), offset(record) + dataOffset[KEY]));
+    }
+
+    private V getValue(final int record)
+    {
+        return cast(valueSerializer.read(chunk(record), offset(record) + dataOffset[VALUE]));
+    }
+
+    /**
+     * @return negative if data is less than the record's, 0 if equal,
+     *         positive if greater
+     */
+    private int compare(final Object data, final int record, final int index)
+    {
+        return serializer(index).compare(data, chunk(record), offset(record) + dataOffset[index]);
+    }
+
+    private int allocateRecord()
+    {
+        int record = freeRecord;
+        if (record != NIL)
+        {
+            freeRecord = getLeft(record, KEY);
+            return record;
+        }
+
+        record = recordCount++;
+        int chunk = record >>> CHUNK_SHIFT;
+        if (chunk == chunks.length)
+        {
+            ByteBuffer[] new_chunks = new ByteBuffer[chunks.length * 2];
+            System.arraycopy(chunks, 0, new_chunks, 0, chunks.length);
+            chunks = new_chunks;
+        }
+        if (chunks[chunk] == null)
+            chunks[chunk] = allocateChunk();
+        return record;
+    }
+
+    private void freeRecord(final int record)
+    {
+        setFlags(record, 0);
+        setLeft(record, freeRecord, KEY);
+        freeRecord = record;
+    }
+
+    /* ********** Red-black trees ********** */
+
+    private int leastRecord(int record, final int index)
+    {
+        if (record == NIL)
+            return NIL;
+        for (int left = getLeft(record, index); left != NIL; left = getLeft(record, index))
+            record = left;
+        return record;
+    }
+
+    private int mostRecord(int record, final int index)
+    {
+        if (record == NIL)
+            return NIL;
+        for (int right = getRight(record, index); right != NIL; right = getRight(record, index))
+            record = right;
+        return record;
+    }
+
+    private int nextGreater(int record, final int index)
+    {
+        int right = getRight(record, index);
+        if (right != NIL)
+            return leastRecord(right, index);
+
+        int parent = getParent(record, index);
+        while (parent != NIL && record == getRight(parent, index))
+        {
+            record = parent;
+            parent = getParent(parent, index);
+        }
+        return parent;
+    }
+
+    private int nextSmaller(int record, final int index)
+    {
+        int left = getLeft(record, index);
+        if (left != NIL)
+            return mostRecord(left, index);
+
+        int parent = getParent(record, index);
+        while (parent != NIL && record == getLeft(parent, index))
+        {
+            record = parent;
+            parent = getParent(parent, index);
+        }
+        return parent;
+    }
+
+    /**
+     * @return the least record whose data is greater than or equal to the
+     *         data, or NIL. Equal data can be held by several records when
+     *         some are hidden from the current transaction.
+     */
+    private int ceilingRecord(final Object data, final int index)
+    {
+        int ceiling = NIL;
+        int record = rootRecord[index];
+        while (record != NIL)
+        {
+            if (compare(data, record, index) <= 0)
+            {
+                ceiling = record;
+                record = getLeft(record, index);
+            }
+            else
+                record = getRight(record, index);
+        }
+        return ceiling;
+    }
+
+    /**
+     * @return the greatest record whose data is less than the data, or NIL
+     */
+    private int lowerRecord(final Object data, final int index)
+    {
+        int lower = NIL;
+        int record = rootRecord[index];
+        while (record != NIL)
+        {
+            if (compare(data, record, index) > 0)
+            {
+                lower = record;
+                record = getRight(record, index);
+            }
+            else
+                record = getLeft(record, index);
+        }
+        return lower;
+    }
+
+    /**
+     * @return the record holding the data that is visible to the
+     *         transaction in the slot, or NIL
+     */
+    private int lookupValid(final Object data, final int index, final int slot)
+    {
+        for (int record = ceilingRecord(data, index); record != NIL && compare(data, record, index) == 0;
+                record = nextGreater(record, index))
+        {
+            if (validRecord(record, slot))
+                return record;
+        }
+        return NIL;
+    }
+
+    /**
+     * Throw if the data can't be put for the transaction in the slot.
+     *
+     * @throws IllegalArgumentException if the data is visible to it
+     * @throws ConcurrentModificationException if another transaction has
+     *         added the data
+     */
+    private void checkPutable(final Object data, final int index, final int slot)
+    {
+        for (int record = ceilingRecord(data, index); record != NIL && compare(data, record, index) == 0;
+                record = nextGreater(record, index))
+        {
+            if (validRecord(record, slot))
+                throw new IllegalArgumentException("Cannot store a duplicate " + dataName[index] + " (\"" + data + "\") in this Map");
+            if (getStatus(record) == ADDED)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Insert a record into the tree of the index. Equal data goes to the
+     * right of what is already there.
+     */
+    private void insertRecord(final int record, final Object data, final int index)
+    {
+        int parent = NIL;
+        int current = rootRecord[index];
+        int cmp = 0;
+        while (current != NIL)
+        {
+            parent = current;
+            cmp = compare(data, current, index);
+            current = cmp < 0 ? getLeft(current, index) : getRight(current, index);
+        }
+
+        setParent(record, parent, index);
+        setLeft(record, NIL, index);
+        setRight(record, NIL, index);
+        setRed(record, index);
+        if (parent == NIL)
+            rootRecord[index] = record;
+        else if (cmp < 0)
+            setLeft(parent, record, index);
+        else
+            setRight(parent, record, index);
+
+        insertFixup(record, index);
+    }
+
+    private void insertFixup(int record, final int index)
+    {
+        int parent = getParent(record, index);
+        while (!isBlack(parent, index))
+        {
+            int grandparent = getParent(parent, index);
+            if (parent == getLeft(grandparent, index))
+            {
+                int uncle = getRight(grandparent, index);
+                if (!isBlack(uncle, index))
+                {
+                    setBlack(parent, index);
+                    setBlack(uncle, index);
+                    setRed(grandparent, index);
+                    record = grandparent;
+                }
+                else
+                {
+                    if (record == getRight(parent, index))
+                    {
+                        record = parent;
+                        rotateLeft(record, index);
+                        parent = getParent(record, index);
+                        grandparent = getParent(parent, index);
+                    }
+                    setBlack(parent, index);
+                    setRed(grandparent, index);
+                    rotateRight(grandparent, index);
+                }
+            }
+            else
+            {
+                int uncle = getLeft(grandparent, index);
+                if (!isBlack(uncle, index))
+                {
+                    setBlack(parent, index);
+                    setBlack(uncle, index);
+                    setRed(grandparent, index);
+                    record = grandparent;
+                }
+                else
+                {
+                    if (record == getLeft(parent, index))
+                    {
+                        record = parent;
+                        rotateRight(record, index);
+                        parent = getParent(record, index);
+                        grandparent = getParent(parent, index);
+                    }
+                    setBlack(parent, index);
+                    setRed(grandparent, index);
+                    rotateLeft(grandparent, index);
+                }
+            }
+            parent = getParent(record, index);
+        }
+        setBlack(rootRecord[index], index);
+    }
+
+    private void rotateLeft(final int record, final int index)
+    {
+        int right = getRight(record, index);
+        int right_left = getLeft(right, index);
+        setRight(record, right_left, index);
+        if (right_left != NIL)
+            setParent(right_left, record, index);
+        replaceChild(record, right, index);
+        setLeft(right, record, index);
+        setParent(record, right, index);
+    }
+
+    private void rotateRight(final int record, final int index)
+    {
+        int left = getLeft(record, index);
+        int left_right = getRight(left, index);
+        setLeft(record, left_right, index);
+        if (left_right != NIL)
+            setParent(left_right, record, index);
+        replaceChild(record, left, index);
+        setRight(left, record, index);
+        setParent(record, left, index);
+    }
+
+    /**
+     * Put replacement where record is in its parent, or at the root.
+     * The parent of replacement is set even if it is NIL, delete fixup
+     * relies on it.
+     */
+    private void replaceChild(final int record, final int replacement, final int index)
+    {
+        int parent = getParent(record, index);
+        if (parent == NIL)
+            rootRecord[index] = replacement;
+        else if (record == getLeft(parent, index))
+            setLeft(parent, replacement, index);
+        else
+            setRight(parent, replacement, index);
+        setParent(replacement, parent, index);
+    }
+
+    /**
+     * Unlink a record from the tree of the index. The links of the other
+     * records change but no data moves between records, so record numbers
+     * held by iterators stay valid.
+     */
+    private void removeFromTree(final int record, final int index)
+    {
+        int replacement;
+        int removed_black = getFlags(record) & 1 << index;
+        if (getLeft(record, index) == NIL)
+        {
+            replacement = getRight(record, index);
+            replaceChild(record, replacement, index);
+        }
+        else if (getRight(record, index) == NIL)
+        {
+            replacement = getLeft(record, index);
+            replaceChild(record, replacement, index);
+        }
+        else
+        {
+            int successor = leastRecord(getRight(record, index), index);
+            removed_black = getFlags(successor) & 1 << index;
+            replacement = getRight(successor, index);
+            if (getParent(successor, index) == record)
+                setParent(replacement, successor, index);
+            else
+            {
+                replaceChild(successor, replacement, index);
+                setRight(successor, getRight(record, index), index);
+                setParent(getRight(successor, index), successor, index);
+            }
+            replaceChild(record, successor, index);
+            setLeft(successor, getLeft(record, index), index);
+            setParent(getLeft(successor, index), successor, index);
+            setBlack(successor, getFlags(record) & 1 << index, index);
+        }
+
+        if (removed_black != 0)
+            removeFixup(replacement, index);
+    }
+
+    private void removeFixup(int record, final int index)
+    {
+        while (record != rootRecord[index] && isBlack(record, index))
+        {
+            int parent = getParent(record, index);
+            if (record == getLeft(parent, index))
+            {
+                int sibling = getRight(parent, index);
+                if (!isBlack(sibling, index))
+                {
+                    setBlack(sibling, index);
+                    setRed(parent, index);
+                    rotateLeft(parent, index);
+                    sibling = getRight(parent, index);
+                }
+                if (isBlack(getLeft(sibling, index), index) && isBlack(getRight(sibling, index), index))
+                {
+                    setRed(sibling, index);
+                    record = parent;
+                }
+                else
+                {
+                    if (isBlack(getRight(sibling, index), index))
+                    {
+                        setBlack(getLeft(sibling, index), index);
+                        setRed(sibling, index);
+                        rotateRight(sibling, index);
+                        sibling = getRight(parent, index);
+                    }
+                    setBlack(sibling, getFlags(parent) & 1 << index, index);
+                    setBlack(parent, index);
+                    setBlack(getRight(sibling, index), index);
+                    rotateLeft(parent, index);
+                    record = rootRecord[index];
+                }
+            }
+            else
+            {
+                int sibling = getLeft(parent, index);
+                if (!isBlack(sibling, index))
+                {
+                    setBlack(sibling, index);
+                    setRed(parent, index);
+                    rotateRight(parent, index);
+                    sibling = getLeft(parent, index);
+                }
+                if (isBlack(getRight(sibling, index), index) && isBlack(getLeft(sibling, index), index))
+                {
+                    setRed(sibling, index);
+                    record = parent;
+                }
+                else
+                {
+                    if (isBlack(getLeft(sibling, index), index))
+                    {
+                        setBlack(getRight(sibling, index), index);
+                        setRed(sibling, index);
+                        rotateLeft(sibling, index);
+                        sibling = getLeft(parent, index);
+                    }
+                    setBlack(sibling, getFlags(parent) & 1 << index, index);
+                    setBlack(parent, index);
+                    setBlack(getLeft(sibling, index), index);
+                    rotateRight(parent, index);
+                    record = rootRecord[index];
+                }
+            }
+        }
+        setBlack(record, index);
+    }
+
+    /* ********** Changes ********** */
+
+    private void modify()
+    {
+        modifications++;
+    }
+
+    private static void checkNonNull(final Object o, final int index)
+    {
+        if (o == null)
+            throw new NullPointerException(dataName[index] + " cannot be null");
+    }
+
+    private void doPut(final K key, final V value)
+    {
+        checkNonNull(key, KEY);
+        checkNonNull(value, VALUE);
+
+        int slot = currentSlot();
+        checkPutable(key, KEY, slot);
+        checkPutable(value, VALUE, slot);
+
+        int record = allocateRecord();
+        try
+        {
+            ByteBuffer buffer = chunk(record);
+            int offset = offset(record);
+            keySerializer.write(buffer, offset + dataOffset[KEY], key);
+            valueSerializer.write(buffer, offset + dataOffset[VALUE], value);
+        }
+        catch (RuntimeException e)
+        {
+            freeRecord(record);
+            throw e;
+        }
+        setFlags(record, 0);
+        insertRecord(record, key, KEY);
+        insertRecord(record, value, VALUE);
+        nodeCount++;
+        modify();
+
+        if (!auto_commit)
+        {
+            TransactionChanges changes = currentChanges();
+            setStatus(record, ADDED, changes);
+            changes.records.add(record);
+        }
+    }
+
+    /**
+     * Remove a record visible to the current transaction, or mark it
+     * DELETED if the transaction has to be committed first.
+     *
+     * @throws ConcurrentModificationException if another transaction
+     *         has deleted the record
+     */
+    private void removeRecord(final int record)
+    {
+        if (auto_commit)
+        {
+            deleteRecord(record);
+            return;
+        }
+
+        if (getStatus(record) == DELETED)
+            throw new ConcurrentModificationException();
+
+        // Records added by the current transaction are the only other ones it sees with a slot
+        if (getSlot(record) != 0)
+            deleteRecord(record);
+        else
+        {
+            TransactionChanges changes = currentChanges();
+            setStatus(record, DELETED, changes);
+            changes.records.add(record);
+            modify();
+        }
+    }
+
+    /**
+     * Take a record out of both trees and free it.
+     */
+    private void deleteRecord(final int record)
+    {
+        setStatus(record, NO_CHANGE, null);
+        removeFromTree(record, KEY);
+        removeFromTree(record, VALUE);
+        freeRecord(record);
+        nodeCount--;
+        modify();
+    }
+
+    /* ********** Map ********** */
+
+    @Override
+    public int size()
+    {
+        if (auto_commit)
+            return nodeCount;
+
+        // Records added by other transactions and records deleted by this transaction aren't visible
+        int size = nodeCount - addedCount;
+        TransactionChanges changes = transactionChanges.get(getCurrentThreadId());
+        if (changes != null)
+            size += changes.added - changes.deleted;
+        return size;
+    }
+
+    /**
+     * @param countAll true to include the records added by every
+     *        transaction and those deleted by it
+     */
+    public int size(final boolean countAll)
+    {
+        return countAll ? nodeCount : size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return whole.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value)
+    {
+        return whole.containsValue(value);
+    }
+
+    @Override
+    public V get(final Object key)
+    {
+        return whole.get(key);
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     *
+     * @return null
+     *
+     * @throws NullPointerException if the key or value is null
+     * @throws IllegalArgumentException if the key or value is already in
+     *         the map, or doesn't fit in its serializer's size
+     * @throws ConcurrentModificationException if another transaction has
+     *         an uncommitted change to the key or value
+     */
+    @Override
+    public V put(final K key, final V value)
+    {
+        doPut(key, value);
+        return null;
+    }
+
+    @Override
+    public V remove(final Object key)
+    {
+        return whole.remove(key);
+    }
+
+    public K getKeyForValue(final Object value)
+    {
+        return whole.getKeyForValue(value);
+    }
+
+    public K removeValue(final Object value)
+    {
+        return whole.removeValue(value);
+    }
+
+    @Override
+    public void clear()
+    {
+        if (auto_commit)
+        {
+            initRecords();
+            rootRecord[KEY] = NIL;
+            rootRecord[VALUE] = NIL;
+            nodeCount = 0;
+            addedCount = 0;
+            transactionChanges.clear();
+            slots = new TransactionChanges[8];
+            modify();
+        }
+        else
+            whole.clear();
+    }
+
+    @Override
+    public Set<K> keySet()
+    {
+        return whole.keySet();
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        return whole.values();
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet()
+    {
+        return whole.entrySet();
+    }
+
+    public FilterableSet<K> keySetByValue()
+    {
+        return whole.keySetByValue();
+    }
+
+    public FilterableCollection<V> valuesByValue()
+    {
+        return whole.valuesByValue();
+    }
+
+    public FilterableCollection<V> valuesByValueDescending()
+    {
+        return whole.valuesByValueDescending();
+    }
+
+    public FilterableSet<Entry<K,V>> entrySetByValue()
+    {
+        return whole.entrySetByValue();
+    }
+
+    public FilterableSet<Entry<K,V>> entrySetByValueDescending()
+    {
+        return whole.entrySetByValueDescending();
+    }
+
+    /**
+     * @return the key serializer, which orders the keys
+     */
+    public Comparator<? super K> comparator()
+    {
+        return whole.comparator();
+    }
+
+    /**
+     * @return the value serializer, which orders the values
+     */
+    public Comparator<? super V> valueComparator()
+    {
+        return whole.valueComparator();
+    }
+
+    public K firstKey()
+    {
+        return whole.firstKey();
+    }
+
+    public V firstValue()
+    {
+        return whole.firstValue();
+    }
+
+    public K firstKeyByValue()
+    {
+        return whole.firstKeyByValue();
+    }
+
+    public V firstValueByValue()
+    {
+        return whole.firstValueByValue();
+    }
+
+    public K lastKey()
+    {
+        return whole.lastKey();
+    }
+
+    public V lastValue()
+    {
+        return whole.lastValue();
+    }
+
+    public K lastKeyByValue()
+    {
+        return whole.lastKeyByValue();
+    }
+
+    public V lastValueByValue()
+    {
+        return whole.lastValueByValue();
+    }
+
+    public SortedMap<K,V> subMap(final K fromKey, final K toKey)
+    {
+        return whole.subMap(fromKey, toKey);
+    }
+
+    public SortedMap<K,V> headMap(final K toKey)
+    {
+        return whole.headMap(toKey);
+    }
+
+    public SortedMap<K,V> tailMap(final K fromKey)
+    {
+        return whole.tailMap(fromKey);
+    }
+
+    public SortedBidiMap<K,V> subMapByValue(final V fromValue, final V toValue)
+    {
+        return whole.subMapByValue(fromValue, toValue);
+    }
+
+    public SortedBidiMap<K,V> headMapByValue(final V toValue)
+    {
+        return whole.headMapByValue(toValue);
+    }
+
+    public SortedBidiMap<K,V> tailMapByValue(final V fromValue)
+    {
+        return whole.tailMapByValue(fromValue);
+    }
+
+    /* ********** Views ********** */
+
+    /**
+     * The entries whose keys and values are in a range, fromKey and
+     * fromValue inclusive, toKey and toValue exclusive. A null bound is
+     * unbounded. The whole map is the SubMap with no bounds.
+     */
+    private final class SubMap extends AbstractMap<K,V> implements SortedBidiMap<K,V>
+    {
+        private final Object[] from;
+        private final Object[] to;
+
+        private transient Set<K> keySet = null;
+        private transient Collection<V> values = null;
+        private transient Set<Entry<K,V>> entrySet = null;
+
+        SubMap(final Object[] from, final Object[] to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        private boolean isUnbounded()
+        {
+            return from == UNBOUNDED && to == UNBOUNDED;
+        }
+
+        private boolean inRange(final Object data, final int index)
+        {
+            return (from[index] == null || serializer(index).compare(from[index], data) <= 0) &&
+                    (to[index] == null || serializer(index).compare(data, to[index]) < 0);
+        }
+
+        private boolean inRange(final int record)
+        {
+            for (int index = KEY; index <= VALUE; index++)
+            {
+                if (from[index] != null && compare(from[index], record, index) > 0)
+                    return false;
+                if (to[index] != null && compare(to[index], record, index) <= 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return the record of the data in this range that is visible to
+         *         the current transaction, or NIL
+         */
+        private int lookup(final Object data, final int index)
+        {
+            checkNonNull(data, index);
+            int record = lookupValid(data, index, currentSlot());
+            return record != NIL && inRange(record) ? record : NIL;
+        }
+
+        /**
+         * @return the first visible record in this range in the order of
+         *         the index, or NIL
+         */
+        private int first(final int index, final boolean descending, final int slot)
+        {
+            int record;
+            if (descending)
+                record = to[index] == null ? mostRecord(rootRecord[index], index) : lowerRecord(to[index], index);
+            else
+                record = from[index] == null ? leastRecord(rootRecord[index], index) : ceilingRecord(from[index], index);
+            return seek(record, index, descending, slot);
+        }
+
+        /**
+         * @return the first visible record in this range from record
+         *         inclusive, in the order of the index, or NIL
+         */
+        private int seek(int record, final int index, final boolean descending, final int slot)
+        {
+            for (; record != NIL; record = descending ? nextSmaller(record, index) : nextGreater(record, index))
+            {
+                // Past the end of the range of the index
+                if (descending ? from[index] != null && compare(from[index], record, index) > 0 :
+                        to[index] != null && compare(to[index], record, index) <= 0)
+                    return NIL;
+                if (validRecord(record, slot) && inRange(record))
+                    return record;
+            }
+            return NIL;
+        }
+
+        private int firstRecord(final int index, final boolean descending)
+        {
+            int record = first(index, descending, currentSlot());
+            if (record == NIL)
+                throw new NoSuchElementException();
+            return record;
+        }
+
+        /**
+         * @return the bounds of this range narrowed to from and to for the
+         *         index, a null from or to leaves that bound as it is
+         *
+         * @throws IllegalArgumentException if the bounds are outside this range
+         */
+        private SubMap subMap(final Object from, final Object to, final int index)
+        {
+            if (from != null && to != null && serializer(index).compare(from, to) > 0)
+                throw new IllegalArgumentException("from" + dataName[index] + " > to" + dataName[index]);
+            if (from != null && !inBounds(from, index))
+                throw new IllegalArgumentException("from" + dataName[index] + " out of range");
+            if (to != null && !inBounds(to, index))
+                throw new IllegalArgumentException("to" + dataName[index] + " out of range");
+
+            Object[] new_from = this.from.clone();
+            Object[] new_to = this.to.clone();
+            if (from != null)
+                new_from[index] = from;
+            if (to != null)
+                new_to[index] = to;
+            return new SubMap(new_from, new_to);
+        }
+
+        /**
+         * @return true if the data is in the range of the index, with to
+         *         inclusive
+         */
+        private boolean inBounds(final Object data, final int index)
+        {
+            return (from[index] == null || serializer(index).compare(from[index], data) <= 0) &&
+                    (to[index] == null || serializer(index).compare(data, to[index]) <= 0);
+        }
+
+        private int find(final Object o, final int type)
+        {
+            if (type != ENTRIES)
+                return lookup(o, type);
+
+            if (!(o instanceof Map.Entry))
+                return NIL;
+            Map.Entry<?,?> entry = (Map.Entry<?,?>)o;
+            if (entry.getKey() == null || entry.getValue() == null)
+                return NIL;
+            int record = lookup(entry.getKey(), KEY);
+            return record != NIL && compare(entry.getValue(), record, VALUE) == 0 ? record : NIL;
+        }
+
+        private Object materialise(final int record, final int type)
+        {
+            if (type != ENTRIES)
+                return getData(record, type);
+            return new SimpleImmutableEntry<K,V>(getKey(record), getValue(record));
+        }
+
+        @Override
+        public int size()
+        {
+            if (isUnbounded())
+                return OffHeapTransactionalBidiTreeMap.this.size();
+
+            int slot = currentSlot();
+            int size = 0;
+            for (int record = first(KEY, false, slot); record != NIL; record = seek(nextGreater(record, KEY), KEY, false, slot))
+                size++;
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return first(KEY, false, currentSlot()) == NIL;
+        }
+
+        @Override
+        public boolean containsKey(final Object key)
+        {
+            return lookup(key, KEY) != NIL;
+        }
+
+        @Override
+        public boolean containsValue(final Object value)
+        {
+            return lookup(value, VALUE) != NIL;
+        }
+
+        @Override
+        public V get(final Object key)
+        {
+            int record = lookup(key, KEY);
+            return record == NIL ? null : getValue(record);
+        }
+
+        public K getKeyForValue(final Object value)
+        {
+            int record = lookup(value, VALUE);
+            return record == NIL ? null : getKey(record);
+        }
+
+        @Override
+        public V put(final K key, final V value)
+        {
+            checkNonNull(key, KEY);
+            checkNonNull(value, VALUE);
+            if (!inRange(key, KEY) || !inRange(value, VALUE))
+                throw new IllegalArgumentException("key or value out of range");
+            doPut(key, value);
+            return null;
+        }
+
+        @Override
+        public V remove(final Object key)
+        {
+            int record = lookup(key, KEY);
+            if (record == NIL)
+                return null;
+            V value = getValue(record);
+            removeRecord(record);
+            return value;
+        }
+
+        public K removeValue(final Object value)
+        {
+            int record = lookup(value, VALUE);
+            if (record == NIL)
+                return null;
+            K key = getKey(record);
+            removeRecord(record);
+            return key;
+        }
+
+        @Override
+        public void clear()
+        {
+            int slot = currentSlot();
+            IntList records = new IntList();
+            for (int record = first(KEY, false, slot); record != NIL; record = seek(nextGreater(record, KEY), KEY, false, slot))
+                records.add(record);
+            for (int i = 0; i < records.size; i++)
+                removeRecord(records.values[i]);
+        }
+
+        @Override
+        public Set<K> keySet()
+        {
+            if (keySet == null)
+                keySet = new SetView<K>(KEY, KEY, false);
+            return keySet;
+        }
+
+        @Override
+        public Collection<V> values()
+        {
+            if (values == null)
+                values = new ValueView(KEY, false);
+            return values;
+        }
+
+        @Override
+        public Set<Entry<K,V>> entrySet()
+        {
+            if (entrySet == null)
+                entrySet = new SetView<Entry<K,V>>(KEY, ENTRIES, false);
+            return entrySet;
+        }
+
+        public FilterableSet<K> keySetByValue()
+        {
+            return new SetView<K>(VALUE, KEY, false);
+        }
+
+        public FilterableCollection<V> valuesByValue()
+        {
+            return new ValueView(VALUE, false);
+        }
+
+        public FilterableCollection<V> valuesByValueDescending()
+        {
+            return new ValueView(VALUE, true);
+        }
+
+        public FilterableSet<Entry<K,V>> entrySetByValue()
+        {
+            return new SetView<Entry<K,V>>(VALUE, ENTRIES, false);
+        }
+
+        public FilterableSet<Entry<K,V>> entrySetByValueDescending()
+        {
+            return new SetView<Entry<K,V>>(VALUE, ENTRIES, true);
+        }
+
+        public Comparator<? super K> comparator()
+        {
+            return keySerializer;
+        }
+
+        public Comparator<? super V> valueComparator()
+        {
+            return valueSerializer;
+        }
+
+        public K firstKey()
+        {
+            return getKey(firstRecord(KEY, false));
+        }
+
+        public V firstValue()
+        {
+            return getValue(firstRecord(KEY, false));
+        }
+
+        public K firstKeyByValue()
+        {
+            return getKey(firstRecord(VALUE, false));
+        }
+
+        public V firstValueByValue()
+        {
+            return getValue(firstRecord(VALUE, false));
+        }
+
+        public K lastKey()
+        {
+            return getKey(firstRecord(KEY, true));
+        }
+
+        public V lastValue()
+        {
+            return getValue(firstRecord(KEY, true));
+        }
+
+        public K lastKeyByValue()
+        {
+            return getKey(firstRecord(VALUE, true));
+        }
+
+        public V lastValueByValue()
+        {
+            return getValue(firstRecord(VALUE, true));
+        }
+
+        public SortedMap<K,V> subMap(final K fromKey, final K toKey)
+        {
+            checkNonNull(fromKey, KEY);
+            checkNonNull(toKey, KEY);
+            return subMap(fromKey, toKey, KEY);
+        }
+
+        public SortedMap<K,V> headMap(final K toKey)
+        {
+            checkNonNull(toKey, KEY);
+            return subMap(null, toKey, KEY);
+        }
+
+        public SortedMap<K,V> tailMap(final K fromKey)
+        {
+            checkNonNull(fromKey, KEY);
+            return subMap(fromKey, null, KEY);
+        }
+
+        public SortedBidiMap<K,V> subMapByValue(final V fromValue, final V toValue)
+        {
+            checkNonNull(fromValue, VALUE);
+            checkNonNull(toValue, VALUE);
+            return subMap(fromValue, toValue, VALUE);
+        }
+
+        public SortedBidiMap<K,V> headMapByValue(final V toValue)
+        {
+            checkNonNull(toValue, VALUE);
+            return subMap(null, toValue, VALUE);
+        }
+
+        public SortedBidiMap<K,V> tailMapByValue(final V fromValue)
+        {
+            checkNonNull(fromValue, VALUE);
+            return subMap(fromValue, null, VALUE);
+        }
+
+        /**
+         * Iterates over the records of the range in the order of an index,
+         * decoding each one as it is returned.
+         */
+        private final class RecordIterator<E> implements Iterator<E>
+        {
+            private final int index;
+            private final int type;
+            private final boolean descending;
+            private final int slot;
+            private int nextRecord;
+            private int lastReturned = NIL;
+            private int expectedModifications = modifications;
+
+            RecordIterator(final int index, final int type, final boolean descending)
+            {
+                this.index = index;
+                this.type = type;
+                this.descending = descending;
+                slot = currentSlot();
+                nextRecord = first(index, descending, slot);
+            }
+
+            public boolean hasNext()
+            {
+                return nextRecord != NIL;
+            }
+
+            public E next()
+            {
+                if (nextRecord == NIL)
+                    throw new NoSuchElementException();
+                if (modifications != expectedModifications)
+                    throw new ConcurrentModificationException();
+
+                lastReturned = nextRecord;
+                E next = cast(materialise(lastReturned, type));
+                nextRecord = seek(descending ? nextSmaller(lastReturned, index) : nextGreater(lastReturned, index),
+                        index, descending, slot);
+                return next;
+            }
+
+            public void remove()
+            {
+                if (lastReturned == NIL)
+                    throw new IllegalStateException();
+                if (modifications != expectedModifications)
+                    throw new ConcurrentModificationException();
+
+                removeRecord(lastReturned);
+                lastReturned = NIL;
+                expectedModifications = modifications;
+            }
+        }
+
+        /**
+         * The keys or the entries of the range in the order of an index.
+         */
+        private final class SetView<E> extends AbstractFilterableSet<E>
+        {
+            private final int index;
+            private final int type;
+            private final boolean descending;
+
+            SetView(final int index, final int type, final boolean descending)
+            {
+                this.index = index;
+                this.type = type;
+                this.descending = descending;
+            }
+
+            @Override
+            public Iterator<E> iterator()
+            {
+                return new RecordIterator<E>(index, type, descending);
+            }
+
+            @Override
+            public int size()
+            {
+                return SubMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty()
+            {
+                return SubMap.this.isEmpty();
+            }
+
+            @Override
+            public boolean contains(final Object o)
+            {
+                return find(o, type) != NIL;
+            }
+
+            @Override
+            public boolean remove(final Object o)
+            {
+                int record = find(o, type);
+                if (record == NIL)
+                    return false;
+                removeRecord(record);
+                return true;
+            }
+
+            @Override
+            public void clear()
+            {
+                SubMap.this.clear();
+            }
+        }
+
+        /**
+         * The values of the range in the order of an index.
+         */
+        private final class ValueView extends AbstractFilterableCollection<V>
+        {
+            private final int index;
+            private final boolean descending;
+
+            ValueView(final int index, final boolean descending)
+            {
+                this.index = index;
+                this.descending = descending;
+            }
+
+            @Override
+            public Iterator<V> iterator()
+            {
+                return new RecordIterator<V>(index, VALUE, descending);
+            }
+
+            @Override
+            public int size()
+            {
+                return SubMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty()
+            {
+                return SubMap.this.isEmpty();
+            }
+
+            @Override
+            public boolean contains(final Object o)
+            {
+                return find(o, VALUE) != NIL;
+            }
+
+            @Override
+            public boolean remove(final Object o)
+            {
+                int record = find(o, VALUE);
+                if (record == NIL)
+                    return false;
+                removeRecord(record);
+                return true;
+            }
+
+            @Override
+            public void clear()
+            {
+                SubMap.this.clear();
+            }
+        }
+    }
+
+    /**
+     * A growable list of record numbers.
+     */
+    private static final class IntList
+    {
+        private int[] values = new int[8];
+        private int size = 0;
+
+        void add(final int value)
+        {
+            if (size == values.length)
+            {
+                int[] new_values = new int[size * 2];
+                System.arraycopy(values, 0, new_values, 0, size);
+                values = new_values;
+            }
+            values[size++] = value;
+        }
+    }
+}
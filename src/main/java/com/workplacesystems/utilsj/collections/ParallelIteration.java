@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a MergeableIterativeCallback over a SplittableTraversal on a
+ * ForkJoinPool.
+ * <p>
+ * Every chunk is given a position range and the chunks are combined in
+ * position order. When a chunk breaks, the chunks after it stop at their
+ * next object and the result of the first breaking chunk is returned.
+ */
+final class ParallelIteration<T,R>
+{
+    /** Smallest number of objects worth giving to a separate task */
+    private static final long MIN_CHUNK_SIZE = 1024;
+
+    /** Chunk positions used when every chunk should stop */
+    private static final long CANCEL_ALL = -1;
+
+    private static final Iterator<Object> UNSUPPORTED_ITERATOR = new Iterator<Object>() {
+        public boolean hasNext()
+        {
+            throw new UnsupportedOperationException("hasNext is not supported during parallel iteration");
+        }
+
+        public Object next()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException("remove is not supported during parallel iteration");
+        }
+    };
+
+    private final MergeableIterativeCallback<T,R> callback;
+    private final long chunk_size;
+
+    /** The position of the earliest chunk that has broken */
+    private final AtomicLong broken_position = new AtomicLong(Long.MAX_VALUE);
+
+    private ParallelIteration(final MergeableIterativeCallback<T,R> callback, final long chunk_size)
+    {
+        this.callback = callback;
+        this.chunk_size = chunk_size;
+    }
+
+    static <T,R> R iterate(final MergeableIterativeCallback<T,R> callback,
+            final SplittableTraversal<? extends T> traversal, final ForkJoinPool pool)
+    {
+        int parallelism = pool.getParallelism();
+        ParallelIteration<T,R> iteration = new ParallelIteration<T,R>(callback,
+                Math.max(MIN_CHUNK_SIZE, traversal.estimateSize() / (parallelism * 4L)));
+
+        Chunk<R> result;
+        if (traversal.splitsInAnyThread())
+            result = pool.invoke(iteration.new ChunkTask(traversal, 0, Long.MAX_VALUE));
+        else
+            result = iteration.iterateBatches(traversal, pool, parallelism * 4);
+
+        if (result.broken)
+        {
+            callback._return(result.return_object);
+            return result.return_object;
+        }
+
+        callback.setAmendedObject(callback.merge(callback.getAmendedObject(), result.amended_object));
+        return callback.getAmendedObject();
+    }
+
+    /**
+     * Splits the traversal in the calling thread and hands each part to
+     * the pool, limiting the parts waiting to be combined.
+     */
+    private Chunk<R> iterateBatches(final SplittableTraversal<? extends T> traversal,
+            final ForkJoinPool pool, final int max_pending)
+    {
+        LinkedList<ChunkTask> pending = new LinkedList<ChunkTask>();
+        Chunk<R> result = null;
+        long position = 0;
+        boolean completed = false;
+        try
+        {
+            SplittableTraversal<? extends T> batch;
+            while (!isAfterBreak(position) && (batch = traversal.trySplit()) != null)
+            {
+                ChunkTask task = new ChunkTask(batch, position, position + 1);
+                position++;
+                pool.execute(task);
+                pending.add(task);
+
+                while (pending.size() > max_pending)
+                    result = combine(result, pending.removeFirst().join());
+            }
+
+            while (!pending.isEmpty())
+                result = combine(result, pending.removeFirst().join());
+
+            // Whatever couldn't be split is visited here
+            if (!isAfterBreak(position))
+                result = combine(result, new ChunkTask(traversal, position, position + 1).compute());
+
+            completed = true;
+        }
+        finally
+        {
+            if (!completed)
+                cancelAll(pending);
+        }
+        return result;
+    }
+
+    private boolean isAfterBreak(final long position)
+    {
+        return broken_position.get() < position;
+    }
+
+    private void setBroken(final long position)
+    {
+        long current;
+        while ((current = broken_position.get()) > position)
+        {
+            if (broken_position.compareAndSet(current, position))
+                return;
+        }
+    }
+
+    /**
+     * Stop all the chunks and wait for the running ones so nothing is
+     * still reading the collection when the exception reaches the caller.
+     */
+    private void cancelAll(final Iterable<ChunkTask> tasks)
+    {
+        broken_position.set(CANCEL_ALL);
+        for (ChunkTask task : tasks)
+            task.quietlyJoin();
+    }
+
+    private Chunk<R> combine(final Chunk<R> left, final Chunk<R> right)
+    {
+        if (left == null || right.broken && !left.broken)
+            return right;
+        if (left.broken)
+            return left;
+
+        left.amended_object = callback.merge(left.amended_object, right.amended_object);
+        return left;
+    }
+
+    /**
+     * The result of one or more neighbouring chunks.
+     */
+    private static final class Chunk<R>
+    {
+        private R amended_object;
+        private final boolean broken;
+        private final R return_object;
+
+        Chunk(final R amended_object, final boolean broken, final R return_object)
+        {
+            this.amended_object = amended_object;
+            this.broken = broken;
+            this.return_object = return_object;
+        }
+    }
+
+    private final class ChunkTask extends RecursiveTask<Chunk<R>>
+    {
+        private static final long serialVersionUID = 3468150853402372164L;
+
+        private final SplittableTraversal<? extends T> traversal;
+        private final long from_position;
+        private final long to_position;
+
+        ChunkTask(final SplittableTraversal<? extends T> traversal, final long from_position, final long to_position)
+        {
+            this.traversal = traversal;
+            this.from_position = from_position;
+            this.to_position = to_position;
+        }
+
+        @Override
+        protected Chunk<R> compute()
+        {
+            if (to_position - from_position > 1 && traversal.estimateSize() > chunk_size && !isAfterBreak(from_position))
+            {
+                SplittableTraversal<? extends T> prefix = traversal.trySplit();
+                if (prefix != null)
+                {
+                    long mid_position = from_position + (to_position - from_position) / 2;
+                    ChunkTask rest = new ChunkTask(traversal, mid_position, to_position);
+                    rest.fork();
+
+                    Chunk<R> left = null;
+                    try
+                    {
+                        left = new ChunkTask(prefix, from_position, mid_position).compute();
+                    }
+                    finally
+                    {
+                        if (left == null)
+                            cancelAll(Collections.singletonList(rest));
+                    }
+                    return combine(left, rest.join());
+                }
+            }
+
+            return visit();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Chunk<R> visit()
+        {
+            final IterativeState<T,R> state = new IterativeState<T,R>();
+            state.i = (Iterator<? extends T>)UNSUPPORTED_ITERATOR;
+            final MergeableIterativeCallback<T,R> chunk = callback.newChunk(state);
+
+            traversal.traverse(new SplittableTraversal.Visitor<T>() {
+                @Override
+                boolean visit(T obj)
+                {
+                    if (isAfterBreak(from_position))
+                        return false;
+
+                    chunk.iterateObject(obj);
+                    return !state.do_break;
+                }
+            });
+
+            if (state.do_break)
+                setBroken(from_position);
+            else
+                chunk.iterationComplete();
+            return new Chunk<R>(state.amended_object, state.do_break, state.return_object);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+/**
+ * Implemented by maps that can answer lookups from an immutable published
+ * snapshot. The synchronized decorators don't take the read lock for get,
+ * containsKey, containsValue, getKeyForValue, size and isEmpty while
+ * getPublishedSnapshot returns a snapshot, and answer them from that
+ * snapshot rather than asking the map again, as the map may stop
+ * publishing snapshots in between.
+ */
+public interface SnapshotReadable<K,V>
+{
+    /**
+     * @return the snapshot lookups are currently answered from, which is
+     *         safe to read without holding a lock, or null if the lock is
+     *         needed
+     */
+    Snapshot<K,V> getPublishedSnapshot();
+
+    /**
+     * An immutable copy of the committed mappings of a map.
+     */
+    interface Snapshot<K,V>
+    {
+        V get(Object key);
+
+        K getKeyForValue(Object value);
+
+        boolean containsKey(Object key);
+
+        boolean containsValue(Object value);
+
+        int size();
+    }
+}
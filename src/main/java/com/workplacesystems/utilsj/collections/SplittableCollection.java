@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+/**
+ * Implemented by collections that can hand out a SplittableTraversal of
+ * their elements for parallel iteration.
+ *
+ * @see MergeableIterativeCallback#iterateParallel(FilterableCollection)
+ */
+public interface SplittableCollection<E>
+{
+    /**
+     * Returns a traversal of the elements in iteration order. The
+     * collection mustn't be changed while the traversal is in use, callers
+     * of a synchronized collection should hold its read lock.
+     *
+     * @return a traversal of the elements of this collection
+     */
+    SplittableTraversal<E> traversal();
+}
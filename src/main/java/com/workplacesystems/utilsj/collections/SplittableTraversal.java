@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.Iterator;
+
+/**
+ * A traversal over the elements of a collection that can be split into
+ * ordered parts, so the parts can be visited by different threads. The
+ * elements of the part returned by trySplit all come before the elements
+ * left in this traversal.
+ * <p>
+ * Traversals created from an iterator can only be split by the thread that
+ * created them, the parts they return can be split and visited by any
+ * thread.
+ */
+public abstract class SplittableTraversal<E>
+{
+    /** Elements read from an iterator by each trySplit */
+    private static final int ITERATOR_BATCH_SIZE = 2048;
+
+    SplittableTraversal() {}
+
+    /**
+     * Splits off the first part of the remaining elements.
+     *
+     * @return a traversal of the leading elements, or null if this
+     *         traversal can't be split
+     */
+    public abstract SplittableTraversal<E> trySplit();
+
+    /**
+     * @return an estimate of the number of elements left, Long.MAX_VALUE
+     *         if unknown
+     */
+    public abstract long estimateSize();
+
+    /**
+     * Visit the remaining elements in order.
+     *
+     * @return false if the visitor stopped the traversal
+     */
+    abstract boolean traverse(Visitor<? super E> visitor);
+
+    /**
+     * @return false if only the creating thread may call trySplit
+     */
+    boolean splitsInAnyThread()
+    {
+        return true;
+    }
+
+    /**
+     * @return a traversal of the elements of this traversal accepted by
+     *         the filter
+     */
+    public SplittableTraversal<E> filter(final Filter<? super E> filter)
+    {
+        return new FilteredTraversal<E>(this, filter);
+    }
+
+    /**
+     * Creates a traversal over the remaining elements of an iterator. The
+     * iterator is only read by the thread calling trySplit and each split
+     * copies a batch of elements into an array.
+     */
+    public static <E> SplittableTraversal<E> fromIterator(final Iterator<? extends E> iterator)
+    {
+        return new IteratorTraversal<E>(iterator);
+    }
+
+    /**
+     * Receives the elements of a traversal.
+     */
+    static abstract class Visitor<E>
+    {
+        /**
+         * @return false to stop the traversal
+         */
+        abstract boolean visit(E obj);
+    }
+
+    private static class ArrayTraversal<E> extends SplittableTraversal<E>
+    {
+        private final Object[] elements;
+        private int from;
+        private final int to;
+
+        ArrayTraversal(final Object[] elements, final int from, final int to)
+        {
+            this.elements = elements;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public SplittableTraversal<E> trySplit()
+        {
+            if (to - from < 2)
+                return null;
+
+            int mid = (from + to) >>> 1;
+            SplittableTraversal<E> prefix = new ArrayTraversal<E>(elements, from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return to - from;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        boolean traverse(final Visitor<? super E> visitor)
+        {
+            for (int i = from; i < to; i++)
+            {
+                if (!visitor.visit((E)elements[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class IteratorTraversal<E> extends SplittableTraversal<E>
+    {
+        private final Iterator<? extends E> iterator;
+
+        IteratorTraversal(final Iterator<? extends E> iterator)
+        {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public SplittableTraversal<E> trySplit()
+        {
+            if (!iterator.hasNext())
+                return null;
+
+            Object[] batch = new Object[ITERATOR_BATCH_SIZE];
+            int size = 0;
+            while (size < batch.length && iterator.hasNext())
+                batch[size++] = iterator.next();
+            return new ArrayTraversal<E>(batch, 0, size);
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return iterator.hasNext() ? Long.MAX_VALUE : 0;
+        }
+
+        @Override
+        boolean traverse(final Visitor<? super E> visitor)
+        {
+            while (iterator.hasNext())
+            {
+                if (!visitor.visit(iterator.next()))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean splitsInAnyThread()
+        {
+            return false;
+        }
+    }
+
+    private static class FilteredTraversal<E> extends SplittableTraversal<E>
+    {
+        private final SplittableTraversal<E> traversal;
+        private final Filter<? super E> filter;
+
+        FilteredTraversal(final SplittableTraversal<E> traversal, final Filter<? super E> filter)
+        {
+            this.traversal = traversal;
+            this.filter = filter;
+        }
+
+        @Override
+        public SplittableTraversal<E> trySplit()
+        {
+            SplittableTraversal<E> prefix = traversal.trySplit();
+            return prefix == null ? null : new FilteredTraversal<E>(prefix, filter);
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return traversal.estimateSize();
+        }
+
+        @Override
+        boolean traverse(final Visitor<? super E> visitor)
+        {
+            return traversal.traverse(new Visitor<E>() {
+                @Override
+                boolean visit(E obj)
+                {
+                    return !filter.isValid(obj) || visitor.visit(obj);
+                }
+            });
+        }
+
+        @Override
+        boolean splitsInAnyThread()
+        {
+            return traversal.splitsInAnyThread();
+        }
+    }
+}
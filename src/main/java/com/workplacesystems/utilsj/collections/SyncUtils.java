@@ -40,33 +40,53 @@ public abstract class SyncUtils
 
     static
     {
-        SyncUtils local_sync_util;
+        SyncUtils local_sync_util = null;
 
         boolean java16 = false;
+        boolean java18 = false;
         try
         {
             Class.forName("java.util.ArrayDeque");
             // We have JDK 1.6 at least if we're here
             java16 = true;
+            Class.forName("java.util.concurrent.locks.StampedLock");
+            // We have JDK 1.8 at least if we're here
+            java18 = true;
         } catch (ClassNotFoundException cnfe) {
             // swallow as we've hit the max class version that we have
         }
 
-        if (java16)
+        if (java18)
         {
             try
             {
-                Class<?> sync_jdk16_class = Class.forName("com.workplacesystems.utilsj.collections.SyncUtilsJdk16");
-                local_sync_util = (SyncUtils)sync_jdk16_class.newInstance();
+                Class<?> sync_jdk18_class = Class.forName("com.workplacesystems.utilsj.collections.SyncUtilsJdk18");
+                local_sync_util = (SyncUtils)sync_jdk18_class.getDeclaredConstructor().newInstance();
             }
             catch (Exception e)
             {
-                new UtilsjException("JDK 1.6 was detected but SyncUtilsJdk16 class cannot be found.");
-                local_sync_util = new SyncUtilsReentrant();
+                new UtilsjException("JDK 1.8 was detected but SyncUtilsJdk18 class cannot be found.");
             }
         }
-        else
-            local_sync_util = new SyncUtilsReentrant();
+
+        if (local_sync_util == null)
+        {
+            if (java16)
+            {
+                try
+                {
+                    Class<?> sync_jdk16_class = Class.forName("com.workplacesystems.utilsj.collections.SyncUtilsJdk16");
+                    local_sync_util = (SyncUtils)sync_jdk16_class.getDeclaredConstructor().newInstance();
+                }
+                catch (Exception e)
+                {
+                    new UtilsjException("JDK 1.6 was detected but SyncUtilsJdk16 class cannot be found.");
+                    local_sync_util = new SyncUtilsReentrant();
+                }
+            }
+            else
+                local_sync_util = new SyncUtilsReentrant();
+        }
 
         sync_utils_instance = local_sync_util;
     }
@@ -298,6 +318,27 @@ public abstract class SyncUtils
         return sync_utils_instance.createMutexImpl(suggested_mutex);
     }
 
+    /**
+     * Creates a mutex, choosing whether it supports optimistic reads rather
+     * than taking the default from the
+     * <tt>com.workplacesystems.utilsj.optimisticSyncLocks</tt> system property.
+     * <p>
+     * synchronizeRead on an optimistic mutex first runs a ReadOnlyCallback
+     * without taking the read lock and only takes the read lock and runs it
+     * again if a write lock was taken in the meantime. Other callbacks and
+     * the lock methods always take the read lock. Optimistic reads need JDK
+     * 1.8, on earlier JDKs and when read lock debugging is on this returns
+     * the same mutex as createMutex(Object).
+     *
+     * @param suggested_mutex the mutex or SynchronizedDecorator to reuse if
+     *        it is already a read write lock
+     * @param optimistic_reads true to allow optimistic reads
+     */
+    public static Object createMutex(Object suggested_mutex, boolean optimistic_reads)
+    {
+        return sync_utils_instance.createMutexImpl(suggested_mutex, optimistic_reads);
+    }
+
     public static <T> T synchronizeWrite(Object mutex, Callback<T> callback)
     {
         return synchronizeWrite(mutex, callback, null);
@@ -305,6 +346,8 @@ public abstract class SyncUtils
 
     public static <T> T synchronizeWrite(Object mutex, Callback<T> callback, Callback<?> release_callback)
     {
+        if (release_callback == null)
+            return sync_utils_instance.synchronizeImpl(LockType.WRITE, getObjectToLock(mutex), callback);
         return sync_utils_instance.synchronizeWriteImpl(getNewSyncWrapper(mutex, release_callback), callback);
     }
 
@@ -320,6 +363,8 @@ public abstract class SyncUtils
 
     public static <T> T synchronizeRead(Object mutex, Callback<T> callback, Callback<?> release_callback)
     {
+        if (release_callback == null)
+            return sync_utils_instance.synchronizeImpl(LockType.READ, getObjectToLock(mutex), callback);
         return sync_utils_instance.synchronizeReadImpl(getNewSyncWrapper(mutex, release_callback), callback);
     }
 
@@ -328,6 +373,53 @@ public abstract class SyncUtils
         return sync_utils_instance.synchronizeReadImpl(sync, callback);
     }
 
+    /**
+     * Takes the read lock of a single mutex without allocating. Every call
+     * must be paired with a call to unlockRead in a finally block. The mutex
+     * must be one returned by createMutex or a SynchronizedDecorator, use
+     * synchronizeRead for plain objects and release callbacks.
+     *
+     * @throws UnsupportedOperationException if the mutex is locked by synchronizing on it
+     */
+    public static void lockRead(Object mutex)
+    {
+        sync_utils_instance.lockImpl(LockType.READ, getMutexToLock(mutex));
+    }
+
+    public static void unlockRead(Object mutex)
+    {
+        sync_utils_instance.unlockImpl(LockType.READ, getMutexToLock(mutex));
+    }
+
+    /**
+     * Takes the write lock of a single mutex without allocating. Every call
+     * must be paired with a call to unlockWrite in a finally block.
+     *
+     * @throws UnsupportedOperationException if the mutex is locked by synchronizing on it
+     * @throws IllegalStateException if the current thread only holds the read lock
+     * @see #lockRead(Object)
+     */
+    public static void lockWrite(Object mutex)
+    {
+        sync_utils_instance.lockImpl(LockType.WRITE, getMutexToLock(mutex));
+    }
+
+    public static void unlockWrite(Object mutex)
+    {
+        sync_utils_instance.unlockImpl(LockType.WRITE, getMutexToLock(mutex));
+    }
+
+    private static Object getMutexToLock(final Object obj)
+    {
+        if (obj == null)
+            throw new IllegalArgumentException("Mutex must not be null");
+
+        Object mutex = getObjectToLock(obj);
+        if (sync_utils_instance.isLegacyMutex(mutex))
+            throw new UnsupportedOperationException("Legacy mutexes can only be locked with a Callback");
+        return mutex;
+    }
+
     public static <T> T synchronizeWriteThenRead(Object mutex, Callback<?> write_callback, Callback<T> read_callback)
     {
         return synchronizeWriteThenRead(mutex, write_callback, null, mutex, read_callback, null);
@@ -412,10 +504,46 @@ public abstract class SyncUtils
         return sync_utils_instance.getExtraLockInfosImpl();
     }
 
+    /**
+     * Single mutex equivalent of synchronizeReadImpl and synchronizeWriteImpl
+     * that doesn't need a SyncWrapper.
+     */
+    <T> T synchronizeImpl(LockType lockType, Object mutex, Callback<T> callback)
+    {
+        if (isLegacyMutex(mutex))
+        {
+            synchronized (mutex)
+            {
+                return callback.action();
+            }
+        }
+
+        lockImpl(lockType, mutex);
+        try
+        {
+            return callback.action();
+        }
+        finally
+        {
+            unlockImpl(lockType, mutex);
+        }
+    }
+
     abstract SyncWrapper getNewSyncWrapperImpl();
 
+    abstract boolean isLegacyMutex(Object mutex);
+
+    abstract void lockImpl(LockType lockType, Object mutex);
+
+    abstract void unlockImpl(LockType lockType, Object mutex);
+
     abstract Object createMutexImpl(Object suggested_mutex);
 
+    Object createMutexImpl(Object suggested_mutex, boolean optimistic_reads)
+    {
+        return createMutexImpl(suggested_mutex);
+    }
+
     abstract SyncCondition getSyncConditionImpl(Object suggested_mutex);
 
     abstract <T> T synchronizeWriteImpl(SyncWrapper mutex, Callback<T> callback);
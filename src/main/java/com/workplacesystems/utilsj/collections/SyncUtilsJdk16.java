@@ -38,8 +38,8 @@ import java.util.concurrent.TimeUnit;
  */
 class SyncUtilsJdk16 extends SyncUtilsReentrant
 {
-    private final static boolean disableFairSyncLocks = Boolean.getBoolean("com.workplacesystems.utilsj.disableFairSyncLocks");
-    private final static boolean debugReadLocks = Boolean.getBoolean("com.workplacesystems.utilsj.debugReadLocks");
+    protected final static boolean disableFairSyncLocks = Boolean.getBoolean("com.workplacesystems.utilsj.disableFairSyncLocks");
+    protected final static boolean debugReadLocks = Boolean.getBoolean("com.workplacesystems.utilsj.debugReadLocks");
 
     protected final static Map<DebugReentrantReadWriteLock,Set<Thread>> threadReadLocks =
             debugReadLocks ? Collections.synchronizedMap(new WeakHashMap<DebugReentrantReadWriteLock,Set<Thread>>()) : null;
@@ -229,6 +229,55 @@ class SyncUtilsJdk16 extends SyncUtilsReentrant
         return super.getSyncConditionImpl(suggested_mutex);
     }
 
+    static void lockMutex(LockType lockType, ReentrantReadWriteLock lock)
+    {
+        switch (lockType)
+        {
+        case WRITE:
+            if (lock.getReadHoldCount() > 0 && lock.getWriteHoldCount() == 0)
+                throw new IllegalStateException("Lock cannot be upgraded from read to write");
+
+            lock.writeLock().lock();
+            break;
+
+        case READ:
+            lock.readLock().lock();
+            break;
+        }
+    }
+
+    static void unlockMutex(LockType lockType, ReentrantReadWriteLock lock)
+    {
+        switch (lockType)
+        {
+        case WRITE:
+            lock.writeLock().unlock();
+            break;
+
+        case READ:
+            lock.readLock().unlock();
+            break;
+        }
+    }
+
+    @Override
+    boolean isLegacyMutex(Object mutex)
+    {
+        return !(mutex instanceof ReentrantReadWriteLock);
+    }
+
+    @Override
+    void lockImpl(LockType lockType, Object mutex)
+    {
+        lockMutex(lockType, (ReentrantReadWriteLock)mutex);
+    }
+
+    @Override
+    void unlockImpl(LockType lockType, Object mutex)
+    {
+        unlockMutex(lockType, (ReentrantReadWriteLock)mutex);
+    }
+
     static class SyncWrapperJdk16 extends SyncWrapper
     {
         SyncWrapperJdk16()
@@ -245,20 +294,7 @@ class SyncUtilsJdk16 extends SyncUtilsReentrant
         @Override
         protected void lock(LockType lockType, Object mutex)
         {
-            ReentrantReadWriteLock lock = (ReentrantReadWriteLock)mutex;
-            switch (lockType)
-            {
-            case WRITE:
-                if (lock.getReadHoldCount() > 0 && lock.getWriteHoldCount() == 0)
-                    throw new IllegalStateException("Lock cannot be upgraded from read to write");
-
-                lock.writeLock().lock();
-                break;
-
-            case READ:
-                lock.readLock().lock();
-                break;
-            }
+            lockMutex(lockType, (ReentrantReadWriteLock)mutex);
         }
 
         @Override
@@ -286,16 +322,7 @@ class SyncUtilsJdk16 extends SyncUtilsReentrant
             }
             finally
             {
-                switch (lockType)
-                {
-                case WRITE:
-                    lock.writeLock().unlock();
-                    break;
-
-                case READ:
-                    lock.readLock().unlock();
-                    break;
-                }
+                unlockMutex(lockType, lock);
             }
         }
 
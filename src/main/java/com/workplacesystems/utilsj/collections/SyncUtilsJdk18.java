@@ -0,0 +1,317 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+import com.workplacesystems.utilsj.Callback;
+import com.workplacesystems.utilsj.ReadOnlyCallback;
+
+/**
+ * Adds optimistic read mutexes to SyncUtilsJdk16.
+ *
+ * @see SyncUtils#createMutex(Object, boolean)
+ */
+class SyncUtilsJdk18 extends SyncUtilsJdk16
+{
+    private final static boolean optimisticSyncLocks = Boolean.getBoolean("com.workplacesystems.utilsj.optimisticSyncLocks");
+
+    /**
+     * Creates a new instance of SyncUtilsJdk18
+     */
+    SyncUtilsJdk18()
+    {
+    }
+
+    @Override
+    Object createMutexImpl(Object suggested_mutex)
+    {
+        return createMutexImpl(suggested_mutex, optimisticSyncLocks);
+    }
+
+    @Override
+    Object createMutexImpl(Object suggested_mutex, boolean optimistic_reads)
+    {
+        // Read lock debugging replaces the read lock so can't be combined with optimistic reads
+        if (!optimistic_reads || debugReadLocks)
+            return super.createMutexImpl(suggested_mutex);
+
+        if (suggested_mutex instanceof ReentrantReadWriteLock)
+            return suggested_mutex;
+
+        suggested_mutex = getObjectToLock(suggested_mutex);
+        if (suggested_mutex instanceof ReentrantReadWriteLock)
+            return suggested_mutex;
+
+        return new OptimisticReadWriteLock(disableFairSyncLocks ? false : true);
+    }
+
+    @Override
+    <T> T synchronizeImpl(LockType lockType, Object mutex, Callback<T> callback)
+    {
+        if (lockType == LockType.READ && callback instanceof ReadOnlyCallback && mutex instanceof OptimisticReadWriteLock)
+        {
+            OptimisticReadWriteLock lock = (OptimisticReadWriteLock)mutex;
+
+            // A thread already holding the read lock takes it again so the hold counts stay right.
+            // A thread holding the write lock gets a zero stamp.
+            long stamp = lock.getReadHoldCount() == 0 ? lock.tryOptimisticRead() : 0L;
+            if (stamp != 0L)
+            {
+                try
+                {
+                    T ret = callback.action();
+                    if (lock.validate(stamp))
+                        return ret;
+                }
+                catch (RuntimeException e)
+                {
+                    if (lock.validate(stamp))
+                        throw e;
+                }
+                catch (Error e)
+                {
+                    if (lock.validate(stamp))
+                        throw e;
+                }
+            }
+        }
+
+        return super.synchronizeImpl(lockType, mutex, callback);
+    }
+
+    /**
+     * A ReentrantReadWriteLock whose outermost write lock also holds the
+     * write lock of a StampedLock, so an optimistic read stamp from the
+     * StampedLock stays valid until the next write. Only the thread holding
+     * the write lock of the ReentrantReadWriteLock ever locks the StampedLock
+     * so it is never contended.
+     */
+    static class OptimisticReadWriteLock extends ReentrantReadWriteLock
+    {
+        private static final long serialVersionUID = -6892978232755734932L;
+
+        private final StampedLock stamped_lock = new StampedLock();
+
+        private final WriteLock writer_lock;
+
+        /** Only accessed while holding the write lock */
+        private long write_stamp;
+
+        OptimisticReadWriteLock(boolean fair)
+        {
+            super(fair);
+            writer_lock = new WriteLock(this);
+        }
+
+        @Override
+        public ReentrantReadWriteLock.WriteLock writeLock() { return writer_lock; }
+
+        long tryOptimisticRead()
+        {
+            return stamped_lock.tryOptimisticRead();
+        }
+
+        boolean validate(long stamp)
+        {
+            return stamped_lock.validate(stamp);
+        }
+
+        private void writeLocked()
+        {
+            if (getWriteHoldCount() == 1)
+                write_stamp = stamped_lock.writeLock();
+        }
+
+        private void writeUnlocking()
+        {
+            if (getWriteHoldCount() == 1)
+                stamped_lock.unlockWrite(write_stamp);
+        }
+
+        static class WriteLock extends ReentrantReadWriteLock.WriteLock
+        {
+            private static final long serialVersionUID = -8415801977544449574L;
+
+            private final OptimisticReadWriteLock lock;
+
+            protected WriteLock(OptimisticReadWriteLock lock)
+            {
+                super(lock);
+                this.lock = lock;
+            }
+
+            @Override
+            public void lock()
+            {
+                super.lock();
+                lock.writeLocked();
+            }
+
+            @Override
+            public void lockInterruptibly() throws InterruptedException
+            {
+                super.lockInterruptibly();
+                lock.writeLocked();
+            }
+
+            @Override
+            public boolean tryLock()
+            {
+                if (!super.tryLock())
+                    return false;
+                lock.writeLocked();
+                return true;
+            }
+
+            @Override
+            public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException
+            {
+                if (!super.tryLock(timeout, unit))
+                    return false;
+                lock.writeLocked();
+                return true;
+            }
+
+            @Override
+            public void unlock()
+            {
+                lock.writeUnlocking();
+                super.unlock();
+            }
+
+            @Override
+            public Condition newCondition()
+            {
+                return new OptimisticCondition(lock, super.newCondition());
+            }
+        }
+
+        /**
+         * Awaiting releases the write lock of the ReentrantReadWriteLock
+         * without going through WriteLock.unlock, so the StampedLock is
+         * released around the wait here to let other writers in.
+         */
+        static class OptimisticCondition implements Condition
+        {
+            private final OptimisticReadWriteLock lock;
+
+            private final Condition condition;
+
+            private OptimisticCondition(OptimisticReadWriteLock lock, Condition condition)
+            {
+                this.lock = lock;
+                this.condition = condition;
+            }
+
+            private boolean release()
+            {
+                // Without the write lock the condition throws IllegalMonitorStateException
+                if (!lock.isWriteLockedByCurrentThread())
+                    return false;
+
+                lock.stamped_lock.unlockWrite(lock.write_stamp);
+                return true;
+            }
+
+            private void reacquire(boolean released)
+            {
+                if (released)
+                    lock.write_stamp = lock.stamped_lock.writeLock();
+            }
+
+            public void await() throws InterruptedException
+            {
+                boolean released = release();
+                try
+                {
+                    condition.await();
+                }
+                finally
+                {
+                    reacquire(released);
+                }
+            }
+
+            public void awaitUninterruptibly()
+            {
+                boolean released = release();
+                try
+                {
+                    condition.awaitUninterruptibly();
+                }
+                finally
+                {
+                    reacquire(released);
+                }
+            }
+
+            public long awaitNanos(long nanosTimeout) throws InterruptedException
+            {
+                boolean released = release();
+                try
+                {
+                    return condition.awaitNanos(nanosTimeout);
+                }
+                finally
+                {
+                    reacquire(released);
+                }
+            }
+
+            public boolean await(long time, TimeUnit unit) throws InterruptedException
+            {
+                boolean released = release();
+                try
+                {
+                    return condition.await(time, unit);
+                }
+                finally
+                {
+                    reacquire(released);
+                }
+            }
+
+            public boolean awaitUntil(Date deadline) throws InterruptedException
+            {
+                boolean released = release();
+                try
+                {
+                    return condition.awaitUntil(deadline);
+                }
+                finally
+                {
+                    reacquire(released);
+                }
+            }
+
+            public void signal()
+            {
+                condition.signal();
+            }
+
+            public void signalAll()
+            {
+                condition.signalAll();
+            }
+        }
+    }
+}
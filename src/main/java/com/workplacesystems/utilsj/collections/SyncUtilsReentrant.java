@@ -87,6 +87,55 @@ class SyncUtilsReentrant extends SyncUtilsLegacy
         return super.getSyncConditionImpl(suggested_mutex);
     }
 
+    static void lockMutex(LockType lockType, ReentrantReadWriteLock lock)
+    {
+        switch (lockType)
+        {
+        case WRITE:
+            if (lock.getReadHoldCount() > 0 && lock.getWriteHoldCount() == 0)
+                throw new IllegalStateException("Lock cannot be upgraded from read to write");
+
+            lock.writeLock().lock();
+            break;
+
+        case READ:
+            lock.readLock().lock();
+            break;
+        }
+    }
+
+    static void unlockMutex(LockType lockType, ReentrantReadWriteLock lock)
+    {
+        switch (lockType)
+        {
+        case WRITE:
+            lock.writeLock().unlock();
+            break;
+
+        case READ:
+            lock.readLock().unlock();
+            break;
+        }
+    }
+
+    @Override
+    boolean isLegacyMutex(Object mutex)
+    {
+        return !(mutex instanceof ReentrantReadWriteLock);
+    }
+
+    @Override
+    void lockImpl(LockType lockType, Object mutex)
+    {
+        lockMutex(lockType, (ReentrantReadWriteLock)mutex);
+    }
+
+    @Override
+    void unlockImpl(LockType lockType, Object mutex)
+    {
+        unlockMutex(lockType, (ReentrantReadWriteLock)mutex);
+    }
+
     static class SyncWrapperReentrant extends SyncWrapper
     {
         SyncWrapperReentrant()
@@ -103,20 +152,7 @@ class SyncUtilsReentrant extends SyncUtilsLegacy
         @Override
         protected void lock(LockType lockType, Object mutex)
         {
-            ReentrantReadWriteLock lock = (ReentrantReadWriteLock)mutex;
-            switch (lockType)
-            {
-            case WRITE:
-                if (lock.getReadHoldCount() > 0 && lock.getWriteHoldCount() == 0)
-                    throw new IllegalStateException("Lock cannot be upgraded from read to write");
-
-                lock.writeLock().lock();
-                break;
-
-            case READ:
-                lock.readLock().lock();
-                break;
-            }
+            lockMutex(lockType, (ReentrantReadWriteLock)mutex);
         }
 
         @Override
@@ -144,16 +180,7 @@ class SyncUtilsReentrant extends SyncUtilsLegacy
             }
             finally
             {
-                switch (lockType)
-                {
-                case WRITE:
-                    lock.writeLock().unlock();
-                    break;
-
-                case READ:
-                    lock.readLock().unlock();
-                    break;
-                }
+                unlockMutex(lockType, lock);
             }
         }
 
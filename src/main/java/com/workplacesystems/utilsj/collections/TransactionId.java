@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Identity of a transaction in the transactional collections. Instances are
+ * interned by name so that two TransactionIds are the same transaction if
+ * and only if they are the same object. The name is either the attach id
+ * passed to {@link TransactionalMap#attach(String)} or a description of the
+ * thread that is making the changes.
+ * <p>
+ * The TransactionId of each thread is created once and cached for the life
+ * of the thread so that looking up the current transaction doesn't allocate.
+ */
+public final class TransactionId implements Serializable
+{
+    private static final long serialVersionUID = 2846396711537904529L;
+
+    private final static Map<String,WeakReference<TransactionId>> interned =
+            new WeakHashMap<String,WeakReference<TransactionId>>();
+
+    private final static ThreadLocal<TransactionId> thread_transaction_id = new ThreadLocal<TransactionId>() {
+        @Override
+        protected TransactionId initialValue()
+        {
+            Thread thread = Thread.currentThread();
+            return getTransactionId(thread.toString() + "(" + thread.hashCode() + ")");
+        }
+    };
+
+    private final String name;
+
+    private TransactionId(final String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Get the TransactionId for the supplied name.
+     *
+     * @param name the attach id or thread description
+     *
+     * @return the interned TransactionId
+     */
+    public static TransactionId getTransactionId(final String name)
+    {
+        if (name == null)
+            return null;
+
+        synchronized (interned)
+        {
+            WeakReference<TransactionId> ref = interned.get(name);
+            TransactionId id = ref == null ? null : ref.get();
+            if (id == null)
+            {
+                id = new TransactionId(name);
+                // Use the name held by the TransactionId as the key so the entry lives as long as it does
+                interned.put(id.name, new WeakReference<TransactionId>(id));
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get the TransactionId for the current thread.
+     *
+     * @return the cached TransactionId of the current thread
+     */
+    public static TransactionId getThreadTransactionId()
+    {
+        return thread_transaction_id.get();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    private Object readResolve() throws ObjectStreamException
+    {
+        return getTransactionId(name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
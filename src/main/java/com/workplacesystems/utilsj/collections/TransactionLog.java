@@ -0,0 +1,482 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.workplacesystems.utilsj.UtilsjException;
+
+/**
+ * An append-only log of the changes committed to a TransactionalBidiTreeMap
+ * or TransactionalHashMap. Each commit appends one record holding all of
+ * the puts and removes of the transaction, so a map can be rebuilt after a
+ * restart from a snapshot, if there is one, followed by replay of the log.
+ * <p>
+ * A record is the length and CRC32 of its body, then the body: the
+ * sequence number of the commit, the number of changes and the changes
+ * themselves, each a type byte, a null flags byte, the key and, for a put,
+ * the value, encoded by the serializers. A record that was only partly
+ * written when the process stopped fails its length or CRC check and it,
+ * and anything after it, is truncated when the log is opened.
+ * <p>
+ * The record is encoded and appended before the map applies any of the
+ * commit's changes. If a key or value doesn't fit its serializer, or with
+ * group commit off the log can't be written, the commit throws and the
+ * transaction is left uncommitted, to be rolled back.
+ * <p>
+ * Records are buffered in memory and written with the FileChannel. With
+ * group commit off every commit writes and forces the log before it
+ * returns, so the map is locked for the whole of the force. With group
+ * commit on a commit only buffers its record, and the committing thread
+ * then calls awaitDurable after releasing the map. The first thread to get
+ * there writes and forces the records of every commit buffered so far
+ * while the others wait for it, so one force covers all of the concurrent
+ * commits.
+ * <p>
+ * Only commits are logged, so a map can't have auto commit on while a log
+ * is set. To rebuild a map, create it with auto commit on, load the
+ * snapshot, call replay, then turn auto commit off and set the log.
+ */
+public class TransactionLog<K,V>
+{
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final byte NULL_KEY = 1;
+    private static final byte NULL_VALUE = 2;
+
+    /** The length and CRC32 in front of each body. */
+    private static final int RECORD_HEADER = 8;
+
+    /** The sequence number and change count at the start of each body. */
+    private static final int BODY_HEADER = 12;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final OffHeapSerializer<K> key_serializer;
+    private final OffHeapSerializer<V> value_serializer;
+    private final boolean group_commit;
+
+    private final Object lock = new Object();
+
+    /** Records appended but not yet written. */
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** The buffer to swap in for pending, null while it is being written. */
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** The sequence number of the last record appended. */
+    private long appended;
+
+    /** The sequence number of the last record forced to the file. */
+    private long durable;
+
+    private boolean syncing = false;
+
+    private IOException failure = null;
+
+    private final CRC32 crc = new CRC32();
+
+    private final ThreadLocal<long[]> last_appended = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Opens a log, truncating any partly written record at its end. New
+     * records are appended after the existing ones.
+     *
+     * @param channel the log file, opened for reading and writing
+     * @param group_commit true to share forces between concurrent commits,
+     *                     false to force the log in every commit
+     */
+    public TransactionLog(final FileChannel channel, final OffHeapSerializer<K> key_serializer,
+            final OffHeapSerializer<V> value_serializer, final boolean group_commit) throws IOException
+    {
+        this.channel = channel;
+        this.key_serializer = key_serializer;
+        this.value_serializer = value_serializer;
+        this.group_commit = group_commit;
+
+        long end = read(null);
+        if (end < channel.size())
+        {
+            channel.truncate(end);
+            channel.force(false);
+        }
+        channel.position(end);
+        durable = appended;
+    }
+
+    public boolean isGroupCommit()
+    {
+        return group_commit;
+    }
+
+    /**
+     * @return the sequence number of the last record appended
+     */
+    public long getSequence()
+    {
+        synchronized (lock)
+        {
+            return appended;
+        }
+    }
+
+    /**
+     * Applies every record in the log to the map in the order they were
+     * committed, the removes of each record before its puts. The map
+     * should contain the snapshot the log was started after, and must not
+     * have this log set or the changes would be logged again.
+     *
+     * @return the number of records replayed
+     */
+    public int replay(final Map<? super K,? super V> map) throws IOException
+    {
+        synchronized (lock)
+        {
+            sync(appended);
+
+            final int[] count = new int[1];
+            read(new Applier()
+            {
+                public void apply(final ByteBuffer body)
+                {
+                    int changes = body.getInt(8);
+                    for (int pass = REMOVE; pass >= PUT; pass--)
+                    {
+                        int offset = BODY_HEADER;
+                        for (int i = 0; i < changes; i++)
+                        {
+                            byte type = body.get(offset);
+                            byte flags = body.get(offset + 1);
+                            offset += 2;
+                            K key = (flags & NULL_KEY) != 0 ? null : key_serializer.read(body, offset);
+                            offset += key_serializer.size();
+                            if (type == PUT)
+                            {
+                                V value = (flags & NULL_VALUE) != 0 ? null : value_serializer.read(body, offset);
+                                offset += value_serializer.size();
+                                if (pass == PUT)
+                                    map.put(key, value);
+                            }
+                            else if (pass == REMOVE)
+                                map.remove(key);
+                        }
+                    }
+                    count[0]++;
+                }
+            });
+            return count[0];
+        }
+    }
+
+    /**
+     * Empties the log, e.g. once a snapshot holding all of its changes
+     * has been written. Commits must be held off until this returns.
+     * Sequence numbers carry on from those already used.
+     */
+    public void truncate() throws IOException
+    {
+        synchronized (lock)
+        {
+            sync(appended);
+            channel.truncate(0);
+            channel.force(false);
+            channel.position(0);
+        }
+    }
+
+    /**
+     * Starts a record for a commit.
+     */
+    Batch newBatch()
+    {
+        return new Batch();
+    }
+
+    /**
+     * Appends the record of a commit, and with group commit off writes and
+     * forces it. Called by the map while it is committing, before it
+     * changes any entry, so records are appended in commit order and a
+     * commit that can't be logged is left uncommitted.
+     *
+     * @return the sequence number of the record
+     * @throws UtilsjException if the log can't be written
+     */
+    long append(final Batch batch)
+    {
+        try
+        {
+            synchronized (lock)
+            {
+                if (failure != null)
+                    throw failure;
+
+                long sequence = ++appended;
+                ByteBuffer body = batch.body;
+                body.putLong(0, sequence);
+                body.putInt(8, batch.count);
+
+                crc.reset();
+                crc.update(body.array(), 0, body.position());
+
+                int length = RECORD_HEADER + body.position();
+                if (pending.remaining() < length)
+                    pending = grow(pending, length);
+                pending.putInt(body.position());
+                pending.putInt((int)crc.getValue());
+                pending.put(body.array(), 0, body.position());
+
+                last_appended.get()[0] = sequence;
+                if (!group_commit)
+                    sync(sequence);
+                return sequence;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UtilsjException(e);
+        }
+    }
+
+    /**
+     * Waits until the last record appended by the current thread has been
+     * forced to the file, forcing it if no other thread is already doing
+     * so. Call this after committing with group commit on once the map is
+     * no longer locked.
+     */
+    public void awaitDurable() throws IOException
+    {
+        sync(last_appended.get()[0]);
+    }
+
+    /**
+     * Waits until every record appended so far has been forced to the file.
+     */
+    public void sync() throws IOException
+    {
+        sync(getSequence());
+    }
+
+    /**
+     * Returns once sequence is durable. If no thread is writing, this one
+     * swaps in the spare buffer and writes every pending record and forces
+     * the file without holding the lock, so appends carry on meanwhile.
+     * Appends with group commit off call this holding the lock, so nothing
+     * else is appended until their record has been forced.
+     */
+    private void sync(final long sequence) throws IOException
+    {
+        while (true)
+        {
+            ByteBuffer buffer;
+            long target;
+            synchronized (lock)
+            {
+                while (syncing && durable < sequence && failure == null)
+                {
+                    try
+                    {
+                        lock.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for the transaction log");
+                    }
+                }
+                if (durable >= sequence)
+                    return;
+                if (failure != null)
+                    throw failure;
+
+                buffer = pending;
+                target = appended;
+                pending = spare != null ? spare : ByteBuffer.allocate(BUFFER_SIZE);
+                spare = null;
+                syncing = true;
+            }
+
+            IOException error = null;
+            try
+            {
+                write(buffer);
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+
+            synchronized (lock)
+            {
+                buffer.clear();
+                spare = buffer;
+                syncing = false;
+                if (error != null)
+                    failure = error;
+                else
+                    durable = target;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+    }
+
+    private static ByteBuffer grow(final ByteBuffer buffer, final int length)
+    {
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < length)
+            capacity *= 2;
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private interface Applier
+    {
+        void apply(final ByteBuffer body);
+    }
+
+    /**
+     * Reads the records from the start of the file, passing each to the
+     * applier if there is one.
+     *
+     * @return the end of the last complete record
+     */
+    private long read(final Applier applier) throws IOException
+    {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        ByteBuffer body = ByteBuffer.allocate(BUFFER_SIZE);
+        long last = 0;
+
+        while (position + RECORD_HEADER <= size)
+        {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (length < BODY_HEADER || position + RECORD_HEADER + length > size)
+                break;
+
+            if (body.capacity() < length)
+                body = ByteBuffer.allocate(Integer.highestOneBit(length) << 1);
+            body.clear();
+            body.limit(length);
+            readFully(body, position + RECORD_HEADER);
+
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int)crc.getValue() != checksum)
+                break;
+            long sequence = body.getLong(0);
+            if (last != 0 && sequence != last + 1)
+                break;
+
+            if (applier != null)
+                applier.apply(body);
+            last = sequence;
+            position += RECORD_HEADER + length;
+        }
+
+        if (applier == null && last != 0)
+            appended = last;
+        return position;
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) throws IOException
+    {
+        long offset = position;
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, offset);
+            if (read < 0)
+                throw new IOException("Unexpected end of transaction log");
+            offset += read;
+        }
+    }
+
+    /**
+     * The changes of one commit, encoded in the order the map reports
+     * them.
+     */
+    final class Batch
+    {
+        private ByteBuffer body = ByteBuffer.allocate(256);
+        private int count = 0;
+
+        private Batch()
+        {
+            body.position(BODY_HEADER);
+        }
+
+        void put(final K key, final V value)
+        {
+            int length = 2 + key_serializer.size() + value_serializer.size();
+            if (body.remaining() < length)
+                body = grow(body, length);
+            int offset = body.position();
+            body.put(offset, PUT);
+            body.put(offset + 1, (byte)((key == null ? NULL_KEY : 0) | (value == null ? NULL_VALUE : 0)));
+            if (key != null)
+                key_serializer.write(body, offset + 2, key);
+            if (value != null)
+                value_serializer.write(body, offset + 2 + key_serializer.size(), value);
+            body.position(offset + length);
+            count++;
+        }
+
+        void remove(final K key)
+        {
+            int length = 2 + key_serializer.size();
+            if (body.remaining() < length)
+                body = grow(body, length);
+            int offset = body.position();
+            body.put(offset, REMOVE);
+            body.put(offset + 1, key == null ? NULL_KEY : 0);
+            if (key != null)
+                key_serializer.write(body, offset + 2, key);
+            body.position(offset + length);
+            count++;
+        }
+
+        boolean isEmpty()
+        {
+            return count == 0;
+        }
+    }
+}
@@ -16,18 +16,32 @@
 
 package com.workplacesystems.utilsj.collections;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Executor;
 
 import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.UtilsjException;
@@ -108,10 +122,10 @@ import org.apache.commons.logging.LogFactory;
  * @author John Donnelly (john.donnelly@workplace-systems.plc.uk)
  */
 @SuppressWarnings("unchecked")
-public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements TransactionalSortedFilterableBidiMap<K,V>, Serializable
+public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements TransactionalSortedFilterableBidiMap<K,V>, NavigableBidiMap<K,V>, SnapshotReadable<K,V>, Serializable
 {
     // Increase the number when an incompatible change is made
-    private static final long serialVersionUID = -1890000639743995893L;
+    private static final long serialVersionUID = -1890000639743995892L;
     
     //  final for performance
     private static final int KEY = 0;
@@ -119,6 +133,8 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
     private static final int SUM_OF_INDICES = KEY + VALUE;
     private static final int FIRST_INDEX = 0;
     private static final int NUMBER_OF_INDICES = 2;
+    /** Traversal data for the entries rather than the keys or values */
+    private static final int ENTRIES = NUMBER_OF_INDICES;
     private static final String[] dataName = new String[] { "key", "value" };
     
     private final Node<K,V>[] rootNode = new Node[] { null, null };
@@ -134,7 +150,41 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
     /* ? Was getting errors re. null comparator. Is there a better way to do this? */
    // private Comparator[] comparators = new Comparator[] { new DefaultComparator(), new DefaultComparator() };
     private Comparator[] comparators = new Comparator[] { null, null};
-    private boolean auto_commit = true;
+    private volatile boolean auto_commit = true;
+    private transient TransactionLog<K,V> transactionLog = null;
+
+    /**
+     * The ADDED and DELETED nodes of each transaction id in the order the
+     * changes were made, so that commit and rollback only visit the nodes
+     * that were changed. This is rebuilt from the nodes if it is null, i.e.
+     * after deserialization.
+     */
+    private transient HashMap<TransactionId,TransactionChanges<K,V>> transactionChanges = new HashMap<TransactionId,TransactionChanges<K,V>>();
+
+    /**
+     * The number of nodes in ADDED status for any transaction id. Together with
+     * the counts held in transactionChanges this gives the size seen by each
+     * transaction id without iterating.
+     */
+    private transient int addedCount = 0;
+
+    /**
+     * True if committed nodes are also kept in persistent trees so that
+     * reads in auto commit mode don't need a lock. See setVersioned.
+     */
+    private boolean versioned = false;
+
+    /**
+     * The latest published snapshot, read without locking.
+     */
+    private transient volatile Snapshot snapshot = null;
+
+    /**
+     * The snapshot being built by the writer, which is published when
+     * the current change or commit is complete.
+     */
+    private transient Snapshot nextSnapshot = null;
+    private transient boolean deferPublish = false;
 
     private final static Log log = LogFactory.getLog(TransactionalBidiTreeMap.class);
 
@@ -207,11 +257,15 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         return dump;
     }*/
 
+    private transient String thread_session_key = null;
+
     protected final String getThreadSessionKey()
     {
         // Use the hashCode of the rootNode array to get a unique id for this Map.
         // AbstractMap.hashCode returns the hashCode of all elements and therefore changes over time.
-        return ".TransactionalBidiTreeMap(" + rootNode.hashCode() + ")-attach_id";
+        if (thread_session_key == null)
+            thread_session_key = ".TransactionalBidiTreeMap(" + rootNode.hashCode() + ")-attach_id";
+        return thread_session_key;
     }
 
     /**
@@ -221,7 +275,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      */
     public void attach(final String attach_id)
     {
-        ThreadSession.putValue(getThreadSessionKey(), attach_id);
+        ThreadSession.putValue(getThreadSessionKey(), TransactionId.getTransactionId(attach_id));
     }
 
     /**
@@ -248,6 +302,9 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      */
     public void setAutoCommit(final boolean auto_commit) {
 
+        if (auto_commit && transactionLog != null)
+            throw new IllegalStateException("Auto commit can't be turned on while a transaction log is set");
+
         if (!this.auto_commit && auto_commit)
             commit(null);
 
@@ -259,6 +316,78 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         return auto_commit;
     }
 
+    /**
+     * Sets the log that each commit appends its puts and removes to, or
+     * null to stop logging. Auto commit must be off as changes made with
+     * it on aren't logged. With group commit on the log isn't forced by
+     * the commit, the committing thread should call awaitDurable on the
+     * log once it no longer holds the map's lock.
+     *
+     * @param transactionLog the log, which is not written by the map's
+     *                       serialized form
+     * @throws IllegalStateException if auto commit is on
+     */
+    public void setTransactionLog(final TransactionLog<K,V> transactionLog) {
+
+        if (transactionLog != null && auto_commit)
+            throw new IllegalStateException("Auto commit must be off to log transactions");
+
+        this.transactionLog = transactionLog;
+    }
+
+    public TransactionLog<K,V> getTransactionLog() {
+        return transactionLog;
+    }
+
+    /**
+     * Turns versioned mode on or off. In versioned mode each commit, or
+     * each change while auto commit is on, publishes an immutable copy of
+     * the KEY and VALUE trees that shares all unchanged nodes with the
+     * previous copy. While auto commit is on, get, getKeyForValue,
+     * containsKey, containsValue, size and the iterators of the key,
+     * value and entry views are answered from the latest copy so readers
+     * don't need to hold the read lock, and an iterator sees the map as
+     * it was when the iterator was created.
+     * <P>
+     * Writers must still be serialized, e.g. by
+     * SynchronizedTransactionalSortedFilterableBidiMap, which doesn't lock
+     * for these reads while getPublishedSnapshot returns a snapshot and
+     * answers them from that snapshot.
+     *
+     * @param versioned - true to publish snapshots
+     */
+    public void setVersioned(final boolean versioned) {
+
+        this.versioned = versioned;
+        if (versioned)
+            rebuildSnapshot();
+        else {
+            nextSnapshot = null;
+            snapshot = null;
+        }
+    }
+
+    public boolean isVersioned()
+    {
+        return versioned;
+    }
+
+    /**
+     * @return true if lookups are currently answered from a published
+     *         snapshot. This may change straight after it is returned, so
+     *         readers that don't hold the lock must use
+     *         getPublishedSnapshot instead.
+     */
+    public boolean isSnapshotReadable()
+    {
+        return getReadableSnapshot() != null;
+    }
+
+    public SnapshotReadable.Snapshot<K,V> getPublishedSnapshot()
+    {
+        return getReadableSnapshot();
+    }
+
     public interface TransactionNotifiable extends Serializable
     {
         void addedToMap(Object key, Object value);
@@ -294,6 +423,287 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         rollback_notifiers.remove(rollback_notifier);
     }
 
+    /**
+     * Receives all of the changes of a commit or rollback at once rather
+     * than one call per node.
+     */
+    public interface TransactionBatchNotifiable<K,V>
+    {
+        /**
+         * @param changes the entries added to and removed from the map by
+         *                the commit
+         */
+        void committed(ChangeSet<K,V> changes);
+
+        /**
+         * @param changes the entries the rollback put back into the map
+         *                as added and those it took out as removed
+         */
+        void rolledBack(ChangeSet<K,V> changes);
+    }
+
+    /**
+     * The entries added and removed by one commit or rollback, in the
+     * order the transaction made the changes. A change set doesn't change
+     * once it has been delivered so it can be kept or passed to another
+     * thread.
+     */
+    public static final class ChangeSet<K,V> {
+
+        private final TransactionId transactionId;
+        private final ArrayList<Object> added;
+        private final ArrayList<Object> removed;
+
+        private ChangeSet(final TransactionId transactionId, final int added, final int removed) {
+            this.transactionId = transactionId;
+            this.added = new ArrayList<Object>(2 * added);
+            this.removed = new ArrayList<Object>(2 * removed);
+        }
+
+        /**
+         * @return the id of the transaction that was committed or rolled back
+         */
+        public TransactionId getTransactionId() {
+            return transactionId;
+        }
+
+        public List<Map.Entry<K,V>> getAdded() {
+            return new Entries<K,V>(added);
+        }
+
+        public List<Map.Entry<K,V>> getRemoved() {
+            return new Entries<K,V>(removed);
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+
+        private void add(final List<Object> list, final Node<K,V> node) {
+            list.add(node.getKey());
+            list.add(node.getValue());
+        }
+
+        /**
+         * A read only view of the key value pairs of one side of a change set.
+         */
+        private static final class Entries<K,V> extends AbstractList<Map.Entry<K,V>> {
+
+            private final ArrayList<Object> pairs;
+
+            private Entries(final ArrayList<Object> pairs) {
+                this.pairs = pairs;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Map.Entry<K,V> get(final int index) {
+                if (index < 0 || index >= size())
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+                return new AbstractMap.SimpleImmutableEntry<K,V>((K)pairs.get(2 * index), (V)pairs.get(2 * index + 1));
+            }
+
+            @Override
+            public int size() {
+                return pairs.size() / 2;
+            }
+        }
+    }
+
+    private transient volatile TransactionBatchNotifiable<K,V>[] batch_notifiers = null;
+
+    private transient volatile NotificationQueue notification_queue = null;
+
+    /**
+     * Guards changes to the batch notifiers and the notification queue, so
+     * they don't take the map's own monitor. Readers use the volatile
+     * fields without it.
+     */
+    private transient Object notifier_lock = new Object();
+
+    /**
+     * Adds a notifier that is given one change set for each commit or
+     * rollback that changes the map. Unlike the per node notifiers, nothing
+     * is done per node unless a batch notifier has been set.
+     */
+    public void setBatchNotifier(final TransactionBatchNotifiable<K,V> batch_notifier)
+    {
+        synchronized (notifier_lock) {
+            TransactionBatchNotifiable<K,V>[] old = batch_notifiers;
+            int length = old == null ? 0 : old.length;
+            TransactionBatchNotifiable<K,V>[] notifiers = newNotifiers(length + 1);
+            if (old != null)
+                System.arraycopy(old, 0, notifiers, 0, length);
+            notifiers[length] = batch_notifier;
+            batch_notifiers = notifiers;
+        }
+    }
+
+    public void removeBatchNotifier(final TransactionBatchNotifiable<K,V> batch_notifier)
+    {
+        synchronized (notifier_lock) {
+            TransactionBatchNotifiable<K,V>[] old = batch_notifiers;
+            if (old == null)
+                return;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == batch_notifier) {
+                    if (old.length == 1) {
+                        batch_notifiers = null;
+                        return;
+                    }
+                    TransactionBatchNotifiable<K,V>[] notifiers = newNotifiers(old.length - 1);
+                    System.arraycopy(old, 0, notifiers, 0, i);
+                    System.arraycopy(old, i + 1, notifiers, i, notifiers.length - i);
+                    batch_notifiers = notifiers;
+                    return;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <K,V> TransactionBatchNotifiable<K,V>[] newNotifiers(final int length) {
+        return new TransactionBatchNotifiable[length];
+    }
+
+    /**
+     * Sets the executor that delivers change sets to the batch notifiers,
+     * or null, the default, to deliver them in the committing thread
+     * before commit or rollback returns. With an executor, commit and
+     * rollback only queue the change set, and the map's change sets are
+     * delivered one at a time in the order they were made however many
+     * threads the executor has. An exception thrown by a notifier is then
+     * logged rather than thrown by commit.
+     * <p>
+     * The map keeps one queue whatever the executor, so changing it keeps
+     * the order: change sets already queued, and any made before they have
+     * all been delivered, are delivered by the previous executor first.
+     */
+    public void setNotificationExecutor(final Executor notification_executor)
+    {
+        synchronized (notifier_lock) {
+            if (notification_queue == null) {
+                if (notification_executor == null)
+                    return;
+                notification_queue = new NotificationQueue();
+            }
+            notification_queue.setExecutor(notification_executor);
+        }
+    }
+
+    public Executor getNotificationExecutor()
+    {
+        NotificationQueue queue = notification_queue;
+        return queue != null ? queue.getExecutor() : null;
+    }
+
+    /**
+     * Start a change set if there are batch notifiers to deliver it to.
+     *
+     * @param added the number of entries expected to be added
+     * @param removed the number of entries expected to be removed
+     */
+    private ChangeSet<K,V> newChangeSet(final TransactionId id, final int added, final int removed) {
+        return batch_notifiers != null ? new ChangeSet<K,V>(id, added, removed) : null;
+    }
+
+    private void deliver(final ChangeSet<K,V> changes, final boolean committed) {
+
+        final TransactionBatchNotifiable<K,V>[] notifiers = batch_notifiers;
+        if (changes == null || changes.isEmpty() || notifiers == null)
+            return;
+
+        Runnable delivery = new Runnable() {
+            public void run() {
+                for (int i = 0; i < notifiers.length; i++) {
+                    if (committed)
+                        notifiers[i].committed(changes);
+                    else
+                        notifiers[i].rolledBack(changes);
+                }
+            }
+        };
+
+        NotificationQueue queue = notification_queue;
+        if (queue == null)
+            delivery.run();
+        else
+            queue.add(delivery);
+    }
+
+    /**
+     * The deliveries waiting for the notification executor, in the order
+     * they were made. Only one task drains the queue at a time, which
+     * keeps the deliveries in order. Without an executor a delivery is
+     * run by the caller, unless a task is still draining the queue, in
+     * which case it is queued behind the others.
+     */
+    private static final class NotificationQueue implements Runnable {
+
+        private Executor executor = null;
+        private final LinkedList<Runnable> deliveries = new LinkedList<Runnable>();
+        private boolean draining = false;
+
+        private synchronized void setExecutor(final Executor executor) {
+            this.executor = executor;
+        }
+
+        private synchronized Executor getExecutor() {
+            return executor;
+        }
+
+        private void add(final Runnable delivery) {
+
+            Executor executor;
+            synchronized (this) {
+                executor = this.executor;
+                if (executor != null || draining) {
+                    deliveries.add(delivery);
+                    if (draining)
+                        return;
+                    draining = true;
+                }
+            }
+
+            if (executor == null) {
+                delivery.run();
+                return;
+            }
+
+            try {
+                executor.execute(this);
+            }
+            catch (RuntimeException e) {
+                synchronized (this) {
+                    deliveries.remove(delivery);
+                    draining = false;
+                }
+                throw e;
+            }
+        }
+
+        public void run() {
+
+            while (true) {
+                Runnable delivery;
+                synchronized (this) {
+                    delivery = deliveries.poll();
+                    if (delivery == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+
+                try {
+                    delivery.run();
+                }
+                catch (RuntimeException e) {
+                    log.error("Batch notifier failed", e);
+                }
+            }
+        }
+    }
+
     /**
      * Commits the changes to the map so that all threads
      * see them.
@@ -314,13 +724,23 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         if (auto_commit)
             return;
         
-        String id = getCurrentThreadId();
+        TransactionId id = getCurrentThreadId();
+
+        TransactionChanges<K,V> changes = getTransactionChanges().remove(id);
+        if (changes == null)
+            return;
+
+        ChangeSet<K,V> changeSet = newChangeSet(id, changes.deleted, changes.added);
 
-        ArrayList<Entry<K,V>> list = new ArrayList<Entry<K,V>>(allEntrySet());
-        for (Iterator<Entry<K,V>> i = list.iterator(); i.hasNext(); ) {
-            final Node<K,V> node = (Node<K,V>)i.next();
+        // Undo the changes in the reverse order to which they were made
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            final Node<K,V> node = changes.get(i);
 
+            if (node == null)
+                continue;
             if (node.is(Node.ADDED, id)) {
+                if (changeSet != null)
+                    changeSet.add(changeSet.removed, node);
                 doRedBlackDelete(node);
                 if (rollback_notifiers != null)
                 {
@@ -334,9 +754,10 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     });
                 }
             }
-
-            if (node.is(Node.DELETED, id)) {
-                node.setStatus(Node.NO_CHANGE, null);
+            else if (node.is(Node.DELETED, id)) {
+                if (changeSet != null)
+                    changeSet.add(changeSet.added, node);
+                setStatus(node, Node.NO_CHANGE, null);
                 if (rollback_notifiers != null)
                 {
                     SyncUtils.synchronizeRead(rollback_notifiers, new Callback() {
@@ -350,6 +771,8 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                 }
             }
         }
+
+        deliver(changeSet, false);
     }
     
     /**
@@ -359,13 +782,67 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      * @param id the thread id to commit for, null commits
      *           all threads changes
      */
-    private void commit(final String id) {
+    private void commit(final TransactionId id) {
 
-        ArrayList<Entry<K,V>> list = new ArrayList<Entry<K,V>>(allEntrySet());
-        for (Iterator<Entry<K,V>> i = list.iterator(); i.hasNext(); ) {
-            final Node<K,V> node = (Node<K,V>)i.next();
+        if (id == null) {
+            ArrayList<TransactionId> ids = new ArrayList<TransactionId>(getTransactionChanges().keySet());
+            for (Iterator<TransactionId> i = ids.iterator(); i.hasNext(); )
+                commit(i.next());
+            return;
+        }
+
+        TransactionChanges<K,V> changes = getTransactionChanges().get(id);
+        if (changes == null)
+            return;
+
+        // Log the changes before any node is changed, so a key or value the
+        // log can't encode or a failed write leaves the transaction uncommitted
+        if (transactionLog != null)
+            logChanges(id, changes);
+
+        getTransactionChanges().remove(id);
+        ChangeSet<K,V> changeSet = newChangeSet(id, changes.added, changes.deleted);
+
+        // Publish the snapshot once all of the transaction's changes are in it
+        deferPublish = true;
+        try {
+            commitChanges(id, changes, changeSet);
+        }
+        finally {
+            deferPublish = false;
+            snapshot = nextSnapshot;
+        }
+
+        deliver(changeSet, true);
+    }
+
+    private void logChanges(final TransactionId id, final TransactionChanges<K,V> changes) {
+
+        TransactionLog<K,V>.Batch batch = transactionLog.newBatch();
+        for (Iterator<Node<K,V>> i = changes.iterator(); i.hasNext(); ) {
+            Node<K,V> node = i.next();
 
+            if (node == null)
+                continue;
+            if (node.is(Node.DELETED, id))
+                batch.remove(node.getKey());
+            else if (node.is(Node.ADDED, id))
+                batch.put(node.getKey(), node.getValue());
+        }
+        if (!batch.isEmpty())
+            transactionLog.append(batch);
+    }
+
+    private void commitChanges(final TransactionId id, final TransactionChanges<K,V> changes, final ChangeSet<K,V> changeSet) {
+
+        for (Iterator<Node<K,V>> i = changes.iterator(); i.hasNext(); ) {
+            final Node<K,V> node = i.next();
+
+            if (node == null)
+                continue;
             if (node.is(Node.DELETED, id)) {
+                if (changeSet != null)
+                    changeSet.add(changeSet.removed, node);
                 doRedBlackDelete(node);
                 if (commit_notifiers != null)
                 {
@@ -380,38 +857,677 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                 }
 
             }
+            else if (node.is(Node.ADDED, id)) {
+                if (changeSet != null)
+                    changeSet.add(changeSet.added, node);
+                setStatus(node, Node.NO_CHANGE, null);
+                if (nextSnapshot != null)
+                    updateSnapshot(nextSnapshot.insert(node));
+                if (commit_notifiers != null)
+                {
+                    SyncUtils.synchronizeRead(commit_notifiers, new Callback() {
+                        @Override
+                        protected void doAction()
+                        {
+                            for (Iterator i2 = commit_notifiers.iterator(); i2.hasNext(); )
+                                ((TransactionNotifiable)i2.next()).addedToMap(node.getKey(), node.getValue());
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * The nodes changed by a transaction id together with the number of
+     * them that are currently ADDED and DELETED by it, and the node states
+     * the transaction's changes share. A node removed from the changes
+     * leaves a null in its place so the order of the others is kept.
+     */
+    private static final class TransactionChanges<K,V> extends ArrayList<Node<K,V>> {
+
+        private static final long serialVersionUID = -3403618512386237016L;
+
+        private int added = 0;
+        private int deleted = 0;
+        private Node.State[] addedStates = null;
+        private Node.State[] deletedStates = null;
+
+        /** The position of each node, only built once a node is removed */
+        private transient IdentityHashMap<Node<K,V>,Integer> positions = null;
+        private int removed = 0;
+
+        private void addChange(final Node<K,V> node) {
+            if (positions != null)
+                positions.put(node, Integer.valueOf(size()));
+            add(node);
+        }
+
+        /**
+         * Remove a node from the changes in constant time.
+         *
+         * @return true if no changes are left
+         */
+        private boolean removeChange(final Node<K,V> node) {
+            if (positions == null) {
+                positions = new IdentityHashMap<Node<K,V>,Integer>(size());
+                for (int i = 0; i < size(); i++) {
+                    if (get(i) != null)
+                        positions.put(get(i), Integer.valueOf(i));
+                }
+            }
+
+            Integer position = positions.remove(node);
+            if (position != null) {
+                set(position.intValue(), null);
+                removed++;
+            }
+            if (removed == size())
+                return true;
+
+            // Drop the gaps once they are the majority, the positions are rebuilt when next needed
+            if (removed > size() / 2) {
+                int live = 0;
+                for (int i = 0; i < size(); i++) {
+                    if (get(i) != null)
+                        set(live++, get(i));
+                }
+                subList(live, size()).clear();
+                removed = 0;
+                positions = null;
+            }
+            return false;
+        }
+
+        private Node.State[] getStates(final int status, final TransactionId id) {
+            if (status == Node.ADDED) {
+                if (addedStates == null)
+                    addedStates = Node.State.create(status, id);
+                return addedStates;
+            }
+            if (deletedStates == null)
+                deletedStates = Node.State.create(status, id);
+            return deletedStates;
+        }
+    }
+
+    /**
+     * Get the changes made by each transaction id, rebuilding them from
+     * the transactional status of the nodes if required.
+     *
+     * @return the changed nodes keyed by transaction id
+     */
+    private HashMap<TransactionId,TransactionChanges<K,V>> getTransactionChanges() {
+
+        if (transactionChanges == null) {
+            HashMap<TransactionId,TransactionChanges<K,V>> changes = new HashMap<TransactionId,TransactionChanges<K,V>>();
+            addedCount = 0;
+            for (Node<K,V> node = leastNode(rootNode[KEY], KEY); node != null; node = nextGreater(node, KEY)) {
+                if (node.state.id != null) {
+                    TransactionChanges<K,V> list = addTransactionChange(changes, node);
+                    if (node.state.status == Node.ADDED) {
+                        addedCount++;
+                        list.added++;
+                    }
+                    else if (node.state.status == Node.DELETED)
+                        list.deleted++;
+                }
+            }
+            transactionChanges = changes;
+        }
+
+        return transactionChanges;
+    }
+
+    private static <K,V> TransactionChanges<K,V> addTransactionChange(final HashMap<TransactionId,TransactionChanges<K,V>> changes, final Node<K,V> node) {
+
+        TransactionChanges<K,V> list = changes.get(node.state.id);
+        if (list == null) {
+            list = new TransactionChanges<K,V>();
+            changes.put(node.state.id, list);
+        }
+        list.addChange(node);
+        return list;
+    }
+
+    /**
+     * Set the transactional status of a node keeping the ADDED and DELETED
+     * counts up to date.
+     *
+     * @param node the node to be changed
+     * @param status the new status
+     * @param id the transaction id making the change or null for NO_CHANGE
+     */
+    private void setStatus(final Node<K,V> node, final int status, final TransactionId id) {
+
+        HashMap<TransactionId,TransactionChanges<K,V>> changes = getTransactionChanges();
+        if (node.state.id != null) {
+            // The changes have already gone if the transaction is being committed or rolled back
+            TransactionChanges<K,V> old = changes.get(node.state.id);
+            if (node.state.status == Node.ADDED) {
+                addedCount--;
+                if (old != null)
+                    old.added--;
+            }
+            else if (node.state.status == Node.DELETED && old != null)
+                old.deleted--;
+        }
+
+        if (id == null) {
+            node.setStates(Node.State.COMMITTED);
+        }
+        else {
+            TransactionChanges<K,V> list = changes.get(id);
+            node.setStates(list != null ? list.getStates(status, id) : Node.State.create(status, id));
+            if (status == Node.ADDED) {
+                addedCount++;
+                if (list != null)
+                    list.added++;
+            }
+            else if (status == Node.DELETED && list != null)
+                list.deleted++;
+        }
+    }
+
+    /**
+     * Set the transactional status of a node and record the change
+     * against the transaction id.
+     *
+     * @param node the node to be changed
+     * @param status ADDED or DELETED
+     * @param id the transaction id making the change
+     */
+    private void setNodeStatus(final Node<K,V> node, final int status, final TransactionId id) {
+
+        HashMap<TransactionId,TransactionChanges<K,V>> changes = getTransactionChanges();
+        if (!changes.containsKey(id))
+            changes.put(id, new TransactionChanges<K,V>());
+        setStatus(node, status, id);
+        addTransactionChange(changes, node);
+    }
+
+    /**
+     * Remove a node that is being deleted from the tree from the changes
+     * recorded against its transaction id.
+     *
+     * @param node the node being deleted
+     */
+    private void removeTransactionChange(final Node<K,V> node) {
+
+        TransactionId id = node.state.id;
+        setStatus(node, Node.NO_CHANGE, null);
+
+        TransactionChanges<K,V> list = transactionChanges.get(id);
+        if (list != null && list.removeChange(node))
+            transactionChanges.remove(id);
+    }
+
+    /**
+     * Record a node that has just been inserted into the tree as added by
+     * the transaction or, with auto commit on, add it to the snapshot.
+     *
+     * @param node the new node
+     * @param thread_id the transaction id making the change
+     */
+    private void nodeInserted(final Node<K,V> node, final TransactionId thread_id) {
+
+        if (!auto_commit)
+            setNodeStatus(node, Node.ADDED, thread_id);
+        else if (nextSnapshot != null)
+            updateSnapshot(nextSnapshot.insert(node));
+    }
+
+    private void updateSnapshot(final Snapshot next) {
+
+        nextSnapshot = next;
+        if (!deferPublish)
+            snapshot = next;
+    }
+
+    /**
+     * @return the published snapshot if reads should be answered from it,
+     *         otherwise null
+     */
+    private Snapshot getReadableSnapshot() {
+        return auto_commit ? snapshot : null;
+    }
+
+    /**
+     * Build the snapshot from the committed nodes in the tree.
+     */
+    private void rebuildSnapshot() {
+
+        ArrayList<Node<K,V>> byKey = new ArrayList<Node<K,V>>(nodeCount);
+        for (Node<K,V> node = leastNode(rootNode[KEY], KEY); node != null; node = nextGreater(node, KEY)) {
+            if (!node.is(Node.ADDED, null))
+                byKey.add(node);
+        }
+        ArrayList<Node<K,V>> byValue = new ArrayList<Node<K,V>>(byKey.size());
+        for (Node<K,V> node = leastNode(rootNode[VALUE], VALUE); node != null; node = nextGreater(node, VALUE)) {
+            if (!node.is(Node.ADDED, null))
+                byValue.add(node);
+        }
+
+        nextSnapshot = new Snapshot(buildSnapshotTree(byKey, 0, byKey.size()),
+                buildSnapshotTree(byValue, 0, byValue.size()), byKey.size());
+        snapshot = nextSnapshot;
+    }
+
+    /**
+     * Build a balanced tree from sorted nodes.
+     *
+     * @param nodes the nodes in order
+     * @param from the first node, inclusive
+     * @param to the last node, exclusive
+     *
+     * @return the root of the tree
+     */
+    private static <K,V> SnapshotNode<K,V> buildSnapshotTree(final ArrayList<Node<K,V>> nodes, final int from, final int to) {
+
+        if (from >= to)
+            return null;
+
+        int mid = (from + to) >>> 1;
+        return new SnapshotNode<K,V>(nodes.get(mid),
+                buildSnapshotTree(nodes, from, mid), buildSnapshotTree(nodes, mid + 1, to));
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+        notifier_lock = new Object();
+        for (int index = FIRST_INDEX; index < NUMBER_OF_INDICES; index++)
+            computeSizes(rootNode[index], index);
+        if (versioned)
+            rebuildSnapshot();
+    }
+
+    /**
+     * Set the subtree sizes, which aren't serialized, of a subtree.
+     *
+     * @return the number of nodes in the subtree
+     */
+    private static int computeSizes(final Node<?,?> node, final int index) {
+
+        if (node == null)
+            return 0;
+        int size = computeSizes(node.getLeft(index), index) + computeSizes(node.getRight(index), index) + 1;
+        node.setSize(size, index);
+        return size;
+    }
+
+    /** "TBTS" */
+    private static final int SNAPSHOT_MAGIC = 0x54425453;
+    private static final int SNAPSHOT_VERSION = 1;
+    /** Magic, version, entry count, key size and value size */
+    private static final int SNAPSHOT_HEADER_SIZE = 20;
+    private static final int SNAPSHOT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Write the committed entries of the map to a channel in a binary
+     * format that readSnapshot can load without comparing or inserting
+     * each entry. Uncommitted changes aren't written: entries added by a
+     * transaction are left out and entries deleted by one are kept.
+     * <p>
+     * After a header the file holds a fixed width record of each entry's
+     * key and value in key order, then the record number of each entry in
+     * value order. The map must not be changed while it is being written.
+     * The channel is left positioned after the snapshot.
+     *
+     * @param channel the channel to write from its current position
+     * @param key_serializer encodes the keys, in the same order as the map
+     * @param value_serializer encodes the values, in the same order as the map
+     *
+     * @throws IOException if the channel can't be written
+     * @throws IllegalArgumentException if a key or value doesn't fit its
+     *                                  serializer's size
+     */
+    public void writeSnapshot(final FileChannel channel, final OffHeapSerializer<? super K> key_serializer,
+            final OffHeapSerializer<? super V> value_serializer) throws IOException {
+
+        ArrayList<Node<K,V>> byKey = new ArrayList<Node<K,V>>(nodeCount);
+        IdentityHashMap<Node<K,V>,Integer> records = new IdentityHashMap<Node<K,V>,Integer>(nodeCount);
+        for (Node<K,V> node = leastNode(rootNode[KEY], KEY); node != null; node = nextGreater(node, KEY)) {
+            if (!node.is(Node.ADDED, null)) {
+                records.put(node, Integer.valueOf(byKey.size()));
+                byKey.add(node);
+            }
+        }
+
+        int key_size = key_serializer.size();
+        int record_size = key_size + value_serializer.size();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(SNAPSHOT_BUFFER_SIZE, SNAPSHOT_HEADER_SIZE + record_size));
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(byKey.size())
+                .putInt(key_size).putInt(value_serializer.size());
+
+        for (int i = 0; i < byKey.size(); i++) {
+            if (buffer.remaining() < record_size)
+                flushSnapshot(channel, buffer);
+            Node<K,V> node = byKey.get(i);
+            int offset = buffer.position();
+            key_serializer.write(buffer, offset, node.getKey());
+            value_serializer.write(buffer, offset + key_size, node.dataValue);
+            buffer.position(offset + record_size);
+        }
+
+        for (Node<K,V> node = leastNode(rootNode[VALUE], VALUE); node != null; node = nextGreater(node, VALUE)) {
+            if (node.is(Node.ADDED, null))
+                continue;
+            if (buffer.remaining() < 4)
+                flushSnapshot(channel, buffer);
+            buffer.putInt(records.get(node).intValue());
+        }
+        flushSnapshot(channel, buffer);
+    }
+
+    private static void flushSnapshot(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Load the entries written by writeSnapshot into this empty map. The
+     * file is memory mapped and both trees are built directly from the
+     * records in key order and the value order that follows them, so the
+     * time taken is linear in the number of entries. The snapshot is
+     * trusted to be in the order of this map's comparators, but a value
+     * order that isn't a permutation of the records is rejected. The
+     * channel is left positioned after the snapshot.
+     *
+     * @param channel the channel holding the snapshot from its current position
+     * @param key_serializer decodes the keys, as used to write the snapshot
+     * @param value_serializer decodes the values, as used to write the snapshot
+     *
+     * @throws IOException if the channel can't be read or doesn't hold a
+     *                     snapshot written with the serializers
+     * @throws IllegalStateException if the map isn't empty
+     */
+    public void readSnapshot(final FileChannel channel, final OffHeapSerializer<? extends K> key_serializer,
+            final OffHeapSerializer<? extends V> value_serializer) throws IOException {
+
+        if (nodeCount != 0)
+            throw new IllegalStateException("A snapshot can only be read into an empty map");
+
+        long start = channel.position();
+        long size = channel.size() - start;
+        if (size < SNAPSHOT_HEADER_SIZE)
+            throw new IOException("Not a TransactionalBidiTreeMap snapshot");
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, start, SNAPSHOT_HEADER_SIZE);
+        if (header.getInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Not a TransactionalBidiTreeMap snapshot");
+        int version = header.getInt();
+        if (version != SNAPSHOT_VERSION)
+            throw new IOException("Unsupported snapshot version " + version);
+        int count = header.getInt();
+        int key_size = header.getInt();
+        int value_size = header.getInt();
+        if (key_size != key_serializer.size() || value_size != value_serializer.size())
+            throw new IOException("The snapshot was written with different serializers");
+        int record_size = key_size + value_size;
+        long records_end = SNAPSHOT_HEADER_SIZE + (long)count * record_size;
+        if (count < 0 || size < records_end + 4L * count)
+            throw new IOException("The snapshot is truncated or corrupt");
+
+        // Map the file a window at a time as a mapping can't be more than 2GB
+        Node<K,V>[] byKey = new Node[count];
+        int window_records = Integer.MAX_VALUE / record_size;
+        for (int first = 0; first < count; first += window_records) {
+            int records = Math.min(window_records, count - first);
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start + SNAPSHOT_HEADER_SIZE + (long)first * record_size, (long)records * record_size);
+            for (int i = 0, offset = 0; i < records; i++, offset += record_size)
+                byKey[first + i] = newNode(key_serializer.read(window, offset),
+                        value_serializer.read(window, offset + key_size));
+        }
+
+        Node<K,V>[] byValue = new Node[count];
+        boolean[] used = new boolean[count];
+        int window_ints = Integer.MAX_VALUE / 4;
+        for (int first = 0; first < count; first += window_ints) {
+            int ints = Math.min(window_ints, count - first);
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start + records_end + 4L * first, 4L * ints);
+            for (int i = 0; i < ints; i++) {
+                int record = window.getInt(4 * i);
+                if (record < 0 || record >= count || used[record])
+                    throw new IOException("The snapshot's value order is corrupt");
+                used[record] = true;
+                byValue[first + i] = byKey[record];
+            }
+        }
+        channel.position(start + records_end + 4L * count);
+
+        int redLevel = computeRedLevel(count);
+        rootNode[KEY] = buildFromSorted(byKey, 0, count - 1, 0, redLevel, KEY);
+        rootNode[VALUE] = buildFromSorted(byValue, 0, count - 1, 0, redLevel, VALUE);
+        nodeCount = count;
+        modify();
+
+        if (nextSnapshot != null)
+            rebuildSnapshot();
+    }
+
+    /**
+     * Node of the persistent trees held by a Snapshot. These are never
+     * changed once created, a change copies the path from the root to the
+     * changed node. The trees are kept balanced as AVL trees as that makes
+     * copying removals simpler than red-black rebalancing.
+     */
+    private static final class SnapshotNode<K,V> {
+
+        private final Node<K,V> node;
+        private final SnapshotNode<K,V> left;
+        private final SnapshotNode<K,V> right;
+        private final int height;
+
+        SnapshotNode(final Node<K,V> node, final SnapshotNode<K,V> left, final SnapshotNode<K,V> right) {
+            this.node = node;
+            this.left = left;
+            this.right = right;
+            height = Math.max(height(left), height(right)) + 1;
+        }
+
+        private static int height(final SnapshotNode<?,?> node) {
+            return node == null ? 0 : node.height;
+        }
+    }
+
+    /**
+     * An immutable copy of the committed nodes of the map in KEY and VALUE
+     * order.
+     */
+    private final class Snapshot implements SnapshotReadable.Snapshot<K,V> {
+
+        private final SnapshotNode<K,V> keyRoot;
+        private final SnapshotNode<K,V> valueRoot;
+        private final int size;
+
+        Snapshot(final SnapshotNode<K,V> keyRoot, final SnapshotNode<K,V> valueRoot, final int size) {
+            this.keyRoot = keyRoot;
+            this.valueRoot = valueRoot;
+            this.size = size;
+        }
+
+        SnapshotNode<K,V> getRoot(final int index) {
+            return index == KEY ? keyRoot : valueRoot;
+        }
+
+        public V get(final Object key) {
+            checkKey(key);
+            Node<K,V> node = lookup(key, KEY);
+            return node == null ? null : node.getValue();
+        }
+
+        public K getKeyForValue(final Object value) {
+            checkValue(value);
+            Node<K,V> node = lookup(value, VALUE);
+            return node == null ? null : node.getKey();
+        }
+
+        public boolean containsKey(final Object key) {
+            checkKey(key);
+            return lookup(key, KEY) != null;
+        }
+
+        public boolean containsValue(final Object value) {
+            checkValue(value);
+            return lookup(value, VALUE) != null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        Node<K,V> lookup(final Object data, final int index) {
+
+            SnapshotNode<K,V> current = getRoot(index);
+            while (current != null) {
+                int cmp = compareData(Node.NO_CHANGE, data, Node.NO_CHANGE, current.node, index);
+                if (cmp == 0)
+                    return current.node;
+                current = cmp < 0 ? current.left : current.right;
+            }
+            return null;
+        }
+
+        Snapshot insert(final Node<K,V> node) {
+            return new Snapshot(insert(keyRoot, node, KEY), insert(valueRoot, node, VALUE), size + 1);
+        }
+
+        Snapshot remove(final Node<K,V> node) {
+
+            SnapshotNode<K,V> newKeyRoot = remove(keyRoot, node, KEY);
+            if (newKeyRoot == keyRoot)
+                return this;
+            return new Snapshot(newKeyRoot, remove(valueRoot, node, VALUE), size - 1);
+        }
+
+        private SnapshotNode<K,V> insert(final SnapshotNode<K,V> current, final Node<K,V> node, final int index) {
+
+            if (current == null)
+                return new SnapshotNode<K,V>(node, null, null);
+
+            if (compareNodes(Node.NO_CHANGE, node, Node.NO_CHANGE, current.node, index) < 0)
+                return balance(current.node, insert(current.left, node, index), current.right);
+            return balance(current.node, current.left, insert(current.right, node, index));
+        }
+
+        /**
+         * @return the new root, or current if the node isn't in the tree
+         */
+        private SnapshotNode<K,V> remove(final SnapshotNode<K,V> current, final Node<K,V> node, final int index) {
+
+            if (current == null)
+                return null;
+
+            if (current.node == node) {
+                if (current.left == null)
+                    return current.right;
+                if (current.right == null)
+                    return current.left;
+
+                SnapshotNode<K,V> successor = current.right;
+                while (successor.left != null)
+                    successor = successor.left;
+                return balance(successor.node, current.left, removeLeast(current.right));
+            }
+
+            int cmp = compareNodes(Node.NO_CHANGE, node, Node.NO_CHANGE, current.node, index);
+            if (cmp < 0) {
+                SnapshotNode<K,V> left = remove(current.left, node, index);
+                return left == current.left ? current : balance(current.node, left, current.right);
+            }
+            if (cmp > 0) {
+                SnapshotNode<K,V> right = remove(current.right, node, index);
+                return right == current.right ? current : balance(current.node, current.left, right);
+            }
+            return current;
+        }
+
+        private SnapshotNode<K,V> removeLeast(final SnapshotNode<K,V> current) {
+
+            if (current.left == null)
+                return current.right;
+            return balance(current.node, removeLeast(current.left), current.right);
+        }
+
+        private SnapshotNode<K,V> balance(final Node<K,V> node, final SnapshotNode<K,V> left, final SnapshotNode<K,V> right) {
+
+            int leftHeight = SnapshotNode.height(left);
+            int rightHeight = SnapshotNode.height(right);
+
+            if (leftHeight > rightHeight + 1) {
+                if (SnapshotNode.height(left.left) >= SnapshotNode.height(left.right))
+                    return new SnapshotNode<K,V>(left.node, left.left, new SnapshotNode<K,V>(node, left.right, right));
+                return new SnapshotNode<K,V>(left.right.node,
+                        new SnapshotNode<K,V>(left.node, left.left, left.right.left),
+                        new SnapshotNode<K,V>(node, left.right.right, right));
+            }
 
-            if (node.is(Node.ADDED, id)) {
-                node.setStatus(Node.NO_CHANGE, null);
-                if (commit_notifiers != null)
-                {
-                    SyncUtils.synchronizeRead(commit_notifiers, new Callback() {
-                        @Override
-                        protected void doAction()
-                        {
-                            for (Iterator i2 = commit_notifiers.iterator(); i2.hasNext(); )
-                                ((TransactionNotifiable)i2.next()).addedToMap(node.getKey(), node.getValue());
-                        }
-                    });
-                }
+            if (rightHeight > leftHeight + 1) {
+                if (SnapshotNode.height(right.right) >= SnapshotNode.height(right.left))
+                    return new SnapshotNode<K,V>(right.node, new SnapshotNode<K,V>(node, left, right.left), right.right);
+                return new SnapshotNode<K,V>(right.left.node,
+                        new SnapshotNode<K,V>(node, left, right.left.left),
+                        new SnapshotNode<K,V>(right.node, right.left.right, right.right));
             }
+
+            return new SnapshotNode<K,V>(node, left, right);
         }
     }
 
+    /**
+     * In order traversal of a snapshot tree, ascending or descending.
+     */
+    private static final class SnapshotCursor<K,V> {
+
+        private final SnapshotNode<K,V>[] stack;
+        private final boolean descending;
+        private int depth = 0;
+
+        SnapshotCursor(final SnapshotNode<K,V> root, final boolean descending) {
+            this.descending = descending;
+            stack = new SnapshotNode[SnapshotNode.height(root)];
+            push(root);
+        }
+
+        private void push(SnapshotNode<K,V> node) {
+            while (node != null) {
+                stack[depth++] = node;
+                node = descending ? node.right : node.left;
+            }
+        }
+
+        /**
+         * @return the next node, or null at the end
+         */
+        Node<K,V> next() {
+
+            if (depth == 0)
+                return null;
+
+            SnapshotNode<K,V> current = stack[--depth];
+            push(descending ? current.left : current.right);
+            return current.node;
+        }
+    }
+    
     /**
      * Retrieve the current thread id for use by the
      * transaction code.
      *
-     * @return the thread id of the current thread
+     * @return the attached transaction id or the transaction
+     *         id of the current thread
      */
-    protected String getCurrentThreadId() {
+    protected TransactionId getCurrentThreadId() {
 
-        String attach_id = (String)ThreadSession.getValue(getThreadSessionKey());
+        TransactionId attach_id = (TransactionId)ThreadSession.getValue(getThreadSessionKey());
         if (attach_id != null)
             return attach_id;
 
-        Thread thread = Thread.currentThread();
-        return thread.toString() + "(" + thread.hashCode() + ")";
+        return TransactionId.getThreadTransactionId();
     }
     
     /**
@@ -421,7 +1537,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      *
      * @return true if node is valid, otherwise false
      */
-    private boolean validNode(final Node<K,V> node, final String thread_id) {
+    private boolean validNode(final Node<K,V> node, final TransactionId thread_id) {
         if (auto_commit || node == null)
             return (node != null);
 
@@ -499,6 +1615,11 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     };
                 }
 
+                @Override
+                public SplittableTraversal<Entry<K,V>> traversal() {
+                    return new TransactionalBidiTreeMapTraversal<Entry<K,V>>(VALUE, ENTRIES);
+                }
+
                 @Override
                 public boolean contains(Object o) {
 
@@ -522,7 +1643,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                         return false;
                     }
 
-                    String thread_id = getCurrentThreadId();
+                    TransactionId thread_id = getCurrentThreadId();
 
                     Map.Entry<K,V> entry = (Map.Entry<K,V>) o;
                     Object         key   = entry.getKey();
@@ -534,7 +1655,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                         if (auto_commit || node.is(Node.ADDED, thread_id))
                             doRedBlackDelete(node);
                         else
-                            node.setStatus(Node.DELETED, thread_id);
+                            setNodeStatus(node, Node.DELETED, thread_id);
 
                         return true;
                     }
@@ -615,7 +1736,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     return false;
                 }
 
-                String thread_id = getCurrentThreadId();
+                TransactionId thread_id = getCurrentThreadId();
 
                 Map.Entry<K,V> entry = (Map.Entry<K,V>) o;
                 Object         key   = entry.getKey();
@@ -627,7 +1748,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     if (auto_commit || node.is(Node.ADDED, thread_id))
                         doRedBlackDelete(node);
                     else
-                        node.setStatus(Node.DELETED, thread_id);
+                        setNodeStatus(node, Node.DELETED, thread_id);
 
                     return true;
                 }
@@ -682,6 +1803,11 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     };
                 }
 
+                @Override
+                public SplittableTraversal<K> traversal() {
+                    return new TransactionalBidiTreeMapTraversal<K>(VALUE, KEY);
+                }
+
                 @Override
                 public int size() {
                     return TransactionalBidiTreeMap.this.size();
@@ -747,6 +1873,11 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     };
                 }
 
+                @Override
+                public SplittableTraversal<V> traversal() {
+                    return new TransactionalBidiTreeMapTraversal<V>(VALUE, VALUE);
+                }
+
                 @Override
                 public int size() {
                     return TransactionalBidiTreeMap.this.size();
@@ -887,28 +2018,53 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
         checkNonNullComparable(o, index);
 
-        String thread_id = getCurrentThreadId();
+        TransactionId thread_id = getCurrentThreadId();
 
         Node<K,V>   node = lookupValid(o, index, thread_id);
         Object      rval = null;
 
         if (validNode(node, thread_id)) {
-            if (node != null && node.is(Node.DELETED, null) && !node.is(Node.DELETED, thread_id))
-                throw new ConcurrentModificationException();
-
             rval = node.getData(oppositeIndex(index));
-
-            if (auto_commit || node.is(Node.ADDED, thread_id))
-                doRedBlackDelete(node);
-            else {
-                node.setStatus(Node.DELETED, thread_id);
-            }
+            deleteNode(node, thread_id);
         }
 
 
         return rval;
     }
 
+    /**
+     * Remove a node found by lookupLongKey, for
+     * TransactionalLongBidiTreeMap.remove(long)
+     *
+     * @return the node's value
+     */
+    V removeNode(final Node<K,V> node) throws ConcurrentModificationException {
+
+        deleteNode(node, getCurrentThreadId());
+        return node.getValue();
+    }
+
+    /**
+     * Remove a node visible to the current transaction, straight away if
+     * auto commit is on or the transaction added it, otherwise by marking
+     * it deleted.
+     *
+     * @throws ConcurrentModificationException if another transaction has
+     *         deleted the node
+     */
+    private void deleteNode(final Node<K,V> node, final TransactionId thread_id)
+                throws ConcurrentModificationException {
+
+        if (node.is(Node.DELETED, null) && !node.is(Node.DELETED, thread_id))
+            throw new ConcurrentModificationException();
+
+        if (auto_commit || node.is(Node.ADDED, thread_id))
+            doRedBlackDelete(node);
+        else {
+            setNodeStatus(node, Node.DELETED, thread_id);
+        }
+    }
+
     /**
      * common get logic, used to get by key or get by value
      *
@@ -923,7 +2079,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
         checkNonNullComparable(o, index);
 
-        Node<K,V> node = lookupValid(o, index, getCurrentThreadId());
+        Node<K,V> node = lookupReadable(o, index);
 
         return (node==null)
                 ? null
@@ -954,9 +2110,28 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      * @return the desired Node, or null if there is no mapping of the
      *         specified data
      */
-    private Node<K,V> lookupValid(final Object data, final int index, final String thread_id) {
+    private Node<K,V> lookupValid(final Object data, final int index, final TransactionId thread_id) {
         return nextEqualValid(getFloorEqualNode(lookup(data, index), index), index, thread_id);
     }
+
+    /**
+     * do the lookup of a piece of valid data from the published snapshot
+     * if reads are answered from it, otherwise from the tree
+     *
+     * @param data the key or value to be looked up
+     * @param index KEY or VALUE
+     *
+     * @return the desired Node, or null if there is no mapping of the
+     *         specified data
+     */
+    private Node<K,V> lookupReadable(final Object data, final int index) {
+
+        Snapshot readable = getReadableSnapshot();
+        if (readable != null)
+            return readable.lookup(data, index);
+
+        return lookupValid(data, index, getCurrentThreadId());
+    }
     
     /**
      * do the actual lookup of a piece of data
@@ -973,7 +2148,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         Node<K,V> node = rootNode[index];
 
         while (node != null) {
-            int cmp = compare(Node.NO_CHANGE, data, node.getStatus(), node.getData(index), index);
+            int cmp = compareData(Node.NO_CHANGE, data, node.getStatus(), node, index);
 
             if (cmp == 0) {
                 rval = node;
@@ -989,6 +2164,54 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         return rval;
     }
 
+    /**
+     * Create a node for a new entry. Overridden by
+     * TransactionalLongBidiTreeMap to create nodes holding a long key.
+     *
+     * @return a new committed node
+     */
+    Node<K,V> newNode(final K key, final V value) {
+        return new Node<K,V>(key, value);
+    }
+
+    /**
+     * do the lookup of a Long key without boxing it or calling compareTo,
+     * for TransactionalLongBidiTreeMap, whose nodes also hold the key in a
+     * long field. Only valid when the keys are Longs in their natural
+     * order.
+     *
+     * @param key the key to be looked up
+     *
+     * @return the Node visible to the current thread, or null if there is
+     *         no mapping of the key
+     */
+    Node<K,V> lookupLongKey(final long key) {
+
+        Snapshot readable = getReadableSnapshot();
+        if (readable != null) {
+            SnapshotNode<K,V> current = readable.keyRoot;
+            while (current != null) {
+                long other = current.node.longKey();
+                if (key == other)
+                    return current.node;
+                current = key < other ? current.left : current.right;
+            }
+            return null;
+        }
+
+        Node<K,V> node = rootNode[KEY];
+        while (node != null) {
+            long other = node.longKey();
+            if (key == other)
+                break;
+            node = key < other ? node.getLeft(KEY) : node.getRight(KEY);
+        }
+        if (node == null)
+            return null;
+
+        return nextEqualValid(getFloorEqualNode(node, KEY), KEY, getCurrentThreadId());
+    }
+
     /**
      * Compare two objects
      *
@@ -1009,6 +2232,30 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
     }
 
+    /**
+     * Compare an object with the data of a node, comparing a Long with a
+     * node that holds its key as a long without boxing the node's key
+     */
+    private int compareData(final int o1_status, final Object o1, final int o2_status, final Node<K,V> o2, final int index) {
+        if (index == KEY && o2.hasLongKey())
+            return compareLongs(((Long)o1).longValue(), o2.longKey());
+        return compare(o1_status, o1, o2_status, o2.getData(index), index);
+    }
+
+    /**
+     * Compare the data of two nodes, comparing keys held as longs without
+     * boxing them
+     */
+    private int compareNodes(final int o1_status, final Node<K,V> o1, final int o2_status, final Node<K,V> o2, final int index) {
+        if (index == KEY && o1.hasLongKey() && o2.hasLongKey())
+            return compareLongs(o1.longKey(), o2.longKey());
+        return compare(o1_status, o1.getData(index), o2_status, o2.getData(index), index);
+    }
+
+    private static int compareLongs(final long l1, final long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
     /**
      * find the least node from a given node. very useful for starting
      * a sorting iterator ...
@@ -1144,7 +2391,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      *
      * @return the specified node
      */
-    private Node<K,V> mostValidNode(final Node<K,V> node, final int index, final String thread_id) {
+    private Node<K,V> mostValidNode(final Node<K,V> node, final int index, final TransactionId thread_id) {
         Node<K,V> rval = node;
 
         while (rval != null && !validNode(rval, thread_id)) {
@@ -1163,7 +2410,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      * @return the smallest valid node, from the specified node, in the
      *         specified mapping
      */
-    private Node<K,V> leastValidNode(final Node<K,V> node, final int index, final String thread_id) {
+    private Node<K,V> leastValidNode(final Node<K,V> node, final int index, final TransactionId thread_id) {
         Node<K,V> lval = node;
 
         while (lval != null && !validNode(lval, thread_id)) {
@@ -1174,20 +2421,20 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
     
     private Node<K,V> getFloorEqualNode(Node<K,V> node, final int index) {
         Node<K,V> current = node;
-        while (node != null && compare(current.getStatus(), current.getData(index), node.getStatus(), node.getData(index), index) == 0) {
+        while (node != null && compareNodes(current.getStatus(), current, node.getStatus(), node, index) == 0) {
             current = node;
             node = nextSmaller(node, index);
         }
         return current;
     }
     
-    private Node<K,V> nextEqualValid(Node<K,V> node, final int index, final String thread_id) {
+    private Node<K,V> nextEqualValid(Node<K,V> node, final int index, final TransactionId thread_id) {
         Node<K,V> current = node;
-        while (node != null && !validNode(node, thread_id) && compare(current.getStatus(), current.getData(index), node.getStatus(), node.getData(index), index) == 0) {
+        while (node != null && !validNode(node, thread_id) && compareNodes(current.getStatus(), current, node.getStatus(), node, index) == 0) {
             node = nextGreater(node, index);
         }
         if (node != null && current != null &&
-                compare(current.getStatus(), current.getData(index), node.getStatus(), node.getData(index), index) == 0)
+                compareNodes(current.getStatus(), current, node.getStatus(), node, index) == 0)
             return node;
         return null;
     }
@@ -1391,6 +2638,9 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
         rightChild.setLeft(node, index);
         node.setParent(rightChild, index);
+
+        rightChild.setSize(node.getSize(index), index);
+        node.setSize(sizeOf(node.getLeft(index), index) + sizeOf(node.getRight(index), index) + 1, index);
     }
 
     /**
@@ -1423,6 +2673,19 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
         leftChild.setRight(node, index);
         node.setParent(leftChild, index);
+
+        leftChild.setSize(node.getSize(index), index);
+        node.setSize(sizeOf(node.getLeft(index), index) + sizeOf(node.getRight(index), index) + 1, index);
+    }
+
+    /**
+     * @param node the root of a subtree, may be null
+     * @param index KEY or VALUE
+     *
+     * @return the number of nodes in the subtree
+     */
+    private static int sizeOf(final Node<?,?> node, final int index) {
+        return node == null ? 0 : node.getSize(index);
     }
 
     /**
@@ -1434,6 +2697,9 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      */
     private void doRedBlackInsert(final Node<K,V> insertedNode, final int index) {
 
+        for (Node<K,V> parent = insertedNode.getParent(index); parent != null; parent = parent.getParent(index))
+            parent.setSize(parent.getSize(index) + 1, index);
+
         Node<K,V> currentNode = insertedNode;
 
         makeRed(currentNode, index);
@@ -1505,6 +2771,13 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      */
     private void doRedBlackDelete(final Node<K,V> deletedNode) {
 
+        // Uncommitted additions were never in the snapshot
+        if (nextSnapshot != null && !deletedNode.is(Node.ADDED, null))
+            updateSnapshot(nextSnapshot.remove(deletedNode));
+
+        if (deletedNode.state.id != null)
+            removeTransactionChange(deletedNode);
+
         for (int index = FIRST_INDEX; index < NUMBER_OF_INDICES; index++) {
 
             // if deleted node has both left and children, swap with
@@ -1515,6 +2788,11 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                              index);
             }
 
+            for (Node<K,V> parent = deletedNode.getParent(index); parent != null; parent = parent.getParent(index))
+                parent.setSize(parent.getSize(index) - 1, index);
+            // A leaf is still linked during the fixup so it mustn't count
+            deletedNode.setSize(0, index);
+
             Node<K,V> replacement = ((deletedNode.getLeft(index) != null)
                                 ? deletedNode.getLeft(index)
                                 : deletedNode.getRight(index));
@@ -1757,6 +3035,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
 
         x.swapColors(y, index);
+        x.swapSizes(y, index);
 
         // Check if root changed
         if (rootNode[index] == x) {
@@ -1812,7 +3091,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      * @throws NullPointerException if value is null
      * @throws ClassCastException if value is not appropriate
      */
-    private void checkValue(final Object value) {
+    void checkValue(final Object value) {
         checkNonNullComparable(value, VALUE);
     }
 
@@ -1868,13 +3147,13 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      * @throws IllegalArgumentException if the node already exists
      *                                     in the value mapping
      */
-    private void insertValue(final Node<K,V> newNode, final String thread_id)
+    private void insertValue(final Node<K,V> newNode, final TransactionId thread_id)
             throws IllegalArgumentException {
 
         Node<K,V> node = rootNode[VALUE];
 
         while (true) {
-            int cmp = compare(Node.ADDED, newNode.getData(VALUE), node.getStatus(), node.getData(VALUE), VALUE);
+            int cmp = compareNodes(Node.ADDED, newNode, node.getStatus(), node, VALUE);
 
             if (cmp == 0) 
             {
@@ -1941,24 +3220,25 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
     }
 
     public int size(boolean countAll) {
-        if (countAll || auto_commit)
-            return nodeCount;
-
-        int size = 0;
-        for (Iterator<Entry<K,V>> i = entrySet().iterator(); i.hasNext(); i.next()) {
-            size++;
+        if (countAll || auto_commit) {
+            Snapshot readable = getReadableSnapshot();
+            return readable == null ? nodeCount : readable.size;
         }
+
+        // Nodes added by other transactions and nodes deleted by this transaction aren't visible
+        TransactionChanges<K,V> changes = getTransactionChanges().get(getCurrentThreadId());
+        int size = nodeCount - addedCount;
+        if (changes != null)
+            size += changes.added - changes.deleted;
         return size;
     }
 
     /**
      * Returns true is the map is empty.
-     *
-     * <p>This implementation returns <tt>!entrySet().iterator().hasNext()</tt>.
      */
     @Override
     public boolean isEmpty() {
-	return !entrySet().iterator().hasNext();
+	return size() == 0;
     }
 
     /**
@@ -1980,7 +3260,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
         checkKey(key);
 
-        return lookupValid(key, KEY, getCurrentThreadId()) != null;
+        return lookupReadable(key, KEY) != null;
     }
 
     /**
@@ -1997,7 +3277,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
         checkValue(value);
 
-        return lookupValid(value, VALUE, getCurrentThreadId()) != null;
+        return lookupReadable(value, VALUE) != null;
     }
 
     /**
@@ -2048,29 +3328,39 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                    IllegalArgumentException, ConcurrentModificationException {
 
         checkKeyAndValue(key, value);
+        putNode(newNode(key, value));
+        return null;
+    }
+
+    /**
+     * Put a new node into both trees, with the checks put makes.
+     * TransactionalLongBidiTreeMap puts nodes created from a long key this
+     * way, so the key isn't boxed.
+     *
+     * @param newNode the node, not yet in either tree
+     */
+    void putNode(final Node<K,V> newNode)
+            throws IllegalArgumentException, ConcurrentModificationException {
 
         Node<K,V> node = rootNode[KEY];
 
-        String thread_id = getCurrentThreadId();
+        TransactionId thread_id = getCurrentThreadId();
 
         if (node == null) {
-            Node<K,V> root = new Node<K,V>(key, value);
-
-            rootNode[KEY]   = root;
-            rootNode[VALUE] = root;
-
-            if (!auto_commit)
-                root.setStatus(Node.ADDED, thread_id);
+            rootNode[KEY]   = newNode;
+            rootNode[VALUE] = newNode;
 
             grow();
+
+            nodeInserted(newNode, thread_id);
         } else {
             while (true) {
-                int cmp = compare(Node.ADDED, key, node.getStatus(), node.getData(KEY), KEY);
+                int cmp = compareNodes(Node.ADDED, newNode, node.getStatus(), node, KEY);
 
                 if (cmp == 0) {
                     if (nextEqualValid(getFloorEqualNode(node, KEY), KEY, thread_id) != null)
                     {
-                        String debug_message = "Cannot store a duplicate key (\"" + key + "\") in this Map";
+                        String debug_message = "Cannot store a duplicate key (\"" + newNode.getKey() + "\") in this Map";
                         log.debug (debug_message);             
                         throw new IllegalArgumentException(debug_message); 
                     }
@@ -2083,16 +3373,13 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     } else if (node.getLeft(KEY) != null) {
                         node = node.getLeft(KEY);
                     } else {
-                        Node<K,V> newNode = new Node<K,V>(key, value);
-
                         insertValue(newNode, thread_id);
                         node.setRight(newNode, KEY);
                         newNode.setParent(node, KEY);
                         doRedBlackInsert(newNode, KEY);
                         grow();
 
-                        if (!auto_commit)
-                            newNode.setStatus(Node.ADDED, thread_id);
+                        nodeInserted(newNode, thread_id);
 
                         break;
                     }
@@ -2100,16 +3387,13 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     if (node.getLeft(KEY) != null) {
                         node = node.getLeft(KEY);
                     } else {
-                        Node<K,V> newNode = new Node<K,V>(key, value);
-
                         insertValue(newNode, thread_id);
                         node.setLeft(newNode, KEY);
                         newNode.setParent(node, KEY);
                         doRedBlackInsert(newNode, KEY);
                         grow();
 
-                        if (!auto_commit)
-                            newNode.setStatus(Node.ADDED, thread_id);
+                        nodeInserted(newNode, thread_id);
 
                         break;
                     }
@@ -2117,24 +3401,254 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     if (node.getRight(KEY) != null) {
                         node = node.getRight(KEY);
                     } else {
-                        Node<K,V> newNode = new Node<K,V>(key, value);
-
                         insertValue(newNode, thread_id);
                         node.setRight(newNode, KEY);
                         newNode.setParent(node, KEY);
                         doRedBlackInsert(newNode, KEY);
                         grow();
 
-                        if (!auto_commit)
-                            newNode.setStatus(Node.ADDED, thread_id);
+                        nodeInserted(newNode, thread_id);
 
                         break;
                     }
                 }
             }
         }
+    }
 
-        return null;
+    /**
+     * Copies all of the mappings from the specified map to this map.
+     * If this map is empty and auto commit is on both trees are built
+     * bottom up from the entries sorted by key and by value, rather than
+     * putting each entry in turn. The entries are sorted only if they
+     * aren't already in key order, e.g. from a SortedMap.<p>
+     *
+     * Otherwise the entries are put one at a time. The result is the same
+     * as putting each entry in turn, except that if one can't be put none
+     * of them are.
+     *
+     * @param map the mappings to be stored in this map
+     *
+     * @throws IllegalArgumentException if the map contains duplicate
+     *                                     keys or values, or a key or
+     *                                     value duplicates one in this
+     *                                     map
+     * @throws ConcurrentModificationException if another transaction
+     *                                     has added one of the keys or
+     *                                     values
+     */
+    @Override
+    public void putAll(final Map<? extends K,? extends V> map)
+            throws ClassCastException, NullPointerException,
+                   IllegalArgumentException, ConcurrentModificationException {
+
+        if (map.isEmpty())
+            return;
+
+        if (auto_commit && nodeCount == 0 && map.size() > 1)
+            buildFromSorted(map.entrySet());
+        else
+            putEach(map.entrySet());
+    }
+
+    /**
+     * Put the entries one at a time, removing those already put if one
+     * can't be, so the batch is still put whole or not at all. The
+     * snapshot is published once, when the whole batch is in.
+     *
+     * @param entries the entries, in any order
+     */
+    private void putEach(final Collection<? extends Entry<? extends K,? extends V>> entries)
+            throws IllegalArgumentException, ConcurrentModificationException {
+
+        ArrayList<K> put = new ArrayList<K>(entries.size());
+        deferPublish = true;
+        try {
+            for (Iterator<? extends Entry<? extends K,? extends V>> i = entries.iterator(); i.hasNext(); ) {
+                Entry<? extends K,? extends V> entry = i.next();
+                put(entry.getKey(), entry.getValue());
+                put.add(entry.getKey());
+            }
+        }
+        catch (RuntimeException e) {
+            for (int i = put.size() - 1; i >= 0; i--)
+                doRemove(put.get(i), KEY);
+            throw e;
+        }
+        finally {
+            deferPublish = false;
+            snapshot = nextSnapshot;
+        }
+    }
+
+    /** The widest average gap, in entries of the map, between the entries of a batch for finger searches */
+    private static final int FINGER_SEARCH_GAP = 16;
+
+    /**
+     * Whether a batch of size entries is dense enough in the map for
+     * finger searches to be quicker than searching from the root. A
+     * finger search climbs through nodes near the one before, which are
+     * rarely still in cache when the batch is spread thinly, while every
+     * search from the root passes through the same top levels.
+     */
+    private boolean isFingerSearchable(final int size) {
+        return (long)size * FINGER_SEARCH_GAP >= nodeCount;
+    }
+
+    /**
+     * Find where to start a search for data from a finger, a node in the
+     * tree that isn't greater than data. The finger's subtree holds
+     * everything from just above its lower bound up to its upper bound,
+     * the nearest ancestor it is to the left of. Climb from the finger
+     * until that upper bound is above data, so the search can descend
+     * from there. The parent of the node returned is that upper bound.
+     *
+     * @param finger the node, or null to start from the root
+     * @param status the status to compare data with
+     */
+    private Node<K,V> fingerStart(final Node<K,V> finger, final Object data, final int index, final int status) {
+
+        if (finger == null)
+            return rootNode[index];
+
+        Node<K,V> node = finger;
+        for (Node<K,V> parent = node.getParent(index); parent != null; node = parent, parent = parent.getParent(index)) {
+            if (parent.getLeft(index) == node && compareData(status, data, parent.getStatus(), parent, index) < 0)
+                break;
+        }
+        return node;
+    }
+
+    /**
+     * Build the KEY and VALUE trees of this empty map from the supplied
+     * entries. The entries are checked for key order and are sorted only
+     * if they are out of order. Duplicate keys or values are detected
+     * before the map is changed.
+     *
+     * @param entries the entries, preferably in key order
+     *
+     * @throws IllegalArgumentException if there are duplicate keys or
+     *                                     duplicate values
+     */
+    private void buildFromSorted(final Collection<? extends Entry<? extends K,? extends V>> entries)
+            throws IllegalArgumentException {
+
+        Node<K,V>[] byKey = new Node[entries.size()];
+        int count = 0;
+        boolean sorted = true;
+        boolean naturalValues = comparators[VALUE] == null;
+        for (Iterator<? extends Entry<? extends K,? extends V>> i = entries.iterator(); i.hasNext(); ) {
+            Entry<? extends K,? extends V> entry = i.next();
+            checkKeyAndValue(entry.getKey(), entry.getValue());
+            byKey[count] = newNode(entry.getKey(), entry.getValue());
+            if (sorted && count > 0 && compareNodes(Node.NO_CHANGE, byKey[count - 1], Node.NO_CHANGE, byKey[count], KEY) > 0)
+                sorted = false;
+            if (naturalValues && entry.getValue() instanceof TransactionalComparable)
+                naturalValues = false;
+            count++;
+        }
+
+        if (!sorted)
+            Arrays.sort(byKey, new NodeComparator(KEY, false));
+        checkNoDuplicates(byKey, KEY);
+
+        // Sorting by value is most of the cost so avoid the TransactionalComparable check on each comparison if possible
+        Node<K,V>[] byValue = byKey.clone();
+        Arrays.sort(byValue, new NodeComparator(VALUE, naturalValues));
+        checkNoDuplicates(byValue, VALUE);
+
+        int redLevel = computeRedLevel(count);
+        rootNode[KEY] = buildFromSorted(byKey, 0, count - 1, 0, redLevel, KEY);
+        rootNode[VALUE] = buildFromSorted(byValue, 0, count - 1, 0, redLevel, VALUE);
+        nodeCount = count;
+        modify();
+
+        if (nextSnapshot != null)
+            rebuildSnapshot();
+    }
+
+    /**
+     * Link the sorted nodes from lo to hi inclusive into a balanced tree
+     * for the index. As in TreeMap the nodes on the deepest level of an
+     * incomplete tree are red, all the others are black.
+     *
+     * @return the root of the tree
+     */
+    private static <K,V> Node<K,V> buildFromSorted(final Node<K,V>[] nodes, final int lo, final int hi,
+            final int level, final int redLevel, final int index) {
+
+        if (hi < lo)
+            return null;
+
+        int mid = (lo + hi) >>> 1;
+        Node<K,V> node = nodes[mid];
+
+        Node<K,V> left = buildFromSorted(nodes, lo, mid - 1, level + 1, redLevel, index);
+        if (left != null) {
+            node.setLeft(left, index);
+            left.setParent(node, index);
+        }
+
+        Node<K,V> right = buildFromSorted(nodes, mid + 1, hi, level + 1, redLevel, index);
+        if (right != null) {
+            node.setRight(right, index);
+            right.setParent(node, index);
+        }
+
+        if (level == redLevel)
+            makeRed(node, index);
+        node.setSize(hi - lo + 1, index);
+
+        return node;
+    }
+
+    /**
+     * @return the level at which nodes are red in a tree built from size nodes
+     */
+    private static int computeRedLevel(final int size) {
+
+        int level = 0;
+        for (int m = size - 1; m >= 0; m = m / 2 - 1)
+            level++;
+        return level;
+    }
+
+    private void checkNoDuplicates(final Node<K,V>[] sorted, final int index)
+            throws IllegalArgumentException {
+
+        for (int i = 1; i < sorted.length; i++) {
+            if (compareNodes(Node.NO_CHANGE, sorted[i - 1], Node.NO_CHANGE, sorted[i], index) == 0) {
+                String debug_message = "Cannot store a duplicate " + dataName[index] + " (\"" + sorted[i].getData(index) + "\") in this Map";
+                log.debug (debug_message);
+                throw new IllegalArgumentException(debug_message);
+            }
+        }
+    }
+
+    /**
+     * Orders nodes by their key or value.
+     */
+    private final class NodeComparator implements Comparator<Node<K,V>> {
+
+        private final int index;
+        private final boolean natural;
+
+        /**
+         * @param index KEY or VALUE
+         * @param natural true if the data is known to be compared by its
+         *        natural ordering, i.e. there is no comparator and none of
+         *        the data is TransactionalComparable
+         */
+        NodeComparator(final int index, final boolean natural) {
+            this.index = index;
+            this.natural = natural;
+        }
+
+        public int compare(final Node<K,V> o1, final Node<K,V> o2) {
+            if (natural)
+                return ((Comparable)o1.getData(index)).compareTo(o2.getData(index));
+            return TransactionalBidiTreeMap.this.compareNodes(Node.NO_CHANGE, o1, Node.NO_CHANGE, o2, index);
+        }
     }
 
     /**
@@ -2154,6 +3668,126 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         return (V)doRemove(key, KEY);
     }
 
+    /**
+     * Removes the mappings for all of the keys that are in the map, with
+     * the same result as removing each in turn, except that if one can't
+     * be removed none are. When no other transaction has changes none of
+     * the removals can fail, so the keys are removed one at a time.
+     * Otherwise they are all found before any is removed, sorted so that,
+     * if they are dense enough in the map, each is looked for in the tree
+     * from where the one before was.
+     *
+     * @param keys the keys whose mappings are to be removed
+     *
+     * @return true if any mapping was removed
+     *
+     * @throws ConcurrentModificationException if another transaction has
+     *         deleted one of the mappings
+     */
+    public boolean removeAll(final Collection<?> keys)
+            throws ClassCastException, NullPointerException, ConcurrentModificationException {
+
+        Object[] sorted = keys.toArray();
+        for (int i = 0; i < sorted.length; i++)
+            checkKey(sorted[i]);
+
+        TransactionId thread_id = getCurrentThreadId();
+        if (!hasOtherChanges(thread_id))
+            return removeEach(sorted);
+
+        Arrays.sort(sorted, new Comparator<Object>() {
+            public int compare(final Object o1, final Object o2) {
+                return TransactionalBidiTreeMap.this.compare(Node.NO_CHANGE, o1, Node.NO_CHANGE, o2, KEY);
+            }
+        });
+
+        Node<K,V>[] found = new Node[sorted.length];
+        int count = 0;
+        boolean fingerSearch = isFingerSearchable(sorted.length);
+        Node<K,V> successor = leastNode(rootNode[KEY], KEY);
+        for (int i = 0; i < sorted.length && successor != null; i++) {
+            Object key = sorted[i];
+            if (i > 0 && compare(Node.NO_CHANGE, key, Node.NO_CHANGE, sorted[i - 1], KEY) == 0)
+                continue;
+
+            // The successor is the least node greater than the last found
+            // or passed, so a key less than it isn't in the tree
+            int cmp = compareData(Node.NO_CHANGE, key, successor.getStatus(), successor, KEY);
+            if (cmp < 0)
+                continue;
+
+            Node<K,V> equal = null;
+            if (cmp == 0)
+                equal = successor;
+            else {
+                Node<K,V> node = fingerSearch ? fingerStart(successor, key, KEY, Node.NO_CHANGE) : rootNode[KEY];
+                successor = node.getParent(KEY);
+                while (node != null) {
+                    cmp = compareData(Node.NO_CHANGE, key, node.getStatus(), node, KEY);
+                    if (cmp == 0) {
+                        equal = node;
+                        break;
+                    }
+                    if (cmp > 0)
+                        node = node.getRight(KEY);
+                    else {
+                        successor = node;
+                        node = node.getLeft(KEY);
+                    }
+                }
+            }
+            if (equal == null)
+                continue;
+            successor = nextGreater(equal, KEY);
+
+            Node<K,V> valid = nextEqualValid(getFloorEqualNode(equal, KEY), KEY, thread_id);
+            if (valid != null) {
+                if (valid.is(Node.DELETED, null) && !valid.is(Node.DELETED, thread_id))
+                    throw new ConcurrentModificationException();
+                found[count++] = valid;
+            }
+        }
+
+        for (int i = 0; i < count; i++)
+            deleteNode(found[i], thread_id);
+        return count > 0;
+    }
+
+    /**
+     * Remove the keys one at a time, publishing the snapshot once they
+     * have all gone.
+     *
+     * @return true if any mapping was removed
+     */
+    private boolean removeEach(final Object[] keys) {
+
+        boolean removed = false;
+        deferPublish = true;
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                if (doRemove(keys[i], KEY) != null)
+                    removed = true;
+            }
+        }
+        finally {
+            deferPublish = false;
+            snapshot = nextSnapshot;
+        }
+        return removed;
+    }
+
+    /**
+     * @return true if a transaction other than thread_id has uncommitted
+     *         changes, which could make a removal fail
+     */
+    private boolean hasOtherChanges(final TransactionId thread_id) {
+
+        if (auto_commit)
+            return false;
+        HashMap<TransactionId,TransactionChanges<K,V>> changes = getTransactionChanges();
+        return changes.size() > (changes.containsKey(thread_id) ? 1 : 0);
+    }
+
     /**
      * Removes all mappings from this map
      */
@@ -2165,19 +3799,24 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             modify();
 
             nodeCount   = 0;
+            addedCount  = 0;
+            getTransactionChanges().clear();
             rootNode[KEY]   = null;
             rootNode[VALUE] = null;
+
+            if (nextSnapshot != null)
+                updateSnapshot(new Snapshot(null, null, 0));
         }
         else
         {
-            String thread_id = getCurrentThreadId();
+            TransactionId thread_id = getCurrentThreadId();
             ArrayList<Entry<K,V>> list = new ArrayList<Entry<K,V>>(entrySet());
             for (Iterator<Entry<K,V>> i = list.iterator(); i.hasNext(); ) {
                 Node<K,V> node = (Node<K,V>)i.next();
                 if (node.is(Node.ADDED, thread_id))
                     doRedBlackDelete(node);
                 else {
-                    node.setStatus(Node.DELETED, thread_id);
+                    setNodeStatus(node, Node.DELETED, thread_id);
                 }
             }
         }
@@ -2213,6 +3852,11 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     };
                 }
 
+                @Override
+                public SplittableTraversal<K> traversal() {
+                    return new TransactionalBidiTreeMapTraversal<K>(KEY, KEY);
+                }
+
                 @Override
                 public int size() {
                     return TransactionalBidiTreeMap.this.size();
@@ -2274,6 +3918,11 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     };
                 }
 
+                @Override
+                public SplittableTraversal<V> traversal() {
+                    return new TransactionalBidiTreeMapTraversal<V>(KEY, VALUE);
+                }
+
                 @Override
                 public int size() {
                     return TransactionalBidiTreeMap.this.size();
@@ -2350,6 +3999,11 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                     };
                 }
 
+                @Override
+                public SplittableTraversal<Entry<K,V>> traversal() {
+                    return new TransactionalBidiTreeMapTraversal<Entry<K,V>>(KEY, ENTRIES);
+                }
+
                 @Override
                 public boolean contains(Object o) {
 
@@ -2372,7 +4026,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                         return false;
                     }
 
-                    String thread_id = getCurrentThreadId();
+                    TransactionId thread_id = getCurrentThreadId();
 
                     Map.Entry<K,V> entry = (Map.Entry<K,V>) o;
                     V              value = entry.getValue();
@@ -2382,7 +4036,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                         if (auto_commit || node.is(Node.ADDED, thread_id))
                             doRedBlackDelete(node);
                         else
-                            node.setStatus(Node.DELETED, thread_id);
+                            setNodeStatus(node, Node.DELETED, thread_id);
 
                         return true;
                     }
@@ -2437,7 +4091,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                             return lastReturnedNode;
                         }
                         @Override
-                        protected Node<K,V> getNextValidNode(Node<K,V> node, String thread_id) {
+                        protected Node<K,V> getNextValidNode(Node<K,V> node, TransactionId thread_id) {
                             return node;
                         }
                     };
@@ -2549,6 +4203,12 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                 }
             }
         }
+        else if (new_map.size(true) == 0 && new_map.comparators[KEY] == comparators[KEY] &&
+                new_map.comparators[VALUE] == comparators[VALUE])
+        {
+            // Build the new map's trees directly from the entries, which are already in key order
+            new_map.buildFromSorted(allEntrySet());
+        }
         else
         {
             for(Iterator<Entry<K,V>> i = allEntrySet().iterator(); i.hasNext(); ) {
@@ -2609,6 +4269,394 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         return least==null ? null : least.getValue();
     }
 
+    /**
+     * Returns the entry with the greatest key strictly less than key, as
+     * seen by the current transaction, or null if there is none. This and
+     * the other navigation methods search the tree from the root, so they
+     * take O(log n) plus a step for each node that the current transaction
+     * can't see next to the one found.
+     *
+     * @throws ClassCastException if the key is of an inappropriate type
+     * @throws NullPointerException if the key is null
+     */
+    public Map.Entry<K,V> lowerEntry(final K key) {
+        return entryOf(navigate(key, KEY, LOWER));
+    }
+
+    public K lowerKey(final K key) {
+        return keyOf(navigate(key, KEY, LOWER));
+    }
+
+    /**
+     * Returns the entry with the greatest key less than or equal to key,
+     * or null if there is none. See lowerEntry.
+     */
+    public Map.Entry<K,V> floorEntry(final K key) {
+        return entryOf(navigate(key, KEY, FLOOR));
+    }
+
+    public K floorKey(final K key) {
+        return keyOf(navigate(key, KEY, FLOOR));
+    }
+
+    /**
+     * Returns the entry with the least key greater than or equal to key,
+     * or null if there is none. See lowerEntry.
+     */
+    public Map.Entry<K,V> ceilingEntry(final K key) {
+        return entryOf(navigate(key, KEY, CEILING));
+    }
+
+    public K ceilingKey(final K key) {
+        return keyOf(navigate(key, KEY, CEILING));
+    }
+
+    /**
+     * Returns the entry with the least key strictly greater than key, or
+     * null if there is none. See lowerEntry.
+     */
+    public Map.Entry<K,V> higherEntry(final K key) {
+        return entryOf(navigate(key, KEY, HIGHER));
+    }
+
+    public K higherKey(final K key) {
+        return keyOf(navigate(key, KEY, HIGHER));
+    }
+
+    public Map.Entry<K,V> lowerEntryByValue(final V value) {
+        return entryOf(navigate(value, VALUE, LOWER));
+    }
+
+    public K lowerKeyByValue(final V value) {
+        return keyOf(navigate(value, VALUE, LOWER));
+    }
+
+    public Map.Entry<K,V> floorEntryByValue(final V value) {
+        return entryOf(navigate(value, VALUE, FLOOR));
+    }
+
+    public K floorKeyByValue(final V value) {
+        return keyOf(navigate(value, VALUE, FLOOR));
+    }
+
+    public Map.Entry<K,V> ceilingEntryByValue(final V value) {
+        return entryOf(navigate(value, VALUE, CEILING));
+    }
+
+    public K ceilingKeyByValue(final V value) {
+        return keyOf(navigate(value, VALUE, CEILING));
+    }
+
+    public Map.Entry<K,V> higherEntryByValue(final V value) {
+        return entryOf(navigate(value, VALUE, HIGHER));
+    }
+
+    public K higherKeyByValue(final V value) {
+        return keyOf(navigate(value, VALUE, HIGHER));
+    }
+
+    public Map.Entry<K,V> firstEntry() {
+        return entryOf(firstValidNode(KEY));
+    }
+
+    public Map.Entry<K,V> lastEntry() {
+        return entryOf(lastValidNode(KEY));
+    }
+
+    public Map.Entry<K,V> firstEntryByValue() {
+        return entryOf(firstValidNode(VALUE));
+    }
+
+    public Map.Entry<K,V> lastEntryByValue() {
+        return entryOf(lastValidNode(VALUE));
+    }
+
+    /**
+     * Removes the entry with the least key and returns it, or returns null
+     * if the map is empty. Without auto commit the removal is part of the
+     * current transaction, as with remove.
+     *
+     * @throws ConcurrentModificationException if another transaction has
+     *         deleted the entry
+     */
+    public Map.Entry<K,V> pollFirstEntry() {
+        return pollNode(firstValidNode(KEY));
+    }
+
+    public Map.Entry<K,V> pollLastEntry() {
+        return pollNode(lastValidNode(KEY));
+    }
+
+    public Map.Entry<K,V> pollFirstEntryByValue() {
+        return pollNode(firstValidNode(VALUE));
+    }
+
+    public Map.Entry<K,V> pollLastEntryByValue() {
+        return pollNode(lastValidNode(VALUE));
+    }
+
+    /**
+     * Returns a view of the map in descending key order, backed by the
+     * map. Its iterators walk the key tree backwards.
+     */
+    public NavigableMap<K,V> descendingMap() {
+
+        return new DescendingNavigableMap<K,V>(this) {
+
+            @Override
+            protected Iterator<Entry<K,V>> descendingIterator() {
+
+                return new TransactionalBidiTreeMapDescendingIterator<Entry<K,V>>(KEY) {
+
+                    @Override
+                    protected Entry<K,V> doGetNext() {
+                        return lastReturnedNode;
+                    }
+                };
+            }
+        };
+    }
+
+    public NavigableSet<K> navigableKeySet() {
+        return new NavigableKeySet<K>(this);
+    }
+
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    public NavigableMap<K,V> subMap(final K fromKey, final boolean fromInclusive, final K toKey, final boolean toInclusive) {
+        checkNonNullComparable(fromKey, KEY);
+        checkNonNullComparable(toKey, KEY);
+        if (compare(Node.NO_CHANGE, fromKey, Node.NO_CHANGE, toKey, KEY) > 0)
+            throw new IllegalArgumentException("fromKey > toKey");
+        SubMapRestriction r = new SubMapRestriction(fromKey, fromInclusive, toKey, toInclusive);
+        return new SubMap(r);
+    }
+
+    public NavigableMap<K,V> headMap(final K toKey, final boolean inclusive) {
+        checkNonNullComparable(toKey, KEY);
+        SubMapRestriction r = new SubMapRestriction(null, true, toKey, inclusive);
+        return new SubMap(r);
+    }
+
+    public NavigableMap<K,V> tailMap(final K fromKey, final boolean inclusive) {
+        checkNonNullComparable(fromKey, KEY);
+        SubMapRestriction r = new SubMapRestriction(fromKey, inclusive, null, false);
+        return new SubMap(r);
+    }
+
+    private Node<K,V> firstValidNode(final int index) {
+        return mostValidNode(leastNode(rootNode[index], index), index, getCurrentThreadId());
+    }
+
+    private Node<K,V> lastValidNode(final int index) {
+        return leastValidNode(mostNode(rootNode[index], index), index, getCurrentThreadId());
+    }
+
+    private Node<K,V> navigate(final Object data, final int index, final int relation) {
+        checkNonNullComparable(data, index);
+        return nearestNode(data, index, relation);
+    }
+
+    /**
+     * @return a copy of the node's key and value, as the node itself may
+     *         be changed or removed by a later transaction
+     */
+    private static <K,V> Map.Entry<K,V> entryOf(final Node<K,V> node) {
+        return node == null ? null : new AbstractMap.SimpleImmutableEntry<K,V>(node.getKey(), node.getValue());
+    }
+
+    private static <K,V> K keyOf(final Node<K,V> node) {
+        return node == null ? null : node.getKey();
+    }
+
+    private Map.Entry<K,V> pollNode(final Node<K,V> node) {
+        Map.Entry<K,V> entry = entryOf(node);
+        if (node != null)
+            deleteNode(node, getCurrentThreadId());
+        return entry;
+    }
+
+    /**
+     * Returns the number of entries visible to the current transaction
+     * with keys less than key, which is the index of key in key order if
+     * the map contains it. Each node holds the size of its subtree so this
+     * takes O(log n), plus a comparison for each node added or deleted by
+     * an uncommitted transaction that the current transaction can't see.
+     *
+     * @param key the key, which needn't be in the map
+     *
+     * @throws ClassCastException if the key is of an inappropriate type
+     * @throws NullPointerException if the key is null
+     */
+    public int rankOfKey(final Object key) {
+        checkNonNullComparable(key, KEY);
+        return rank(key, KEY, false);
+    }
+
+    /**
+     * Returns the number of entries visible to the current transaction
+     * with values less than value, which is the index of value in value
+     * order if the map contains it. See rankOfKey.
+     *
+     * @param value the value, which needn't be in the map
+     *
+     * @throws ClassCastException if the value is of an inappropriate type
+     * @throws NullPointerException if the value is null
+     */
+    public int rankOfValue(final Object value) {
+        checkNonNullComparable(value, VALUE);
+        return rank(value, VALUE, false);
+    }
+
+    /**
+     * Returns the entry at an index in key order, as seen by the current
+     * transaction, in O(log n) plus O(log n) for each node added or
+     * deleted by an uncommitted transaction that the current transaction
+     * can't see.
+     *
+     * @throws IndexOutOfBoundsException if index is negative or not less than size()
+     */
+    public Map.Entry<K,V> getByKeyIndex(final int index) {
+        return select(index, KEY);
+    }
+
+    /**
+     * Returns the entry at an index in value order, as seen by the current
+     * transaction. See getByKeyIndex.
+     *
+     * @throws IndexOutOfBoundsException if index is negative or not less than size()
+     */
+    public Map.Entry<K,V> getByValueIndex(final int index) {
+        return select(index, VALUE);
+    }
+
+    /**
+     * Count the nodes visible to the current transaction that are less
+     * than data. All of the nodes less than data are counted using the
+     * subtree sizes, then the hidden ones are taken off.
+     *
+     * @param data the key or value
+     * @param index KEY or VALUE
+     * @param including true to count the nodes equal to data as well
+     */
+    private int rank(final Object data, final int index, final boolean including) {
+
+        int rank = treeRank(data, index, including);
+
+        ArrayList<Node<K,V>> hidden = hiddenNodes();
+        for (int i = 0; i < hidden.size(); i++) {
+            Node<K,V> hiddenNode = hidden.get(i);
+            int cmp = compareData(Node.NO_CHANGE, data, hiddenNode.getStatus(), hiddenNode, index);
+            if (cmp > 0 || cmp == 0 && including)
+                rank--;
+        }
+        return rank;
+    }
+
+    /**
+     * Count all of the nodes in the tree that are less than data, or equal
+     * to it if including, whatever their transactional status.
+     */
+    private int treeRank(final Object data, final int index, final boolean including) {
+
+        int rank = 0;
+        Node<K,V> node = rootNode[index];
+        while (node != null) {
+            int cmp = compareData(Node.NO_CHANGE, data, node.getStatus(), node, index);
+            if (cmp < 0 || cmp == 0 && !including)
+                node = node.getLeft(index);
+            else {
+                rank += sizeOf(node.getLeft(index), index) + 1;
+                node = node.getRight(index);
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Find the node at a position in the order visible to the current
+     * transaction. The position is moved past each hidden node before it,
+     * in order, then the node at that position among all of the nodes is
+     * found using the subtree sizes.
+     *
+     * @param position the index among the visible nodes
+     * @param index KEY or VALUE
+     */
+    private Node<K,V> select(final int position, final int index) {
+
+        if (position < 0)
+            throw new IndexOutOfBoundsException("Index: " + position);
+
+        int treePosition = position;
+        ArrayList<Node<K,V>> hidden = hiddenNodes();
+        if (!hidden.isEmpty()) {
+            int[] hiddenPositions = new int[hidden.size()];
+            for (int i = 0; i < hiddenPositions.length; i++)
+                hiddenPositions[i] = positionOf(hidden.get(i), index);
+            Arrays.sort(hiddenPositions);
+            for (int i = 0; i < hiddenPositions.length && hiddenPositions[i] <= treePosition; i++)
+                treePosition++;
+        }
+
+        Node<K,V> node = rootNode[index];
+        if (treePosition >= sizeOf(node, index))
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+
+        while (true) {
+            int leftSize = sizeOf(node.getLeft(index), index);
+            if (treePosition < leftSize)
+                node = node.getLeft(index);
+            else if (treePosition == leftSize)
+                return node;
+            else {
+                treePosition -= leftSize + 1;
+                node = node.getRight(index);
+            }
+        }
+    }
+
+    /**
+     * @return the position of a node among all of the nodes in the tree
+     */
+    private static <K,V> int positionOf(final Node<K,V> node, final int index) {
+
+        int position = sizeOf(node.getLeft(index), index);
+        for (Node<K,V> child = node, parent = node.getParent(index); parent != null; child = parent, parent = parent.getParent(index)) {
+            if (parent.getRight(index) == child)
+                position += sizeOf(parent.getLeft(index), index) + 1;
+        }
+        return position;
+    }
+
+    /**
+     * Get the nodes in the trees that the current transaction can't see:
+     * those added by other transactions and those it has deleted. These
+     * are all in the transaction changes, so only the uncommitted changes
+     * are visited.
+     */
+    private ArrayList<Node<K,V>> hiddenNodes() {
+
+        ArrayList<Node<K,V>> hidden = new ArrayList<Node<K,V>>();
+        if (auto_commit)
+            return hidden;
+
+        // A node deleted by one transaction can be deleted again by another
+        // through a view iterator, so it can be in more than one change list
+        Set<Node<K,V>> seen = Collections.newSetFromMap(new IdentityHashMap<Node<K,V>,Boolean>());
+        TransactionId thread_id = getCurrentThreadId();
+        for (Iterator<TransactionChanges<K,V>> i = getTransactionChanges().values().iterator(); i.hasNext(); ) {
+            TransactionChanges<K,V> changes = i.next();
+            for (int j = 0; j < changes.size(); j++) {
+                Node<K,V> node = changes.get(j);
+                if (node != null && !validNode(node, thread_id) && seen.add(node))
+                    hidden.add(node);
+            }
+        }
+        return hidden;
+    }
+
     public SortedMap<K,V> headMap(K toKey) {
         SubMapRestriction r = new SubMapRestriction(null, toKey, null, null, null, null);
         return new SubMap(r);
@@ -2726,10 +4774,64 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
     }
 
 
+    /** How the node nearestNode finds relates to the data it's given */
+    private static final int LOWER   = 0;
+    private static final int FLOOR   = 1;
+    private static final int CEILING = 2;
+    private static final int HIGHER  = 3;
+
+    /**
+     * Find the node visible to the current transaction nearest to data in
+     * the tree of index: the greatest less than data for LOWER, the
+     * greatest not greater for FLOOR, the least not less for CEILING and
+     * the least greater for HIGHER. Nodes for the same key or value may be
+     * in the tree for different transactions, so the search moves to the
+     * end of any equal to data that it walks from before skipping the
+     * nodes the current transaction can't see.
+     *
+     * @return the node, or null if there is none
+     */
+    private Node<K,V> nearestNode(final Object data, final int index, final int relation) {
+
+        TransactionId thread_id = getCurrentThreadId();
+        Node<K,V> node;
+        if (relation >= CEILING) {
+            node = getCeilNode(data, index);
+            if (relation == CEILING) {
+                for (Node<K,V> previous = node == null ? null : nextSmaller(node, index);
+                        previous != null && equalTo(data, previous, index); previous = nextSmaller(previous, index))
+                    node = previous;
+            }
+            else {
+                while (node != null && equalTo(data, node, index))
+                    node = nextGreater(node, index);
+            }
+            return mostValidNode(node, index, thread_id);
+        }
+
+        node = getFloorNode(data, index);
+        if (relation == FLOOR) {
+            for (Node<K,V> next = node == null ? null : nextGreater(node, index);
+                    next != null && equalTo(data, next, index); next = nextGreater(next, index))
+                node = next;
+        }
+        else {
+            while (node != null && equalTo(data, node, index))
+                node = nextSmaller(node, index);
+        }
+        return leastValidNode(node, index, thread_id);
+    }
+
+    private boolean equalTo(final Object data, final Node<K,V> node, final int index) {
+        return compareData(Node.NO_CHANGE, data, node.getStatus(), node, index) == 0;
+    }
+
     private class SubMapRestriction implements java.io.Serializable {
 
         public final Object fromKey, toKey, fromValue, toValue;
         public final Filter[] filters = new Filter[] {null, null};
+        public final boolean[] fromInclusive = new boolean[] {true, true};
+        public final boolean[] toInclusive = new boolean[] {false, false};
 
         SubMapRestriction(K fromKey, K toKey, V fromValue, V toValue,
         		Filter<? super K> filterKey, Filter<? super V> filterValue){
@@ -2741,6 +4843,12 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 			this.filters[VALUE] = filterValue;
         }
 
+        SubMapRestriction(K fromKey, boolean fromKeyInclusive, K toKey, boolean toKeyInclusive){
+            this(fromKey, toKey, null, null, null, null);
+            this.fromInclusive[KEY] = fromKeyInclusive;
+            this.toInclusive[KEY] = toKeyInclusive;
+        }
+
         /*
          * Test obeys SubMap description in javadoc
          * 
@@ -2749,18 +4857,10 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          *
          */
         public boolean inRange(Object obj, int type) {
-            boolean r;
             if (obj == null)
                 return false;
-            if (type == KEY)
-                r = (fromKey == null || compare(Node.NO_CHANGE, obj, Node.NO_CHANGE, fromKey, KEY) >= 0) &&
-                       (toKey == null || compare(Node.NO_CHANGE, obj, Node.NO_CHANGE, toKey, KEY)   <  0) &&
-            		   (filters[KEY] == null ? true : filters[KEY].isValid(obj));
-            else
-                r = (fromValue == null || compare(Node.NO_CHANGE, obj, Node.NO_CHANGE, fromValue, VALUE) >= 0) &&
-                       (toValue == null || compare(Node.NO_CHANGE, obj, Node.NO_CHANGE, toValue, VALUE) < 0) &&
-            		   (filters[VALUE] == null ? true : filters[VALUE].isValid(obj));
-            return r;
+            return afterStart(obj, type) && beforeEnd(obj, type) &&
+                   (filters[type] == null ? true : filters[type].isValid(obj));
         }
         
         /*
@@ -2811,6 +4911,38 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         public boolean inRangeSingle(Object obj, int checktype) {
             return inRange(obj, checktype);
         }
+
+        public Object from(int type) {
+            return type == KEY ? fromKey : fromValue;
+        }
+
+        public Object to(int type) {
+            return type == KEY ? toKey : toValue;
+        }
+
+        /*
+         * Check an object is below the end of the range, so that a walk
+         * up the tree of type can stop at the first object that isn't
+         */
+        public boolean beforeEnd(Object obj, int type) {
+            Object to = to(type);
+            if (to == null)
+                return true;
+            int cmp = compare(Node.NO_CHANGE, obj, Node.NO_CHANGE, to, type);
+            return cmp < 0 || cmp == 0 && toInclusive[type];
+        }
+
+        /*
+         * Check an object isn't below the start of the range, so that a
+         * walk down the tree of type can stop at the first object that is
+         */
+        public boolean afterStart(Object obj, int type) {
+            Object from = from(type);
+            if (from == null)
+                return true;
+            int cmp = compare(Node.NO_CHANGE, obj, Node.NO_CHANGE, from, type);
+            return cmp > 0 || cmp == 0 && fromInclusive[type];
+        }
         
         /*
          * Check both parts of a key value pair are in range
@@ -2839,15 +4971,35 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         		}
         	};
         }
+        /*
+         * Whether the tighter of two bounds is inclusive, only if both are
+         * when they're equal
+         */
+        public boolean inclusiveWithNull(Object obj1, boolean inclusive1, Object obj2, boolean inclusive2, boolean from, int type){
+            if(obj2 == null) return inclusive1;
+            if(obj1 == null) return inclusive2;
+            int cmp = compare(Node.NO_CHANGE, obj1, Node.NO_CHANGE, obj2, type);
+            if (cmp == 0) return inclusive1 && inclusive2;
+            return (cmp > 0) == from ? inclusive1 : inclusive2;
+        }
         public SubMapRestriction Conjunction(Object fromKey, Object toKey, Object fromValue, Object toValue,
 											 Filter filterKey, Filter filterValue){
-            return new SubMapRestriction(
+            return Conjunction(fromKey, true, toKey, false, fromValue, toValue, filterKey, filterValue);
+        }
+        public SubMapRestriction Conjunction(Object fromKey, boolean fromKeyInclusive, Object toKey, boolean toKeyInclusive,
+                                             Object fromValue, Object toValue, Filter filterKey, Filter filterValue){
+            SubMapRestriction r = new SubMapRestriction(
                 (K)MaxWithNull(this.fromKey, fromKey, KEY),
                 (K)MinWithNull(this.toKey, toKey, KEY),
                 (V)MaxWithNull(this.fromValue, fromValue, VALUE),
                 (V)MinWithNull(this.toValue, toValue, VALUE),
             	(Filter<K>)mergedFilter(this.filters[KEY], filterKey),
 				(Filter<V>)mergedFilter(this.filters[VALUE], filterValue));
+            r.fromInclusive[KEY] = inclusiveWithNull(this.fromKey, this.fromInclusive[KEY], fromKey, fromKeyInclusive, true, KEY);
+            r.toInclusive[KEY] = inclusiveWithNull(this.toKey, this.toInclusive[KEY], toKey, toKeyInclusive, false, KEY);
+            r.fromInclusive[VALUE] = inclusiveWithNull(this.fromValue, this.fromInclusive[VALUE], fromValue, true, true, VALUE);
+            r.toInclusive[VALUE] = inclusiveWithNull(this.toValue, this.toInclusive[VALUE], toValue, false, false, VALUE);
+            return r;
         }
     }
     
@@ -2879,7 +5031,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
      * where the SubMap has only a single filter
      */
     private class SubMap extends AbstractMap<K,V>
-                             implements SortedFilterableBidiMap<K,V>, java.io.Serializable {
+                             implements SortedFilterableBidiMap<K,V>, NavigableBidiMap<K,V>, java.io.Serializable {
 
         private static final long serialVersionUID = -7288136081567652280L;
         
@@ -2904,22 +5056,140 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             return (restriction.inRangeValueAndKey(value));
         }
 
-        private Node<K,V> nextInRange(Node<K,V> node, int index, final String thread_id) {
+        /*
+         * Count the entries from the ranks of the bounds when the SubMap
+         * is restricted by a range of keys or a range of values but not
+         * both and has no filters, otherwise return -1 as the entries
+         * must be iterated to count them.
+         */
+        private int rangeSize() {
+            if (restriction.filters[KEY] != null || restriction.filters[VALUE] != null)
+                return -1;
+
+            boolean byKey = restriction.fromKey != null || restriction.toKey != null;
+            boolean byValue = restriction.fromValue != null || restriction.toValue != null;
+            if (byKey && byValue)
+                return -1;
+
+            int index = byValue ? VALUE : KEY;
+            Object from = index == KEY ? restriction.fromKey : restriction.fromValue;
+            Object to = index == KEY ? restriction.toKey : restriction.toValue;
+            int upper = to == null ? sizeOf(rootNode[index], index) - hiddenNodes().size() : rank(to, index, restriction.toInclusive[index]);
+            int lower = from == null ? 0 : rank(from, index, !restriction.fromInclusive[index]);
+            return Math.max(upper - lower, 0);
+        }
+
+        /*
+         * Count all of the nodes in the range of index, whatever their
+         * transactional status, to estimate the work of walking the range
+         */
+        private int countInRange(int index) {
+            Object from = restriction.from(index);
+            Object to = restriction.to(index);
+            int upper = to == null ? sizeOf(rootNode[index], index) : treeRank(to, index, restriction.toInclusive[index]);
+            int lower = from == null ? 0 : treeRank(from, index, !restriction.fromInclusive[index]);
+            return Math.max(upper - lower, 0);
+        }
+
+        /*
+         * Find the first node from node up the tree of index that is in
+         * the SubMap, stopping at the end of the range of index
+         */
+        private Node<K,V> nextInRange(Node<K,V> node, int index, final TransactionId thread_id) {
             while (node != null && (!restriction.inRangeSingle(node.getKey(), KEY) ||
                     !validNode(node, thread_id) ||
-                    !restriction.inRangeSingle(node.getValue(), VALUE)))
+                    !restriction.inRangeSingle(node.getValue(), VALUE))) {
+                if (!restriction.beforeEnd(node.getData(index), index))
+                    return null;
                 node = mostValidNode(nextGreater(node, index), index, thread_id);
+            }
             return node;
         }
-        private Node<K,V> previousInRange(Node<K,V> node, int index, final String thread_id) {
+        private Node<K,V> previousInRange(Node<K,V> node, int index, final TransactionId thread_id) {
             
             while (node != null && (!restriction.inRangeSingle(node.getKey(), KEY) ||
                     !validNode(node, thread_id) ||
-                    !restriction.inRangeSingle(node.getValue(), VALUE)))
+                    !restriction.inRangeSingle(node.getValue(), VALUE))) {
+                if (!restriction.afterStart(node.getData(index), index))
+                    return null;
                 node = leastValidNode(nextSmaller(node, index), index, thread_id);
+            }
             return node;
         }
 
+        /*
+         * Seek to the start of the range of index and return the first
+         * node in the SubMap by index, or null if it is empty
+         */
+        private Node<K,V> firstNode(int index) {
+            Object from = restriction.from(index);
+            Node<K,V> first = from == null
+                ? TransactionalBidiTreeMap.this.leastNode(rootNode[index], index)
+                : nearestNode(from, index, restriction.fromInclusive[index] ? CEILING : HIGHER);
+            return nextInRange(first, index, getCurrentThreadId());
+        }
+
+        /*
+         * Seek to the end of the range of index and return the last node
+         * in the SubMap by index, or null if it is empty
+         */
+        private Node<K,V> lastNode(int index) {
+            Object to = restriction.to(index);
+            Node<K,V> last = to == null
+                ? TransactionalBidiTreeMap.this.mostNode(rootNode[index], index)
+                : nearestNode(to, index, restriction.toInclusive[index] ? FLOOR : LOWER);
+            return previousInRange(last, index, getCurrentThreadId());
+        }
+
+        /*
+         * Find the node in the SubMap nearest to data by index, seeking to
+         * data or, if data is outside the range of index, to its bound
+         */
+        private Node<K,V> navigate(Object data, int index, int relation) {
+            checkNonNullComparable(data, index);
+            if (relation >= CEILING) {
+                if (!restriction.afterStart(data, index))
+                    return firstNode(index);
+                return nextInRange(nearestNode(data, index, relation), index, getCurrentThreadId());
+            }
+            if (!restriction.beforeEnd(data, index))
+                return lastNode(index);
+            return previousInRange(nearestNode(data, index, relation), index, getCurrentThreadId());
+        }
+
+        /*
+         * When both the keys and the values are restricted, count the
+         * nodes in the range of each tree from the subtree sizes. If the
+         * range of the other tree to the one the entries are ordered by
+         * has less than a quarter of the nodes, the entries are found in
+         * that range and sorted, rather than walking the whole of the
+         * range of the ordering tree checking each node against the
+         * other range. Returns null to walk the ordering tree.
+         */
+        private Iterator<Entry<K,V>> seekingIterator(final int type, final boolean descending) {
+            final int other = type == KEY ? VALUE : KEY;
+            if (restriction.from(other) == null && restriction.to(other) == null)
+                return null;
+
+            int otherCount = countInRange(other);
+            if (otherCount * 4 > countInRange(type))
+                return null;
+
+            ArrayList<Node<K,V>> nodes = new ArrayList<Node<K,V>>(otherCount);
+            TransactionId thread_id = getCurrentThreadId();
+            for (Node<K,V> node = firstNode(other); node != null;
+                    node = nextInRange(mostValidNode(nextGreater(node, other), other, thread_id), other, thread_id))
+                nodes.add(node);
+
+            Collections.sort(nodes, new Comparator<Node<K,V>>() {
+                public int compare(Node<K,V> o1, Node<K,V> o2) {
+                    int cmp = TransactionalBidiTreeMap.this.compareNodes(o1.getStatus(), o1, o2.getStatus(), o2, type);
+                    return descending ? -cmp : cmp;
+                }
+            });
+            return new SubMapSortedIterator(nodes);
+        }
+
         @Override
         public V get(Object key) {
             V value;
@@ -2957,12 +5227,8 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
         
         private Node<K,V> firstNodeByKey(){
-            Node<K,V> first = 
-                restriction.fromKey == null
-                ? TransactionalBidiTreeMap.this.leastNode(rootNode[KEY], KEY)
-                : getCeilNode(restriction.fromKey, KEY);
-            first = nextInRange(first, KEY, getCurrentThreadId());
-            if (restriction.toKey != null && compare(Node.NO_CHANGE, first.getKey(), Node.NO_CHANGE, restriction.toKey, KEY) >= 0)
+            Node<K,V> first = firstNode(KEY);
+            if (first == null)
                 throw(new NoSuchElementException());
             return first;
         }
@@ -2983,12 +5249,8 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
 
          private Node<K,V> firstNodeByValue(){
-            Node<K,V> first = 
-                restriction.fromValue == null
-                ? TransactionalBidiTreeMap.this.leastNode(rootNode[VALUE], VALUE)
-                : getCeilNode(restriction.fromValue, VALUE);
-            first = nextInRange(first, VALUE, getCurrentThreadId());
-            if (restriction.toValue != null && compare(Node.NO_CHANGE, first.getValue(), Node.NO_CHANGE, restriction.toValue, VALUE) >= 0)
+            Node<K,V> first = firstNode(VALUE);
+            if (first == null)
                 throw(new NoSuchElementException());
             return first;
         }
@@ -3008,14 +5270,8 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
         
          private Node<K,V> lastNodeByKey(){
-            Node<K,V> last;
-             if (restriction.toKey == null){
-                last = TransactionalBidiTreeMap.this.mostNode(rootNode[KEY], KEY);
-            } else {
-                last = getFloorNode(restriction.toKey, KEY);
-            }
-            last = previousInRange(last, KEY, getCurrentThreadId());
-            if (restriction.toKey != null && compare(Node.NO_CHANGE, last.getKey(), Node.NO_CHANGE, restriction.toKey, KEY) > 0)
+            Node<K,V> last = lastNode(KEY);
+            if (last == null)
                 throw(new NoSuchElementException());
             return last;
         }
@@ -3034,16 +5290,9 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
 
          private Node<K,V> lastNodeByValue(){
-             Node<K,V> last;
-             if(restriction.toValue == null){
-                last = TransactionalBidiTreeMap.this.mostNode(rootNode[VALUE], VALUE);
-             }
-             else{
-                last = getFloorNode(restriction.toValue, VALUE);
-             }
-            last = previousInRange(last, VALUE, getCurrentThreadId());
-            if (restriction.toValue != null && compare(Node.NO_CHANGE, last.getValue(), Node.NO_CHANGE, restriction.toValue, VALUE) > 0)
-                throw(new NoSuchElementException(last.getValue().toString()));
+            Node<K,V> last = lastNode(VALUE);
+            if (last == null)
+                throw(new NoSuchElementException());
             return last;
         }
 
@@ -3060,6 +5309,119 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         public V lastValueByValue() {
             return lastNodeByValue().getValue();
         }
+
+        public Map.Entry<K,V> lowerEntry(K key) {
+            return entryOf(navigate(key, KEY, LOWER));
+        }
+
+        public K lowerKey(K key) {
+            return keyOf(navigate(key, KEY, LOWER));
+        }
+
+        public Map.Entry<K,V> floorEntry(K key) {
+            return entryOf(navigate(key, KEY, FLOOR));
+        }
+
+        public K floorKey(K key) {
+            return keyOf(navigate(key, KEY, FLOOR));
+        }
+
+        public Map.Entry<K,V> ceilingEntry(K key) {
+            return entryOf(navigate(key, KEY, CEILING));
+        }
+
+        public K ceilingKey(K key) {
+            return keyOf(navigate(key, KEY, CEILING));
+        }
+
+        public Map.Entry<K,V> higherEntry(K key) {
+            return entryOf(navigate(key, KEY, HIGHER));
+        }
+
+        public K higherKey(K key) {
+            return keyOf(navigate(key, KEY, HIGHER));
+        }
+
+        public Map.Entry<K,V> lowerEntryByValue(V value) {
+            return entryOf(navigate(value, VALUE, LOWER));
+        }
+
+        public K lowerKeyByValue(V value) {
+            return keyOf(navigate(value, VALUE, LOWER));
+        }
+
+        public Map.Entry<K,V> floorEntryByValue(V value) {
+            return entryOf(navigate(value, VALUE, FLOOR));
+        }
+
+        public K floorKeyByValue(V value) {
+            return keyOf(navigate(value, VALUE, FLOOR));
+        }
+
+        public Map.Entry<K,V> ceilingEntryByValue(V value) {
+            return entryOf(navigate(value, VALUE, CEILING));
+        }
+
+        public K ceilingKeyByValue(V value) {
+            return keyOf(navigate(value, VALUE, CEILING));
+        }
+
+        public Map.Entry<K,V> higherEntryByValue(V value) {
+            return entryOf(navigate(value, VALUE, HIGHER));
+        }
+
+        public K higherKeyByValue(V value) {
+            return keyOf(navigate(value, VALUE, HIGHER));
+        }
+
+        public Map.Entry<K,V> firstEntry() {
+            return entryOf(firstNode(KEY));
+        }
+
+        public Map.Entry<K,V> lastEntry() {
+            return entryOf(lastNode(KEY));
+        }
+
+        public Map.Entry<K,V> firstEntryByValue() {
+            return entryOf(firstNode(VALUE));
+        }
+
+        public Map.Entry<K,V> lastEntryByValue() {
+            return entryOf(lastNode(VALUE));
+        }
+
+        public Map.Entry<K,V> pollFirstEntry() {
+            return pollNode(firstNode(KEY));
+        }
+
+        public Map.Entry<K,V> pollLastEntry() {
+            return pollNode(lastNode(KEY));
+        }
+
+        public Map.Entry<K,V> pollFirstEntryByValue() {
+            return pollNode(firstNode(VALUE));
+        }
+
+        public Map.Entry<K,V> pollLastEntryByValue() {
+            return pollNode(lastNode(VALUE));
+        }
+
+        public NavigableMap<K,V> descendingMap() {
+            return new DescendingNavigableMap<K,V>(this) {
+                @Override
+                protected Iterator<Entry<K,V>> descendingIterator() {
+                    return new EntrySetViewDescending(KEY).iterator();
+                }
+            };
+        }
+
+        public NavigableSet<K> navigableKeySet() {
+            return new NavigableKeySet<K>(this);
+        }
+
+        public NavigableSet<K> descendingKeySet() {
+            return descendingMap().navigableKeySet();
+        }
         
         private transient FilterableSet entrySet[] = {new EntrySetView(KEY),
                                                       new EntrySetView(VALUE)};
@@ -3214,6 +5576,24 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             return new SubMap(restriction.Conjunction(fromKey, toKey, null, null, null, null));
         }
 
+        public NavigableMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            checkNonNullComparable(fromKey, KEY);
+            checkNonNullComparable(toKey, KEY);
+            if (compare(Node.NO_CHANGE, fromKey, Node.NO_CHANGE, toKey, KEY) > 0)
+                throw new IllegalArgumentException("fromKey > toKey");
+            return new SubMap(restriction.Conjunction(fromKey, fromInclusive, toKey, toInclusive, null, null, null, null));
+        }
+
+        public NavigableMap<K,V> headMap(K toKey, boolean inclusive) {
+            checkNonNullComparable(toKey, KEY);
+            return new SubMap(restriction.Conjunction(null, true, toKey, inclusive, null, null, null, null));
+        }
+
+        public NavigableMap<K,V> tailMap(K fromKey, boolean inclusive) {
+            checkNonNullComparable(fromKey, KEY);
+            return new SubMap(restriction.Conjunction(fromKey, inclusive, null, false, null, null, null, null));
+        }
+
         public SortedBidiMap<K,V> subMapByValue(V fromValue, V toValue) {
             return new SubMap(restriction.Conjunction(null, null, fromValue, toValue, null, null));
         }
@@ -3273,6 +5653,10 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             @Override
             public int size() 
             {
+                int rangeSize = TransactionalBidiTreeMap.SubMap.this.rangeSize();
+                if (rangeSize >= 0)
+                    return rangeSize;
+
                 if (size == -1 || sizeModCount != TransactionalBidiTreeMap.this.modifications) {
                     size = 0;  
                     sizeModCount = TransactionalBidiTreeMap.this.modifications;
@@ -3313,13 +5697,13 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                  Object key = entry.getKey();
                  if (!TransactionalBidiTreeMap.SubMap.this.restriction.inRangeKeyAndValue(key))
                  return false;
-                 final String thread_id = getCurrentThreadId();
+                 final TransactionId thread_id = getCurrentThreadId();
                  Node<K,V> node = lookupValid(key, KEY, thread_id);
                  if (node!=null && valEquals(node.getValue(),entry.getValue())){
                      if (auto_commit || node.is(Node.ADDED, thread_id))
                          doRedBlackDelete(node);
                      else
-                         node.setStatus(Node.DELETED, thread_id);
+                         setNodeStatus(node, Node.DELETED, thread_id);
                      
                      return true;
                  }
@@ -3329,9 +5713,10 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             @Override
             public Iterator iterator() 
             {
-                return new SubMapEntryIterator(type == KEY ?
-                        TransactionalBidiTreeMap.SubMap.this.firstNodeByKey() :
-                        TransactionalBidiTreeMap.SubMap.this.firstNodeByValue(),
+                Iterator<Entry<K,V>> seeking = TransactionalBidiTreeMap.SubMap.this.seekingIterator(type, false);
+                if (seeking != null)
+                    return seeking;
+                return new SubMapEntryIterator(TransactionalBidiTreeMap.SubMap.this.firstNode(type),
                         TransactionalBidiTreeMap.SubMap.this.restriction,
                         type) {
                 };
@@ -3348,9 +5733,10 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
              @Override
             public Iterator iterator() 
             {
-                return new SubMapEntryDescendingIterator(type == KEY ?
-                        TransactionalBidiTreeMap.SubMap.this.lastNodeByKey() :
-                        TransactionalBidiTreeMap.SubMap.this.lastNodeByValue(),
+                Iterator<Entry<K,V>> seeking = TransactionalBidiTreeMap.SubMap.this.seekingIterator(type, true);
+                if (seeking != null)
+                    return seeking;
+                return new SubMapEntryDescendingIterator(TransactionalBidiTreeMap.SubMap.this.lastNode(type),
                         TransactionalBidiTreeMap.SubMap.this.restriction,
                         type) {
                 };
@@ -3359,12 +5745,176 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
     }
 
     /* **********  END  implementation of Map ********** */
+    /**
+     * Splittable in order traversal of the KEY or VALUE tree. The tree is
+     * split into whole subtrees and single nodes. The snapshot and the
+     * transaction id are taken when the traversal is created, so the
+     * threads visiting the parts see what the creating thread would see.
+     */
+    private final class TransactionalBidiTreeMapTraversal<E> extends SplittableTraversal<E> {
+
+        private final int index;
+        private final int data;
+        private final TransactionId thread_id;
+        private final boolean snapshot;
+        private final int expectedModifications;
+        private ArrayList<Object> items;
+        private long estimate;
+
+        /**
+         * Constructor
+         *
+         * @param index the tree to traverse
+         * @param data KEY, VALUE or ENTRIES
+         */
+        TransactionalBidiTreeMapTraversal(final int index, final int data) {
+
+            this.index = index;
+            this.data = data;
+            thread_id = getCurrentThreadId();
+            expectedModifications = TransactionalBidiTreeMap.this.modifications;
+            items = new ArrayList<Object>();
+
+            Snapshot readable = getReadableSnapshot();
+            snapshot = readable != null;
+            Object root = snapshot ? readable.getRoot(index) : rootNode[index];
+            if (root != null)
+                items.add(root);
+            estimate = snapshot ? readable.size : TransactionalBidiTreeMap.this.size();
+        }
+
+        private TransactionalBidiTreeMapTraversal(final TransactionalBidiTreeMapTraversal<E> parent,
+                final ArrayList<Object> items, final long estimate) {
+
+            index = parent.index;
+            data = parent.data;
+            thread_id = parent.thread_id;
+            snapshot = parent.snapshot;
+            expectedModifications = parent.expectedModifications;
+            this.items = items;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public SplittableTraversal<E> trySplit() {
+
+            while (true) {
+                // Split before the middle subtree that can be divided further
+                ArrayList<Integer> subtrees = new ArrayList<Integer>();
+                for (int i = 0; i < items.size(); i++) {
+                    if (left(items.get(i)) != null || right(items.get(i)) != null)
+                        subtrees.add(Integer.valueOf(i));
+                }
+
+                if (subtrees.isEmpty())
+                    return null;
+
+                if (subtrees.size() > 1) {
+                    int split = subtrees.get(subtrees.size() / 2).intValue();
+                    ArrayList<Object> prefix = new ArrayList<Object>(items.subList(0, split));
+                    items = new ArrayList<Object>(items.subList(split, items.size()));
+
+                    long prefixEstimate = estimate / 2;
+                    estimate -= prefixEstimate;
+                    return new TransactionalBidiTreeMapTraversal<E>(this, prefix, prefixEstimate);
+                }
+
+                // Only one subtree so replace it with its children and root
+                int split = subtrees.get(0).intValue();
+                Object subtree = items.remove(split);
+                if (right(subtree) != null)
+                    items.add(split, right(subtree));
+                items.add(split, new SnapshotNode<K,V>(node(subtree), null, null));
+                if (left(subtree) != null)
+                    items.add(split, left(subtree));
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        boolean traverse(final Visitor<? super E> visitor) {
+
+            for (Object item : items) {
+                boolean completed = item instanceof SnapshotNode
+                        ? traverse((SnapshotNode<K,V>)item, visitor)
+                        : traverse((Node<K,V>)item, visitor);
+                if (!completed)
+                    return false;
+            }
+
+            if (!snapshot && modifications != expectedModifications) {
+                throw new ConcurrentModificationException();
+            }
+            return true;
+        }
+
+        private boolean traverse(SnapshotNode<K,V> current, final Visitor<? super E> visitor) {
+
+            SnapshotNode<K,V>[] stack = new SnapshotNode[SnapshotNode.height(current)];
+            int depth = 0;
+            while (true) {
+                for (; current != null; current = current.left)
+                    stack[depth++] = current;
+                if (depth == 0)
+                    return true;
+
+                current = stack[--depth];
+                if (!visit(current.node, visitor))
+                    return false;
+                current = current.right;
+            }
+        }
+
+        private boolean traverse(Node<K,V> current, final Visitor<? super E> visitor) {
+
+            // A red-black tree with an int number of nodes is less than 64 deep
+            Node<K,V>[] stack = new Node[64];
+            int depth = 0;
+            while (true) {
+                for (; current != null; current = current.getLeft(index))
+                    stack[depth++] = current;
+                if (depth == 0)
+                    return true;
+
+                current = stack[--depth];
+                if (!visit(current, visitor))
+                    return false;
+                current = current.getRight(index);
+            }
+        }
+
+        private boolean visit(final Node<K,V> node, final Visitor<? super E> visitor) {
+
+            if (!snapshot && !validNode(node, thread_id))
+                return true;
+
+            return visitor.visit((E)(data == ENTRIES ? node : node.getData(data)));
+        }
+
+        private Object left(final Object item) {
+            return item instanceof SnapshotNode ? ((SnapshotNode<K,V>)item).left : ((Node<K,V>)item).getLeft(index);
+        }
+
+        private Object right(final Object item) {
+            return item instanceof SnapshotNode ? ((SnapshotNode<K,V>)item).right : ((Node<K,V>)item).getRight(index);
+        }
+
+        private Node<K,V> node(final Object item) {
+            return item instanceof SnapshotNode ? ((SnapshotNode<K,V>)item).node : (Node<K,V>)item;
+        }
+    }
+
     private abstract class TransactionalBidiTreeMapIterator<E> implements Iterator<E> {
 
         private int    expectedModifications;
         protected Node<K,V> lastReturnedNode;
         private Node<K,V>   nextNode;
         protected int  iteratorType;
+        private SnapshotCursor<K,V> cursor = null;
 
         /**
          * Constructor
@@ -3376,6 +5926,15 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             iteratorType          = type;
             expectedModifications = TransactionalBidiTreeMap.this.modifications;
             lastReturnedNode      = null;
+
+            // In versioned mode iterate the published snapshot, which doesn't change
+            Snapshot readable = getReadableSnapshot();
+            if (readable != null) {
+                cursor = new SnapshotCursor<K,V>(readable.getRoot(iteratorType), false);
+                nextNode = cursor.next();
+                return;
+            }
+
             nextNode              = leastNode(rootNode[iteratorType],
                                               iteratorType);
             nextNode = getNextValidNode(nextNode, getCurrentThreadId());
@@ -3429,6 +5988,12 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                 throw new NoSuchElementException();
             }
 
+            if (cursor != null) {
+                lastReturnedNode = nextNode;
+                nextNode = cursor.next();
+                return doGetNext();
+            }
+
             if (modifications != expectedModifications) {
                 throw new ConcurrentModificationException();
             }
@@ -3440,7 +6005,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             return doGetNext();
         }
         
-        protected Node<K,V> getNextValidNode(Node<K,V> node, String thread_id) {
+        protected Node<K,V> getNextValidNode(Node<K,V> node, TransactionId thread_id) {
             if (auto_commit)
                 return node;
             
@@ -3474,18 +6039,25 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                 throw new IllegalStateException();
             }
 
-            if (modifications != expectedModifications) {
+            if (cursor != null) {
+                // The snapshot may be older than the tree, only remove the node if it is still there
+                if (lookup(lastReturnedNode.getData(iteratorType), iteratorType) != lastReturnedNode) {
+                    lastReturnedNode = null;
+                    return;
+                }
+            }
+            else if (modifications != expectedModifications) {
                 throw new ConcurrentModificationException();
             }
 
-            String thread_id = getCurrentThreadId();
+            TransactionId thread_id = getCurrentThreadId();
             if (auto_commit || lastReturnedNode.is(Node.ADDED, thread_id))
             {
                 doRedBlackDelete(lastReturnedNode);
                 expectedModifications++;
             }
             else
-                lastReturnedNode.setStatus(Node.DELETED, thread_id);
+                setNodeStatus(lastReturnedNode, Node.DELETED, thread_id);
 
             lastReturnedNode = null;
         }
@@ -3499,6 +6071,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         protected Node<K,V> lastReturnedNode;
         private Node<K,V>   nextNode;
         protected int  iteratorType;
+        private SnapshotCursor<K,V> cursor = null;
 
         /**
          * Constructor
@@ -3510,6 +6083,15 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             iteratorType          = type;
             expectedModifications = TransactionalBidiTreeMap.this.modifications;
             lastReturnedNode      = null;
+
+            // In versioned mode iterate the published snapshot, which doesn't change
+            Snapshot readable = getReadableSnapshot();
+            if (readable != null) {
+                cursor = new SnapshotCursor<K,V>(readable.getRoot(iteratorType), true);
+                nextNode = cursor.next();
+                return;
+            }
+
             nextNode              = mostNode(rootNode[iteratorType],
                                               iteratorType);
             nextNode = getNextValidNode(nextNode, getCurrentThreadId());
@@ -3563,6 +6145,12 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                 throw new NoSuchElementException();
             }
 
+            if (cursor != null) {
+                lastReturnedNode = nextNode;
+                nextNode = cursor.next();
+                return doGetNext();
+            }
+
             if (modifications != expectedModifications) {
                 throw new ConcurrentModificationException();
             }
@@ -3574,7 +6162,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             return doGetNext();
         }
         
-        protected Node<K,V> getNextValidNode(Node<K,V> node, String thread_id) {
+        protected Node<K,V> getNextValidNode(Node<K,V> node, TransactionId thread_id) {
             if (auto_commit)
                 return node;
             
@@ -3608,18 +6196,25 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
                 throw new IllegalStateException();
             }
 
-            if (modifications != expectedModifications) {
+            if (cursor != null) {
+                // The snapshot may be older than the tree, only remove the node if it is still there
+                if (lookup(lastReturnedNode.getData(iteratorType), iteratorType) != lastReturnedNode) {
+                    lastReturnedNode = null;
+                    return;
+                }
+            }
+            else if (modifications != expectedModifications) {
                 throw new ConcurrentModificationException();
             }
 
-            String thread_id = getCurrentThreadId();
+            TransactionId thread_id = getCurrentThreadId();
             if (auto_commit || lastReturnedNode.is(Node.ADDED, thread_id))
             {
                 doRedBlackDelete(lastReturnedNode);
                 expectedModifications++;
             }
             else
-                lastReturnedNode.setStatus(Node.DELETED, thread_id);
+                setNodeStatus(lastReturnedNode, Node.DELETED, thread_id);
 
             lastReturnedNode = null;
         }
@@ -3636,13 +6231,15 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
 
         @Override
-        protected Node<K,V> getNextValidNode(Node<K,V> node, final String thread_id) {
+        protected Node<K,V> getNextValidNode(Node<K,V> node, final TransactionId thread_id) {
             if (restriction == null)
                 return super.getNextValidNode(node, thread_id);
             while (node != null && (!validNode(node, thread_id) ||
                     !restriction.inRangeSingle(node.getKey(), KEY) ||
                     !restriction.inRangeSingle(node.getValue(), VALUE)))
             {
+                if (!restriction.beforeEnd(node.getData(iteratorType), iteratorType))
+                    return null;
                 node = nextGreater(node, iteratorType);
                 node = super.getNextValidNode(node, thread_id);
             }
@@ -3655,6 +6252,57 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
     }
 
+    /**
+     * Iterates the entries of a SubMap that were found in the tree other
+     * than the one they're ordered by and sorted.
+     */
+    private class SubMapSortedIterator implements Iterator<Entry<K,V>> {
+
+        private final ArrayList<Node<K,V>> nodes;
+        private int nextIndex = 0;
+        private int expectedModifications;
+        private Node<K,V> lastReturnedNode = null;
+
+        SubMapSortedIterator(final ArrayList<Node<K,V>> nodes) {
+            this.nodes = nodes;
+            expectedModifications = modifications;
+        }
+
+        public boolean hasNext() {
+            return nextIndex < nodes.size();
+        }
+
+        public Entry<K,V> next() {
+
+            if (nextIndex >= nodes.size())
+                throw new NoSuchElementException();
+            if (modifications != expectedModifications)
+                throw new ConcurrentModificationException();
+
+            lastReturnedNode = nodes.get(nextIndex++);
+            return lastReturnedNode;
+        }
+
+        public void remove() {
+
+            if (lastReturnedNode == null)
+                throw new IllegalStateException();
+            if (modifications != expectedModifications)
+                throw new ConcurrentModificationException();
+
+            TransactionId thread_id = getCurrentThreadId();
+            if (auto_commit || lastReturnedNode.is(Node.ADDED, thread_id))
+            {
+                doRedBlackDelete(lastReturnedNode);
+                expectedModifications++;
+            }
+            else
+                setNodeStatus(lastReturnedNode, Node.DELETED, thread_id);
+
+            lastReturnedNode = null;
+        }
+    }
+
     private class SubMapEntryDescendingIterator extends TransactionalBidiTreeMapDescendingIterator<Entry<K,V>> {
 
         private TransactionalBidiTreeMap<K,V>.SubMapRestriction restriction;
@@ -3665,13 +6313,15 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
 
         @Override
-        protected Node<K,V> getNextValidNode(Node<K,V> node, final String thread_id) {
+        protected Node<K,V> getNextValidNode(Node<K,V> node, final TransactionId thread_id) {
             if (restriction == null)
                 return super.getNextValidNode(node, thread_id);
             while (node != null && (!validNode(node, thread_id) ||
                     !restriction.inRangeSingle(node.getKey(), KEY) ||
                     !restriction.inRangeSingle(node.getValue(), VALUE)))
             {
+                if (!restriction.afterStart(node.getData(iteratorType), iteratorType))
+                    return null;
                 node = nextSmaller(node, iteratorType);
                 node = super.getNextValidNode(node, thread_id);
             }
@@ -3684,30 +6334,88 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         }
     }
 
-    // final for performance
-    public static final class Node<K,V> implements Map.Entry<K,V>, java.io.Serializable {
+    /**
+     * A node of both trees. The colours, transaction status and
+     * transaction id are held in a single shared State rather than fields
+     * of their own, so a node is nine references and the two subtree
+     * sizes with nothing left over for alignment padding, 56 bytes with
+     * compressed oops. Only TransactionalLongBidiTreeMap extends it, to
+     * add the key as a long.
+     */
+    public static class Node<K,V> implements Map.Entry<K,V>, java.io.Serializable {
 
-        private static final long serialVersionUID = -5178097310251692266L;
+        private static final long serialVersionUID = 4523856214476931187L;
         
-        private K       dataKey;
+        private K            dataKey;
+        private V            dataValue;
         private Node<K,V>    leftNodeKey;
         private Node<K,V>    rightNodeKey;
         private Node<K,V>    parentNodeKey;
-        private boolean      blackColorKey;
-        private V            dataValue;
         private Node<K,V>    leftNodeValue;
         private Node<K,V>    rightNodeValue;
         private Node<K,V>    parentNodeValue;
-        private boolean      blackColorValue;
-        private int          hashcodeValue;
-        private boolean      calculatedHashCode;
-        private int          transactionStatus;
-        private String       transactionId;
+        private State        state;
+        private transient int sizeKey;
+        private transient int sizeValue;
         
         public static final int NO_CHANGE = 0;
         public static final int DELETED = 1;
         public static final int ADDED = 2;
 
+        /**
+         * The colours of a node in each tree together with its
+         * transactional status and transaction id. States are immutable
+         * and shared, the four colourings of each status and id are
+         * created together and each holds all four, so recolouring a node
+         * just picks another state from its array.
+         */
+        static final class State implements java.io.Serializable {
+
+            private static final long serialVersionUID = -7304281574920467213L;
+
+            private static final int BLACK_KEY = 1;
+            private static final int BLACK_VALUE = 2;
+            private static final int BLACK = BLACK_KEY | BLACK_VALUE;
+
+            /** The states of committed nodes */
+            static final State[] COMMITTED = create(NO_CHANGE, null);
+
+            private final int colours;
+            private final int status;
+            private final TransactionId id;
+            private final State[] colourings;
+
+            private State(final int colours, final int status, final TransactionId id, final State[] colourings) {
+                this.colours = colours;
+                this.status = status;
+                this.id = id;
+                this.colourings = colourings;
+            }
+
+            /**
+             * Create the four colourings of a status and transaction id.
+             */
+            static State[] create(final int status, final TransactionId id) {
+                State[] colourings = new State[BLACK + 1];
+                for (int colours = 0; colours < colourings.length; colours++)
+                    colourings[colours] = new State(colours, status, id, colourings);
+                return colourings;
+            }
+
+            private static int blackBit(final int index) {
+                return index == KEY ? BLACK_KEY : BLACK_VALUE;
+            }
+
+            private State withBlack(final int index, final boolean black) {
+                int bit = blackBit(index);
+                return colourings[black ? colours | bit : colours & ~bit];
+            }
+
+            private Object readResolve() throws java.io.ObjectStreamException {
+                return id == null ? COMMITTED[colours] : this;
+            }
+        }
+
         /**
          * Make a new cell with given key and value, and with null
          * links, and black (true) colors.
@@ -3718,32 +6426,51 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
         Node(final K key, final V value) {
             dataKey = key;
             dataValue = value;
-            blackColorKey      = true;
-            blackColorValue    = true;
-            calculatedHashCode = false;
-            transactionStatus   = NO_CHANGE;
-            transactionId      = null;
+            state = State.COMMITTED[State.BLACK];
+            sizeKey = 1;
+            sizeValue = 1;
+        }
+
+        /**
+         * get the number of nodes in the subtree rooted at this node,
+         * whatever their transactional status
+         *
+         * @param index KEY or VALUE
+         */
+        private int getSize(final int index) {
+            return index == KEY ? sizeKey : sizeValue;
+        }
+
+        private void setSize(final int size, final int index) {
+            if (index == KEY)
+                sizeKey = size;
+            else
+                sizeValue = size;
         }
 
-        private void setStatus(final int status, final String id) {
-            transactionStatus = status;
-            transactionId = id;
+        /**
+         * Move the node to the status and transaction id of states,
+         * keeping its colours.
+         */
+        private void setStates(final State[] states) {
+            state = states[state.colours];
         }
         
         public int getStatus() {
-            return transactionStatus;
+            return state.status;
         }
 
         public String getTransactionId() {
-            return transactionId;
+            return state.id == null ? null : state.id.getName();
         }
 
-        private boolean is(final int status, final String id) {
-            if (transactionId == null)
+        private boolean is(final int status, final TransactionId id) {
+            final State current = state;
+            if (current.id == null)
                 return status == NO_CHANGE;
             
-            if (id == null || transactionId.equals(id))
-                return transactionStatus == status;
+            if (id == null || current.id == id)
+                return current.status == status;
 
             return status == NO_CHANGE;
         }
@@ -3756,7 +6483,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          * @return the key or value
          */
         private Object getData(final int index) {
-            return index == KEY ? dataKey : dataValue;
+            return index == KEY ? getKey() : dataValue;
         }
 
         /**
@@ -3844,17 +6571,23 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          */
         private void swapColors(final Node<K,V> node, final int index) {
 
-            // Swap colors -- old hacker's trick
-            if (index == KEY) {
-                blackColorKey      ^= node.blackColorKey;
-                node.blackColorKey ^= blackColorKey;
-                blackColorKey      ^= node.blackColorKey;
-            }
-            else {
-                blackColorValue      ^= node.blackColorValue;
-                node.blackColorValue ^= blackColorValue;
-                blackColorValue      ^= node.blackColorValue;
-            }
+            boolean black = isBlack(index);
+            state = state.withBlack(index, node.isBlack(index));
+            node.state = node.state.withBlack(index, black);
+        }
+
+        /**
+         * swap the subtree sizes of this node and another node, which
+         * go with their positions in the tree
+         *
+         * @param node the node to swap with
+         * @param index KEY or VALUE
+         */
+        private void swapSizes(final Node<K,V> node, final int index) {
+
+            int size = getSize(index);
+            setSize(node.getSize(index), index);
+            node.setSize(size, index);
         }
 
         /**
@@ -3865,7 +6598,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          * @return true if black (which is represented as a true boolean)
          */
         private boolean isBlack(final int index) {
-            return index == KEY ? blackColorKey : blackColorValue;
+            return (state.colours & State.blackBit(index)) != 0;
         }
 
         /**
@@ -3876,7 +6609,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          * @return true if non-black
          */
         private boolean isRed(final int index) {
-            return index == KEY ? !blackColorKey : !blackColorValue;
+            return !isBlack(index);
         }
 
         /**
@@ -3885,10 +6618,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          * @param index KEY or VALUE
          */
         private void setBlack(final int index) {
-            if (index == KEY)
-                blackColorKey = true;
-            else
-                blackColorValue = true;
+            state = state.withBlack(index, true);
         }
 
         /**
@@ -3897,10 +6627,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          * @param index KEY or VALUE
          */
         private void setRed(final int index) {
-            if (index == KEY)
-                blackColorKey = false;
-            else
-                blackColorValue = false;
+            state = state.withBlack(index, false);
         }
 
         /**
@@ -3910,10 +6637,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          * @param index KEY or VALUE
          */
         private void copyColor(final Node<K,V> node, final int index) {
-            if (index == KEY)
-                blackColorKey = node.blackColorKey;
-            else
-                blackColorValue = node.blackColorValue;
+            state = state.withBlack(index, node.isBlack(index));
         }
 
         /* ********** START implementation of Map.Entry ********** */
@@ -3925,6 +6649,21 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
             return dataKey;
         }
 
+        /**
+         * @return true if the node holds its key as a long, which
+         *         longKey returns without boxing
+         */
+        boolean hasLongKey() {
+            return false;
+        }
+
+        /**
+         * @return the key as a long, only valid when the keys are Longs
+         */
+        long longKey() {
+            return ((Long)getKey()).longValue();
+        }
+
         /**
          * @return the value corresponding to this entry.
          */
@@ -3971,7 +6710,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
 
             Map.Entry e = (Map.Entry) o;
 
-            return dataKey.equals(e.getKey())
+            return getKey().equals(e.getKey())
                    && dataValue.equals(e.getValue());
         }
 
@@ -3980,14 +6719,7 @@ public class TransactionalBidiTreeMap<K,V> extends AbstractMap<K,V> implements T
          */
         @Override
         public int hashCode() {
-
-            if (!calculatedHashCode) {
-                hashcodeValue      = dataKey.hashCode()
-                                     ^ dataValue.hashCode();
-                calculatedHashCode = true;
-            }
-
-            return hashcodeValue;
+            return getKey().hashCode() ^ dataValue.hashCode();
         }
 
         /* **********  END  implementation of Map.Entry ********** */
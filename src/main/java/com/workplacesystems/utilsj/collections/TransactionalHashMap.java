@@ -19,8 +19,11 @@ package com.workplacesystems.utilsj.collections;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -58,11 +61,53 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      **/
     static final float DEFAULT_LOAD_FACTOR = 0.75f;
     
+    /**
+     * The number of entries in a bucket at which it's converted to a tree.
+     * Entries hidden from the current transaction count as well.
+     */
+    static final int TREEIFY_THRESHOLD = 8;
+    
+    /**
+     * Tree bins left with this many entries or fewer by a resize are
+     * converted back to lists.
+     */
+    static final int UNTREEIFY_THRESHOLD = 6;
+    
+    /**
+     * The smallest table whose buckets are converted to trees. Long buckets
+     * in smaller tables are left until the table is resized.
+     */
+    static final int MIN_TREEIFY_CAPACITY = 64;
+    
     /**
      * The table, resized as necessary. Length MUST Always be a power of two.
      */
     transient Entry<K,V>[] table;
     
+    /**
+     * The table being migrated into table by an incremental resize, null
+     * when no resize is in progress. Buckets below migrateIndex have been
+     * moved and are empty.
+     */
+    transient Entry<K,V>[] oldTable;
+    
+    /**
+     * The next bucket of oldTable to be moved into table.
+     */
+    transient int migrateIndex;
+    
+    /**
+     * The number of buckets of oldTable moved by each added entry. The old
+     * table has 1 / load factor buckets for each addition left before the
+     * next resize, which would otherwise have to finish the migration.
+     */
+    static final int MIGRATE_BUCKETS = 8;
+    
+    /**
+     * Whether resizes are spread over the following additions.
+     */
+    private boolean incremental_resize = false;
+    
     /**
      * The number of key-value mappings contained in this identity hash map.
      */
@@ -95,6 +140,24 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      */
     private boolean auto_commit = true;
     
+    /**
+     * The log each commit appends its changes to, if any
+     */
+    private transient TransactionLog<K,V> transaction_log = null;
+    
+    /**
+     * The number of entries in ADDED status for any transaction id.
+     */
+    private int added_count = 0;
+    
+    /**
+     * The number of entries ADDED and DELETED by each transaction id, used
+     * with added_count to give the size seen by a transaction id without
+     * iterating, and the hashes of the keys it changed so that commit and
+     * rollback only visit the buckets holding them.
+     */
+    private final HashMap<TransactionId,TransactionChanges> transaction_changes = new HashMap<TransactionId,TransactionChanges>();
+    
     
     /**
      * Constructs an empty <tt>HashMap</tt> with the specified initial
@@ -182,9 +245,13 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     {
     }
     
+    private String thread_session_key = null;
+
     private final String getThreadSessionKey()
     {
-        return ".TransactionalBidiTreeMap(" + hash_object.hashCode() + ")-attach_id";
+        if (thread_session_key == null)
+            thread_session_key = ".TransactionalBidiTreeMap(" + hash_object.hashCode() + ")-attach_id";
+        return thread_session_key;
     }
 
     /**
@@ -194,7 +261,7 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      */
     public void attach(final String attach_id)
     {
-        ThreadSession.putValue(getThreadSessionKey(), attach_id);
+        ThreadSession.putValue(getThreadSessionKey(), TransactionId.getTransactionId(attach_id));
     }
 
     /**
@@ -221,6 +288,8 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      */
     public void setAutoCommit(final boolean auto_commit)
     {
+        if (auto_commit && transaction_log != null)
+            throw new IllegalStateException("Auto commit can't be turned on while a transaction log is set");
         
         if (!this.auto_commit && auto_commit)
             commit(null);
@@ -233,6 +302,55 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
         return auto_commit;
     }
     
+    /**
+     * Sets the log that each commit appends its puts and removes to, or
+     * null to stop logging. Auto commit must be off as changes made with
+     * it on aren't logged. With group commit on the log isn't forced by
+     * the commit, the committing thread should call awaitDurable on the
+     * log once it no longer holds the map's lock.
+     *
+     * @param transaction_log the log, which is not written by the map's
+     *                        serialized form
+     * @throws IllegalStateException if auto commit is on
+     */
+    public void setTransactionLog(final TransactionLog<K,V> transaction_log)
+    {
+        if (transaction_log != null && auto_commit)
+            throw new IllegalStateException("Auto commit must be off to log transactions");
+        
+        this.transaction_log = transaction_log;
+    }
+    
+    public TransactionLog<K,V> getTransactionLog()
+    {
+        return transaction_log;
+    }
+    
+    /**
+     * Sets whether the map resizes incrementally. Normally the put that
+     * takes the map over its threshold rehashes every entry, which is a
+     * long pause for a large map. With incremental resizing that put only
+     * allocates the new table, and it and the following puts each move a
+     * few buckets of the old table until the old table is empty. Lookups
+     * check the old table for buckets that haven't been moved, and both
+     * tables are held until the resize finishes.
+     * <P>
+     * The default is off. A resize in progress carries on if incremental
+     * resizing is turned off.
+     *
+     * @param incremental_resize true to spread resizes over the
+     *                           following puts
+     */
+    public void setIncrementalResize(final boolean incremental_resize)
+    {
+        this.incremental_resize = incremental_resize;
+    }
+    
+    public boolean isIncrementalResize()
+    {
+        return incremental_resize;
+    }
+    
     /**
      * Commits the changes to the map so that all threads
      * see them.
@@ -255,32 +373,57 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
         if (auto_commit)
             return;
         
-        String id = getCurrentThreadId();
+        TransactionId id = getCurrentThreadId();
+        TransactionChanges changes = transaction_changes.remove(id);
+        if (changes == null)
+            return;
         
-        Entry<K,V> tab[] = table;
-        for (int i = 0; i < tab.length ; i++)
+        if (changes.scanTable(table.length))
         {
-            Entry<K,V> prev = table[i];
-            Entry<K,V> e = prev;
-            
-            while (e != null)
+            for (int i = 0; i < table.length; i++)
+                rollback(table, i, id);
+            if (oldTable != null)
             {
-                Entry<K,V> next = e.next;
-                if (e.is(Entry.ADDED, id))
-                {
-                    modCount++;
-                    size--;
-                    if (prev == e)
-                        table[i] = next;
-                    else
-                        prev.next = next;
-                }
-                else if (e.is(Entry.DELETED, id))
-                    e.setStatus(Entry.NO_CHANGE, null);
-                
+                for (int i = migrateIndex; i < oldTable.length; i++)
+                    rollback(oldTable, i, id);
+            }
+            return;
+        }
+        
+        int[] hashes = changes.distinctHashes();
+        for (int h = 0; h < hashes.length; h++)
+        {
+            Entry<K,V>[] tab = tableFor(hashes[h]);
+            rollback(tab, indexFor(hashes[h], tab.length), id);
+        }
+    }
+    
+    /**
+     * Rolls back the changes in bucket i of tab.
+     */
+    private void rollback(final Entry<K,V>[] tab, final int i, final TransactionId id)
+    {
+        Entry<K,V> prev = null;
+        Entry<K,V> e = tab[i];
+        
+        while (e != null)
+        {
+            Entry<K,V> next = e.next;
+            if (e.is(Entry.ADDED, id))
+            {
+                modCount++;
+                size--;
+                setStatus(e, Entry.NO_CHANGE, null);
+                unlinkEntry(tab, i, prev, e);
+            }
+            else
+            {
+                if (e.is(Entry.DELETED, id))
+                    setStatus(e, Entry.NO_CHANGE, null);
                 prev = e;
-                e = next;
             }
+            
+            e = next;
         }
     }
     
@@ -291,33 +434,222 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      * @param id the thread id to commit for, null commits
      *           all threads changes
      */
-    private void commit(final String id)
+    private void commit(final TransactionId id)
     {
+        if (id == null)
+        {
+            ArrayList<TransactionId> ids = new ArrayList<TransactionId>(transaction_changes.keySet());
+            for (Iterator<TransactionId> i = ids.iterator(); i.hasNext(); )
+                commit(i.next());
+            return;
+        }
         
-        Entry<K,V> tab[] = table;
-        for (int i = 0; i < tab.length ; i++)
+        TransactionChanges changes = transaction_changes.get(id);
+        if (changes == null)
+            return;
+        
+        // Log the changes before any entry is changed, so a key or value the
+        // log can't encode or a failed write leaves the transaction uncommitted
+        if (transaction_log != null)
+            log(changes, id);
+        
+        transaction_changes.remove(id);
+        
+        if (changes.scanTable(table.length))
         {
-            Entry<K,V> prev = table[i];
-            Entry<K,V> e = prev;
-            
-            while (e != null)
+            for (int i = 0; i < table.length; i++)
+                commit(table, i, id);
+            if (oldTable != null)
             {
-                Entry<K,V> next = e.next;
-                if (e.is(Entry.DELETED, id))
-                {
-                    modCount++;
-                    size--;
-                    if (prev == e)
-                        table[i] = next;
-                    else
-                        prev.next = next;
-                }
-                else if (e.is(Entry.ADDED, id))
-                    e.setStatus(Entry.NO_CHANGE, null);
-                
+                for (int i = migrateIndex; i < oldTable.length; i++)
+                    commit(oldTable, i, id);
+            }
+        }
+        else
+        {
+            int[] hashes = changes.distinctHashes();
+            for (int h = 0; h < hashes.length; h++)
+            {
+                Entry<K,V>[] tab = tableFor(hashes[h]);
+                commit(tab, indexFor(hashes[h], tab.length), id);
+            }
+        }
+    }
+    
+    /**
+     * Appends the changes of a transaction to the log without changing
+     * any entry.
+     */
+    private void log(final TransactionChanges changes, final TransactionId id)
+    {
+        TransactionLog<K,V>.Batch batch = transaction_log.newBatch();
+        
+        if (changes.scanTable(table.length))
+        {
+            for (int i = 0; i < table.length; i++)
+                log(table[i], id, batch, false, 0);
+            if (oldTable != null)
+            {
+                for (int i = migrateIndex; i < oldTable.length; i++)
+                    log(oldTable[i], id, batch, false, 0);
+            }
+        }
+        else
+        {
+            // Different hashes can share a bucket, so each visit only logs its own hash
+            int[] hashes = changes.distinctHashes();
+            for (int h = 0; h < hashes.length; h++)
+            {
+                Entry<K,V>[] tab = tableFor(hashes[h]);
+                log(tab[indexFor(hashes[h], tab.length)], id, batch, true, hashes[h]);
+            }
+        }
+        
+        if (!batch.isEmpty())
+            transaction_log.append(batch);
+    }
+    
+    /**
+     * Adds the changes in the bucket starting with first to the batch,
+     * only those for hash if match_hash is true.
+     */
+    private void log(final Entry<K,V> first, final TransactionId id, final TransactionLog<K,V>.Batch batch,
+            final boolean match_hash, final int hash)
+    {
+        for (Entry<K,V> e = first; e != null; e = e.next)
+        {
+            if (match_hash && e.hash != hash)
+                continue;
+            if (e.is(Entry.DELETED, id))
+                batch.remove(e.getKey());
+            else if (e.is(Entry.ADDED, id))
+                batch.put(e.getKey(), e.getValue());
+        }
+    }
+    
+    /**
+     * Commits the changes in bucket i of tab.
+     */
+    private void commit(final Entry<K,V>[] tab, final int i, final TransactionId id)
+    {
+        Entry<K,V> prev = null;
+        Entry<K,V> e = tab[i];
+        
+        while (e != null)
+        {
+            Entry<K,V> next = e.next;
+            if (e.is(Entry.DELETED, id))
+            {
+                modCount++;
+                size--;
+                setStatus(e, Entry.NO_CHANGE, null);
+                unlinkEntry(tab, i, prev, e);
+            }
+            else
+            {
+                if (e.is(Entry.ADDED, id))
+                    setStatus(e, Entry.NO_CHANGE, null);
                 prev = e;
-                e = next;
             }
+            
+            e = next;
+        }
+    }
+    
+    /**
+     * The number of entries ADDED and DELETED by a transaction id and the
+     * hashes of the entries it has changed. Hashes are kept rather than
+     * entries because resizing and treeifying move and replace entries,
+     * while the hash always leads to the bucket holding the key.
+     */
+    private static final class TransactionChanges
+    {
+        private int added = 0;
+        private int deleted = 0;
+        private int[] hashes = new int[4];
+        private int hash_count = 0;
+        
+        private void addHash(final int hash)
+        {
+            // Repeated changes to the same key are common, so skip those cheaply
+            if (hash_count > 0 && hashes[hash_count - 1] == hash)
+                return;
+            if (hash_count == hashes.length)
+                hashes = Arrays.copyOf(hashes, hash_count * 2);
+            hashes[hash_count++] = hash;
+        }
+        
+        /**
+         * Whether visiting every bucket is no more work than visiting the
+         * changed ones.
+         */
+        private boolean scanTable(final int capacity)
+        {
+            return hash_count >= capacity;
+        }
+        
+        /**
+         * The changed hashes without repeats, so no bucket is visited twice
+         * for the same key.
+         */
+        private int[] distinctHashes()
+        {
+            int[] sorted = Arrays.copyOf(hashes, hash_count);
+            Arrays.sort(sorted);
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++)
+            {
+                if (count == 0 || sorted[count - 1] != sorted[i])
+                    sorted[count++] = sorted[i];
+            }
+            return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+        }
+    }
+    
+    /**
+     * Set the transactional status of an entry keeping the ADDED and
+     * DELETED counts up to date.
+     *
+     * @param e the entry to be changed
+     * @param status the new status
+     * @param id the transaction id making the change or null for NO_CHANGE
+     */
+    private void setStatus(final Entry<K,V> e, final int status, final TransactionId id)
+    {
+        if (e.transactionId != null)
+        {
+            // The changes have already gone if the transaction is being committed or rolled back
+            TransactionChanges changes = transaction_changes.get(e.transactionId);
+            if (e.transationStatus == Entry.ADDED)
+            {
+                added_count--;
+                if (changes != null)
+                    changes.added--;
+            }
+            else if (e.transationStatus == Entry.DELETED && changes != null)
+                changes.deleted--;
+            if (changes != null && changes.added == 0 && changes.deleted == 0)
+                transaction_changes.remove(e.transactionId);
+        }
+        
+        e.setStatus(status, id);
+        
+        if (id != null)
+        {
+            TransactionChanges changes = transaction_changes.get(id);
+            if (changes == null)
+            {
+                changes = new TransactionChanges();
+                transaction_changes.put(id, changes);
+            }
+            if (status == Entry.ADDED)
+            {
+                added_count++;
+                changes.added++;
+            }
+            else if (status == Entry.DELETED)
+                changes.deleted++;
+            changes.addHash(e.hash);
         }
     }
     
@@ -325,16 +657,27 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      * Retrieve the current thread id for use by the
      * transaction code.
      *
-     * @return the thread id of the current thread
+     * @return the attached transaction id or the transaction
+     *         id of the current thread
      */
-    private String getCurrentThreadId()
+    private TransactionId getCurrentThreadId()
     {
-        String attach_id = (String)ThreadSession.getValue(getThreadSessionKey());
+        TransactionId attach_id = (TransactionId)ThreadSession.getValue(getThreadSessionKey());
         if (attach_id != null)
             return attach_id;
 
-        Thread thread = Thread.currentThread();
-        return thread.toString() + "(" + thread.hashCode() + ")";
+        return TransactionId.getThreadTransactionId();
+    }
+    
+    /**
+     * Retrieve the transaction id entries are checked against, so that
+     * lookups only resolve the current thread id once.
+     *
+     * @return null in auto commit mode, otherwise the current thread id
+     */
+    private TransactionId getTransactionId()
+    {
+        return auto_commit ? null : getCurrentThreadId();
     }
     
     /**
@@ -346,10 +689,22 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      */
     private boolean validEntry(final Entry<K,V> entry)
     {
-        if (auto_commit || entry == null)
-            return (entry != null);
+        return entry != null && validEntry(entry, getTransactionId());
+    }
+    
+    /**
+     * Checks that this entry is valid for a transaction
+     *
+     * @param entry the entry to be checked
+     * @param id the transaction id from getTransactionId
+     *
+     * @return true if entry is valid, otherwise false
+     */
+    private static boolean validEntry(final Entry<?,?> entry, final TransactionId id)
+    {
+        if (id == null)
+            return true;
         
-        String id = getCurrentThreadId();
         return !((entry.is(Entry.DELETED, id)) ||
                 (entry.is(Entry.ADDED, null) && entry.is(Entry.NO_CHANGE, id)));
     }
@@ -377,24 +732,18 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     }
     
     /**
-     * Returns a hash value for the specified object.  In addition to
-     * the object's own hashCode, this method applies a "supplemental
-     * hash function," which defends against poor quality hash functions.
-     * This is critical because HashMap uses power-of two length
-     * hash tables.<p>
-     *
-     * The shift distances in this function were chosen as the result
-     * of an automated search over the entire four-dimensional search space.
+     * Returns a hash value for the specified object.  The object's own
+     * hashCode is multiplied by the golden ratio constant, which carries
+     * every bit into the high bits, and the high half is then folded back
+     * into the low bits used by indexFor. This is one multiply instead of
+     * the four shift and add steps of the old supplemental hash, and
+     * spreads hashCodes that only differ in their high bits, or that are
+     * built by xoring other hashCodes as MultiKey does, over the table.
      */
     static int hash(Object x)
     {
-        int h = x.hashCode();
-        
-        h += ~(h << 9);
-        h ^=  (h >>> 14);
-        h +=  (h << 4);
-        h ^=  (h >>> 10);
-        return h;
+        int h = x.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
     }
     
     /**
@@ -413,6 +762,42 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
         return h & (length-1);
     }
     
+    /**
+     * Returns the table holding the bucket for a hash, which is oldTable
+     * if an incremental resize hasn't moved the bucket yet.
+     */
+    private Entry<K,V>[] tableFor(int hash)
+    {
+        Entry<K,V>[] old = oldTable;
+        if (old != null && indexFor(hash, old.length) >= migrateIndex)
+            return old;
+        return table;
+    }
+    
+    /**
+     * Returns the first entry of bucket i of tab that could be for key k.
+     * Tree bins only return entries whose keys compare equal to k, so
+     * entries for other keys are never visited whether they are visible
+     * to the transaction or not.
+     */
+    private static <K,V> Entry<K,V> firstCandidate(Entry<K,V>[] tab, int i, int hash, Object k)
+    {
+        Entry<K,V> e = tab[i];
+        if (e instanceof TreeEntry)
+            return TreeEntry.first(((TreeEntry<K,V>)e).root(), hash, k);
+        return e;
+    }
+    
+    /**
+     * Returns the entry after e that could be for key k.
+     */
+    private static <K,V> Entry<K,V> nextCandidate(Entry<K,V> e, int hash, Object k)
+    {
+        if (e instanceof TreeEntry)
+            return ((TreeEntry<K,V>)e).nextEqual(hash, k);
+        return e.next;
+    }
+    
     /**
      * Returns the number of key-value mappings in this map.
      *
@@ -429,11 +814,11 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
         if (countAll || auto_commit)
             return size;
         
-        int size = 0;
-        for (Iterator<Map.Entry<K,V>> i = entrySet().iterator(); i.hasNext(); i.next())
-        {
-            size++;
-        }
+        // Entries added by other transactions and entries deleted by this transaction aren't visible
+        TransactionChanges changes = transaction_changes.get(getCurrentThreadId());
+        int size = this.size - added_count;
+        if (changes != null)
+            size += changes.added - changes.deleted;
         return size;
     }
     
@@ -453,18 +838,8 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     @Override
     public V get(Object key)
     {
-        Object k = maskNull(key);
-        int hash = hash(k);
-        int i = indexFor(hash, table.length);
-        Entry<K,V> e = table[i];
-        while (true)
-        {
-            if (e == null)
-                return null;
-            if (e.hash == hash && validEntry(e) && eq(k, e.key))
-                return e.value;
-            e = e.next;
-        }
+        Entry<K,V> e = getEntry(key);
+        return (e == null ? null : e.value);
     }
     
     /**
@@ -478,17 +853,7 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     @Override
     public boolean containsKey(Object key)
     {
-        Object k = maskNull(key);
-        int hash = hash(k);
-        int i = indexFor(hash, table.length);
-        Entry<K,V> e = table[i];
-        while (e != null)
-        {
-            if (e.hash == hash && validEntry(e) && eq(k, e.key))
-                return true;
-            e = e.next;
-        }
-        return false;
+        return getEntry(key) != null;
     }
     
     /**
@@ -500,10 +865,11 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     {
         Object k = maskNull(key);
         int hash = hash(k);
-        int i = indexFor(hash, table.length);
-        Entry<K,V> e = table[i];
-        while (e != null && !(e.hash == hash && validEntry(e) && eq(k, e.key)))
-            e = e.next;
+        TransactionId id = getTransactionId();
+        Entry<K,V>[] tab = tableFor(hash);
+        Entry<K,V> e = firstCandidate(tab, indexFor(hash, tab.length), hash, k);
+        while (e != null && !(e.hash == hash && validEntry(e, id) && eq(k, e.key)))
+            e = nextCandidate(e, hash, k);
         return e;
     }
     
@@ -524,18 +890,22 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     {
         K k = maskNull(key);
         int hash = hash(k);
-        int i = indexFor(hash, table.length);
+        Entry<K,V>[] tab = tableFor(hash);
+        int i = indexFor(hash, tab.length);
+        TransactionId id = getTransactionId();
         
         V oldValue = null;
-        for (Entry<K,V> e = table[i]; e != null; e = e.next)
+        int binCount = 0;
+        for (Entry<K,V> e = firstCandidate(tab, i, hash, k); e != null; e = nextCandidate(e, hash, k))
         {
+            binCount++;
             if (e.hash == hash && eq(k, e.key))
             {
                 //check if someone else has a pending add for the same key
                 if (e.is(Entry.ADDED, null) && !e.is(Entry.ADDED, getCurrentThreadId()))
                     throw new ConcurrentModificationException();
                 
-                if (validEntry(e))
+                if (validEntry(e, id))
                 {
                     oldValue = e.value;
                     //if not transactional can reuse entries
@@ -545,13 +915,13 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
                         return oldValue;
                     }
                     else
-                        e.setStatus(Entry.DELETED, getCurrentThreadId());
+                        setStatus(e, Entry.DELETED, id);
                 }
             }
         }
         
         modCount++;
-        addEntry(hash, k, value, i);
+        addEntry(tab, hash, k, value, i, binCount);
         return oldValue;
     }
     
@@ -565,15 +935,18 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     {
         K k = maskNull(key);
         int hash = hash(k);
-        int i = indexFor(hash, table.length);
+        Entry<K,V>[] tab = tableFor(hash);
+        int i = indexFor(hash, tab.length);
         
         /**
          * Look for preexisting entry for key.  This will never happen for
          * clone or deserialize.  It will only happen for construction if the
          * input Map is a sorted map whose ordering is inconsistent w/ equals.
          */
-        for (Entry<K,V> e = table[i]; e != null; e = e.next)
+        int binCount = 0;
+        for (Entry<K,V> e = firstCandidate(tab, i, hash, k); e != null; e = nextCandidate(e, hash, k))
         {
+            binCount++;
             if (e.hash == hash && eq(k, e.key))
             {
                 e.value = value;
@@ -582,6 +955,8 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
         }
         
         createEntry(hash, k, value, i);
+        if (binCount >= TREEIFY_THRESHOLD - 1)
+            treeifyBin(tab, i);
     }
     
     void putAllForCreate(Map<? extends K, ? extends V> m)
@@ -610,17 +985,29 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     @SuppressWarnings("unchecked")
     void resize(int newCapacity)
     {
-        Entry<K,V>[] oldTable = table;
-        int oldCapacity = oldTable.length;
+        int oldCapacity = table.length;
         if (oldCapacity == MAXIMUM_CAPACITY)
         {
             threshold = Integer.MAX_VALUE;
             return;
         }
         
+        // An incremental resize still in progress has to finish first
+        if (oldTable != null)
+            migrate(oldTable.length);
+        
         Entry<K,V>[] newTable = new Entry[newCapacity];
-        transfer(newTable);
-        table = newTable;
+        if (incremental_resize)
+        {
+            oldTable = table;
+            migrateIndex = 0;
+            table = newTable;
+        }
+        else
+        {
+            transfer(newTable);
+            table = newTable;
+        }
         threshold = (int)(newCapacity * loadFactor);
     }
     
@@ -630,25 +1017,101 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     void transfer(Entry<K,V>[] newTable)
     {
         Entry<K,V>[] src = table;
-        int newCapacity = newTable.length;
         for (int j = 0; j < src.length; j++)
+            transferBin(src, j, newTable);
+    }
+    
+    /**
+     * Moves the next buckets of oldTable into table, dropping oldTable
+     * once it's empty.
+     *
+     * @param buckets the most buckets to move
+     */
+    private void migrate(int buckets)
+    {
+        Entry<K,V>[] src = oldTable;
+        int end = Math.min(src.length, migrateIndex + buckets);
+        for (int j = migrateIndex; j < end; j++)
+            transferBin(src, j, table);
+        migrateIndex = end;
+        if (end == src.length)
         {
-            Entry<K,V> e = src[j];
-            if (e != null)
+            oldTable = null;
+            migrateIndex = 0;
+        }
+    }
+    
+    /**
+     * Moves the entries of bucket j of src into newTable.
+     */
+    private static <K,V> void transferBin(Entry<K,V>[] src, int j, Entry<K,V>[] newTable)
+    {
+        Entry<K,V> e = src[j];
+        if (e == null)
+            return;
+        
+        int newCapacity = newTable.length;
+        src[j] = null;
+        boolean tree = e instanceof TreeEntry;
+        do
+        {
+            Entry<K,V> next = e.next;
+            int i = indexFor(e.hash, newCapacity);
+            e.next = newTable[i];
+            newTable[i] = e;
+            e = next;
+        } while (e != null);
+        
+        // Only the buckets j + n * src.length receive entries from bucket j
+        if (tree)
+        {
+            for (int i = j; i < newCapacity; i += src.length)
             {
-                src[j] = null;
-                do
-                {
-                    Entry<K,V> next = e.next;
-                    int i = indexFor(e.hash, newCapacity);
-                    e.next = newTable[i];
-                    newTable[i] = e;
-                    e = next;
-                } while (e != null);
+                if (newTable[i] != null)
+                    rebuildBin(newTable, i);
             }
         }
     }
     
+    /**
+     * Converts bucket i of tab to a tree if it has grown long enough.
+     */
+    private static <K,V> void treeifyBin(Entry<K,V>[] tab, int i)
+    {
+        if (tab.length >= MIN_TREEIFY_CAPACITY && !(tab[i] instanceof TreeEntry))
+            TreeEntry.treeify(tab, i);
+    }
+    
+    /**
+     * Rebuilds a bucket that a resize has moved some of the entries of a
+     * tree bin into, as a tree if it's still long and as a list if not.
+     */
+    private static <K,V> void rebuildBin(Entry<K,V>[] tab, int i)
+    {
+        int count = 0;
+        for (Entry<K,V> e = tab[i]; e != null; e = e.next)
+            count++;
+        
+        if (count > UNTREEIFY_THRESHOLD)
+        {
+            TreeEntry.treeify(tab, i);
+            return;
+        }
+        
+        Entry<K,V> head = null;
+        Entry<K,V> tail = null;
+        for (Entry<K,V> e = tab[i]; e != null; e = e.next)
+        {
+            Entry<K,V> copy = new Entry<K,V>(e, null);
+            if (tail == null)
+                head = copy;
+            else
+                tail.next = copy;
+            tail = copy;
+        }
+        tab[i] = head;
+    }
+    
     /**
      * Copies all of the mappings from the specified map to this map
      * These mappings will replace any mappings that
@@ -673,7 +1136,7 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
          * By using the conservative calculation, we subject ourself
          * to at most one extra resize.
          */
-        if (numKeysToBeAdded > threshold)
+        if (numKeysToBeAdded > threshold && !incremental_resize)
         {
             int targetCapacity = (int)(numKeysToBeAdded / loadFactor + 1);
             if (targetCapacity > MAXIMUM_CAPACITY)
@@ -717,14 +1180,16 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     {
         Object k = maskNull(key);
         int hash = hash(k);
-        int i = indexFor(hash, table.length);
-        Entry<K,V> prev = table[i];
-        Entry<K,V> e = prev;
+        Entry<K,V>[] tab = tableFor(hash);
+        int i = indexFor(hash, tab.length);
+        TransactionId id = getTransactionId();
+        Entry<K,V> prev = null;
+        Entry<K,V> e = firstCandidate(tab, i, hash, k);
         
         while (e != null)
         {
-            Entry<K,V> next = e.next;
-            if (e.hash == hash && validEntry(e) && eq(k, e.key))
+            Entry<K,V> next = nextCandidate(e, hash, k);
+            if (e.hash == hash && validEntry(e, id) && eq(k, e.key))
             {
                 if (e.is(Entry.DELETED, null) && !e.is(Entry.DELETED, getCurrentThreadId()))
                     throw new ConcurrentModificationException();
@@ -733,14 +1198,11 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
                 {
                     modCount++;
                     size--;
-                    if (prev == e)
-                        table[i] = next;
-                    else
-                        prev.next = next;
+                    unlinkEntry(tab, i, prev, e);
                     return e;
                 }
                 else
-                    e.setStatus(Entry.DELETED, getCurrentThreadId());
+                    setStatus(e, Entry.DELETED, id);
             }
             prev = e;
             e = next;
@@ -761,26 +1223,25 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
         Map.Entry<K,V> entry = (Map.Entry<K,V>)o;
         Object k = maskNull(entry.getKey());
         int hash = hash(k);
-        int i = indexFor(hash, table.length);
-        Entry<K,V> prev = table[i];
-        Entry<K,V> e = prev;
+        Entry<K,V>[] tab = tableFor(hash);
+        int i = indexFor(hash, tab.length);
+        TransactionId id = getTransactionId();
+        Entry<K,V> prev = null;
+        Entry<K,V> e = firstCandidate(tab, i, hash, k);
         
         while (e != null)
         {
-            Entry<K,V> next = e.next;
-            if (e.hash == hash && validEntry(e) && e.equals(entry))
+            Entry<K,V> next = nextCandidate(e, hash, k);
+            if (e.hash == hash && validEntry(e, id) && e.equals(entry))
             {
                 if (auto_commit)
                 {
                     modCount++;
                     size--;
-                    if (prev == e)
-                        table[i] = next;
-                    else
-                        prev.next = next;
+                    unlinkEntry(tab, i, prev, e);
                 }
                 else
-                    e.setStatus(Entry.DELETED, getCurrentThreadId());
+                    setStatus(e, Entry.DELETED, id);
                 return e;
             }
             prev = e;
@@ -800,7 +1261,11 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
         Entry<K,V> tab[] = table;
         for (int i = 0; i < tab.length; i++)
             tab[i] = null;
+        oldTable = null;
+        migrateIndex = 0;
         size = 0;
+        added_count = 0;
+        transaction_changes.clear();
     }
     
     /**
@@ -813,14 +1278,24 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      */
     @Override
     public boolean containsValue(Object value)
+    {
+        TransactionId id = getTransactionId();
+        if (containsValue(table, 0, value, id))
+            return true;
+        return oldTable != null && containsValue(oldTable, migrateIndex, value, id);
+    }
+    
+    /**
+     * Checks the buckets of tab from index from for value.
+     */
+    private static boolean containsValue(Entry<?,?>[] tab, int from, Object value, TransactionId id)
     {
         if (value == null)
-            return containsNullValue();
+            return containsNullValue(tab, from, id);
         
-        Entry<K,V> tab[] = table;
-        for (int i = 0; i < tab.length ; i++)
-            for (Entry<K,V> e = tab[i] ; e != null ; e = e.next)
-                if (validEntry(e) && value.equals(e.value))
+        for (int i = from; i < tab.length ; i++)
+            for (Entry<?,?> e = tab[i] ; e != null ; e = e.next)
+                if (validEntry(e, id) && value.equals(e.value))
                     return true;
         return false;
     }
@@ -828,24 +1303,23 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
     /**
      * Special-case code for containsValue with null argument
      **/
-    private boolean containsNullValue()
+    private static boolean containsNullValue(Entry<?,?>[] tab, int from, TransactionId id)
     {
-        Entry<K,V> tab[] = table;
-        for (int i = 0; i < tab.length ; i++)
-            for (Entry<K,V> e = tab[i] ; e != null ; e = e.next)
-                if (validEntry(e) && e.value == null)
+        for (int i = from; i < tab.length ; i++)
+            for (Entry<?,?> e = tab[i] ; e != null ; e = e.next)
+                if (validEntry(e, id) && e.value == null)
                     return true;
         return false;
     }
     
-    private static final class Entry<K,V> implements Map.Entry<K,V>
+    private static class Entry<K,V> implements Map.Entry<K,V>
     {
         final K key;
         V value;
         final int hash;
         Entry<K,V> next;
         private int          transationStatus;
-        private String       transactionId;
+        private TransactionId transactionId;
         
         private static final int NO_CHANGE = 0;
         private static final int DELETED = 1;
@@ -864,18 +1338,31 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
             transactionId      = null;
         }
         
-        private void setStatus(final int status, final String id)
+        /**
+         * Create a copy of an entry, keeping its transactional status.
+         */
+        Entry(Entry<K,V> e, Entry<K,V> n)
+        {
+            value = e.value;
+            next = n;
+            key = e.key;
+            hash = e.hash;
+            transationStatus   = e.transationStatus;
+            transactionId      = e.transactionId;
+        }
+        
+        private void setStatus(final int status, final TransactionId id)
         {
             transationStatus = status;
             transactionId = id;
         }
         
-        private boolean is(final int status, final String id)
+        private boolean is(final int status, final TransactionId id)
         {
             if (transactionId == null)
                 return status == NO_CHANGE;
             
-            if (id == null || transactionId.equals(id))
+            if (id == null || transactionId == id)
                 return transationStatus == status;
             
             return status == NO_CHANGE;
@@ -939,11 +1426,15 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      *
      * Subclass overrides this to alter the behavior of put method.
      */
-    void addEntry(int hash, K key, V value, int bucketIndex)
+    void addEntry(Entry<K,V>[] tab, int hash, K key, V value, int bucketIndex, int binCount)
     {
-        table[bucketIndex] = new Entry<K,V>(hash, key, value, table[bucketIndex]);
+        Entry<K,V> e = linkEntry(tab, hash, key, value, bucketIndex);
         if (!auto_commit)
-            table[bucketIndex].setStatus(Entry.ADDED, getCurrentThreadId());
+            setStatus(e, Entry.ADDED, getCurrentThreadId());
+        if (binCount >= TREEIFY_THRESHOLD - 1)
+            treeifyBin(tab, bucketIndex);
+        if (oldTable != null)
+            migrate(MIGRATE_BUCKETS);
         if (size++ >= threshold)
             resize(2 * table.length);
     }
@@ -958,39 +1449,529 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
      */
     void createEntry(int hash, K key, V value, int bucketIndex)
     {
-        table[bucketIndex] = new Entry<K,V>(hash, key, value, table[bucketIndex]);
+        linkEntry(table, hash, key, value, bucketIndex);
         size++;
     }
     
+    /**
+     * Creates a new entry at the head of the specified bucket of tab,
+     * adding it to the tree as well if the bucket is a tree bin.
+     */
+    private static <K,V> Entry<K,V> linkEntry(Entry<K,V>[] tab, int hash, K key, V value, int bucketIndex)
+    {
+        Entry<K,V> head = tab[bucketIndex];
+        if (head instanceof TreeEntry)
+        {
+            TreeEntry<K,V> e = new TreeEntry<K,V>(hash, key, value, head);
+            TreeEntry<K,V> tree_head = (TreeEntry<K,V>)head;
+            tree_head.prev = e;
+            TreeEntry.insert(tree_head.root(), e);
+            return tab[bucketIndex] = e;
+        }
+        return tab[bucketIndex] = new Entry<K,V>(hash, key, value, head);
+    }
+    
+    /**
+     * Removes an entry from the specified bucket of tab.
+     *
+     * @param prev the entry before e in a list bucket or null if e is
+     *             first, tree bins use the links in e instead
+     */
+    private static <K,V> void unlinkEntry(Entry<K,V>[] tab, int bucketIndex, Entry<K,V> prev, Entry<K,V> e)
+    {
+        if (e instanceof TreeEntry)
+        {
+            TreeEntry<K,V> t = (TreeEntry<K,V>)e;
+            TreeEntry.remove(t);
+            if (t.prev == null)
+                tab[bucketIndex] = t.next;
+            else
+                t.prev.next = t.next;
+            if (t.next != null)
+                ((TreeEntry<K,V>)t.next).prev = t.prev;
+        }
+        else if (prev == null)
+            tab[bucketIndex] = e.next;
+        else
+            prev.next = e.next;
+    }
+    
+    /**
+     * An entry of a bucket that has grown long enough to be converted to
+     * a red-black tree, ordered by hash, then by class name and then by
+     * key where the keys are Comparable. The entries of a tree bin are
+     * still chained by next, so code that visits every entry in a bucket
+     * works on both kinds of bucket, and by prev so an entry can be
+     * unlinked without walking the bucket.
+     * <p>
+     * Entries for the same key, such as the entry a transaction has
+     * DELETED and the entry it has ADDED in its place, compare equal and so
+     * are next to each other in the tree. Keys of the same class that
+     * aren't Comparable compare equal too and are searched in the same way.
+     */
+    private static final class TreeEntry<K,V> extends Entry<K,V>
+    {
+        TreeEntry<K,V> parent;
+        TreeEntry<K,V> left;
+        TreeEntry<K,V> right;
+        TreeEntry<K,V> prev;
+        boolean red;
+        
+        TreeEntry(int h, K k, V v, Entry<K,V> n)
+        {
+            super(h, k, v, n);
+        }
+        
+        TreeEntry(Entry<K,V> e)
+        {
+            super(e, null);
+        }
+        
+        @SuppressWarnings("unchecked")
+        private static int compare(int h1, Object k1, int h2, Object k2)
+        {
+            if (h1 != h2)
+                return h1 < h2 ? -1 : 1;
+            Class<?> c1 = k1.getClass();
+            Class<?> c2 = k2.getClass();
+            // Keys of different classes are kept apart so the order stays transitive
+            if (c1 != c2)
+                return c1.getName().compareTo(c2.getName());
+            if (k1 instanceof Comparable)
+                return ((Comparable<Object>)k1).compareTo(k2);
+            return 0;
+        }
+        
+        TreeEntry<K,V> root()
+        {
+            TreeEntry<K,V> r = this;
+            while (r.parent != null)
+                r = r.parent;
+            return r;
+        }
+        
+        /**
+         * @return the first entry in the tree comparing equal to the key
+         */
+        static <K,V> TreeEntry<K,V> first(TreeEntry<K,V> p, int h, Object k)
+        {
+            TreeEntry<K,V> first = null;
+            while (p != null)
+            {
+                int cmp = compare(h, k, p.hash, p.key);
+                if (cmp > 0)
+                    p = p.right;
+                else
+                {
+                    if (cmp == 0)
+                        first = p;
+                    p = p.left;
+                }
+            }
+            return first;
+        }
+        
+        /**
+         * @return the next entry in the tree if it compares equal to the key
+         */
+        TreeEntry<K,V> nextEqual(int h, Object k)
+        {
+            TreeEntry<K,V> s;
+            if (right != null)
+            {
+                s = right;
+                while (s.left != null)
+                    s = s.left;
+            }
+            else
+            {
+                TreeEntry<K,V> p = this;
+                s = parent;
+                while (s != null && p == s.right)
+                {
+                    p = s;
+                    s = s.parent;
+                }
+            }
+            return (s != null && compare(h, k, s.hash, s.key) == 0) ? s : null;
+        }
+        
+        /**
+         * Rebuilds bucket i of tab as a tree, replacing list entries with
+         * TreeEntries and keeping the order of the bucket.
+         */
+        static <K,V> void treeify(Entry<K,V>[] tab, int i)
+        {
+            TreeEntry<K,V> root = null;
+            TreeEntry<K,V> head = null;
+            TreeEntry<K,V> tail = null;
+            Entry<K,V> e = tab[i];
+            while (e != null)
+            {
+                Entry<K,V> next = e.next;
+                TreeEntry<K,V> t = (e instanceof TreeEntry) ? (TreeEntry<K,V>)e : new TreeEntry<K,V>(e);
+                t.next = null;
+                t.prev = tail;
+                if (tail == null)
+                    head = t;
+                else
+                    tail.next = t;
+                tail = t;
+                root = insert(root, t);
+                e = next;
+            }
+            tab[i] = head;
+        }
+        
+        /**
+         * Adds x to the tree, after any entries comparing equal to it.
+         *
+         * @return the new root of the tree
+         */
+        static <K,V> TreeEntry<K,V> insert(TreeEntry<K,V> root, TreeEntry<K,V> x)
+        {
+            x.left = null;
+            x.right = null;
+            if (root == null)
+            {
+                x.parent = null;
+                x.red = false;
+                return x;
+            }
+            
+            TreeEntry<K,V> p = root;
+            while (true)
+            {
+                if (compare(x.hash, x.key, p.hash, p.key) < 0)
+                {
+                    if (p.left == null)
+                    {
+                        p.left = x;
+                        break;
+                    }
+                    p = p.left;
+                }
+                else
+                {
+                    if (p.right == null)
+                    {
+                        p.right = x;
+                        break;
+                    }
+                    p = p.right;
+                }
+            }
+            x.parent = p;
+            fixAfterInsertion(x);
+            while (root.parent != null)
+                root = root.parent;
+            return root;
+        }
+        
+        /**
+         * Removes z from the tree. The links of the entry are moved rather
+         * than its contents, as the entry objects are handed out by the
+         * iterators.
+         */
+        static <K,V> void remove(TreeEntry<K,V> z)
+        {
+            if (z.left != null && z.right != null)
+            {
+                TreeEntry<K,V> s = z.right;
+                while (s.left != null)
+                    s = s.left;
+                swapPositions(z, s);
+            }
+            
+            TreeEntry<K,V> replacement = (z.left != null) ? z.left : z.right;
+            if (replacement != null)
+            {
+                replacement.parent = z.parent;
+                replaceChild(z.parent, z, replacement);
+                z.left = z.right = z.parent = null;
+                if (!z.red)
+                    fixAfterDeletion(replacement);
+            }
+            else if (z.parent != null)
+            {
+                // z is its own phantom replacement during the fix up
+                if (!z.red)
+                    fixAfterDeletion(z);
+                replaceChild(z.parent, z, null);
+                z.parent = null;
+            }
+        }
+        
+        /**
+         * Swaps the tree positions and colours of z and its successor s.
+         */
+        private static <K,V> void swapPositions(TreeEntry<K,V> z, TreeEntry<K,V> s)
+        {
+            boolean red = s.red;
+            s.red = z.red;
+            z.red = red;
+            
+            TreeEntry<K,V> sr = s.right;
+            TreeEntry<K,V> zp = z.parent;
+            TreeEntry<K,V> zl = z.left;
+            if (s == z.right)
+            {
+                z.parent = s;
+                s.right = z;
+            }
+            else
+            {
+                TreeEntry<K,V> sp = s.parent;
+                z.parent = sp;
+                sp.left = z;
+                s.right = z.right;
+                s.right.parent = s;
+            }
+            z.left = null;
+            z.right = sr;
+            if (sr != null)
+                sr.parent = z;
+            s.left = zl;
+            zl.parent = s;
+            s.parent = zp;
+            replaceChild(zp, z, s);
+        }
+        
+        private static <K,V> void replaceChild(TreeEntry<K,V> p, TreeEntry<K,V> child, TreeEntry<K,V> replacement)
+        {
+            if (p != null)
+            {
+                if (p.left == child)
+                    p.left = replacement;
+                else
+                    p.right = replacement;
+            }
+        }
+        
+        private static <K,V> void rotateLeft(TreeEntry<K,V> p)
+        {
+            if (p == null)
+                return;
+            TreeEntry<K,V> r = p.right;
+            p.right = r.left;
+            if (r.left != null)
+                r.left.parent = p;
+            r.parent = p.parent;
+            replaceChild(p.parent, p, r);
+            r.left = p;
+            p.parent = r;
+        }
+        
+        private static <K,V> void rotateRight(TreeEntry<K,V> p)
+        {
+            if (p == null)
+                return;
+            TreeEntry<K,V> l = p.left;
+            p.left = l.right;
+            if (l.right != null)
+                l.right.parent = p;
+            l.parent = p.parent;
+            replaceChild(p.parent, p, l);
+            l.right = p;
+            p.parent = l;
+        }
+        
+        private static boolean isRed(TreeEntry<?,?> p)
+        {
+            return p != null && p.red;
+        }
+        
+        private static void setRed(TreeEntry<?,?> p, boolean red)
+        {
+            if (p != null)
+                p.red = red;
+        }
+        
+        private static <K,V> TreeEntry<K,V> parentOf(TreeEntry<K,V> p)
+        {
+            return p == null ? null : p.parent;
+        }
+        
+        private static <K,V> TreeEntry<K,V> leftOf(TreeEntry<K,V> p)
+        {
+            return p == null ? null : p.left;
+        }
+        
+        private static <K,V> TreeEntry<K,V> rightOf(TreeEntry<K,V> p)
+        {
+            return p == null ? null : p.right;
+        }
+        
+        private static <K,V> void fixAfterInsertion(TreeEntry<K,V> x)
+        {
+            x.red = true;
+            while (x.parent != null && x.parent.red)
+            {
+                TreeEntry<K,V> g = parentOf(parentOf(x));
+                if (parentOf(x) == leftOf(g))
+                {
+                    TreeEntry<K,V> y = rightOf(g);
+                    if (isRed(y))
+                    {
+                        setRed(parentOf(x), false);
+                        setRed(y, false);
+                        setRed(g, true);
+                        x = g;
+                    }
+                    else
+                    {
+                        if (x == rightOf(parentOf(x)))
+                        {
+                            x = parentOf(x);
+                            rotateLeft(x);
+                        }
+                        setRed(parentOf(x), false);
+                        setRed(parentOf(parentOf(x)), true);
+                        rotateRight(parentOf(parentOf(x)));
+                    }
+                }
+                else
+                {
+                    TreeEntry<K,V> y = leftOf(g);
+                    if (isRed(y))
+                    {
+                        setRed(parentOf(x), false);
+                        setRed(y, false);
+                        setRed(g, true);
+                        x = g;
+                    }
+                    else
+                    {
+                        if (x == leftOf(parentOf(x)))
+                        {
+                            x = parentOf(x);
+                            rotateRight(x);
+                        }
+                        setRed(parentOf(x), false);
+                        setRed(parentOf(parentOf(x)), true);
+                        rotateLeft(parentOf(parentOf(x)));
+                    }
+                }
+            }
+            while (x.parent != null)
+                x = x.parent;
+            x.red = false;
+        }
+        
+        private static <K,V> void fixAfterDeletion(TreeEntry<K,V> x)
+        {
+            while (x.parent != null && !x.red)
+            {
+                if (x == leftOf(parentOf(x)))
+                {
+                    TreeEntry<K,V> sib = rightOf(parentOf(x));
+                    if (isRed(sib))
+                    {
+                        setRed(sib, false);
+                        setRed(parentOf(x), true);
+                        rotateLeft(parentOf(x));
+                        sib = rightOf(parentOf(x));
+                    }
+                    if (!isRed(leftOf(sib)) && !isRed(rightOf(sib)))
+                    {
+                        setRed(sib, true);
+                        x = parentOf(x);
+                    }
+                    else
+                    {
+                        if (!isRed(rightOf(sib)))
+                        {
+                            setRed(leftOf(sib), false);
+                            setRed(sib, true);
+                            rotateRight(sib);
+                            sib = rightOf(parentOf(x));
+                        }
+                        setRed(sib, isRed(parentOf(x)));
+                        setRed(parentOf(x), false);
+                        setRed(rightOf(sib), false);
+                        rotateLeft(parentOf(x));
+                        x = x.root();
+                    }
+                }
+                else
+                {
+                    TreeEntry<K,V> sib = leftOf(parentOf(x));
+                    if (isRed(sib))
+                    {
+                        setRed(sib, false);
+                        setRed(parentOf(x), true);
+                        rotateRight(parentOf(x));
+                        sib = leftOf(parentOf(x));
+                    }
+                    if (!isRed(rightOf(sib)) && !isRed(leftOf(sib)))
+                    {
+                        setRed(sib, true);
+                        x = parentOf(x);
+                    }
+                    else
+                    {
+                        if (!isRed(leftOf(sib)))
+                        {
+                            setRed(rightOf(sib), false);
+                            setRed(sib, true);
+                            rotateLeft(sib);
+                            sib = leftOf(parentOf(x));
+                        }
+                        setRed(sib, isRed(parentOf(x)));
+                        setRed(parentOf(x), false);
+                        setRed(leftOf(sib), false);
+                        rotateRight(parentOf(x));
+                        x = x.root();
+                    }
+                }
+            }
+            x.red = false;
+        }
+    }
+    
     private abstract class HashIterator<E> implements Iterator<E>
     {
         Entry<K,V> next;                  // next entry to return
         int expectedModCount;        // For fast-fail
+        Entry<K,V>[] t;              // table being walked
         int index;                   // current slot
+        int lowest;                  // lowest slot of t to walk
         Entry<K,V> current;               // current entry
         
         HashIterator()
         {
             expectedModCount = modCount;
-            Entry<K,V>[] t = table;
-            int i = t.length;
-            Entry<K,V> n = null;
-            if (size != 0)
-            { // advance to first entry
-                while (i > 0 && n == null)
+            t = table;
+            index = t.length;
+            lowest = 0;
+            if (size != 0) // advance to first entry
+                next = advance(null);
+        }
+        
+        /**
+         * Finds the next valid entry starting from n, moving on to the
+         * buckets of oldTable that haven't been migrated after table.
+         */
+        private Entry<K,V> advance(Entry<K,V> n)
+        {
+            while (n != null && !validEntry(n))
+                n = n.next;
+            while (n == null)
+            {
+                if (index <= lowest)
                 {
-                    Entry<K,V> test = t[--i];
-                    while (n==null && test!=null)
-                    {
-                        if (validEntry(test))
-                            n = test;
-                        else
-                            test = test.next;
-                    }
+                    if (t != table || oldTable == null)
+                        return null;
+                    t = oldTable;
+                    index = t.length;
+                    lowest = migrateIndex;
+                    continue;
                 }
+                n = t[--index];
+                while (n != null && !validEntry(n))
+                    n = n.next;
             }
-            next = n;
-            index = i;
+            return n;
         }
         
         public boolean hasNext()
@@ -1006,24 +1987,7 @@ public class TransactionalHashMap<K,V> extends AbstractMap<K,V> implements Trans
             if (e == null)
                 throw new NoSuchElementException();
             
-            Entry<K,V> n = e.next;
-            while (n!=null && !validEntry(n))
-                n = n.next;
-            Entry<K,V>[] t = table;
-            int i = index;
-            while (i > 0 && n == null)
-            {
-                Entry<K,V> test = t[--i];
-                while (n==null && test!=null)
-                {
-                    if (validEntry(test))
-                        n = test;
-                    else
-                        test = test.next;
-                }
-            }
-            index = i;
-            next = n;
+            next = advance(e.next);
             return current = e;
         }
         
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+
+/**
+ * A TransactionalBidiTreeMap with long keys in their natural order. Each
+ * node holds its key in a long field, and the get, containsKey and remove
+ * overloads taking a long search the key tree comparing those fields,
+ * without boxing the key, dereferencing the Long of each node or
+ * dispatching to compareTo, and the put overload creates the node from
+ * the long. Everything else is inherited, so the map is still a
+ * TransactionalSortedFilterableBidiMap&lt;Long,V&gt;; the key tree compares
+ * the long fields there too, and a node only boxes its key when the
+ * Map.Entry methods or the other views ask for it.
+ */
+public class TransactionalLongBidiTreeMap<V> extends TransactionalBidiTreeMap<Long,V> {
+
+    private static final long serialVersionUID = 6470178203155619224L;
+
+    /**
+     * A node holding its key only as a long, boxed when it is asked for.
+     */
+    static final class LongNode<V> extends Node<Long,V> {
+
+        private static final long serialVersionUID = -2783064592183735113L;
+
+        private final long key;
+
+        LongNode(final long key, final V value) {
+            super(null, value);
+            this.key = key;
+        }
+
+        @Override
+        public Long getKey() {
+            return Long.valueOf(key);
+        }
+
+        @Override
+        boolean hasLongKey() {
+            return true;
+        }
+
+        @Override
+        long longKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Construct a new, empty map with values in their natural order
+     */
+    public TransactionalLongBidiTreeMap() {}
+
+    /**
+     * Construct a new, empty map sorting values with the given comparator
+     *
+     * @param value_c the comparator for the values, null for their
+     *        natural ordering
+     */
+    public TransactionalLongBidiTreeMap(final Comparator<? super V> value_c) {
+        super(null, value_c);
+    }
+
+    /**
+     * Construct a new map from an existing Map
+     *
+     * @param map the map whose mappings are to be placed in this map
+     *
+     * @throws NullPointerException if any key or value in the map
+     *                                 is null
+     * @throws IllegalArgumentException if there are duplicate values in
+     *                                     the map
+     */
+    public TransactionalLongBidiTreeMap(final Map<? extends Long,? extends V> map) {
+        super(map);
+    }
+
+    @Override
+    Node<Long,V> newNode(final Long key, final V value) {
+        return new LongNode<V>(key.longValue(), value);
+    }
+
+    /**
+     * Returns the value to which this map maps the specified key, or null
+     * if the map contains no mapping for this key.
+     */
+    public V get(final long key) {
+
+        Node<Long,V> node = lookupLongKey(key);
+        return node == null ? null : node.getValue();
+    }
+
+    /**
+     * Returns true if this map contains a mapping for the specified key.
+     */
+    public boolean containsKey(final long key) {
+        return lookupLongKey(key) != null;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     *
+     * @throws IllegalArgumentException if the key or value duplicates an
+     *                                     existing one
+     */
+    public V put(final long key, final V value)
+            throws IllegalArgumentException, ConcurrentModificationException {
+
+        checkValue(value);
+        putNode(new LongNode<V>(key, value));
+        return null;
+    }
+
+    /**
+     * Removes the mapping for this key from this map if present
+     *
+     * @return the value that was mapped to the key, or null
+     */
+    public V remove(final long key) throws ConcurrentModificationException {
+
+        Node<Long,V> node = lookupLongKey(key);
+        return node == null ? null : removeNode(node);
+    }
+
+    /**
+     * @return the lowest key visible to the current thread
+     */
+    public long firstLongKey() {
+        return firstKey().longValue();
+    }
+
+    /**
+     * @return the highest key visible to the current thread
+     */
+    public long lastLongKey() {
+        return lastKey().longValue();
+    }
+}
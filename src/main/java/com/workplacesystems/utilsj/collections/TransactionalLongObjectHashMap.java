@@ -0,0 +1,1061 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.workplacesystems.utilsj.ThreadSession;
+
+/**
+ * A TransactionalHashMap keyed by primitive longs. Entries hold the key in
+ * a long field, so a map of record ids doesn't hold a Long for every entry
+ * and the get, put, remove and containsKey overloads taking a long don't
+ * box the key or call equals.
+ * <P>
+ * Transactions behave as they do in TransactionalHashMap. The Map methods
+ * taking Objects accept Longs and box the keys they return, so the map can
+ * be used anywhere a TransactionalMap&lt;Long,V&gt; is expected. Null keys
+ * aren't supported.
+ */
+public class TransactionalLongObjectHashMap<V> extends AbstractMap<Long,V> implements TransactionalMap<Long,V>
+{
+    /**
+     * Object to get hash from.
+     */
+    private final Object hash_object = new Object();
+
+    /**
+     * The default initial capacity - MUST be a power of two.
+     */
+    static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum capacity. MUST be a power of two <= 1<<30.
+     */
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The load factor used when none specified in constructor.
+     **/
+    static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    /**
+     * The table, resized as necessary. Length MUST Always be a power of two.
+     */
+    transient Entry<V>[] table;
+
+    /**
+     * The number of entries in the table, including those hidden from
+     * some transactions.
+     */
+    transient int size;
+
+    /**
+     * The next size value at which to resize (capacity * load factor).
+     */
+    int threshold;
+
+    /**
+     * The load factor for the hash table.
+     */
+    final float loadFactor;
+
+    /**
+     * The number of times the table has been structurally modified, used
+     * to make iterators fail-fast.
+     */
+    transient volatile int modCount;
+
+    /**
+     * The transactional mode the map is running in
+     */
+    private boolean auto_commit = true;
+
+    /**
+     * The number of entries in ADDED status for any transaction id.
+     */
+    private int added_count = 0;
+
+    /**
+     * The number of entries ADDED and DELETED by each transaction id and
+     * the keys it changed, so that commit and rollback only visit the
+     * buckets holding them.
+     */
+    private final HashMap<TransactionId,TransactionChanges> transaction_changes = new HashMap<TransactionId,TransactionChanges>();
+
+    /**
+     * Constructs an empty map with the specified initial capacity and load
+     * factor.
+     *
+     * @param  initialCapacity The initial capacity.
+     * @param  loadFactor      The load factor.
+     * @throws IllegalArgumentException if the initial capacity is negative
+     *         or the load factor is nonpositive.
+     */
+    public TransactionalLongObjectHashMap(int initialCapacity, float loadFactor)
+    {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " +
+                    initialCapacity);
+        if (initialCapacity > MAXIMUM_CAPACITY)
+            initialCapacity = MAXIMUM_CAPACITY;
+        if (loadFactor <= 0 || Float.isNaN(loadFactor))
+            throw new IllegalArgumentException("Illegal load factor: " +
+                    loadFactor);
+
+        // Find a power of 2 >= initialCapacity
+        int capacity = 1;
+        while (capacity < initialCapacity)
+            capacity <<= 1;
+
+        this.loadFactor = loadFactor;
+        threshold = (int)(capacity * loadFactor);
+        table = newTable(capacity);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <V> Entry<V>[] newTable(int capacity)
+    {
+        return new Entry[capacity];
+    }
+
+    /**
+     * Constructs an empty map with the specified initial capacity and the
+     * default load factor (0.75).
+     *
+     * @param  initialCapacity the initial capacity.
+     * @throws IllegalArgumentException if the initial capacity is negative.
+     */
+    public TransactionalLongObjectHashMap(int initialCapacity)
+    {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * Constructs an empty map with the default initial capacity (16) and
+     * the default load factor (0.75).
+     */
+    public TransactionalLongObjectHashMap()
+    {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * Constructs a new map with the same mappings as the specified
+     * <tt>Map</tt>.
+     *
+     * @param   m the map whose mappings are to be placed in this map.
+     * @throws  NullPointerException if the specified map is null or has a
+     *          null key.
+     */
+    public TransactionalLongObjectHashMap(Map<? extends Long,? extends V> m)
+    {
+        this(Math.max((int) (m.size() / DEFAULT_LOAD_FACTOR) + 1,
+                DEFAULT_INITIAL_CAPACITY), DEFAULT_LOAD_FACTOR);
+        putAll(m);
+    }
+
+    private String thread_session_key = null;
+
+    private final String getThreadSessionKey()
+    {
+        if (thread_session_key == null)
+            thread_session_key = ".TransactionalLongObjectHashMap(" + hash_object.hashCode() + ")-attach_id";
+        return thread_session_key;
+    }
+
+    /**
+     * Attach the current thread to a specific id rather than using the
+     * current thread for transactional changes. This allows transactional
+     * changes to be done by different threads.
+     */
+    public void attach(final String attach_id)
+    {
+        ThreadSession.putValue(getThreadSessionKey(), TransactionId.getTransactionId(attach_id));
+    }
+
+    /**
+     * Detach the current thread from the attach_id.
+     */
+    public void detach()
+    {
+        ThreadSession.removeValue(getThreadSessionKey());
+    }
+
+    /**
+     * If a map is in auto commit mode then all changes are
+     * available to all threads immediately, otherwise commit
+     * must be called.
+     * <P>
+     * The default for the map is auto commit is on.
+     * <P>
+     * <B>NOTE:</B>  If this method is called while there are outstanding
+     * transactions, commit is called.
+     *
+     * @param auto_commit - false to enable transaction support
+     *                      within this map.
+     */
+    public void setAutoCommit(final boolean auto_commit)
+    {
+        if (!this.auto_commit && auto_commit)
+            commit(null);
+
+        this.auto_commit = auto_commit;
+    }
+
+    public boolean isAutoCommit()
+    {
+        return auto_commit;
+    }
+
+    /**
+     * Commits the changes to the map so that all threads
+     * see them.
+     */
+    public void commit()
+    {
+        if (auto_commit)
+            return;
+
+        commit(getCurrentThreadId());
+    }
+
+    /**
+     * Rolls back the changes to the map.
+     */
+    public void rollback()
+    {
+        if (auto_commit)
+            return;
+
+        TransactionId id = getCurrentThreadId();
+        TransactionChanges changes = transaction_changes.remove(id);
+        if (changes == null)
+            return;
+
+        if (changes.key_count >= table.length)
+        {
+            for (int i = 0; i < table.length; i++)
+                rollback(i, id);
+            return;
+        }
+
+        long[] keys = changes.distinctKeys();
+        for (int k = 0; k < keys.length; k++)
+            rollback(indexFor(hash(keys[k]), table.length), id);
+    }
+
+    /**
+     * Rolls back the changes in bucket i.
+     */
+    private void rollback(final int i, final TransactionId id)
+    {
+        Entry<V> prev = null;
+        Entry<V> e = table[i];
+
+        while (e != null)
+        {
+            Entry<V> next = e.next;
+            if (e.is(Entry.ADDED, id))
+            {
+                setStatus(e, Entry.NO_CHANGE, null);
+                unlinkEntry(i, prev, e);
+            }
+            else
+            {
+                if (e.is(Entry.DELETED, id))
+                    setStatus(e, Entry.NO_CHANGE, null);
+                prev = e;
+            }
+
+            e = next;
+        }
+    }
+
+    /**
+     * Commits the changes to the map so that all threads
+     * see them.
+     *
+     * @param id the thread id to commit for, null commits
+     *           all threads changes
+     */
+    private void commit(final TransactionId id)
+    {
+        if (id == null)
+        {
+            ArrayList<TransactionId> ids = new ArrayList<TransactionId>(transaction_changes.keySet());
+            for (Iterator<TransactionId> i = ids.iterator(); i.hasNext(); )
+                commit(i.next());
+            return;
+        }
+
+        TransactionChanges changes = transaction_changes.remove(id);
+        if (changes == null)
+            return;
+
+        if (changes.key_count >= table.length)
+        {
+            for (int i = 0; i < table.length; i++)
+                commit(i, id);
+            return;
+        }
+
+        long[] keys = changes.distinctKeys();
+        for (int k = 0; k < keys.length; k++)
+            commit(indexFor(hash(keys[k]), table.length), id);
+    }
+
+    /**
+     * Commits the changes in bucket i.
+     */
+    private void commit(final int i, final TransactionId id)
+    {
+        Entry<V> prev = null;
+        Entry<V> e = table[i];
+
+        while (e != null)
+        {
+            Entry<V> next = e.next;
+            if (e.is(Entry.DELETED, id))
+            {
+                setStatus(e, Entry.NO_CHANGE, null);
+                unlinkEntry(i, prev, e);
+            }
+            else
+            {
+                if (e.is(Entry.ADDED, id))
+                    setStatus(e, Entry.NO_CHANGE, null);
+                prev = e;
+            }
+
+            e = next;
+        }
+    }
+
+    /**
+     * The number of entries ADDED and DELETED by a transaction id and the
+     * keys of the entries it has changed.
+     */
+    private static final class TransactionChanges
+    {
+        private int added = 0;
+        private int deleted = 0;
+        private long[] keys = new long[4];
+        private int key_count = 0;
+
+        private void addKey(final long key)
+        {
+            // Repeated changes to the same key are common, so skip those cheaply
+            if (key_count > 0 && keys[key_count - 1] == key)
+                return;
+            if (key_count == keys.length)
+                keys = Arrays.copyOf(keys, key_count * 2);
+            keys[key_count++] = key;
+        }
+
+        /**
+         * The changed keys without repeats, so no bucket is visited twice
+         * for the same key.
+         */
+        private long[] distinctKeys()
+        {
+            long[] sorted = Arrays.copyOf(keys, key_count);
+            Arrays.sort(sorted);
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++)
+            {
+                if (count == 0 || sorted[count - 1] != sorted[i])
+                    sorted[count++] = sorted[i];
+            }
+            return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+        }
+    }
+
+    /**
+     * Set the transactional status of an entry keeping the ADDED and
+     * DELETED counts and the changed keys up to date.
+     *
+     * @param e the entry to be changed
+     * @param status the new status
+     * @param id the transaction id making the change or null for NO_CHANGE
+     */
+    private void setStatus(final Entry<V> e, final int status, final TransactionId id)
+    {
+        if (e.transactionId != null)
+        {
+            // The changes have already gone if the transaction is being committed or rolled back
+            TransactionChanges changes = transaction_changes.get(e.transactionId);
+            if (e.transactionStatus == Entry.ADDED)
+            {
+                added_count--;
+                if (changes != null)
+                    changes.added--;
+            }
+            else if (e.transactionStatus == Entry.DELETED && changes != null)
+                changes.deleted--;
+            if (changes != null && changes.added == 0 && changes.deleted == 0)
+                transaction_changes.remove(e.transactionId);
+        }
+
+        e.setStatus(status, id);
+
+        if (id != null)
+        {
+            TransactionChanges changes = transaction_changes.get(id);
+            if (changes == null)
+            {
+                changes = new TransactionChanges();
+                transaction_changes.put(id, changes);
+            }
+            if (status == Entry.ADDED)
+            {
+                added_count++;
+                changes.added++;
+            }
+            else if (status == Entry.DELETED)
+                changes.deleted++;
+            changes.addKey(e.key);
+        }
+    }
+
+    /**
+     * Retrieve the current thread id for use by the
+     * transaction code.
+     *
+     * @return the attached transaction id or the transaction
+     *         id of the current thread
+     */
+    private TransactionId getCurrentThreadId()
+    {
+        TransactionId attach_id = (TransactionId)ThreadSession.getValue(getThreadSessionKey());
+        if (attach_id != null)
+            return attach_id;
+
+        return TransactionId.getThreadTransactionId();
+    }
+
+    /**
+     * Retrieve the transaction id entries are checked against.
+     *
+     * @return null in auto commit mode, otherwise the current thread id
+     */
+    private TransactionId getTransactionId()
+    {
+        return auto_commit ? null : getCurrentThreadId();
+    }
+
+    /**
+     * Checks that this entry is valid for a transaction
+     *
+     * @param entry the entry to be checked
+     * @param id the transaction id from getTransactionId
+     *
+     * @return true if entry is valid, otherwise false
+     */
+    private static boolean validEntry(final Entry<?> entry, final TransactionId id)
+    {
+        if (id == null)
+            return true;
+
+        return !((entry.is(Entry.DELETED, id)) ||
+                (entry.is(Entry.ADDED, null) && entry.is(Entry.NO_CHANGE, id)));
+    }
+
+    /**
+     * Spreads the bits of a key over the hash, as Long.hashCode then a
+     * multiplicative hash.
+     */
+    static int hash(long key)
+    {
+        int h = (int)(key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns index for hash code h.
+     */
+    static int indexFor(int h, int length)
+    {
+        return h & (length-1);
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map visible to
+     * the current transaction.
+     *
+     * @return the number of key-value mappings in this map.
+     */
+    @Override
+    public int size()
+    {
+        return size(false);
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map.
+     *
+     * @param countAll true to count the entries of all transactions
+     *
+     * @return the number of key-value mappings in this map.
+     */
+    public int size(boolean countAll)
+    {
+        if (countAll || auto_commit)
+            return size;
+
+        // Entries added by other transactions and entries deleted by this transaction aren't visible
+        TransactionChanges changes = transaction_changes.get(getCurrentThreadId());
+        int size = this.size - added_count;
+        if (changes != null)
+            size += changes.added - changes.deleted;
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or
+     * <tt>null</tt> if the map contains no mapping for this key.
+     */
+    public V get(long key)
+    {
+        Entry<V> e = getEntry(key);
+        return e == null ? null : e.value;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        if (!(key instanceof Long))
+            return null;
+        return get(((Long)key).longValue());
+    }
+
+    /**
+     * Returns <tt>true</tt> if this map contains a mapping for the
+     * specified key.
+     */
+    public boolean containsKey(long key)
+    {
+        return getEntry(key) != null;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return key instanceof Long && containsKey(((Long)key).longValue());
+    }
+
+    /**
+     * Returns the entry for the key visible to the current transaction.
+     */
+    Entry<V> getEntry(long key)
+    {
+        TransactionId id = getTransactionId();
+        for (Entry<V> e = table[indexFor(hash(key), table.length)]; e != null; e = e.next)
+        {
+            if (e.key == key && validEntry(e, id))
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     * If the map previously contained a mapping for this key, the old
+     * value is replaced.
+     *
+     * @param key key with which the specified value is to be associated.
+     * @param value value to be associated with the specified key.
+     * @return previous value associated with specified key, or <tt>null</tt>
+     *         if there was no mapping for key.
+     * @throws ConcurrentModificationException if another transaction has
+     *         a pending change to the key
+     */
+    public V put(long key, V value) throws ConcurrentModificationException
+    {
+        int i = indexFor(hash(key), table.length);
+        TransactionId id = getTransactionId();
+
+        V oldValue = null;
+        for (Entry<V> e = table[i]; e != null; e = e.next)
+        {
+            if (e.key != key)
+                continue;
+
+            //check if someone else has a pending change to the same key
+            if (!auto_commit && (e.is(Entry.ADDED, null) && !e.is(Entry.ADDED, id)
+                    || e.is(Entry.DELETED, null) && !e.is(Entry.DELETED, id)))
+                throw new ConcurrentModificationException();
+
+            if (validEntry(e, id))
+            {
+                oldValue = e.value;
+                //entries that aren't visible to other transactions can be reused
+                if (auto_commit || e.is(Entry.ADDED, id))
+                {
+                    e.value = value;
+                    return oldValue;
+                }
+                setStatus(e, Entry.DELETED, id);
+                break;
+            }
+        }
+
+        modCount++;
+        Entry<V> e = table[i] = new Entry<V>(key, value, table[i]);
+        if (!auto_commit)
+            setStatus(e, Entry.ADDED, id);
+        if (size++ >= threshold)
+            resize(2 * table.length);
+        return oldValue;
+    }
+
+    @Override
+    public V put(Long key, V value) throws ConcurrentModificationException
+    {
+        return put(key.longValue(), value);
+    }
+
+    /**
+     * Removes the mapping for this key from this map if present.
+     *
+     * @param  key key whose mapping is to be removed from the map.
+     * @return previous value associated with specified key, or <tt>null</tt>
+     *         if there was no mapping for key.
+     * @throws ConcurrentModificationException if another transaction has
+     *         deleted the key
+     */
+    public V remove(long key) throws ConcurrentModificationException
+    {
+        int i = indexFor(hash(key), table.length);
+        TransactionId id = getTransactionId();
+        Entry<V> prev = null;
+
+        for (Entry<V> e = table[i]; e != null; prev = e, e = e.next)
+        {
+            if (e.key != key || !validEntry(e, id))
+                continue;
+
+            if (e.is(Entry.DELETED, null) && !e.is(Entry.DELETED, id))
+                throw new ConcurrentModificationException();
+
+            if (auto_commit || e.is(Entry.ADDED, id))
+            {
+                setStatus(e, Entry.NO_CHANGE, null);
+                unlinkEntry(i, prev, e);
+            }
+            else
+                setStatus(e, Entry.DELETED, id);
+            return e.value;
+        }
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) throws ConcurrentModificationException
+    {
+        if (!(key instanceof Long))
+            return null;
+        return remove(((Long)key).longValue());
+    }
+
+    /**
+     * Removes an entry from bucket i.
+     *
+     * @param prev the entry before e or null if e is first
+     */
+    private void unlinkEntry(final int i, final Entry<V> prev, final Entry<V> e)
+    {
+        modCount++;
+        size--;
+        if (prev == null)
+            table[i] = e.next;
+        else
+            prev.next = e.next;
+    }
+
+    /**
+     * Rehashes the contents of this map into a new array with a
+     * larger capacity.
+     */
+    void resize(int newCapacity)
+    {
+        Entry<V>[] oldTable = table;
+        if (oldTable.length == MAXIMUM_CAPACITY)
+        {
+            threshold = Integer.MAX_VALUE;
+            return;
+        }
+
+        Entry<V>[] newTable = newTable(newCapacity);
+        for (int j = 0; j < oldTable.length; j++)
+        {
+            Entry<V> e = oldTable[j];
+            oldTable[j] = null;
+            while (e != null)
+            {
+                Entry<V> next = e.next;
+                int i = indexFor(hash(e.key), newCapacity);
+                e.next = newTable[i];
+                newTable[i] = e;
+                e = next;
+            }
+        }
+        table = newTable;
+        threshold = (int)(newCapacity * loadFactor);
+    }
+
+    /**
+     * Removes all mappings from this map.
+     */
+    @Override
+    public void clear()
+    {
+        modCount++;
+        Arrays.fill(table, null);
+        size = 0;
+        added_count = 0;
+        transaction_changes.clear();
+    }
+
+    /**
+     * Returns <tt>true</tt> if this map maps one or more keys to the
+     * specified value.
+     */
+    @Override
+    public boolean containsValue(Object value)
+    {
+        TransactionId id = getTransactionId();
+        Entry<V>[] tab = table;
+        for (int i = 0; i < tab.length ; i++)
+        {
+            for (Entry<V> e = tab[i] ; e != null ; e = e.next)
+            {
+                if (validEntry(e, id) && (value == null ? e.value == null : value.equals(e.value)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    static final class Entry<V> implements Map.Entry<Long,V>
+    {
+        static final int NO_CHANGE = 0;
+        static final int DELETED = 1;
+        static final int ADDED = 2;
+
+        final long key;
+        V value;
+        Entry<V> next;
+        private int transactionStatus;
+        private TransactionId transactionId;
+
+        Entry(long k, V v, Entry<V> n)
+        {
+            key = k;
+            value = v;
+            next = n;
+            transactionStatus = NO_CHANGE;
+            transactionId = null;
+        }
+
+        private void setStatus(final int status, final TransactionId id)
+        {
+            transactionStatus = status;
+            transactionId = id;
+        }
+
+        private boolean is(final int status, final TransactionId id)
+        {
+            if (transactionId == null)
+                return status == NO_CHANGE;
+
+            if (id == null || transactionId == id)
+                return transactionStatus == status;
+
+            return status == NO_CHANGE;
+        }
+
+        public long getLongKey()
+        {
+            return key;
+        }
+
+        public Long getKey()
+        {
+            return Long.valueOf(key);
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V newValue)
+        throws UnsupportedOperationException
+        {
+            throw new UnsupportedOperationException(
+                    "Map.Entry.setValue is not supported");
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            Object k2 = e.getKey();
+            if (k2 instanceof Long && ((Long)k2).longValue() == key)
+            {
+                Object v2 = e.getValue();
+                if (value == v2 || (value != null && value.equals(v2)))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int)(key ^ (key >>> 32)) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+    }
+
+    private abstract class HashIterator<E> implements Iterator<E>
+    {
+        Entry<V> next;               // next entry to return
+        int expectedModCount;        // For fast-fail
+        int index;                   // current slot
+        Entry<V> current;            // current entry
+        final TransactionId id = getTransactionId();
+
+        HashIterator()
+        {
+            expectedModCount = modCount;
+            index = table.length;
+            next = advance(null);
+        }
+
+        private Entry<V> advance(Entry<V> n)
+        {
+            Entry<V>[] t = table;
+            while (n != null && !validEntry(n, id))
+                n = n.next;
+            while (n == null && index > 0)
+            {
+                n = t[--index];
+                while (n != null && !validEntry(n, id))
+                    n = n.next;
+            }
+            return n;
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        Entry<V> nextEntry()
+        {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            Entry<V> e = next;
+            if (e == null)
+                throw new NoSuchElementException();
+
+            next = advance(e.next);
+            return current = e;
+        }
+
+        public void remove()
+        {
+            if (current == null)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            long k = current.key;
+            current = null;
+            TransactionalLongObjectHashMap.this.remove(k);
+            expectedModCount = modCount;
+        }
+    }
+
+    private class ValueIterator extends HashIterator<V>
+    {
+        public V next()
+        {
+            return nextEntry().value;
+        }
+    }
+
+    private class KeyIterator extends HashIterator<Long>
+    {
+        public Long next()
+        {
+            return nextEntry().getKey();
+        }
+    }
+
+    private class EntryIterator extends HashIterator<Map.Entry<Long,V>>
+    {
+        public Map.Entry<Long,V> next()
+        {
+            return nextEntry();
+        }
+    }
+
+    private transient Set<Map.Entry<Long,V>> entrySet = null;
+    private transient Set<Long> keySet = null;
+    private transient Collection<V> values = null;
+
+    @Override
+    public Set<Long> keySet()
+    {
+        Set<Long> ks = keySet;
+        return (ks != null ? ks : (keySet = new KeySet()));
+    }
+
+    private class KeySet extends AbstractSet<Long>
+    {
+        @Override
+        public Iterator<Long> iterator()
+        {
+            return new KeyIterator();
+        }
+        @Override
+        public int size()
+        {
+            return TransactionalLongObjectHashMap.this.size();
+        }
+        @Override
+        public boolean contains(Object o)
+        {
+            return containsKey(o);
+        }
+        @Override
+        public boolean remove(Object o)
+        {
+            if (!containsKey(o))
+                return false;
+            TransactionalLongObjectHashMap.this.remove(o);
+            return true;
+        }
+        @Override
+        public void clear()
+        {
+            TransactionalLongObjectHashMap.this.clear();
+        }
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        Collection<V> vs = values;
+        return (vs != null ? vs : (values = new Values()));
+    }
+
+    private class Values extends AbstractCollection<V>
+    {
+        @Override
+        public Iterator<V> iterator()
+        {
+            return new ValueIterator();
+        }
+        @Override
+        public int size()
+        {
+            return TransactionalLongObjectHashMap.this.size();
+        }
+        @Override
+        public boolean contains(Object o)
+        {
+            return containsValue(o);
+        }
+        @Override
+        public void clear()
+        {
+            TransactionalLongObjectHashMap.this.clear();
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<Long,V>> entrySet()
+    {
+        Set<Map.Entry<Long,V>> es = entrySet;
+        return (es != null ? es : (entrySet = new EntrySet()));
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<Long,V>>
+    {
+        @Override
+        public Iterator<Map.Entry<Long,V>> iterator()
+        {
+            return new EntryIterator();
+        }
+        @Override
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Object key = ((Map.Entry<?,?>)o).getKey();
+            if (!(key instanceof Long))
+                return false;
+            Entry<V> candidate = getEntry(((Long)key).longValue());
+            return candidate != null && candidate.equals(o);
+        }
+        @Override
+        public boolean remove(Object o)
+        {
+            if (!contains(o))
+                return false;
+            TransactionalLongObjectHashMap.this.remove(((Map.Entry<?,?>)o).getKey());
+            return true;
+        }
+        @Override
+        public int size()
+        {
+            return TransactionalLongObjectHashMap.this.size();
+        }
+        @Override
+        public void clear()
+        {
+            TransactionalLongObjectHashMap.this.clear();
+        }
+    }
+}
@@ -18,10 +18,10 @@ package com.workplacesystems.utilsj.collections.decorators;
 
 import java.util.Map;
 
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.BidiMap;
 import com.workplacesystems.utilsj.collections.FilterableCollection;
 import com.workplacesystems.utilsj.collections.FilterableSet;
+import com.workplacesystems.utilsj.collections.SnapshotReadable;
 import com.workplacesystems.utilsj.collections.SyncUtils;
 
 /**
@@ -68,70 +68,80 @@ public class SynchronizedBidiMap<K,V> extends SynchronizedMap<K,V> implements Bi
     //-----------------------------------------------------------------------
 
     public K getKeyForValue(final Object value) {
-        return SyncUtils.synchronizeRead(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getBidiMap().getKeyForValue(value));
-            }
-        });
+        SnapshotReadable.Snapshot<K,V> snapshot = getPublishedSnapshot();
+        if (snapshot != null)
+            return snapshot.getKeyForValue(value);
+        SyncUtils.lockRead(lock);
+        try {
+            return getBidiMap().getKeyForValue(value);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public K removeValue(final Object value) {
-        return SyncUtils.synchronizeWrite(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getBidiMap().removeValue(value));
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            return getBidiMap().removeValue(value);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public FilterableSet<K> keySetByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableSet<K>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<K> _set = getBidiMap().keySetByValue();
-                _return(new SynchronizedFilterableSet<K>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<K> _set = getBidiMap().keySetByValue();
+            return new SynchronizedFilterableSet<K>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableCollection<V> valuesByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableCollection<V>>() {
-            @Override
-            protected void doAction() {
-                FilterableCollection<V> _col = getBidiMap().valuesByValue();
-                _return(new SynchronizedFilterableCollection<V>(_col, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableCollection<V> _col = getBidiMap().valuesByValue();
+            return new SynchronizedFilterableCollection<V>(_col, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableCollection<V> valuesByValueDescending() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableCollection<V>>() {
-            @Override
-            protected void doAction() {
-                FilterableCollection<V> _col = getBidiMap().valuesByValueDescending();
-                _return(new SynchronizedFilterableCollection<V>(_col, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableCollection<V> _col = getBidiMap().valuesByValueDescending();
+            return new SynchronizedFilterableCollection<V>(_col, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableSet<Map.Entry<K,V>> entrySetByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableSet<Map.Entry<K,V>>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<Map.Entry<K,V>> _set = getBidiMap().entrySetByValue();
-                _return(new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<Map.Entry<K,V>> _set = getBidiMap().entrySetByValue();
+            return new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableSet<Map.Entry<K,V>> entrySetByValueDescending() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableSet<Map.Entry<K,V>>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<Map.Entry<K,V>> _set = getBidiMap().entrySetByValueDescending();
-                _return(new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<Map.Entry<K,V>> _set = getBidiMap().entrySetByValueDescending();
+            return new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 }
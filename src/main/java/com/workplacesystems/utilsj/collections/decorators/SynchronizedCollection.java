@@ -18,7 +18,8 @@ package com.workplacesystems.utilsj.collections.decorators;
 
 import java.util.Collection;
 import java.util.Iterator;
-import com.workplacesystems.utilsj.Callback;
+import com.workplacesystems.utilsj.collections.SplittableCollection;
+import com.workplacesystems.utilsj.collections.SplittableTraversal;
 import com.workplacesystems.utilsj.collections.SyncUtils;
 
 /**
@@ -37,7 +38,7 @@ import com.workplacesystems.utilsj.collections.SyncUtils;
  * 
  * @author Stephen Colebourne
  */
-public class SynchronizedCollection<E> implements Collection<E>, SynchronizedDecorator {
+public class SynchronizedCollection<E> implements Collection<E>, SplittableCollection<E>, SynchronizedDecorator {
 
     /** The collection to decorate */
     protected final Collection<E> collection;
@@ -90,62 +91,63 @@ public class SynchronizedCollection<E> implements Collection<E>, SynchronizedDec
     
     //-----------------------------------------------------------------------
     public boolean add(final E object) {
-        Boolean ret = SyncUtils.synchronizeWrite(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.add(object) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockWrite(lock);
+        try {
+            return collection.add(object);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 
     public boolean addAll(final Collection<? extends E> coll) {
-        Boolean ret = SyncUtils.synchronizeWrite(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.addAll(coll) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockWrite(lock);
+        try {
+            return collection.addAll(coll);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 
     public void clear() {
-        SyncUtils.synchronizeWrite(lock, new Callback<Object>() {
-            @Override
-            protected void doAction() {
-                collection.clear();
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            collection.clear();
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 
     public boolean contains(final Object object) {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.contains(object) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.contains(object);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public boolean containsAll(final Collection<?> coll) {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.containsAll(coll) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.containsAll(coll);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public boolean isEmpty() {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.isEmpty() ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.isEmpty();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     /**
@@ -162,96 +164,111 @@ public class SynchronizedCollection<E> implements Collection<E>, SynchronizedDec
         return collection.iterator();
     }
 
+    /**
+     * Traversals must be manually synchronized like iterators.
+     * 
+     * @return a traversal of the decorated collection
+     */
+    @SuppressWarnings("unchecked")
+    public SplittableTraversal<E> traversal() {
+        if (collection instanceof SplittableCollection)
+            return ((SplittableCollection<E>) collection).traversal();
+        return SplittableTraversal.fromIterator(collection.iterator());
+    }
+
     public Object[] toArray() {
-        return SyncUtils.synchronizeRead(lock, new Callback<Object[]>() {
-            @Override
-            protected void doAction() {
-                _return(collection.toArray());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.toArray();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public <T> T[] toArray(final T[] object) {
-        return SyncUtils.synchronizeRead(lock, new Callback<T[]>() {
-            @Override
-            protected void doAction() {
-                _return(collection.toArray(object));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.toArray(object);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public boolean remove(final Object object) {
-        Boolean ret = SyncUtils.synchronizeWrite(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.remove(object) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockWrite(lock);
+        try {
+            return collection.remove(object);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 
     public boolean removeAll(final Collection<?> coll) {
-        Boolean ret = SyncUtils.synchronizeWrite(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.removeAll(coll) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockWrite(lock);
+        try {
+            return collection.removeAll(coll);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 
     public boolean retainAll(final Collection<?> coll) {
-        Boolean ret = SyncUtils.synchronizeWrite(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(collection.retainAll(coll) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockWrite(lock);
+        try {
+            return collection.retainAll(coll);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 
     public int size() {
-        Integer ret = SyncUtils.synchronizeRead(lock, new Callback<Integer>() {
-            @Override
-            protected void doAction() {
-                _return(new Integer(collection.size()));
-            }
-        });
-        return ret.intValue();
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.size();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     @Override
     public boolean equals(final Object object) {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                if (object == SynchronizedCollection.this) {
-                    _return(Boolean.TRUE);
-                }
-                _return(collection.equals(object) ? Boolean.TRUE : Boolean.FALSE);
+        SyncUtils.lockRead(lock);
+        try {
+            if (object == this) {
+                return true;
             }
-        });
-        return ret.booleanValue();
+            return collection.equals(object);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     @Override
     public int hashCode() {
-        Integer ret = SyncUtils.synchronizeRead(lock, new Callback<Integer>() {
-            @Override
-            protected void doAction() {
-                _return(new Integer(collection.hashCode()));
-            }
-        });
-        return ret.intValue();
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.hashCode();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     @Override
     public String toString() {
-        return SyncUtils.synchronizeRead(lock, new Callback<String>() {
-            @Override
-            protected void doAction() {
-                _return(collection.toString());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return collection.toString();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 }
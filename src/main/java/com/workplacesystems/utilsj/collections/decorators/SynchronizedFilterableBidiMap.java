@@ -16,7 +16,6 @@
 
 package com.workplacesystems.utilsj.collections.decorators;
 
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.Filter;
 import com.workplacesystems.utilsj.collections.FilterableBidiMap;
 import com.workplacesystems.utilsj.collections.FilterableMap;
@@ -67,22 +66,24 @@ public class SynchronizedFilterableBidiMap<K,V> extends SynchronizedBidiMap<K,V>
     //-----------------------------------------------------------------------
 
     public FilterableMap<K,V> filteredMap(final Filter<? super K> filter) {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                FilterableMap<K,V> _map = getFilterableBidiMap().filteredMap(filter);
-                _return(new SynchronizedFilterableMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableMap<K,V> _map = getFilterableBidiMap().filteredMap(filter);
+            return new SynchronizedFilterableMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableBidiMap<K,V> filteredMapByValue(final Filter<? super V> filter) {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableBidiMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                FilterableBidiMap<K,V> _map = getFilterableBidiMap().filteredMapByValue(filter);
-                _return(new SynchronizedFilterableBidiMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableBidiMap<K,V> _map = getFilterableBidiMap().filteredMapByValue(filter);
+            return new SynchronizedFilterableBidiMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 }
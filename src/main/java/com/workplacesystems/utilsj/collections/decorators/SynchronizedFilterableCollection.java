@@ -16,7 +16,6 @@
 
 package com.workplacesystems.utilsj.collections.decorators;
 
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.Filter;
 import com.workplacesystems.utilsj.collections.FilterableCollection;
 import com.workplacesystems.utilsj.collections.SyncUtils;
@@ -65,13 +64,14 @@ public class SynchronizedFilterableCollection<E> extends SynchronizedCollection<
     //-----------------------------------------------------------------------
     
     public FilterableCollection<E> filteredCollection(final Filter<? super E> filter) {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableCollection<E>>() {
-            @Override
-            protected void doAction() {
-                FilterableCollection<E> _col = getFilterableCollection().filteredCollection(filter);
-                _return(new SynchronizedFilterableCollection<E>(_col, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableCollection<E> _col = getFilterableCollection().filteredCollection(filter);
+            return new SynchronizedFilterableCollection<E>(_col, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
 }
@@ -16,7 +16,6 @@
 
 package com.workplacesystems.utilsj.collections.decorators;
 
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.Filter;
 import com.workplacesystems.utilsj.collections.FilterableMap;
 import com.workplacesystems.utilsj.collections.SyncUtils;
@@ -65,12 +64,13 @@ public class SynchronizedFilterableMap<K,V> extends SynchronizedMap<K,V> impleme
     //-----------------------------------------------------------------------
 
     public FilterableMap<K,V> filteredMap(final Filter<? super K> filter) {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                FilterableMap<K,V> _map = getFilterableMap().filteredMap(filter);
-                _return(new SynchronizedFilterableMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableMap<K,V> _map = getFilterableMap().filteredMap(filter);
+            return new SynchronizedFilterableMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 }
@@ -19,7 +19,7 @@ package com.workplacesystems.utilsj.collections.decorators;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
-import com.workplacesystems.utilsj.Callback;
+import com.workplacesystems.utilsj.collections.SnapshotReadable;
 import com.workplacesystems.utilsj.collections.SyncUtils;
 
 /**
@@ -32,6 +32,9 @@ public class SynchronizedMap<K,V> implements Map<K,V>, SynchronizedDecorator {
     
     protected final Map<K,V> map;
 
+    /** The map if it can answer lookups without locking, otherwise null */
+    private final SnapshotReadable<K,V> snapshot_readable;
+
     /**
      * Factory method to create a synchronized map.
      * 
@@ -55,6 +58,7 @@ public class SynchronizedMap<K,V> implements Map<K,V>, SynchronizedDecorator {
 
         this.map = map;
         this.lock = SyncUtils.createMutex(map);
+        this.snapshot_readable = snapshotReadable(map);
     }
 
     /**
@@ -71,126 +75,167 @@ public class SynchronizedMap<K,V> implements Map<K,V>, SynchronizedDecorator {
 
         this.map = map;
         this.lock = SyncUtils.createMutex(lock);
+        this.snapshot_readable = snapshotReadable(map);
     }
 
     
     public Object getLockObject() {
         return lock;
     }
+
+    @SuppressWarnings("unchecked")
+    private static <K,V> SnapshotReadable<K,V> snapshotReadable(final Map<K,V> map) {
+        // A map of K to V publishes snapshots of K to V
+        return map instanceof SnapshotReadable ? (SnapshotReadable<K,V>)map : null;
+    }
+
+    /**
+     * @return the snapshot the decorated map currently answers lookups
+     *         from, which can be read without the read lock, or null if
+     *         the lock is needed. Lookups must be made on the returned
+     *         snapshot rather than the map, which may stop publishing
+     *         snapshots at any time.
+     */
+    protected final SnapshotReadable.Snapshot<K,V> getPublishedSnapshot() {
+        return snapshot_readable != null ? snapshot_readable.getPublishedSnapshot() : null;
+    }
     
     //-----------------------------------------------------------------------
     public void clear() {
-        SyncUtils.synchronizeWrite(lock, new Callback<Object>() {
-            @Override
-            protected void doAction() {
-                map.clear();
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            map.clear();
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public boolean containsKey(final Object key) {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(map.containsKey(key) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SnapshotReadable.Snapshot<K,V> snapshot = getPublishedSnapshot();
+        if (snapshot != null)
+            return snapshot.containsKey(key);
+        SyncUtils.lockRead(lock);
+        try {
+            return map.containsKey(key);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public boolean containsValue(final Object value) {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(map.containsValue(value) ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SnapshotReadable.Snapshot<K,V> snapshot = getPublishedSnapshot();
+        if (snapshot != null)
+            return snapshot.containsValue(value);
+        SyncUtils.lockRead(lock);
+        try {
+            return map.containsValue(value);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public Set<Map.Entry<K,V>> entrySet() {
-        return SyncUtils.synchronizeRead(lock, new Callback<Set<Map.Entry<K,V>>>() {
-            @Override
-            protected void doAction() {
-                Set<Map.Entry<K,V>> _set = map.entrySet();
-                _return(new SynchronizedSet<Map.Entry<K,V>>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            Set<Map.Entry<K,V>> _set = map.entrySet();
+            return new SynchronizedSet<Map.Entry<K,V>>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public V get(final Object key) {
-        return SyncUtils.synchronizeRead(lock, new Callback<V>() {
-            @Override
-            protected void doAction() {
-                _return(map.get(key));
-            }
-        });
+        SnapshotReadable.Snapshot<K,V> snapshot = getPublishedSnapshot();
+        if (snapshot != null)
+            return snapshot.get(key);
+        SyncUtils.lockRead(lock);
+        try {
+            return map.get(key);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public boolean isEmpty() {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(map.isEmpty() ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SnapshotReadable.Snapshot<K,V> snapshot = getPublishedSnapshot();
+        if (snapshot != null)
+            return snapshot.size() == 0;
+        SyncUtils.lockRead(lock);
+        try {
+            return map.isEmpty();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public Set<K> keySet() {
-        return SyncUtils.synchronizeRead(lock, new Callback<Set<K>>() {
-            @Override
-            protected void doAction() {
-                Set<K> _set = map.keySet();
-                _return(new SynchronizedSet<K>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            Set<K> _set = map.keySet();
+            return new SynchronizedSet<K>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public V put(final K key, final V value) {
-        return SyncUtils.synchronizeWrite(lock, new Callback<V>() {
-            @Override
-            protected void doAction() {
-                _return(map.put(key, value));
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            return map.put(key, value);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public void putAll(final Map<? extends K,? extends V> t) {
-        SyncUtils.synchronizeWrite(lock, new Callback<Object>() {
-            @Override
-            protected void doAction() {
-                map.putAll(t);
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            map.putAll(t);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public V remove(final Object key) {
-        return SyncUtils.synchronizeWrite(lock, new Callback<V>() {
-            @Override
-            protected void doAction() {
-                _return(map.remove(key));
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            return map.remove(key);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public int size() {
-        Integer ret = SyncUtils.synchronizeRead(lock, new Callback<Integer>() {
-            @Override
-            protected void doAction() {
-                _return(new Integer(map.size()));
-            }
-        });
-        return ret.intValue();
+        SnapshotReadable.Snapshot<K,V> snapshot = getPublishedSnapshot();
+        if (snapshot != null)
+            return snapshot.size();
+        SyncUtils.lockRead(lock);
+        try {
+            return map.size();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public Collection<V> values() {
-        return SyncUtils.synchronizeRead(lock, new Callback<Collection<V>>() {
-            @Override
-            protected void doAction() {
-                Collection<V> _col = map.values();
-                _return(new SynchronizedCollection<V>(_col, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            Collection<V> _col = map.values();
+            return new SynchronizedCollection<V>(_col, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 }
@@ -21,9 +21,9 @@ import java.util.Comparator;
 import java.util.Map;
 import java.util.Set;
 
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.FilterableCollection;
 import com.workplacesystems.utilsj.collections.FilterableSet;
+import com.workplacesystems.utilsj.collections.SnapshotReadable;
 import com.workplacesystems.utilsj.collections.SortedBidiMap;
 import com.workplacesystems.utilsj.collections.SyncUtils;
 
@@ -71,79 +71,90 @@ public class SynchronizedSortedBidiMap<K,V> extends SynchronizedSortedMap<K,V> i
     //-----------------------------------------------------------------------
     
     public Set<Map.Entry<K,V>> entrySet() {
-        return SyncUtils.synchronizeRead(lock, new Callback<Set<Map.Entry<K,V>>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<Map.Entry<K,V>> _set = (FilterableSet<Map.Entry<K,V>>)map.entrySet();
-                _return(new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<Map.Entry<K,V>> _set = (FilterableSet<Map.Entry<K,V>>)map.entrySet();
+            return new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public FilterableSet<Map.Entry<K,V>> entrySetByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableSet<Map.Entry<K,V>>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<Map.Entry<K,V>> _set = getSortedBidiMap().entrySetByValue();
-                _return(new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<Map.Entry<K,V>> _set = getSortedBidiMap().entrySetByValue();
+            return new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableSet<Map.Entry<K,V>> entrySetByValueDescending() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableSet<Map.Entry<K,V>>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<Map.Entry<K,V>> _set = getSortedBidiMap().entrySetByValueDescending();
-                _return(new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<Map.Entry<K,V>> _set = getSortedBidiMap().entrySetByValueDescending();
+            return new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public K firstKeyByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().firstKeyByValue());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().firstKeyByValue();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public V firstValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<V>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().firstValue());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().firstValue();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public V firstValueByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<V>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().firstValueByValue());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().firstValueByValue();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public K getKeyForValue(final Object value) {
-        return SyncUtils.synchronizeRead(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().getKeyForValue(value));
-            }
-        });
+        SnapshotReadable.Snapshot<K,V> snapshot = getPublishedSnapshot();
+        if (snapshot != null)
+            return snapshot.getKeyForValue(value);
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().getKeyForValue(value);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public SortedBidiMap<K,V> headMapByValue(final V toValue) {
-        return SyncUtils.synchronizeRead(lock, new Callback<SortedBidiMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                SortedBidiMap<K,V> _map = getSortedBidiMap().headMapByValue(toValue);
-                _return(new SynchronizedSortedBidiMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            SortedBidiMap<K,V> _map = getSortedBidiMap().headMapByValue(toValue);
+            return new SynchronizedSortedBidiMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     @Override
@@ -155,108 +166,119 @@ public class SynchronizedSortedBidiMap<K,V> extends SynchronizedSortedMap<K,V> i
     }
     
     public FilterableSet<K> keySetByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableSet<K>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<K> _set = getSortedBidiMap().keySetByValue();
-                _return(new SynchronizedFilterableSet<K>(_set, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<K> _set = getSortedBidiMap().keySetByValue();
+            return new SynchronizedFilterableSet<K>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public K lastKeyByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().lastKeyByValue());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().lastKeyByValue();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public V lastValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<V>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().lastValue());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().lastValue();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public V lastValueByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<V>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().lastValueByValue());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().lastValueByValue();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public K removeValue(final Object value) {
-        return SyncUtils.synchronizeWrite(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().removeValue(value));
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            return getSortedBidiMap().removeValue(value);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public SortedBidiMap<K,V> subMapByValue(final V fromValue, final V toValue) {
-        return SyncUtils.synchronizeRead(lock, new Callback<SortedBidiMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                SortedBidiMap<K,V> _map = getSortedBidiMap().subMapByValue(fromValue, toValue);
-                _return(new SynchronizedSortedBidiMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            SortedBidiMap<K,V> _map = getSortedBidiMap().subMapByValue(fromValue, toValue);
+            return new SynchronizedSortedBidiMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public SortedBidiMap<K,V> tailMapByValue(final V fromValue) {
-        return SyncUtils.synchronizeRead(lock, new Callback<SortedBidiMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                SortedBidiMap<K,V> _map = getSortedBidiMap().tailMapByValue(fromValue);
-                _return(new SynchronizedSortedBidiMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            SortedBidiMap<K,V> _map = getSortedBidiMap().tailMapByValue(fromValue);
+            return new SynchronizedSortedBidiMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public Comparator<? super V> valueComparator() {
-        return SyncUtils.synchronizeRead(lock, new Callback<Comparator<? super V>>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedBidiMap().valueComparator());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedBidiMap().valueComparator();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableCollection<V> valuesByValue() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableCollection<V>>() {
-            @Override
-            protected void doAction() {
-                FilterableCollection<V> _col = getSortedBidiMap().valuesByValue();
-                _return(new SynchronizedFilterableCollection<V>(_col, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableCollection<V> _col = getSortedBidiMap().valuesByValue();
+            return new SynchronizedFilterableCollection<V>(_col, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public FilterableCollection<V> valuesByValueDescending() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableCollection<V>>() {
-            @Override
-            protected void doAction() {
-                FilterableCollection<V> _col = getSortedBidiMap().valuesByValueDescending();
-                _return(new SynchronizedFilterableCollection<V>(_col, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableCollection<V> _col = getSortedBidiMap().valuesByValueDescending();
+            return new SynchronizedFilterableCollection<V>(_col, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     @Override
     public Collection<V> values() {
-        return (Collection<V>)SyncUtils.synchronizeRead(lock, new Callback<Collection<V>>() {
-            @Override
-            protected void doAction() {
-                FilterableCollection<V> _col = (FilterableCollection)map.values();
-                _return(new SynchronizedFilterableCollection<V>(_col, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableCollection<V> _col = (FilterableCollection)map.values();
+            return new SynchronizedFilterableCollection<V>(_col, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 }
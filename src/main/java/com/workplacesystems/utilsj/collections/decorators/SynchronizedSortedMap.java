@@ -18,7 +18,6 @@ package com.workplacesystems.utilsj.collections.decorators;
 
 import java.util.Comparator;
 import java.util.SortedMap;
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.SyncUtils;
 
 /**
@@ -64,59 +63,65 @@ public class SynchronizedSortedMap<K,V> extends SynchronizedMap<K,V> implements
     
     //-----------------------------------------------------------------------
     public Comparator<? super K> comparator() {
-        return SyncUtils.synchronizeRead(lock, new Callback<Comparator<? super K>>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedMap().comparator());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedMap().comparator();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public K firstKey() {
-        return SyncUtils.synchronizeRead(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedMap().firstKey());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedMap().firstKey();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public SortedMap<K,V> headMap(final K toKey) {
-        return SyncUtils.synchronizeRead(lock, new Callback<SortedMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                SortedMap<K,V> _map = getSortedMap().headMap(toKey);
-                _return(new SynchronizedSortedMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            SortedMap<K,V> _map = getSortedMap().headMap(toKey);
+            return new SynchronizedSortedMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public K lastKey() {
-        return SyncUtils.synchronizeRead(lock, new Callback<K>() {
-            @Override
-            protected void doAction() {
-                _return(getSortedMap().lastKey());
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            return getSortedMap().lastKey();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public SortedMap<K,V> subMap(final K fromKey, final K toKey) {
-        return SyncUtils.synchronizeRead(lock, new Callback<SortedMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                SortedMap<K,V> _map = getSortedMap().subMap(fromKey, toKey);
-                _return(new SynchronizedSortedMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            SortedMap<K,V> _map = getSortedMap().subMap(fromKey, toKey);
+            return new SynchronizedSortedMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public SortedMap<K,V> tailMap(final K fromKey) {
-        return SyncUtils.synchronizeRead(lock, new Callback<SortedMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                SortedMap<K,V> _map = getSortedMap().tailMap(fromKey);
-                _return(new SynchronizedSortedMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            SortedMap<K,V> _map = getSortedMap().tailMap(fromKey);
+            return new SynchronizedSortedMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 }
@@ -16,7 +16,6 @@
 
 package com.workplacesystems.utilsj.collections.decorators;
 
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.SyncUtils;
 import com.workplacesystems.utilsj.collections.TransactionalSortedBidiMap;
 
@@ -64,40 +63,43 @@ public class SynchronizedTransactionalSortedBidiMap<K,V> extends SynchronizedSor
     
     //-----------------------------------------------------------------------
     public void commit() {
-        SyncUtils.synchronizeWrite(lock, new Callback<Object>() {
-            @Override
-            protected void doAction() {
-                getTransactionalSortedBidiMap().commit();
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            getTransactionalSortedBidiMap().commit();
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public void rollback() {
-        SyncUtils.synchronizeWrite(lock, new Callback<Object>() {
-            @Override
-            protected void doAction() {
-                getTransactionalSortedBidiMap().rollback();
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            getTransactionalSortedBidiMap().rollback();
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
     
     public void setAutoCommit(final boolean auto_commit) {
-        SyncUtils.synchronizeWrite(lock, new Callback<Object>() {
-            @Override
-            protected void doAction() {
-                getTransactionalSortedBidiMap().setAutoCommit(auto_commit);
-            }
-        });
+        SyncUtils.lockWrite(lock);
+        try {
+            getTransactionalSortedBidiMap().setAutoCommit(auto_commit);
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 
     public boolean isAutoCommit() {
-        Boolean ret = SyncUtils.synchronizeRead(lock, new Callback<Boolean>() {
-            @Override
-            protected void doAction() {
-                _return(getTransactionalSortedBidiMap().isAutoCommit() ? Boolean.TRUE : Boolean.FALSE);
-            }
-        });
-        return ret.booleanValue();
+        SyncUtils.lockRead(lock);
+        try {
+            return getTransactionalSortedBidiMap().isAutoCommit();
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public void attach(final String attach_id) {
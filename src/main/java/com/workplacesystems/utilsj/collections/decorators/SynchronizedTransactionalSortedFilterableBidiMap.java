@@ -16,14 +16,17 @@
 
 package com.workplacesystems.utilsj.collections.decorators;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
-import com.workplacesystems.utilsj.Callback;
 import com.workplacesystems.utilsj.collections.Filter;
 import com.workplacesystems.utilsj.collections.FilterableBidiMap;
 import com.workplacesystems.utilsj.collections.FilterableMap;
 import com.workplacesystems.utilsj.collections.SyncUtils;
 import com.workplacesystems.utilsj.collections.FilterableSet;
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
 import com.workplacesystems.utilsj.collections.TransactionalSortedFilterableBidiMap;
 
 /**
@@ -78,32 +81,61 @@ public class SynchronizedTransactionalSortedFilterableBidiMap<K,V> extends Synch
     //-----------------------------------------------------------------------
 
     public FilterableMap<K,V> filteredMap(final Filter<? super K> filter) {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                FilterableMap<K,V> _map = getTransactionalSortedFilterableBidiMap().filteredMap(filter);
-                _return(new SynchronizedFilterableMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableMap<K,V> _map = getTransactionalSortedFilterableBidiMap().filteredMap(filter);
+            return new SynchronizedFilterableMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
     
     public FilterableBidiMap<K,V> filteredMapByValue(final Filter<? super V> filter) {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableBidiMap<K,V>>() {
-            @Override
-            protected void doAction() {
-                FilterableBidiMap<K,V> _map = getTransactionalSortedFilterableBidiMap().filteredMapByValue(filter);
-                _return(new SynchronizedFilterableBidiMap<K,V>(_map, lock));
-            }
-        });
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableBidiMap<K,V> _map = getTransactionalSortedFilterableBidiMap().filteredMapByValue(filter);
+            return new SynchronizedFilterableBidiMap<K,V>(_map, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
     }
 
     public FilterableSet<Map.Entry<K,V>> allEntrySet() {
-        return SyncUtils.synchronizeRead(lock, new Callback<FilterableSet<Map.Entry<K,V>>>() {
-            @Override
-            protected void doAction() {
-                FilterableSet<Map.Entry<K,V>> _set = getTransactionalSortedFilterableBidiMap().allEntrySet();
-                _return(new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock));
+        SyncUtils.lockRead(lock);
+        try {
+            FilterableSet<Map.Entry<K,V>> _set = getTransactionalSortedFilterableBidiMap().allEntrySet();
+            return new SynchronizedFilterableSet<Map.Entry<K,V>>(_set, lock);
+        }
+        finally {
+            SyncUtils.unlockRead(lock);
+        }
+    }
+
+    /**
+     * Removes the mappings for all of the keys under a single write lock,
+     * as a batch if the decorated map is a TransactionalBidiTreeMap.
+     *
+     * @return true if any mapping was removed
+     */
+    public boolean removeAll(final Collection<?> keys) {
+        SyncUtils.lockWrite(lock);
+        try {
+            TransactionalSortedFilterableBidiMap<K,V> map = getTransactionalSortedFilterableBidiMap();
+            if (map instanceof TransactionalBidiTreeMap)
+                return ((TransactionalBidiTreeMap<?,?>)map).removeAll(keys);
+
+            Set<K> keySet = map.keySet();
+            boolean removed = false;
+            for (Iterator<?> i = keys.iterator(); i.hasNext(); ) {
+                if (keySet.remove(i.next()))
+                    removed = true;
             }
-        });
+            return removed;
+        }
+        finally {
+            SyncUtils.unlockWrite(lock);
+        }
     }
 }
@@ -16,24 +16,77 @@
 
 package com.workplacesystems.utilsj.collections.helpers;
 
+import java.util.AbstractCollection;
 import java.util.Collection;
 import java.util.Iterator;
 
+import com.workplacesystems.utilsj.collections.FilterableCollection;
+
 /**
  * Utility to provide a sum of a collection.
- * The sum is dynamically recomputed to reflect the state of the collection.
+ * The sum is dynamically recomputed to reflect the state of the collection,
+ * unless it is maintained, in which case it is computed once and then kept
+ * up to date by the changes made through getNumbers().
  */
 public class CollectionSum extends Number
 {
+    /** Extracts the value of a number for the DoubleReducer */
+    private static final DoubleReducer.Extractor<Number> DOUBLE_VALUE = new DoubleReducer.Extractor<Number>() {
+        public double valueOf(Number obj)
+        {
+            return obj.doubleValue();
+        }
+    };
+
     private Collection<Number> numbers;
+
+    private MaintainedNumbers maintained;
+
+    private double total;
     
     public CollectionSum( Collection<Number> numbers )
     {
         this.numbers = numbers;
     }
 
+    /**
+     * Utility to provide a sum of a collection which, if maintained is true,
+     * is computed once and then adjusted as numbers are added and removed
+     * through getNumbers(), so reading it doesn't visit the collection.
+     * Changes made directly to the collection aren't seen. Sums of whole
+     * numbers are exact up to 2^53, other numbers may leave a difference
+     * in the last bits from a recomputed sum as they are removed.
+     */
+    public CollectionSum( Collection<Number> numbers, boolean maintained )
+    {
+        this.numbers = numbers;
+        if (maintained)
+        {
+            total = sum();
+            this.maintained = new MaintainedNumbers();
+        }
+    }
+
+    /**
+     * @return the numbers being summed. If the sum is maintained this is a
+     *         view of the collection that must be used for any changes so
+     *         that the sum follows them.
+     */
+    public Collection<Number> getNumbers()
+    {
+        return maintained == null ? numbers : maintained;
+    }
+
     @Override
     public double doubleValue()
+    {
+        if (maintained != null)
+            return total;
+
+        return sum();
+    }
+
+    private double sum()
     {
         double total = 0.0;
         Iterator<Number> itr = numbers.iterator();
@@ -45,6 +98,19 @@ public class CollectionSum extends Number
         return total;
     }
 
+    /**
+     * Computes the sum with a parallel iteration when the numbers are a
+     * FilterableCollection. The additions are done in a different order
+     * to doubleValue so the result may differ in the last bits.
+     */
+    public double parallelDoubleValue()
+    {
+        if (maintained != null || !(numbers instanceof FilterableCollection))
+            return doubleValue();
+
+        return new DoubleReducer<Number>(DOUBLE_VALUE).iterateParallel((FilterableCollection<Number>)numbers)[0];
+    }
+
     @Override
     public float floatValue()
     {
@@ -62,4 +128,72 @@ public class CollectionSum extends Number
     {
         return (long)doubleValue();
     }
+
+    /** View of the numbers that adjusts the maintained sum as they change */
+    private class MaintainedNumbers extends AbstractCollection<Number>
+    {
+        @Override
+        public Iterator<Number> iterator()
+        {
+            final Iterator<Number> itr = numbers.iterator();
+            return new Iterator<Number>() {
+                private Number last;
+
+                public boolean hasNext()
+                {
+                    return itr.hasNext();
+                }
+
+                public Number next()
+                {
+                    last = itr.next();
+                    return last;
+                }
+
+                public void remove()
+                {
+                    itr.remove();
+                    total -= last.doubleValue();
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return numbers.size();
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return numbers.contains(o);
+        }
+
+        @Override
+        public boolean add(Number n)
+        {
+            double value = n.doubleValue();
+            if (!numbers.add(n))
+                return false;
+            total += value;
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            if (!(o instanceof Number) || !numbers.remove(o))
+                return false;
+            total -= ((Number)o).doubleValue();
+            return true;
+        }
+
+        @Override
+        public void clear()
+        {
+            numbers.clear();
+            total = 0.0;
+        }
+    }
 }
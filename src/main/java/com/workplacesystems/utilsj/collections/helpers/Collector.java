@@ -18,7 +18,7 @@ package com.workplacesystems.utilsj.collections.helpers;
 
 import java.util.Collection;
 import com.workplacesystems.utilsj.collections.FilterableArrayList;
-import com.workplacesystems.utilsj.collections.IterativeCallback;
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
 /**
  * Iterator to collect the results of all the elements it visits.  The 'result' function can compute a
  * new object or alter the existing one.  Clients can collect sub-collections by using this in conjunction
@@ -29,7 +29,7 @@ import com.workplacesystems.utilsj.collections.IterativeCallback;
  * @see Selector - all elements visited
  * @see Count - count of all elements visited 
  */
-public abstract class Collector<T,R> extends IterativeCallback<T,Collection<R>>
+public abstract class Collector<T,R> extends MergeableIterativeCallback<T,Collection<R>>
 {
     /** Iterator which will return a collection of result(visited_item) */
     public Collector()
@@ -48,6 +48,19 @@ public abstract class Collector<T,R> extends IterativeCallback<T,Collection<R>>
     {
         getAmendedObject().add(result(obj));
     }
+
+    @Override
+    protected Collection<R> newChunkObject()
+    {
+        return new FilterableArrayList<R>();
+    }
+
+    @Override
+    protected Collection<R> merge(Collection<R> left, Collection<R> right)
+    {
+        left.addAll(right);
+        return left;
+    }
     
     public abstract R result(T obj);
 }
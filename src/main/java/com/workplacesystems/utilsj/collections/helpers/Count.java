@@ -16,7 +16,7 @@
 
 package com.workplacesystems.utilsj.collections.helpers;
 
-import com.workplacesystems.utilsj.collections.IterativeCallback;
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
 
 /**
  * Iterator to count all the elements it visits.  Clients can count sub-collections
@@ -27,12 +27,15 @@ import com.workplacesystems.utilsj.collections.IterativeCallback;
  * @see Selector - all elements visited 
  * @see Count - count of all elements visited 
  */
-public class Count<T> extends IterativeCallback<T, Integer>
+public class Count<T> extends MergeableIterativeCallback<T, Integer>
 {
+    /** Objects visited since the amended object was last set, kept unboxed */
+    private int visited = 0;
+
     /** Iterator which will return a count of visited items */
     public Count()
     {
-        super(new Integer(0));
+        super(Integer.valueOf(0));
     }
 
     /** Iterator which will return an accumulated count of visited items */
@@ -44,6 +47,39 @@ public class Count<T> extends IterativeCallback<T, Integer>
     @Override
     protected void nextObject(T obj)
     {
-        setAmendedObject(getAmendedObject().intValue()+1);
+        visited++;
+    }
+
+    /** @return the count so far, including the objects visited since it was last set */
+    @Override
+    protected Integer getAmendedObject()
+    {
+        return super.getAmendedObject().intValue()+visited;
+    }
+
+    @Override
+    protected void setAmendedObject(Integer o)
+    {
+        super.setAmendedObject(o);
+        visited = 0;
+    }
+
+    /** Boxes the count once at the end, rather than on each step */
+    @Override
+    protected void iterationComplete()
+    {
+        setAmendedObject(getAmendedObject());
+    }
+
+    @Override
+    protected Integer newChunkObject()
+    {
+        return Integer.valueOf(0);
+    }
+
+    @Override
+    protected Integer merge(Integer left, Integer right)
+    {
+        return left.intValue()+right.intValue();
     }
 }
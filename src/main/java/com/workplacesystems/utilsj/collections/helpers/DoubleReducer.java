@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections.helpers;
+
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
+
+/**
+ * Iterator to reduce the elements it visits to a double without boxing. An
+ * Extractor takes a double from each element, which reduce combines with the
+ * running total, by default by adding. Override identity and reduce for
+ * another associative operation such as the maximum, and construct it
+ * with the identity as the starting total. The total is held in a one
+ * element array, which iterate returns.
+ * <p>
+ * iterateParallel adds in a different order to iterate, so the sum of a
+ * parallel iteration may differ in the last bits.
+ * @see IntReducer - reduce to an int
+ * @see LongReducer - reduce to a long
+ * @see DoubleReducer - reduce to a double
+ */
+public class DoubleReducer<T> extends MergeableIterativeCallback<T, double[]>
+{
+    /** Takes the double to reduce from an element */
+    public interface Extractor<T>
+    {
+        double valueOf(T obj);
+    }
+
+    private final Extractor<? super T> extractor;
+
+    /** Iterator which will return the sum of the extracted values */
+    public DoubleReducer(Extractor<? super T> extractor)
+    {
+        this(extractor, 0.0);
+    }
+
+    /** Iterator which will reduce the extracted values onto the supplied total */
+    public DoubleReducer(Extractor<? super T> extractor, double total)
+    {
+        super(new double[] { total });
+        this.extractor = extractor;
+    }
+
+    @Override
+    protected void nextObject(T obj)
+    {
+        double[] total = getAmendedObject();
+        total[0] = reduce(total[0], extractor.valueOf(obj));
+    }
+
+    /** @return the total each chunk of a parallel iteration starts from */
+    protected double identity()
+    {
+        return 0.0;
+    }
+
+    /** @return the total with the value of the next element combined in */
+    protected double reduce(double total, double value)
+    {
+        return total + value;
+    }
+
+    /** @return the total reduced so far */
+    public double doubleValue()
+    {
+        return getAmendedObject()[0];
+    }
+
+    @Override
+    protected double[] newChunkObject()
+    {
+        return new double[] { identity() };
+    }
+
+    @Override
+    protected double[] merge(double[] left, double[] right)
+    {
+        left[0] = reduce(left[0], right[0]);
+        return left;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections.helpers;
+
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
+
+/**
+ * Iterator to reduce the elements it visits to an int without boxing. An
+ * Extractor takes an int from each element, which reduce combines with the
+ * running total, by default by adding. Override identity and reduce for
+ * another associative operation such as the maximum, and construct it
+ * with the identity as the starting total. The total is held in a one
+ * element array, which iterate returns.
+ * @see IntReducer - reduce to an int
+ * @see LongReducer - reduce to a long
+ * @see DoubleReducer - reduce to a double
+ */
+public class IntReducer<T> extends MergeableIterativeCallback<T, int[]>
+{
+    /** Takes the int to reduce from an element */
+    public interface Extractor<T>
+    {
+        int valueOf(T obj);
+    }
+
+    private final Extractor<? super T> extractor;
+
+    /** Iterator which will return the sum of the extracted values */
+    public IntReducer(Extractor<? super T> extractor)
+    {
+        this(extractor, 0);
+    }
+
+    /** Iterator which will reduce the extracted values onto the supplied total */
+    public IntReducer(Extractor<? super T> extractor, int total)
+    {
+        super(new int[] { total });
+        this.extractor = extractor;
+    }
+
+    @Override
+    protected void nextObject(T obj)
+    {
+        int[] total = getAmendedObject();
+        total[0] = reduce(total[0], extractor.valueOf(obj));
+    }
+
+    /** @return the total each chunk of a parallel iteration starts from */
+    protected int identity()
+    {
+        return 0;
+    }
+
+    /** @return the total with the value of the next element combined in */
+    protected int reduce(int total, int value)
+    {
+        return total + value;
+    }
+
+    /** @return the total reduced so far */
+    public int intValue()
+    {
+        return getAmendedObject()[0];
+    }
+
+    @Override
+    protected int[] newChunkObject()
+    {
+        return new int[] { identity() };
+    }
+
+    @Override
+    protected int[] merge(int[] left, int[] right)
+    {
+        left[0] = reduce(left[0], right[0]);
+        return left;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections.helpers;
+
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
+
+/**
+ * Iterator to reduce the elements it visits to a long without boxing. An
+ * Extractor takes a long from each element, which reduce combines with the
+ * running total, by default by adding. Override identity and reduce for
+ * another associative operation such as the maximum, and construct it
+ * with the identity as the starting total. The total is held in a one
+ * element array, which iterate returns.
+ * @see IntReducer - reduce to an int
+ * @see LongReducer - reduce to a long
+ * @see DoubleReducer - reduce to a double
+ */
+public class LongReducer<T> extends MergeableIterativeCallback<T, long[]>
+{
+    /** Takes the long to reduce from an element */
+    public interface Extractor<T>
+    {
+        long valueOf(T obj);
+    }
+
+    private final Extractor<? super T> extractor;
+
+    /** Iterator which will return the sum of the extracted values */
+    public LongReducer(Extractor<? super T> extractor)
+    {
+        this(extractor, 0L);
+    }
+
+    /** Iterator which will reduce the extracted values onto the supplied total */
+    public LongReducer(Extractor<? super T> extractor, long total)
+    {
+        super(new long[] { total });
+        this.extractor = extractor;
+    }
+
+    @Override
+    protected void nextObject(T obj)
+    {
+        long[] total = getAmendedObject();
+        total[0] = reduce(total[0], extractor.valueOf(obj));
+    }
+
+    /** @return the total each chunk of a parallel iteration starts from */
+    protected long identity()
+    {
+        return 0L;
+    }
+
+    /** @return the total with the value of the next element combined in */
+    protected long reduce(long total, long value)
+    {
+        return total + value;
+    }
+
+    /** @return the total reduced so far */
+    public long longValue()
+    {
+        return getAmendedObject()[0];
+    }
+
+    @Override
+    protected long[] newChunkObject()
+    {
+        return new long[] { identity() };
+    }
+
+    @Override
+    protected long[] merge(long[] left, long[] right)
+    {
+        left[0] = reduce(left[0], right[0]);
+        return left;
+    }
+}
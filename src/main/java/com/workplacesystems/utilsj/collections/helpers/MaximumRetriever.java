@@ -18,7 +18,7 @@ package com.workplacesystems.utilsj.collections.helpers;
 
 import java.util.Comparator;
 
-import com.workplacesystems.utilsj.collections.IterativeCallback;
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
 
 /** 
  * Iterator that iterates a collection an finds the maximum value
@@ -30,7 +30,7 @@ import com.workplacesystems.utilsj.collections.IterativeCallback;
  * @see LastRetriever - last element visited 
  * @see Selector - all elements visited  
  */
-public class MaximumRetriever<T extends Comparable<T>> extends IterativeCallback<T,T>
+public class MaximumRetriever<T extends Comparable<T>> extends MergeableIterativeCallback<T,T>
 {
     private Comparator<T> comparator;
     
@@ -58,4 +58,21 @@ public class MaximumRetriever<T extends Comparable<T>> extends IterativeCallback
       else if(comparator.compare(obj, getAmendedObject()) > 0) 
           setAmendedObject(obj);
     }
+
+    @Override
+    protected T newChunkObject()
+    {
+        return null;
+    }
+
+    /** Keeps the earlier object when they compare equal, as a sequential iteration would */
+    @Override
+    protected T merge(T left, T right)
+    {
+        if (left == null)
+            return right;
+        if (right != null && comparator.compare(right, left) > 0)
+            return right;
+        return left;
+    }
 }
@@ -18,7 +18,7 @@ package com.workplacesystems.utilsj.collections.helpers;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import com.workplacesystems.utilsj.collections.IterativeCallback;
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
 
 /**
  * Iterator to select all the elements it visits.  Clients can select sub-collections
@@ -29,7 +29,7 @@ import com.workplacesystems.utilsj.collections.IterativeCallback;
  * @see Selector - all elements visited
  * @see Count - count of all elements visited 
  */
-public class Selector<T> extends IterativeCallback<T, Collection<T>>
+public class Selector<T> extends MergeableIterativeCallback<T, Collection<T>>
 {
     /** Iterator which will return a collection of all objects it visits */
     public Selector()
@@ -49,4 +49,17 @@ public class Selector<T> extends IterativeCallback<T, Collection<T>>
         getAmendedObject().add(obj);
     }
 
+    @Override
+    protected Collection<T> newChunkObject()
+    {
+        return new ArrayList<T>();
+    }
+
+    @Override
+    protected Collection<T> merge(Collection<T> left, Collection<T> right)
+    {
+        left.addAll(right);
+        return left;
+    }
+
 }
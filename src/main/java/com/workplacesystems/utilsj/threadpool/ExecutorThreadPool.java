@@ -0,0 +1,256 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.threadpool;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+/**
+ * A thread pool built on a java.util.concurrent ThreadPoolExecutor as an
+ * alternative to ThreadPool. Tasks are handed to the worker threads through
+ * a work queue instead of borrowing and returning a WorkerThread.
+ * <p>
+ * The ThreadObjectFactory initialises each new thread with initialiseThread
+ * and the worker thread calls activateThread and passivateThread around
+ * each task. With virtual threads (JDK 21 and later) each task runs on a
+ * new virtual thread which is initialised before it is started.
+ */
+public class ExecutorThreadPool implements Executor {
+   /**
+    * Logger for this class
+    */
+   private final static Log log = LogFactory.getLog(ExecutorThreadPool.class);
+
+   /** Thread.ofVirtual().factory() or null if virtual threads aren't available */
+   private final static Method virtual_thread_factory = getVirtualThreadFactoryMethod();
+
+   private final ThreadObjectFactory objFactory;
+
+   private final ThreadPoolExecutor executor;
+
+   /**
+    * Constructor when there is no configuration available. As with
+    * ThreadPool there are at most 4 threads and idle threads end after 30
+    * seconds.
+    * @param objFactory - The factory used to initialise the threads.
+    */
+   public ExecutorThreadPool(ThreadObjectFactory objFactory) {
+      this(objFactory, 4, 30000L, "ExecutorThreadPool", false);
+   }
+
+   /**
+    * Constructor taking the factory, configuration and name from a
+    * ThreadPoolCreator.
+    * @param creator - The ThreadPoolCreator, a null configuration gives the
+    *           defaults of commons-pool.
+    * @param virtual_threads - true to run each task on a new virtual thread
+    */
+   public ExecutorThreadPool(ThreadPoolCreator creator, boolean virtual_threads) {
+      this(creator.getThreadObjectFactory(), creator.getThreadPoolConfig(), creator.getThreadPoolName(), virtual_threads);
+   }
+
+   /**
+    * Constructor to be used when there is a configuration available.
+    * maxActive is the number of threads, or unlimited if negative, and idle
+    * threads end after minEvictableIdleTimeMillis. Other settings don't
+    * apply to an executor and are ignored.
+    * @param objFactory - The factory used to initialise the threads.
+    * @param config - The pool configuration, null for the defaults of commons-pool.
+    * @param name - The prefix for the names of the threads
+    * @param virtual_threads - true to run each task on a new virtual thread
+    */
+   public ExecutorThreadPool(ThreadObjectFactory objFactory, GenericObjectPool.Config config,
+         String name, boolean virtual_threads) {
+      this(objFactory, config == null ? GenericObjectPool.DEFAULT_MAX_ACTIVE : config.maxActive,
+            config == null ? GenericObjectPool.DEFAULT_MIN_EVICTABLE_IDLE_TIME_MILLIS : config.minEvictableIdleTimeMillis,
+            name, virtual_threads);
+   }
+
+   private ExecutorThreadPool(ThreadObjectFactory objFactory, int max_threads, long keep_alive_millis,
+         String name, boolean virtual_threads) {
+      if (objFactory == null) {
+         throw new IllegalArgumentException("ThreadObjectFactory must not be null");
+      }
+      this.objFactory = objFactory;
+
+      if (virtual_threads) {
+         // A new thread for every task, virtual threads are cheap to start and not worth keeping
+         executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS,
+               new SynchronousQueue<Runnable>(), new InitialisingThreadFactory(getVirtualThreadFactory(), name));
+      }
+      else {
+         if (max_threads <= 0) {
+            max_threads = Integer.MAX_VALUE;
+         }
+         if (keep_alive_millis <= 0) {
+            keep_alive_millis = Long.MAX_VALUE;
+         }
+         // Only core threads are used so tasks queue once all of them are busy
+         executor = new ThreadPoolExecutor(max_threads, max_threads, keep_alive_millis, TimeUnit.MILLISECONDS,
+               new LinkedBlockingQueue<Runnable>(), new InitialisingThreadFactory(null, name));
+         executor.allowCoreThreadTimeOut(true);
+      }
+   }
+
+   /**
+    * @return true if the JDK supports virtual threads
+    */
+   public static boolean isVirtualThreadSupported() {
+      return virtual_thread_factory != null;
+   }
+
+   private static Method getVirtualThreadFactoryMethod() {
+      try {
+         Method of_virtual = Thread.class.getMethod("ofVirtual");
+         return of_virtual.getReturnType().getMethod("factory");
+      } catch (NoSuchMethodException e) {
+         // Virtual threads need JDK 21
+         return null;
+      }
+   }
+
+   private static ThreadFactory getVirtualThreadFactory() {
+      if (virtual_thread_factory == null) {
+         throw new UnsupportedOperationException("Virtual threads are not supported by this JDK");
+      }
+      try {
+         Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+         return (ThreadFactory)virtual_thread_factory.invoke(builder);
+      } catch (Exception e) {
+         throw new UnsupportedOperationException("Virtual threads are not supported by this JDK", e);
+      }
+   }
+
+   /**
+    * Creates the threads and initialises them with the ThreadObjectFactory.
+    * Platform threads are daemon threads as WorkerThreads are.
+    */
+   private class InitialisingThreadFactory implements ThreadFactory {
+
+      private final ThreadFactory virtual_factory;
+
+      private final String name;
+
+      private final AtomicInteger thread_count = new AtomicInteger();
+
+      private InitialisingThreadFactory(ThreadFactory virtual_factory, String name) {
+         this.virtual_factory = virtual_factory;
+         this.name = name;
+      }
+
+      public Thread newThread(Runnable r) {
+         Thread thread;
+         if (virtual_factory != null) {
+            thread = virtual_factory.newThread(r);
+         }
+         else {
+            thread = new Thread(r);
+            thread.setDaemon(true);
+         }
+         thread.setName(name + "-" + thread_count.incrementAndGet());
+
+         log.debug(" newThread..." + thread);
+         objFactory.initialiseThread(thread);
+         return thread;
+      }
+   }
+
+   /**
+    * Runs the task on a pool thread. Exceptions thrown by the task are
+    * logged as WorkerThread does.
+    * @throws java.util.concurrent.RejectedExecutionException if the pool has been shutdown
+    */
+   public void execute(Runnable runnable) {
+      execute(runnable, null);
+   }
+
+   /**
+    * Runs the task on a pool thread and notifies syncObject once it is done.
+    * @see WorkerThread#execute(Runnable, Object)
+    */
+   public void execute(final Runnable runnable, final Object syncObject) {
+      executor.execute(new Runnable() {
+         public void run() {
+            Thread thread = Thread.currentThread();
+            try {
+               objFactory.activateThread(thread);
+               try {
+                  runnable.run();
+               } finally {
+                  objFactory.passivateThread(thread);
+               }
+            } catch (Exception e) {
+               log.error("", e);
+            } finally {
+               if (syncObject != null) {
+                  synchronized (syncObject) {
+                     syncObject.notify();
+                  }
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * @return the number of threads currently running tasks
+    */
+   public int getNumActive() {
+      return executor.getActiveCount();
+   }
+
+   /**
+    * @return the number of tasks waiting for a thread
+    */
+   public int getNumQueued() {
+      return executor.getQueue().size();
+   }
+
+   /**
+    * Runs the tasks already submitted but accepts no more.
+    */
+   public void shutdown() {
+      executor.shutdown();
+   }
+
+   /**
+    * Interrupts the running tasks and drops the waiting ones.
+    * @return the tasks that never ran
+    */
+   public List<Runnable> shutdownNow() {
+      return executor.shutdownNow();
+   }
+
+   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return executor.awaitTermination(timeout, unit);
+   }
+
+   public boolean isShutdown() {
+      return executor.isShutdown();
+   }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class ConcurrentTransactionalHashMapTest extends TestCase
+{
+    private ConcurrentTransactionalHashMap<Integer,String> getDefault()
+    {
+        ConcurrentTransactionalHashMap<Integer,String> map = new ConcurrentTransactionalHashMap<Integer,String>();
+        map.put(Integer.valueOf(2), "C");
+        map.put(Integer.valueOf(1), "D");
+        map.put(Integer.valueOf(3), "A");
+        map.put(Integer.valueOf(4), "B");
+        return map;
+    }
+
+    private int countEntries(Map<?,?> map)
+    {
+        int count = 0;
+        for (Iterator<?> i = map.entrySet().iterator(); i.hasNext(); i.next())
+            count++;
+        return count;
+    }
+
+    public void testBasics()
+    {
+        ConcurrentTransactionalHashMap<Integer,String> map = getDefault();
+        assertEquals(4, map.size());
+        assertEquals("D", map.get(Integer.valueOf(1)));
+        assertEquals("D", map.put(Integer.valueOf(1), "E"));
+        assertEquals("E", map.get(Integer.valueOf(1)));
+        assertTrue(map.containsValue("A"));
+        assertFalse(map.containsValue("D"));
+
+        map.put(null, "N");
+        assertEquals("N", map.get(null));
+        assertTrue(map.keySet().contains(null));
+        assertEquals("N", map.remove(null));
+        assertFalse(map.containsKey(null));
+
+        Map<Integer,String> expected = new HashMap<Integer,String>();
+        expected.put(Integer.valueOf(1), "E");
+        expected.put(Integer.valueOf(2), "C");
+        expected.put(Integer.valueOf(3), "A");
+        expected.put(Integer.valueOf(4), "B");
+        assertEquals(expected, map);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertEquals(expected, new ConcurrentTransactionalHashMap<Integer,String>(expected));
+
+        assertTrue(map.entrySet().remove(new TestEntry(Integer.valueOf(3), "A")));
+        assertFalse(map.entrySet().remove(new TestEntry(Integer.valueOf(4), "A")));
+        assertTrue(map.keySet().remove(Integer.valueOf(4)));
+        for (Iterator<String> i = map.values().iterator(); i.hasNext();)
+        {
+            if (i.next().equals("E"))
+                i.remove();
+        }
+        assertEquals(1, map.size());
+        assertEquals("C", map.get(Integer.valueOf(2)));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    public void testResize()
+    {
+        ConcurrentTransactionalHashMap<Integer,Integer> map = new ConcurrentTransactionalHashMap<Integer,Integer>(0, 0.75f, 4);
+        for (int i = 0; i < 10000; i++)
+            map.put(Integer.valueOf(i), Integer.valueOf(-i));
+        assertEquals(10000, map.size());
+        assertEquals(10000, countEntries(map));
+        for (int i = 0; i < 10000; i++)
+            assertEquals(Integer.valueOf(-i), map.get(Integer.valueOf(i)));
+    }
+
+    public void testTransactional_put()
+    {
+        ConcurrentTransactionalHashMap<Integer,String> map = new ConcurrentTransactionalHashMap<Integer,String>();
+        map.setAutoCommit(false);
+
+        Integer one = Integer.valueOf(1);
+        map.put(one, "A");
+        map.commit();
+        assertEquals("A", map.remove(one));
+        assertNull(map.put(one, "A"));
+        map.commit();
+        // Current thread should be able to replace the key as many times as it wants
+        assertEquals("A", map.put(one, "B"));
+        assertEquals("B", map.put(one, "C"));
+        assertEquals(1, map.size());
+        map.commit();
+        assertEquals(1, map.size(true));
+        assertEquals("C", map.get(one));
+    }
+
+    public void testTransactions_visibility()
+    {
+        ConcurrentTransactionalHashMap<Integer,String> map = getDefault();
+        map.setAutoCommit(false);
+
+        map.attach("tx0");
+        map.put(Integer.valueOf(5), "E");
+        map.remove(Integer.valueOf(1));
+        assertEquals(4, map.size());
+        assertEquals("E", map.get(Integer.valueOf(5)));
+        assertNull(map.get(Integer.valueOf(1)));
+
+        map.attach("tx1");
+        assertEquals(4, map.size());
+        assertNull(map.get(Integer.valueOf(5)));
+        assertEquals("D", map.get(Integer.valueOf(1)));
+        try
+        {
+            map.put(Integer.valueOf(5), "F");
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+        try
+        {
+            map.remove(Integer.valueOf(1));
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+
+        map.attach("tx0");
+        map.rollback();
+        assertEquals("D", map.get(Integer.valueOf(1)));
+        assertNull(map.get(Integer.valueOf(5)));
+
+        map.put(Integer.valueOf(5), "E");
+        map.commit();
+        map.attach("tx1");
+        assertEquals("E", map.get(Integer.valueOf(5)));
+        assertEquals(5, map.size());
+        map.detach();
+    }
+
+    public void testTransactions_sizeMixed()
+    {
+        final ConcurrentTransactionalHashMap<Integer,String> map = getDefault();
+        map.setAutoCommit(false);
+
+        String[] ids = new String[] { "tx0", "tx1", "tx2", "tx3" };
+        Random random = new Random(20031015L);
+        for (int step = 0; step < 2000; step++)
+        {
+            map.attach(ids[random.nextInt(ids.length)]);
+            Integer key = Integer.valueOf(random.nextInt(20));
+            try
+            {
+                switch (random.nextInt(6))
+                {
+                    case 0:
+                    case 1:
+                        map.put(key, "V" + step);
+                        break;
+                    case 2:
+                    case 3:
+                        map.remove(key);
+                        break;
+                    case 4:
+                        map.commit();
+                        break;
+                    default:
+                        map.rollback();
+                        break;
+                }
+            }
+            catch (ConcurrentModificationException ignored) {}
+
+            for (int i = 0; i < ids.length; i++)
+            {
+                map.attach(ids[i]);
+                assertEquals(countEntries(map), map.size());
+                assertEquals(map.size() == 0, map.isEmpty());
+            }
+            map.detach();
+            assertEquals(countEntries(map), map.size());
+        }
+
+        for (int i = 0; i < ids.length; i++)
+        {
+            map.attach(ids[i]);
+            map.commit();
+        }
+        map.detach();
+        assertEquals(map.size(true), map.size());
+        assertEquals(countEntries(map), map.size());
+    }
+
+    public void testSetAutoCommitCommitsAll()
+    {
+        ConcurrentTransactionalHashMap<Integer,String> map = getDefault();
+        map.setAutoCommit(false);
+        map.attach("tx0");
+        map.put(Integer.valueOf(5), "E");
+        map.attach("tx1");
+        map.remove(Integer.valueOf(2));
+        map.detach();
+
+        map.setAutoCommit(true);
+        assertEquals(4, map.size());
+        assertEquals("E", map.get(Integer.valueOf(5)));
+        assertFalse(map.containsKey(Integer.valueOf(2)));
+    }
+
+    /**
+     * Each thread commits its own keys while another thread checks that a
+     * commit is never seen half done.
+     */
+    public void testConcurrentCommits() throws InterruptedException
+    {
+        final ConcurrentTransactionalHashMap<Integer,Integer> map = new ConcurrentTransactionalHashMap<Integer,Integer>();
+        map.setAutoCommit(false);
+
+        final int threads = 4;
+        final int batches = 200;
+        final int batch_size = 10;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread_index = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int b = 0; b < batches; b++)
+                        {
+                            int first = (thread_index * batches + b) * batch_size;
+                            for (int k = first; k < first + batch_size; k++)
+                                map.put(Integer.valueOf(k), Integer.valueOf(b));
+                            for (int k = first; k < first + batch_size; k++)
+                                if (!map.containsKey(Integer.valueOf(k)))
+                                    throw new AssertionError("Own change not visible for key " + k);
+                            map.commit();
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+
+        Thread reader = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    start.await();
+                    boolean writing = true;
+                    int batch = 0;
+                    while (writing)
+                    {
+                        writing = false;
+                        for (Thread writer : writers)
+                            writing |= writer.isAlive();
+                        // Once any key of a batch is visible the rest must be
+                        int first = batch * batch_size;
+                        if (map.containsKey(Integer.valueOf(first + batch_size - 1)))
+                        {
+                            for (int k = first; k < first + batch_size; k++)
+                                if (!map.containsKey(Integer.valueOf(k)))
+                                    throw new AssertionError("Partial commit seen for key " + k);
+                        }
+                        batch = (batch + 1) % (threads * batches);
+                    }
+                }
+                catch (Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        reader.start();
+
+        start.countDown();
+        for (Thread writer : writers)
+            writer.join();
+        reader.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(threads * batches * batch_size, map.size());
+        for (int k = 0; k < threads * batches * batch_size; k++)
+            assertEquals(Integer.valueOf(k / batch_size % batches), map.get(Integer.valueOf(k)));
+    }
+
+    private static class TestEntry implements Map.Entry<Integer,String>
+    {
+        private final Integer key;
+        private final String value;
+
+        TestEntry(Integer key, String value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Integer getKey()
+        {
+            return key;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+
+        public String setValue(String value)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.SortedMap;
+
+import junit.framework.TestCase;
+
+public class OffHeapTransactionalBidiTreeMapTest extends TestCase
+{
+    private OffHeapTransactionalBidiTreeMap<Long,String> getDefault()
+    {
+        OffHeapTransactionalBidiTreeMap<Long,String> map = newMap();
+        // Values sort in the opposite order to the keys
+        for (long key = 0; key < 100; key++)
+            map.put(Long.valueOf(key), value(key));
+        return map;
+    }
+
+    private static OffHeapTransactionalBidiTreeMap<Long,String> newMap()
+    {
+        return new OffHeapTransactionalBidiTreeMap<Long,String>(OffHeapSerializer.LONG, new OffHeapSerializer.Strings(8));
+    }
+
+    private static String value(final long key)
+    {
+        return "V" + (char)('z' - key / 10) + (char)('z' - key % 10);
+    }
+
+    private static <E> List<E> list(final Iterable<E> iterable)
+    {
+        List<E> list = new ArrayList<E>();
+        for (E e : iterable)
+            list.add(e);
+        return list;
+    }
+
+    public void testBasics()
+    {
+        OffHeapTransactionalBidiTreeMap<Long,String> map = getDefault();
+        assertEquals(100, map.size());
+        assertEquals(value(42), map.get(Long.valueOf(42)));
+        assertNull(map.get(Long.valueOf(100)));
+        assertEquals(Long.valueOf(42), map.getKeyForValue(value(42)));
+        assertTrue(map.containsKey(Long.valueOf(0)));
+        assertTrue(map.containsValue(value(99)));
+        assertFalse(map.containsValue("X"));
+
+        try
+        {
+            map.put(Long.valueOf(5), "new");
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        try
+        {
+            map.put(Long.valueOf(500), value(5));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        try
+        {
+            map.put(Long.valueOf(500), "too long for 8");
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        try
+        {
+            map.put(null, "X");
+            fail("Expected NullPointerException");
+        }
+        catch (NullPointerException expected) {}
+        assertEquals(100, map.size());
+
+        assertEquals(value(5), map.remove(Long.valueOf(5)));
+        assertNull(map.remove(Long.valueOf(5)));
+        assertEquals(Long.valueOf(6), map.removeValue(value(6)));
+        assertEquals(98, map.size());
+        assertFalse(map.containsKey(Long.valueOf(5)));
+
+        // The removed records are reused
+        long off_heap_size = map.offHeapSize();
+        map.put(Long.valueOf(5), "A");
+        map.put(Long.valueOf(6), "B");
+        assertEquals(off_heap_size, map.offHeapSize());
+        assertEquals(Long.valueOf(5), map.firstKeyByValue());
+        assertEquals("A", map.firstValueByValue());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(Long.valueOf(1)));
+        map.put(Long.valueOf(1), "A");
+        assertEquals(1, map.size());
+    }
+
+    public void testOrder()
+    {
+        OffHeapTransactionalBidiTreeMap<Long,String> map = getDefault();
+        assertEquals(Long.valueOf(0), map.firstKey());
+        assertEquals(Long.valueOf(99), map.lastKey());
+        assertEquals(value(0), map.firstValue());
+        assertEquals(Long.valueOf(99), map.firstKeyByValue());
+        assertEquals(value(99), map.firstValueByValue());
+        assertEquals(Long.valueOf(0), map.lastKeyByValue());
+        assertEquals(value(0), map.lastValueByValue());
+
+        List<Long> keys = list(map.keySet());
+        List<Long> keys_by_value = list(map.keySetByValue());
+        List<String> values = list(map.values());
+        List<String> values_descending = list(map.valuesByValueDescending());
+        assertEquals(100, keys.size());
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(Long.valueOf(i), keys.get(i));
+            assertEquals(Long.valueOf(99 - i), keys_by_value.get(i));
+            assertEquals(value(i), values.get(i));
+            assertEquals(value(i), values_descending.get(i));
+        }
+
+        Map.Entry<Long,String> entry = map.entrySetByValue().iterator().next();
+        assertEquals(Long.valueOf(99), entry.getKey());
+        assertEquals(value(99), entry.getValue());
+        assertTrue(map.entrySet().contains(entry));
+        try
+        {
+            entry.setValue("X");
+            fail("Expected UnsupportedOperationException");
+        }
+        catch (UnsupportedOperationException expected) {}
+
+        assertEquals(Long.valueOf(0), map.entrySetByValueDescending().iterator().next().getKey());
+
+        map.clear();
+        try
+        {
+            map.firstKey();
+            fail("Expected NoSuchElementException");
+        }
+        catch (NoSuchElementException expected) {}
+    }
+
+    public void testSubMaps()
+    {
+        OffHeapTransactionalBidiTreeMap<Long,String> map = getDefault();
+        SortedMap<Long,String> sub = map.subMap(Long.valueOf(10), Long.valueOf(20));
+        assertEquals(10, sub.size());
+        assertEquals(Long.valueOf(10), sub.firstKey());
+        assertEquals(Long.valueOf(19), sub.lastKey());
+        assertTrue(sub.containsKey(Long.valueOf(15)));
+        assertFalse(sub.containsKey(Long.valueOf(20)));
+        assertNull(sub.get(Long.valueOf(5)));
+        assertEquals(5, sub.headMap(Long.valueOf(15)).size());
+        assertEquals(5, sub.tailMap(Long.valueOf(15)).size());
+        try
+        {
+            sub.subMap(Long.valueOf(5), Long.valueOf(15));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        try
+        {
+            sub.put(Long.valueOf(25), "A");
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+
+        assertEquals(value(12), sub.remove(Long.valueOf(12)));
+        assertFalse(map.containsKey(Long.valueOf(12)));
+        assertEquals(9, sub.size());
+
+        // Values from Vw up to V{ are keys 0 to 39
+        SortedBidiMap<Long,String> by_value = map.subMapByValue("Vw", "V{").headMapByValue("Vy");
+        assertEquals(20, by_value.size());
+        assertEquals(Long.valueOf(39), by_value.firstKeyByValue());
+        assertEquals(Long.valueOf(20), by_value.lastKeyByValue());
+        assertEquals(Long.valueOf(20), by_value.firstKey());
+        SortedBidiMap<Long,String> both = (SortedBidiMap<Long,String>)((SortedBidiMap<Long,String>)map.subMapByValue("Vw", "V{")).subMap(Long.valueOf(15), Long.valueOf(25));
+        assertEquals(10, both.size());
+        assertEquals(Long.valueOf(24), both.firstKeyByValue());
+
+        for (Iterator<String> i = both.valuesByValue().iterator(); i.hasNext(); )
+        {
+            i.next();
+            i.remove();
+        }
+        assertTrue(both.isEmpty());
+        assertEquals(89, map.size());
+        assertTrue(map.containsKey(Long.valueOf(14)));
+        assertTrue(map.containsKey(Long.valueOf(25)));
+    }
+
+    public void testTransactions()
+    {
+        OffHeapTransactionalBidiTreeMap<Long,String> map = getDefault();
+        map.setAutoCommit(false);
+
+        map.attach("tx0");
+        map.put(Long.valueOf(1000), "T1000");
+        assertEquals(value(3), map.remove(Long.valueOf(3)));
+        assertEquals("T1000", map.get(Long.valueOf(1000)));
+        assertFalse(map.containsKey(Long.valueOf(3)));
+        assertEquals(100, map.size());
+        assertEquals(Long.valueOf(1000), map.lastKey());
+        // Deleted then put again in the same transaction
+        map.put(Long.valueOf(3), "T3");
+        assertEquals("T3", map.get(Long.valueOf(3)));
+        assertEquals(101, map.size());
+
+        map.attach("tx1");
+        assertNull(map.get(Long.valueOf(1000)));
+        assertEquals(value(3), map.get(Long.valueOf(3)));
+        assertEquals(100, map.size());
+        assertEquals(Long.valueOf(99), map.lastKey());
+        assertEquals(100, list(map.entrySet()).size());
+        try
+        {
+            map.put(Long.valueOf(1000), "T");
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+        try
+        {
+            map.remove(Long.valueOf(3));
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+        map.remove(Long.valueOf(4));
+
+        map.attach("tx0");
+        assertEquals(value(4), map.get(Long.valueOf(4)));
+        map.commit();
+        assertEquals(101, map.size(true));
+
+        map.attach("tx1");
+        assertEquals("T1000", map.get(Long.valueOf(1000)));
+        assertEquals("T3", map.get(Long.valueOf(3)));
+        assertEquals(100, map.size());
+        map.rollback();
+        assertEquals(101, map.size());
+        assertEquals(value(4), map.get(Long.valueOf(4)));
+
+        map.put(Long.valueOf(2000), "T2000");
+        map.detach();
+        map.setAutoCommit(true);
+        assertEquals(102, map.size());
+        assertEquals("T2000", map.get(Long.valueOf(2000)));
+    }
+
+    /**
+     * Random changes in several transactions, checked against a
+     * TransactionalBidiTreeMap making the same changes.
+     */
+    public void testTransactions_random()
+    {
+        OffHeapTransactionalBidiTreeMap<Long,String> map = newMap();
+        TransactionalBidiTreeMap<Long,String> expected = new TransactionalBidiTreeMap<Long,String>();
+        map.setAutoCommit(false);
+        expected.setAutoCommit(false);
+
+        String[] ids = new String[] { "tx0", "tx1", "tx2" };
+        Random random = new Random(20100607L);
+        for (int step = 0; step < 20000; step++)
+        {
+            String id = ids[random.nextInt(ids.length)];
+            map.attach(id);
+            expected.attach(id);
+            Long key = Long.valueOf(random.nextInt(200));
+            String value = "V" + random.nextInt(200);
+            int action = random.nextInt(20);
+            String result = null;
+            String expected_result = null;
+            try
+            {
+                if (action < 10)
+                    result = map.put(key, value);
+                else if (action < 15)
+                    result = map.remove(key);
+                else if (action < 17)
+                    result = String.valueOf(map.removeValue(value));
+                else if (action < 19)
+                    map.commit();
+                else
+                    map.rollback();
+            }
+            catch (RuntimeException e)
+            {
+                result = e.getClass().getName();
+            }
+            try
+            {
+                if (action < 10)
+                    expected_result = expected.put(key, value);
+                else if (action < 15)
+                    expected_result = expected.remove(key);
+                else if (action < 17)
+                    expected_result = String.valueOf(expected.removeValue(value));
+                else if (action < 19)
+                    expected.commit();
+                else
+                    expected.rollback();
+            }
+            catch (RuntimeException e)
+            {
+                expected_result = e.getClass().getName();
+            }
+            assertEquals("step " + step, expected_result, result);
+
+            if (step % 100 == 0)
+            {
+                for (int i = 0; i < ids.length; i++)
+                {
+                    map.attach(ids[i]);
+                    expected.attach(ids[i]);
+                    assertEquals(expected.size(), map.size());
+                    assertEquals(list(expected.entrySet()), list(map.entrySet()));
+                    assertEquals(list(expected.keySetByValue()), list(map.keySetByValue()));
+                }
+            }
+        }
+
+        map.detach();
+        expected.detach();
+        map.setAutoCommit(true);
+        expected.setAutoCommit(true);
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.size(true), map.size(true));
+        assertEquals(list(expected.entrySet()), list(map.entrySet()));
+        assertEquals(list(expected.valuesByValueDescending()), list(map.valuesByValueDescending()));
+    }
+
+    /**
+     * Enough puts and removes in auto commit mode to rebalance both trees
+     * many times.
+     */
+    public void testRandom()
+    {
+        OffHeapTransactionalBidiTreeMap<Integer,Integer> map = new OffHeapTransactionalBidiTreeMap<Integer,Integer>(OffHeapSerializer.INTEGER, OffHeapSerializer.INTEGER);
+        TransactionalBidiTreeMap<Integer,Integer> expected = new TransactionalBidiTreeMap<Integer,Integer>();
+        Random random = new Random(20031015L);
+        for (int step = 0; step < 100000; step++)
+        {
+            Integer key = Integer.valueOf(random.nextInt(20000));
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else if (!expected.containsKey(key) && !expected.containsValue(Integer.valueOf(-key.intValue())))
+            {
+                expected.put(key, Integer.valueOf(-key.intValue()));
+                map.put(key, Integer.valueOf(-key.intValue()));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(list(expected.entrySet()), list(map.entrySet()));
+        assertEquals(list(expected.keySetByValue()), list(map.keySetByValue()));
+        assertEquals(expected, map);
+    }
+}
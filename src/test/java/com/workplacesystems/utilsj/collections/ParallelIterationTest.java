@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import junit.framework.TestCase;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedFilterableCollection;
+import com.workplacesystems.utilsj.collections.helpers.CollectionSum;
+import com.workplacesystems.utilsj.collections.helpers.Count;
+import com.workplacesystems.utilsj.collections.helpers.MaximumRetriever;
+import com.workplacesystems.utilsj.collections.helpers.MinimumRetriever;
+import com.workplacesystems.utilsj.collections.helpers.Selector;
+
+public class ParallelIterationTest extends TestCase
+{
+    private static final int SIZE = 100000;
+
+    private ForkJoinPool pool;
+
+    @Override
+    protected void setUp()
+    {
+        // More threads than the chunk size needs so the collections are split
+        pool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        pool.shutdown();
+    }
+
+    private FilterableArrayList<Integer> shuffledList()
+    {
+        FilterableArrayList<Integer> list = new FilterableArrayList<Integer>(SIZE);
+        for (int i = 0; i < SIZE; i++)
+            list.add(Integer.valueOf(i));
+        Collections.shuffle(list);
+        return list;
+    }
+
+    private TransactionalBidiTreeMap<Integer,Integer> reversedMap()
+    {
+        TransactionalBidiTreeMap<Integer,Integer> map = new TransactionalBidiTreeMap<Integer,Integer>();
+        for (int i = 0; i < SIZE; i++)
+            map.put(Integer.valueOf(i), Integer.valueOf(SIZE - i));
+        return map;
+    }
+
+    public void testArrayList()
+    {
+        FilterableArrayList<Integer> list = shuffledList();
+
+        assertEquals(SIZE, new Count<Integer>().iterateParallel(list, pool).intValue());
+        assertEquals(SIZE + 5, new Count<Integer>(Integer.valueOf(5)).iterateParallel(list, pool).intValue());
+        assertEquals(SIZE - 1, new MaximumRetriever<Integer>().iterateParallel(list, pool).intValue());
+        assertEquals(0, new MinimumRetriever<Integer>().iterateParallel(list, pool).intValue());
+        assertEquals(list, new ArrayList<Integer>(new Selector<Integer>().iterateParallel(list, pool)));
+
+        // The chunks are added to the supplied collection in order
+        ArrayList<Integer> selected = new ArrayList<Integer>();
+        selected.add(Integer.valueOf(-1));
+        new Selector<Integer>(selected).iterateParallel(list, pool);
+        assertEquals(SIZE + 1, selected.size());
+        assertEquals(list, selected.subList(1, selected.size()));
+
+        FilterableArrayList<Number> numbers = new FilterableArrayList<Number>(list);
+        assertEquals((SIZE - 1) * (SIZE / 2.0), new CollectionSum(numbers).parallelDoubleValue(), 0.0);
+
+        assertNull(new MaximumRetriever<Integer>().iterateParallel(new FilterableArrayList<Integer>(), pool));
+    }
+
+    public void testFilteredCollection()
+    {
+        FilterableArrayList<Integer> list = shuffledList();
+        Filter<Integer> even = new Filter<Integer>() {
+            public boolean isValid(Integer obj)
+            {
+                return obj.intValue() % 2 == 0;
+            }
+        };
+
+        FilterableCollection<Integer> filtered = list.filteredCollection(even);
+        assertEquals(SIZE / 2, new Count<Integer>().iterateParallel(filtered, pool).intValue());
+        assertEquals(new Selector<Integer>().iterate(filtered), new Selector<Integer>().iterateParallel(filtered, pool));
+    }
+
+    public void testBreak()
+    {
+        FilterableArrayList<Integer> list = shuffledList();
+        int first_large = 0;
+        for (Integer i : list)
+        {
+            if (i.intValue() >= SIZE - 10)
+            {
+                first_large = i.intValue();
+                break;
+            }
+        }
+
+        // The first match in iteration order is returned, whichever chunk finds one first
+        MergeableIterativeCallback<Integer,Integer> retriever = new Count<Integer>() {
+            @Override
+            protected void nextObject(Integer obj)
+            {
+                if (obj.intValue() >= SIZE - 10)
+                    _return(obj);
+            }
+        };
+        assertEquals(first_large, retriever.iterateParallel(list, pool).intValue());
+
+        MergeableIterativeCallback<Integer,Integer> breaker = new Count<Integer>() {
+            @Override
+            protected void nextObject(Integer obj)
+            {
+                _break();
+            }
+        };
+        assertNull(breaker.iterateParallel(list, pool));
+    }
+
+    public void testException()
+    {
+        MergeableIterativeCallback<Integer,Integer> callback = new Count<Integer>() {
+            @Override
+            protected void nextObject(Integer obj)
+            {
+                if (obj.intValue() == SIZE / 3)
+                    throw new IllegalStateException("failed");
+            }
+        };
+
+        try
+        {
+            callback.iterateParallel(shuffledList(), pool);
+            fail("Exception not thrown");
+        }
+        catch (IllegalStateException e)
+        {
+            // Exceptions from pool threads may be wrapped in a copy
+            Throwable cause = e;
+            while (cause.getCause() != null)
+                cause = cause.getCause();
+            assertEquals("failed", cause.getMessage());
+        }
+    }
+
+    public void testUsedOnce()
+    {
+        Count<Integer> count = new Count<Integer>();
+        count.iterateParallel(shuffledList(), pool);
+        try
+        {
+            count.iterateParallel(shuffledList(), pool);
+            fail("Callback used twice");
+        }
+        catch (RuntimeException e) {}
+    }
+
+    public void testTreeMapViews()
+    {
+        TransactionalBidiTreeMap<Integer,Integer> map = reversedMap();
+
+        assertOrder(map.keySet());
+        assertOrder(map.values());
+        assertOrder(map.keySetByValue());
+        assertOrder(map.valuesByValue());
+        assertOrder(map.valuesByValueDescending());
+        assertEquals(SIZE, new Count<Map.Entry<Integer,Integer>>().iterateParallel(map.entrySetByValue(), pool).intValue());
+
+        map.setVersioned(true);
+        assertOrder(map.keySet());
+        assertOrder(map.valuesByValue());
+    }
+
+    public void testTreeMapTransaction() throws Exception
+    {
+        final TransactionalBidiTreeMap<Integer,Integer> map = reversedMap();
+        map.setAutoCommit(false);
+
+        // Changes are visible to the transaction that made them
+        map.remove(Integer.valueOf(7));
+        map.put(Integer.valueOf(SIZE), Integer.valueOf(0));
+        assertEquals(SIZE, new Count<Integer>().iterateParallel(keys(map), pool).intValue());
+        assertOrder(map.keySet());
+        assertFalse(new Selector<Integer>().iterateParallel(keys(map), pool).contains(Integer.valueOf(7)));
+
+        // But not to other threads
+        final Collection<Integer> other = new ArrayList<Integer>();
+        Thread thread = new Thread() {
+            @Override
+            public void run()
+            {
+                other.addAll(new Selector<Integer>().iterateParallel(keys(map), pool));
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(SIZE, other.size());
+        assertTrue(other.contains(Integer.valueOf(7)));
+        assertFalse(other.contains(Integer.valueOf(SIZE)));
+    }
+
+    public void testSynchronizedCollection()
+    {
+        final FilterableCollection<Integer> list = SynchronizedFilterableCollection.decorate(
+                (FilterableCollection<Integer>)shuffledList());
+        final ReentrantReadWriteLock lock = (ReentrantReadWriteLock)SyncUtils.getLockObject(list);
+        final AtomicBoolean locked = new AtomicBoolean(true);
+
+        Count<Integer> count = new Count<Integer>() {
+            @Override
+            protected void nextObject(Integer obj)
+            {
+                super.nextObject(obj);
+                if (lock.getReadLockCount() == 0)
+                    locked.set(false);
+            }
+        };
+        assertEquals(SIZE, count.iterateParallel(list, pool).intValue());
+        assertTrue(locked.get());
+        assertEquals(0, lock.getReadLockCount());
+    }
+
+    private static FilterableSet<Integer> keys(TransactionalBidiTreeMap<Integer,Integer> map)
+    {
+        return (FilterableSet<Integer>)map.keySet();
+    }
+
+    private <T> void assertOrder(FilterableCollection<T> c)
+    {
+        ArrayList<T> expected = new ArrayList<T>();
+        for (Iterator<T> i = c.iterator(); i.hasNext(); )
+            expected.add(i.next());
+
+        assertEquals(expected, new ArrayList<T>(new Selector<T>().iterateParallel(c, pool)));
+    }
+
+    private <T> void assertOrder(Collection<T> c)
+    {
+        assertOrder((FilterableCollection<T>)c);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import junit.framework.TestCase;
+import com.workplacesystems.utilsj.Callback;
+import com.workplacesystems.utilsj.ReadOnlyCallback;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedDecorator;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedMap;
+
+public class SyncUtilsTest extends TestCase
+{
+    public void testLockUnlock()
+    {
+        final Object mutex = SyncUtils.createMutex(new Object());
+        ReentrantReadWriteLock lock = (ReentrantReadWriteLock)mutex;
+
+        SyncUtils.lockRead(mutex);
+        SyncUtils.lockRead(mutex);
+        assertEquals(2, lock.getReadHoldCount());
+
+        // A read lock can't be upgraded
+        try
+        {
+            SyncUtils.lockWrite(mutex);
+            fail("Read lock upgraded to write");
+        }
+        catch (IllegalStateException e) {}
+
+        SyncUtils.unlockRead(mutex);
+        SyncUtils.unlockRead(mutex);
+        assertEquals(0, lock.getReadHoldCount());
+
+        // The write lock is reentrant and can be downgraded
+        SyncUtils.lockWrite(mutex);
+        SyncUtils.lockWrite(mutex);
+        SyncUtils.lockRead(mutex);
+        assertEquals(2, lock.getWriteHoldCount());
+        assertEquals(1, lock.getReadHoldCount());
+        SyncUtils.unlockWrite(mutex);
+        SyncUtils.unlockWrite(mutex);
+        SyncUtils.unlockRead(mutex);
+        assertFalse(lock.isWriteLocked());
+        assertEquals(0, lock.getReadLockCount());
+    }
+
+    public void testLockDecorator()
+    {
+        Map<String,String> map = SynchronizedMap.decorate(new HashMap<String,String>());
+        ReentrantReadWriteLock lock = (ReentrantReadWriteLock)((SynchronizedDecorator)map).getLockObject();
+
+        // Locking the decorator locks its mutex
+        SyncUtils.lockWrite(map);
+        try
+        {
+            assertTrue(lock.isWriteLockedByCurrentThread());
+            map.put("a", "b");
+            assertEquals("b", map.get("a"));
+            assertEquals(1, map.size());
+        }
+        finally
+        {
+            SyncUtils.unlockWrite(map);
+        }
+        assertFalse(lock.isWriteLocked());
+    }
+
+    public void testLegacyMutex()
+    {
+        final Object mutex = new Object();
+        try
+        {
+            SyncUtils.lockRead(mutex);
+            fail("Legacy mutex locked without a Callback");
+        }
+        catch (UnsupportedOperationException e) {}
+
+        try
+        {
+            SyncUtils.lockWrite(null);
+            fail("Null mutex locked");
+        }
+        catch (IllegalArgumentException e) {}
+
+        // Callbacks still synchronize on legacy mutexes
+        Boolean held = SyncUtils.synchronizeWrite(mutex, new Callback<Boolean>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Boolean.valueOf(Thread.holdsLock(mutex)));
+            }
+        });
+        assertTrue(held.booleanValue());
+    }
+
+    public void testSynchronizeMutex()
+    {
+        final ReentrantReadWriteLock lock = (ReentrantReadWriteLock)SyncUtils.createMutex(new Object());
+        Integer count = SyncUtils.synchronizeRead(lock, new Callback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(lock.getReadHoldCount()));
+            }
+        });
+        assertEquals(1, count.intValue());
+        assertEquals(0, lock.getReadLockCount());
+
+        try
+        {
+            SyncUtils.synchronizeWrite(lock, new Callback<Object>() {
+                @Override
+                protected void doAction()
+                {
+                    assertTrue(lock.isWriteLockedByCurrentThread());
+                    throw new IllegalStateException();
+                }
+            });
+            fail("Exception not propagated");
+        }
+        catch (IllegalStateException e) {}
+        assertFalse(lock.isWriteLocked());
+    }
+
+    public void testOptimisticRead()
+    {
+        final ReentrantReadWriteLock lock = (ReentrantReadWriteLock)SyncUtils.createMutex(new Object(), true);
+
+        // Read without taking the read lock
+        Integer count = SyncUtils.synchronizeRead(lock, new ReadOnlyCallback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(lock.getReadLockCount()));
+            }
+        });
+        assertEquals(0, count.intValue());
+
+        // Other callbacks still take the read lock
+        count = SyncUtils.synchronizeRead(lock, new Callback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(lock.getReadHoldCount()));
+            }
+        });
+        assertEquals(1, count.intValue());
+
+        // A thread holding the read lock takes it again
+        SyncUtils.lockRead(lock);
+        try
+        {
+            count = SyncUtils.synchronizeRead(lock, new ReadOnlyCallback<Integer>() {
+                @Override
+                protected void doAction()
+                {
+                    _return(Integer.valueOf(lock.getReadHoldCount()));
+                }
+            });
+            assertEquals(2, count.intValue());
+        }
+        finally
+        {
+            SyncUtils.unlockRead(lock);
+        }
+
+        // As does a thread holding the write lock
+        SyncUtils.lockWrite(lock);
+        try
+        {
+            count = SyncUtils.synchronizeRead(lock, new ReadOnlyCallback<Integer>() {
+                @Override
+                protected void doAction()
+                {
+                    _return(Integer.valueOf(lock.getReadHoldCount()));
+                }
+            });
+            assertEquals(1, count.intValue());
+        }
+        finally
+        {
+            SyncUtils.unlockWrite(lock);
+        }
+        assertEquals(0, lock.getReadLockCount());
+        assertFalse(lock.isWriteLocked());
+    }
+
+    public void testOptimisticReadRetry() throws Exception
+    {
+        final Object mutex = SyncUtils.createMutex(new Object(), true);
+        final ReentrantReadWriteLock lock = (ReentrantReadWriteLock)mutex;
+        final int[] value = new int[1];
+        final int[] runs = new int[1];
+
+        // A write during the optimistic read makes it run again under the read lock
+        Integer read = SyncUtils.synchronizeRead(mutex, new ReadOnlyCallback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                int read_value = value[0];
+                if (runs[0]++ == 0)
+                {
+                    Thread writer = new Thread() {
+                        @Override
+                        public void run()
+                        {
+                            SyncUtils.synchronizeWrite(mutex, new Callback<Object>() {
+                                @Override
+                                protected void doAction()
+                                {
+                                    value[0]++;
+                                }
+                            });
+                        }
+                    };
+                    writer.start();
+                    try
+                    {
+                        writer.join();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                    // Runtime exceptions from the invalid read are discarded
+                    throw new IllegalStateException("Inconsistent read");
+                }
+                assertEquals(1, lock.getReadHoldCount());
+                _return(Integer.valueOf(read_value));
+            }
+        });
+        assertEquals(2, runs[0]);
+        assertEquals(1, read.intValue());
+
+        // Exceptions from a valid read are thrown
+        try
+        {
+            SyncUtils.synchronizeRead(mutex, new ReadOnlyCallback<Object>() {
+                @Override
+                protected void doAction()
+                {
+                    throw new IllegalArgumentException();
+                }
+            });
+            fail("Exception not propagated");
+        }
+        catch (IllegalArgumentException e) {}
+    }
+
+    public void testOptimisticCondition() throws Exception
+    {
+        final Object mutex = SyncUtils.createMutex(new Object(), true);
+        final SyncCondition condition = SyncUtils.getSyncCondition(mutex);
+        final boolean[] signalled = new boolean[1];
+        final CountDownLatch waiting = new CountDownLatch(1);
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run()
+            {
+                SyncUtils.synchronizeWrite(mutex, new Callback<Object>() {
+                    @Override
+                    protected void doAction()
+                    {
+                        waiting.countDown();
+                        try
+                        {
+                            while (!signalled[0])
+                                condition.await();
+                        }
+                        catch (InterruptedException e) {}
+                    }
+                });
+            }
+        };
+        waiter.start();
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+
+        // The waiting writer must not block another writer
+        SyncUtils.synchronizeWrite(mutex, new Callback<Object>() {
+            @Override
+            protected void doAction()
+            {
+                signalled[0] = true;
+                condition.signalAll();
+            }
+        });
+        waiter.join(10000);
+        assertFalse(waiter.isAlive());
+
+        Boolean read = SyncUtils.synchronizeRead(mutex, new ReadOnlyCallback<Boolean>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Boolean.valueOf(signalled[0]));
+            }
+        });
+        assertTrue(read.booleanValue());
+    }
+}
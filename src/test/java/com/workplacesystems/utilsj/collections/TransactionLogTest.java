@@ -0,0 +1,399 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.workplacesystems.utilsj.UtilsjException;
+
+import junit.framework.TestCase;
+
+public class TransactionLogTest extends TestCase
+{
+    private File file;
+
+    private RandomAccessFile raf;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("TransactionLogTest", ".log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        if (raf != null)
+            raf.close();
+        file.delete();
+    }
+
+    private TransactionLog<Long,Long> openLongs(final boolean group_commit) throws IOException
+    {
+        if (raf != null)
+            raf.close();
+        raf = new RandomAccessFile(file, "rw");
+        return new TransactionLog<Long,Long>(raf.getChannel(), OffHeapSerializer.LONG, OffHeapSerializer.LONG, group_commit);
+    }
+
+    private static TransactionalBidiTreeMap<Long,Long> logged(final TransactionLog<Long,Long> log)
+    {
+        TransactionalBidiTreeMap<Long,Long> map = new TransactionalBidiTreeMap<Long,Long>();
+        map.setAutoCommit(false);
+        map.setTransactionLog(log);
+        return map;
+    }
+
+    public void testReplay_treeMap() throws IOException
+    {
+        TransactionLog<Long,Long> log = openLongs(false);
+        TransactionalBidiTreeMap<Long,Long> map = logged(log);
+
+        for (long key = 0; key < 10; key++)
+            map.put(Long.valueOf(key), Long.valueOf(key * 10));
+        map.commit();
+
+        map.remove(Long.valueOf(3));
+        map.put(Long.valueOf(3), Long.valueOf(33));
+        map.remove(Long.valueOf(7));
+        map.put(Long.valueOf(20), Long.valueOf(200));
+        map.commit();
+
+        // Rolled back changes and empty commits aren't logged
+        map.put(Long.valueOf(30), Long.valueOf(300));
+        map.rollback();
+        map.commit();
+        assertEquals(2, log.getSequence());
+
+        log = openLongs(false);
+        assertEquals(2, log.getSequence());
+        TransactionalBidiTreeMap<Long,Long> replayed = new TransactionalBidiTreeMap<Long,Long>();
+        assertEquals(2, log.replay(replayed));
+        assertEquals(new TreeMap<Long,Long>(map), new TreeMap<Long,Long>(replayed));
+        assertEquals(Long.valueOf(3), replayed.getKeyForValue(Long.valueOf(33)));
+        assertNull(replayed.getKeyForValue(Long.valueOf(30)));
+    }
+
+    public void testReplay_hashMap() throws IOException
+    {
+        raf = new RandomAccessFile(file, "rw");
+        OffHeapSerializer.Strings strings = new OffHeapSerializer.Strings(8);
+        TransactionLog<String,Integer> log = new TransactionLog<String,Integer>(raf.getChannel(), strings, OffHeapSerializer.INTEGER, true);
+
+        TransactionalHashMap<String,Integer> map = new TransactionalHashMap<String,Integer>();
+        map.setAutoCommit(false);
+        map.setTransactionLog(log);
+        for (int i = 0; i < 100; i++)
+            map.put("K" + i, Integer.valueOf(i));
+        map.put(null, Integer.valueOf(-1));
+        map.put("null", null);
+        map.commit();
+        map.put("K5", Integer.valueOf(55));
+        map.remove("K6");
+        map.remove(null);
+        map.commit();
+        log.awaitDurable();
+
+        raf.close();
+        raf = new RandomAccessFile(file, "rw");
+        log = new TransactionLog<String,Integer>(raf.getChannel(), strings, OffHeapSerializer.INTEGER, true);
+        Map<String,Integer> replayed = new HashMap<String,Integer>();
+        assertEquals(2, log.replay(replayed));
+        assertEquals(new HashMap<String,Integer>(map), replayed);
+        assertEquals(Integer.valueOf(55), replayed.get("K5"));
+        assertFalse(replayed.containsKey("K6"));
+        assertFalse(replayed.containsKey(null));
+        assertTrue(replayed.containsKey("null"));
+    }
+
+    public void testUnencodableCommit_treeMap() throws IOException
+    {
+        raf = new RandomAccessFile(file, "rw");
+        TransactionLog<Long,String> log = new TransactionLog<Long,String>(raf.getChannel(),
+                OffHeapSerializer.LONG, new OffHeapSerializer.Strings(4), false);
+        TransactionalBidiTreeMap<Long,String> map = new TransactionalBidiTreeMap<Long,String>();
+        map.setAutoCommit(false);
+        map.setTransactionLog(log);
+        map.put(Long.valueOf(1), "one");
+        map.put(Long.valueOf(2), "two");
+        map.commit();
+        TreeMap<Long,String> committed = new TreeMap<Long,String>(map);
+
+        map.remove(Long.valueOf(1));
+        map.put(Long.valueOf(3), "three");
+        try
+        {
+            map.commit();
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        assertEquals(1, log.getSequence());
+
+        // Nothing was committed, so rolling back restores the committed entries
+        map.rollback();
+        assertEquals(committed, new TreeMap<Long,String>(map));
+        assertEquals(Long.valueOf(1), map.getKeyForValue("one"));
+
+        map.put(Long.valueOf(3), "3");
+        map.commit();
+        log = new TransactionLog<Long,String>(raf.getChannel(), OffHeapSerializer.LONG, new OffHeapSerializer.Strings(4), false);
+        TransactionalBidiTreeMap<Long,String> replayed = new TransactionalBidiTreeMap<Long,String>();
+        assertEquals(2, log.replay(replayed));
+        assertEquals(new TreeMap<Long,String>(map), new TreeMap<Long,String>(replayed));
+    }
+
+    public void testUnencodableCommit_hashMap() throws IOException
+    {
+        raf = new RandomAccessFile(file, "rw");
+        TransactionLog<Integer,String> log = new TransactionLog<Integer,String>(raf.getChannel(),
+                OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(4), false);
+        TransactionalHashMap<Integer,String> map = new TransactionalHashMap<Integer,String>();
+        map.setAutoCommit(false);
+        map.setTransactionLog(log);
+        for (int i = 0; i < 20; i++)
+            map.put(Integer.valueOf(i), "V" + i);
+        map.commit();
+        HashMap<Integer,String> committed = new HashMap<Integer,String>(map);
+
+        map.remove(Integer.valueOf(0));
+        map.put(Integer.valueOf(1), "V1 again");
+        map.put(Integer.valueOf(20), "V20");
+        try
+        {
+            map.commit();
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        assertEquals(1, log.getSequence());
+
+        map.rollback();
+        assertEquals(committed, new HashMap<Integer,String>(map));
+    }
+
+    public void testFailedWrite() throws IOException
+    {
+        TransactionLog<Long,Long> log = openLongs(false);
+        TransactionalBidiTreeMap<Long,Long> map = logged(log);
+        TransactionalHashMap<Long,Long> hashMap = new TransactionalHashMap<Long,Long>();
+        hashMap.setAutoCommit(false);
+        hashMap.setTransactionLog(log);
+        map.put(Long.valueOf(1), Long.valueOf(10));
+        map.commit();
+        hashMap.put(Long.valueOf(1), Long.valueOf(10));
+        hashMap.commit();
+
+        raf.close();
+        map.remove(Long.valueOf(1));
+        map.put(Long.valueOf(2), Long.valueOf(20));
+        try
+        {
+            map.commit();
+            fail("Expected UtilsjException");
+        }
+        catch (UtilsjException expected) {}
+        map.rollback();
+        assertEquals(1, map.size());
+        assertEquals(Long.valueOf(10), map.get(Long.valueOf(1)));
+        assertNull(map.getKeyForValue(Long.valueOf(20)));
+
+        hashMap.remove(Long.valueOf(1));
+        hashMap.put(Long.valueOf(2), Long.valueOf(20));
+        try
+        {
+            hashMap.commit();
+            fail("Expected UtilsjException");
+        }
+        catch (UtilsjException expected) {}
+        hashMap.rollback();
+        assertEquals(1, hashMap.size());
+        assertEquals(Long.valueOf(10), hashMap.get(Long.valueOf(1)));
+        assertFalse(hashMap.containsKey(Long.valueOf(2)));
+    }
+
+    public void testTornRecord() throws IOException
+    {
+        TransactionLog<Long,Long> log = openLongs(false);
+        TransactionalBidiTreeMap<Long,Long> map = logged(log);
+        for (long key = 0; key < 3; key++)
+        {
+            map.put(Long.valueOf(key), Long.valueOf(key));
+            map.commit();
+        }
+
+        // Lose the end of the last record
+        long length = raf.length();
+        raf.setLength(length - 3);
+        log = openLongs(false);
+        assertEquals(2, log.getSequence());
+        assertTrue(raf.length() < length - 3);
+
+        // A corrupt record is dropped along with everything after it
+        map = logged(log);
+        map.put(Long.valueOf(10), Long.valueOf(10));
+        map.commit();
+        map.put(Long.valueOf(11), Long.valueOf(11));
+        map.commit();
+        assertEquals(4, log.getSequence());
+        long corrupt = raf.length() - 1;
+        raf.seek(corrupt);
+        int last = raf.read();
+        raf.seek(corrupt);
+        raf.write(last ^ 0xff);
+
+        log = openLongs(false);
+        assertEquals(3, log.getSequence());
+        TransactionalBidiTreeMap<Long,Long> replayed = new TransactionalBidiTreeMap<Long,Long>();
+        assertEquals(3, log.replay(replayed));
+        assertEquals(3, replayed.size());
+        assertTrue(replayed.containsKey(Long.valueOf(10)));
+        assertFalse(replayed.containsKey(Long.valueOf(2)));
+    }
+
+    public void testSnapshotAndLog() throws IOException
+    {
+        TransactionLog<Long,Long> log = openLongs(false);
+        TransactionalBidiTreeMap<Long,Long> map = logged(log);
+        for (long key = 0; key < 50; key++)
+            map.put(Long.valueOf(key), Long.valueOf(-key));
+        map.commit();
+
+        File snapshot = File.createTempFile("TransactionLogTest", ".snapshot");
+        try
+        {
+            RandomAccessFile out = new RandomAccessFile(snapshot, "rw");
+            try
+            {
+                map.writeSnapshot(out.getChannel(), OffHeapSerializer.LONG, OffHeapSerializer.LONG);
+            }
+            finally
+            {
+                out.close();
+            }
+            log.truncate();
+
+            map.remove(Long.valueOf(0));
+            map.put(Long.valueOf(50), Long.valueOf(-50));
+            map.commit();
+
+            log = openLongs(false);
+            assertEquals(2, log.getSequence());
+            TransactionalBidiTreeMap<Long,Long> replayed = new TransactionalBidiTreeMap<Long,Long>();
+            RandomAccessFile in = new RandomAccessFile(snapshot, "r");
+            try
+            {
+                replayed.readSnapshot(in.getChannel(), OffHeapSerializer.LONG, OffHeapSerializer.LONG);
+            }
+            finally
+            {
+                in.close();
+            }
+            assertEquals(1, log.replay(replayed));
+            assertEquals(new TreeMap<Long,Long>(map), new TreeMap<Long,Long>(replayed));
+
+            // The rebuilt map carries on logging after the replayed records
+            replayed.setAutoCommit(false);
+            replayed.setTransactionLog(log);
+            replayed.put(Long.valueOf(51), Long.valueOf(-51));
+            replayed.commit();
+            assertEquals(3, log.getSequence());
+        }
+        finally
+        {
+            snapshot.delete();
+        }
+    }
+
+    public void testGroupCommit() throws Exception
+    {
+        final TransactionLog<Long,Long> log = openLongs(true);
+        final TransactionalBidiTreeMap<Long,Long> map = logged(log);
+
+        final int threads = 4;
+        final int commits = 50;
+        final Exception[] failure = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final long base = t * 1000L;
+            workers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int c = 0; c < commits; c++)
+                        {
+                            synchronized (map)
+                            {
+                                map.put(Long.valueOf(base + c), Long.valueOf(base + c));
+                                map.commit();
+                            }
+                            log.awaitDurable();
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        synchronized (failure)
+                        {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (int t = 0; t < threads; t++)
+            workers[t].join();
+        assertNull(failure[0]);
+        assertEquals(threads * commits, log.getSequence());
+
+        TransactionLog<Long,Long> reopened = openLongs(true);
+        TransactionalBidiTreeMap<Long,Long> replayed = new TransactionalBidiTreeMap<Long,Long>();
+        assertEquals(threads * commits, reopened.replay(replayed));
+        assertEquals(new TreeMap<Long,Long>(map), new TreeMap<Long,Long>(replayed));
+    }
+
+    public void testAutoCommit() throws IOException
+    {
+        TransactionLog<Long,Long> log = openLongs(false);
+        TransactionalBidiTreeMap<Long,Long> map = new TransactionalBidiTreeMap<Long,Long>();
+        try
+        {
+            map.setTransactionLog(log);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {}
+
+        map.setAutoCommit(false);
+        map.setTransactionLog(log);
+        try
+        {
+            map.setAutoCommit(true);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {}
+
+        map.setTransactionLog(null);
+        map.setAutoCommit(true);
+    }
+}
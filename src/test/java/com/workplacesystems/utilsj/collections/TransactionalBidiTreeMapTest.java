@@ -23,16 +23,36 @@
 
 package com.workplacesystems.utilsj.collections;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedTransactionalSortedFilterableBidiMap;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -1288,6 +1308,1403 @@ public class TransactionalBidiTreeMapTest extends TestCase {
 		assertEquals(5, tbtm.size());
 	}
 
+    private int countEntries(TransactionalBidiTreeMap tbtm) {
+        int count = 0;
+        for (Iterator i = tbtm.entrySet().iterator(); i.hasNext(); i.next())
+            count++;
+        return count;
+    }
+
+    public void testTransactions_sizeMixed() {
+        final TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setAutoCommit(false);
+
+        String[] ids = new String[] { "tx0", "tx1", "tx2", "tx3" };
+        Random random = new Random(20031015L);
+        for (int step = 0; step < 2000; step++) {
+            tbtm.attach(ids[random.nextInt(ids.length)]);
+            Integer key = new Integer(random.nextInt(20));
+            try {
+                switch (random.nextInt(6)) {
+                    case 0:
+                    case 1:
+                        tbtm.put(key, "V" + step);
+                        break;
+                    case 2:
+                    case 3:
+                        tbtm.remove(key);
+                        break;
+                    case 4:
+                        tbtm.commit();
+                        break;
+                    default:
+                        tbtm.rollback();
+                        break;
+                }
+            } catch (ConcurrentModificationException ignored) {
+            } catch (IllegalArgumentException ignored) {}
+
+            for (int i = 0; i < ids.length; i++) {
+                tbtm.attach(ids[i]);
+                assertEquals(countEntries(tbtm), tbtm.size());
+                assertEquals(tbtm.size() == 0, tbtm.isEmpty());
+            }
+            tbtm.detach();
+            assertEquals(countEntries(tbtm), tbtm.size());
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            tbtm.attach(ids[i]);
+            tbtm.commit();
+        }
+        tbtm.detach();
+        assertEquals(tbtm.size(true), tbtm.size());
+        assertEquals(countEntries(tbtm), tbtm.size());
+    }
+
+    public void testTransactions_removeOwnChanges() {
+        final TransactionalBidiTreeMap<Integer,String> tbtm = new TransactionalBidiTreeMap<Integer,String>();
+        tbtm.put(Integer.valueOf(-1), "committed");
+        tbtm.setAutoCommit(false);
+
+        // Removing a transaction's own additions drops them from its changes
+        for (int i = 0; i < 1000; i++)
+            tbtm.put(Integer.valueOf(i), "V" + i);
+        for (int i = 0; i < 1000; i += 2)
+            tbtm.remove(Integer.valueOf(i));
+        tbtm.remove(Integer.valueOf(-1));
+        for (int i = 1000; i < 1100; i++)
+            tbtm.put(Integer.valueOf(i), "V" + i);
+        for (int i = 1; i < 900; i += 2)
+            tbtm.remove(Integer.valueOf(i));
+        assertEquals(150, tbtm.size());
+        assertEquals(151, tbtm.size(true));
+
+        tbtm.rollback();
+        assertEquals(1, tbtm.size());
+        assertEquals("committed", tbtm.get(Integer.valueOf(-1)));
+
+        for (int i = 0; i < 1000; i++)
+            tbtm.put(Integer.valueOf(i), "V" + i);
+        for (int i = 0; i < 1000; i += 3)
+            tbtm.remove(Integer.valueOf(i));
+        tbtm.put(Integer.valueOf(0), "again");
+        tbtm.commit();
+        assertEquals(668, tbtm.size());
+        assertEquals(668, countEntries(tbtm));
+        assertEquals("again", tbtm.get(Integer.valueOf(0)));
+        assertNull(tbtm.get(Integer.valueOf(3)));
+        assertEquals("V4", tbtm.get(Integer.valueOf(4)));
+
+        // A committed map has no changes left to roll back
+        tbtm.rollback();
+        assertEquals(668, tbtm.size());
+    }
+
+    private static class RecordingNotifier implements TransactionalBidiTreeMap.TransactionNotifiable
+    {
+        private final LinkedList events = new LinkedList();
+
+        public void addedToMap(Object key, Object value)
+        {
+            events.add("+" + key + "=" + value);
+        }
+
+        public void removedFromMap(Object key, Object value)
+        {
+            events.add("-" + key + "=" + value);
+        }
+    }
+
+    public void testTransactions_commitNotifiers(){
+        final TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setAutoCommit(false);
+
+        RecordingNotifier commits = new RecordingNotifier();
+        RecordingNotifier rollbacks = new RecordingNotifier();
+        tbtm.setCommitNotifier(commits);
+        tbtm.setRollbackNotifier(rollbacks);
+
+        tbtm.attach("other");
+        tbtm.put(new Integer(7), "X");
+        tbtm.detach();
+
+        tbtm.remove(new Integer(3));
+        tbtm.put(new Integer(3), "G");
+        tbtm.put(new Integer(5), "H");
+        tbtm.remove(new Integer(5));
+        tbtm.put(new Integer(6), "I");
+        tbtm.commit();
+
+        assertEquals(3, commits.events.size());
+        assertEquals("-3=A", commits.events.get(0));
+        assertEquals("+3=G", commits.events.get(1));
+        assertEquals("+6=I", commits.events.get(2));
+        assertEquals(0, rollbacks.events.size());
+        assertEquals(6, tbtm.size(true));
+        assertEquals("G", tbtm.get(new Integer(3)));
+        assertNull(tbtm.get(new Integer(7)));
+
+        tbtm.remove(new Integer(1));
+        tbtm.put(new Integer(8), "J");
+        tbtm.rollback();
+
+        assertEquals(2, rollbacks.events.size());
+        assertEquals("-8=J", rollbacks.events.get(0));
+        assertEquals("+1=D", rollbacks.events.get(1));
+        assertEquals("D", tbtm.get(new Integer(1)));
+        assertNull(tbtm.get(new Integer(8)));
+
+        tbtm.attach("other");
+        assertEquals("X", tbtm.get(new Integer(7)));
+        tbtm.commit();
+        tbtm.detach();
+
+        assertEquals(4, commits.events.size());
+        assertEquals("+7=X", commits.events.get(3));
+        assertEquals("X", tbtm.get(new Integer(7)));
+    }
+
+    private static class RecordingBatchNotifier implements TransactionalBidiTreeMap.TransactionBatchNotifiable
+    {
+        private final List events = new ArrayList();
+        private final List ids = new ArrayList();
+
+        public void committed(TransactionalBidiTreeMap.ChangeSet changes)
+        {
+            events.add("commit " + changes.getAdded() + " " + changes.getRemoved());
+            ids.add(changes.getTransactionId());
+        }
+
+        public void rolledBack(TransactionalBidiTreeMap.ChangeSet changes)
+        {
+            events.add("rollback " + changes.getAdded() + " " + changes.getRemoved());
+            ids.add(changes.getTransactionId());
+        }
+    }
+
+    public void testTransactions_batchNotifiers(){
+        final TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setAutoCommit(false);
+
+        RecordingBatchNotifier batches = new RecordingBatchNotifier();
+        tbtm.setBatchNotifier(batches);
+
+        tbtm.attach("other");
+        tbtm.put(new Integer(7), "X");
+        tbtm.detach();
+
+        tbtm.remove(new Integer(3));
+        tbtm.put(new Integer(3), "G");
+        tbtm.put(new Integer(5), "H");
+        tbtm.remove(new Integer(5));
+        tbtm.put(new Integer(6), "I");
+        tbtm.commit();
+
+        assertEquals(1, batches.events.size());
+        assertEquals("commit [3=G, 6=I] [3=A]", batches.events.get(0));
+        assertEquals(tbtm.getCurrentThreadId(), batches.ids.get(0));
+
+        tbtm.remove(new Integer(1));
+        tbtm.put(new Integer(8), "J");
+        tbtm.rollback();
+        assertEquals(2, batches.events.size());
+        assertEquals("rollback [1=D] [8=J]", batches.events.get(1));
+
+        // Nothing is delivered for a transaction without changes
+        tbtm.commit();
+        tbtm.rollback();
+        assertEquals(2, batches.events.size());
+
+        TransactionalBidiTreeMap.ChangeSet changes = null;
+        final TransactionalBidiTreeMap.ChangeSet[] kept = new TransactionalBidiTreeMap.ChangeSet[1];
+        tbtm.setBatchNotifier(new TransactionalBidiTreeMap.TransactionBatchNotifiable() {
+            public void committed(TransactionalBidiTreeMap.ChangeSet changes) {
+                kept[0] = changes;
+            }
+            public void rolledBack(TransactionalBidiTreeMap.ChangeSet changes) {}
+        });
+        tbtm.removeBatchNotifier(batches);
+        tbtm.attach("other");
+        tbtm.commit();
+        tbtm.detach();
+        assertEquals(2, batches.events.size());
+        changes = kept[0];
+        assertEquals(TransactionId.getTransactionId("other"), changes.getTransactionId());
+        assertEquals(1, changes.getAdded().size());
+        assertEquals(new Integer(7), ((Map.Entry)changes.getAdded().get(0)).getKey());
+        assertTrue(changes.getRemoved().isEmpty());
+        try {
+            ((Map.Entry)changes.getAdded().get(0)).setValue("Y");
+            fail("Expected UnsupportedOperationException");
+        }
+        catch (UnsupportedOperationException expected) {}
+        try {
+            changes.getAdded().clear();
+            fail("Expected UnsupportedOperationException");
+        }
+        catch (UnsupportedOperationException expected) {}
+    }
+
+    public void testTransactions_batchNotifiersAsync() throws InterruptedException {
+        final TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        tbtm.setAutoCommit(false);
+
+        final List delivered = Collections.synchronizedList(new ArrayList());
+        tbtm.setBatchNotifier(new TransactionalBidiTreeMap.TransactionBatchNotifiable() {
+            public void committed(TransactionalBidiTreeMap.ChangeSet changes) {
+                // Slow enough for later commits to queue up behind this one
+                Thread.yield();
+                delivered.add(((Map.Entry)changes.getAdded().get(0)).getKey());
+                if (delivered.size() == 50)
+                    throw new RuntimeException("Logged, not thrown by commit");
+            }
+            public void rolledBack(TransactionalBidiTreeMap.ChangeSet changes) {}
+        });
+
+        // Several threads would run concurrent drains if the map didn't serialize them
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            tbtm.setNotificationExecutor(executor);
+            assertSame(executor, tbtm.getNotificationExecutor());
+            for (int i = 0; i < 200; i++) {
+                tbtm.put(new Integer(i), "V" + i);
+                tbtm.commit();
+            }
+        }
+        finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(200, delivered.size());
+        for (int i = 0; i < 200; i++)
+            assertEquals(new Integer(i), delivered.get(i));
+    }
+
+    public void testTransactions_notifierLock() throws Exception {
+        final TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        final TransactionalBidiTreeMap.TransactionBatchNotifiable notifier = new TransactionalBidiTreeMap.TransactionBatchNotifiable() {
+            public void committed(TransactionalBidiTreeMap.ChangeSet changes) {}
+            public void rolledBack(TransactionalBidiTreeMap.ChangeSet changes) {}
+        };
+
+        // Notifiers and the executor are changed without the map's monitor
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (tbtm) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        tbtm.setBatchNotifier(notifier);
+                        tbtm.setNotificationExecutor(executor);
+                        tbtm.setNotificationExecutor(null);
+                        tbtm.removeBatchNotifier(notifier);
+                    }
+                };
+                thread.start();
+                thread.join(10000);
+                assertFalse(thread.isAlive());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(tbtm);
+        out.close();
+        TransactionalBidiTreeMap read = (TransactionalBidiTreeMap)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        read.setBatchNotifier(notifier);
+        read.removeBatchNotifier(notifier);
+    }
+
+    public void testTransactions_changeNotificationExecutor() throws InterruptedException {
+        final TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        tbtm.setAutoCommit(false);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List delivered = Collections.synchronizedList(new ArrayList());
+        tbtm.setBatchNotifier(new TransactionalBidiTreeMap.TransactionBatchNotifiable() {
+            public void committed(TransactionalBidiTreeMap.ChangeSet changes) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.add(((Map.Entry)changes.getAdded().get(0)).getKey());
+            }
+            public void rolledBack(TransactionalBidiTreeMap.ChangeSet changes) {}
+        });
+
+        // Change sets made after each change of executor queue behind those still waiting
+        ExecutorService first = Executors.newSingleThreadExecutor();
+        ExecutorService second = Executors.newFixedThreadPool(4);
+        try {
+            tbtm.setNotificationExecutor(first);
+            for (int i = 0; i < 30; i++) {
+                tbtm.put(new Integer(i), "V" + i);
+                tbtm.commit();
+                if (i == 10)
+                    tbtm.setNotificationExecutor(second);
+                else if (i == 20)
+                    tbtm.setNotificationExecutor(null);
+            }
+            assertNull(tbtm.getNotificationExecutor());
+            assertTrue(delivered.isEmpty());
+            release.countDown();
+        }
+        finally {
+            first.shutdown();
+            second.shutdown();
+            assertTrue(first.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(second.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(30, delivered.size());
+        for (int i = 0; i < 30; i++)
+            assertEquals(new Integer(i), delivered.get(i));
+
+        // Once the queue is empty a change set is delivered by the committing thread
+        tbtm.put(new Integer(30), "V30");
+        tbtm.commit();
+        assertEquals(31, delivered.size());
+    }
+
+    public void testRanks() throws Exception {
+        final TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        Random random = new Random(21);
+        for (int i = 0; i < 300; i++)
+            tbtm.put(new Integer(i * 2), new Integer(random.nextInt(1000000) * 2 + 1));
+        checkRanks(tbtm, random);
+
+        // Uncommitted adds and deletes by several transactions
+        tbtm.setAutoCommit(false);
+        String[] ids = { "A", "B", "C" };
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < ids.length; i++) {
+                tbtm.attach(ids[i]);
+                for (int j = 0; j < 10; j++) {
+                    Integer key = new Integer(random.nextInt(700));
+                    try {
+                        if (random.nextBoolean())
+                            tbtm.remove(key);
+                        else
+                            tbtm.put(key, new Integer(random.nextInt(1000000) * 2 + 1));
+                    }
+                    catch (IllegalArgumentException e) {}
+                    catch (ConcurrentModificationException e) {}
+                }
+                tbtm.detach();
+            }
+            for (int i = 0; i < ids.length; i++) {
+                tbtm.attach(ids[i]);
+                checkRanks(tbtm, random);
+                tbtm.detach();
+            }
+            checkRanks(tbtm, random);
+
+            tbtm.attach(ids[round % ids.length]);
+            if (round % 2 == 0)
+                tbtm.commit();
+            else
+                tbtm.rollback();
+            tbtm.detach();
+        }
+        for (int i = 0; i < ids.length; i++) {
+            tbtm.attach(ids[i]);
+            tbtm.commit();
+            tbtm.detach();
+        }
+        tbtm.setAutoCommit(true);
+        checkRanks(tbtm, random);
+
+        // The subtree sizes aren't serialized
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(tbtm);
+        out.close();
+        TransactionalBidiTreeMap read = (TransactionalBidiTreeMap)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        checkRanks(read, random);
+
+        // Nor are they in a snapshot
+        File file = File.createTempFile("TransactionalBidiTreeMapTest", ".snapshot");
+        try {
+            read = new TransactionalBidiTreeMap();
+            writeAndRead(tbtm, file, read, OffHeapSerializer.INTEGER);
+            checkRanks(read, random);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testRanks_deletedByTwoTransactions() {
+        TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        tbtm.setAutoCommit(false);
+        tbtm.attach("A");
+        for (int i = 0; i < 20; i++)
+            tbtm.put(new Integer(i), new Integer(-i));
+        tbtm.commit();
+        tbtm.detach();
+
+        tbtm.attach("B");
+        tbtm.remove(new Integer(3));
+        tbtm.detach();
+
+        // A view iterator removes the node B has already deleted, so it
+        // is in both transactions' changes but only hidden once
+        tbtm.attach("A");
+        for (Iterator i = tbtm.subMap(new Integer(0), new Integer(300)).keySet().iterator(); i.hasNext(); ) {
+            if (i.next().equals(new Integer(3)))
+                i.remove();
+        }
+        assertEquals(19, tbtm.size());
+        assertEquals(19, tbtm.subMap(new Integer(0), new Integer(300)).size());
+        assertEquals(19, tbtm.rankOfKey(new Integer(300)));
+        assertEquals(new Integer(19), tbtm.getByKeyIndex(18).getKey());
+        checkRanks(tbtm, new Random(21));
+        tbtm.detach();
+    }
+
+    private void checkRanks(TransactionalBidiTreeMap tbtm, Random random) {
+        List byKey = new ArrayList(tbtm.entrySet());
+        List byValue = new ArrayList(tbtm.entrySetByValue());
+        assertEquals(tbtm.size(), byKey.size());
+
+        for (int i = 0; i < byKey.size(); i++) {
+            Map.Entry entry = (Map.Entry)byKey.get(i);
+            assertEquals(entry.getKey(), tbtm.getByKeyIndex(i).getKey());
+            assertEquals(i, tbtm.rankOfKey(entry.getKey()));
+            entry = (Map.Entry)byValue.get(i);
+            assertEquals(entry.getValue(), tbtm.getByValueIndex(i).getValue());
+            assertEquals(i, tbtm.rankOfValue(entry.getValue()));
+        }
+        try {
+            tbtm.getByKeyIndex(byKey.size());
+            fail("Expected IndexOutOfBoundsException");
+        }
+        catch (IndexOutOfBoundsException expected) {}
+        try {
+            tbtm.getByValueIndex(-1);
+            fail("Expected IndexOutOfBoundsException");
+        }
+        catch (IndexOutOfBoundsException expected) {}
+
+        // Keys and values that aren't in the map, keys are ints and values are odd
+        for (int i = 0; i < 20; i++) {
+            int from = random.nextInt(800) - 50;
+            int to = from + random.nextInt(300);
+            int count = 0;
+            for (int j = 0; j < byKey.size(); j++) {
+                int key = ((Integer)((Map.Entry)byKey.get(j)).getKey()).intValue();
+                if (key >= from && key < to)
+                    count++;
+            }
+            assertEquals(count, tbtm.subMap(new Integer(from), new Integer(to)).size());
+            assertEquals(count, tbtm.subMap(new Integer(from), new Integer(to)).entrySet().size());
+            assertEquals(tbtm.rankOfKey(new Integer(to)), tbtm.headMap(new Integer(to)).size());
+
+            from = random.nextInt(1000000) * 2;
+            to = from + random.nextInt(500000) * 2;
+            count = 0;
+            for (int j = 0; j < byValue.size(); j++) {
+                int value = ((Integer)((Map.Entry)byValue.get(j)).getValue()).intValue();
+                if (value >= from && value < to)
+                    count++;
+            }
+            assertEquals(count, tbtm.subMapByValue(new Integer(from), new Integer(to)).size());
+            assertEquals(byValue.size() - tbtm.rankOfValue(new Integer(from)), tbtm.tailMapByValue(new Integer(from)).size());
+        }
+    }
+
+    public void testSubMap_emptyRanges() {
+        TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        for (int i = 0; i < 10; i++)
+            tbtm.put(new Integer(i * 2), new Integer(-i));
+
+        assertTrue(tbtm.subMap(new Integer(5), new Integer(6)).isEmpty());
+        assertTrue(tbtm.subMap(new Integer(100), new Integer(200)).isEmpty());
+        assertFalse(tbtm.subMap(new Integer(5), new Integer(6)).entrySet().iterator().hasNext());
+        SortedBidiMap sbm = tbtm.subMapByValue(new Integer(-100), new Integer(-50));
+        assertTrue(sbm.isEmpty());
+        assertFalse(sbm.entrySetByValueDescending().iterator().hasNext());
+        try {
+            sbm.firstKey();
+            fail("Expected NoSuchElementException");
+        }
+        catch (NoSuchElementException expected) {}
+        try {
+            sbm.lastValueByValue();
+            fail("Expected NoSuchElementException");
+        }
+        catch (NoSuchElementException expected) {}
+
+        // Key and value ranges that are each non-empty but don't overlap
+        sbm = ((SortedBidiMap)tbtm.subMap(new Integer(0), new Integer(6))).subMapByValue(new Integer(-9), new Integer(-5));
+        assertTrue(sbm.isEmpty());
+        assertEquals(0, sbm.size());
+        assertFalse(sbm.entrySetByValue().iterator().hasNext());
+    }
+
+    public void testSubMap_conjunctions() {
+        TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        Random random = new Random(22);
+        // Values are unique and spread over 0 to 1000000 in no order
+        for (int i = 0; i < 2000; i++)
+            tbtm.put(new Integer(i), new Integer(i * 7919 % 2000 * 500 + random.nextInt(500)));
+        checkConjunctions(tbtm, random);
+
+        // Uncommitted changes by this and another transaction
+        tbtm.setAutoCommit(false);
+        tbtm.attach("A");
+        for (int i = 0; i < 200; i++) {
+            Integer key = new Integer(random.nextInt(2500));
+            try {
+                if (random.nextBoolean())
+                    tbtm.remove(key);
+                else
+                    tbtm.put(key, new Integer(random.nextInt(1000000)));
+            }
+            catch (IllegalArgumentException e) {}
+        }
+        tbtm.detach();
+        for (int i = 0; i < 200; i++) {
+            Integer key = new Integer(random.nextInt(2500));
+            try {
+                if (random.nextBoolean())
+                    tbtm.remove(key);
+                else
+                    tbtm.put(key, new Integer(random.nextInt(1000000)));
+            }
+            catch (IllegalArgumentException e) {}
+            catch (ConcurrentModificationException e) {}
+        }
+        checkConjunctions(tbtm, random);
+        tbtm.attach("A");
+        checkConjunctions(tbtm, random);
+
+        // Remove through an iterator over a narrow value range, a few are this transaction's adds
+        SortedBidiMap sbm = ((SortedBidiMap)tbtm.subMap(new Integer(0), new Integer(2500))).subMapByValue(new Integer(0), new Integer(20000));
+        List removed = new ArrayList();
+        Integer last = null;
+        for (Iterator i = sbm.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry)i.next();
+            if (last != null)
+                assertTrue(last.compareTo((Integer)entry.getKey()) < 0);
+            last = (Integer)entry.getKey();
+            removed.add(entry.getKey());
+            i.remove();
+        }
+        assertFalse(removed.isEmpty());
+        assertTrue(sbm.isEmpty());
+        for (Iterator i = removed.iterator(); i.hasNext();)
+            assertFalse(tbtm.containsKey(i.next()));
+        checkConjunctions(tbtm, random);
+        tbtm.commit();
+        tbtm.detach();
+        checkConjunctions(tbtm, random);
+
+        try {
+            Iterator i = sbm.entrySet().iterator();
+            tbtm.put(new Integer(-1), new Integer(-1));
+            i.next();
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+        catch (NoSuchElementException expected) {}
+    }
+
+    private void checkConjunctions(TransactionalBidiTreeMap tbtm, Random random) {
+        List all = new ArrayList(tbtm.entrySet());
+        for (int i = 0; i < 30; i++) {
+            // Alternate selective value ranges with ones wider than the key range
+            int fromKey = random.nextInt(2500) - 100;
+            int toKey = fromKey + random.nextInt(2000);
+            int fromValue = random.nextInt(1000000);
+            int toValue = fromValue + (i % 2 == 0 ? random.nextInt(20000) : random.nextInt(1000000));
+
+            List byKey = new ArrayList();
+            TreeMap byValue = new TreeMap();
+            for (int j = 0; j < all.size(); j++) {
+                Map.Entry entry = (Map.Entry)all.get(j);
+                int key = ((Integer)entry.getKey()).intValue();
+                int value = ((Integer)entry.getValue()).intValue();
+                if (key >= fromKey && key < toKey && value >= fromValue && value < toValue) {
+                    byKey.add(entry.getKey());
+                    byValue.put(entry.getValue(), entry.getKey());
+                }
+            }
+
+            SortedBidiMap keysFirst = ((SortedBidiMap)tbtm.subMap(new Integer(fromKey), new Integer(toKey))).subMapByValue(new Integer(fromValue), new Integer(toValue));
+            SortedBidiMap valuesFirst = (SortedBidiMap)tbtm.subMapByValue(new Integer(fromValue), new Integer(toValue)).subMap(new Integer(fromKey), new Integer(toKey));
+            SortedBidiMap[] maps = { keysFirst, valuesFirst };
+            for (int m = 0; m < maps.length; m++) {
+                assertEquals(byKey, new ArrayList(maps[m].keySet()));
+                assertEquals(byKey.size(), maps[m].size());
+                assertEquals(byKey.isEmpty(), maps[m].isEmpty());
+                assertEquals(new ArrayList(byValue.values()), new ArrayList(maps[m].keySetByValue()));
+                List descending = new ArrayList();
+                for (Iterator it = maps[m].entrySetByValueDescending().iterator(); it.hasNext();)
+                    descending.add(((Map.Entry)it.next()).getKey());
+                Collections.reverse(descending);
+                assertEquals(new ArrayList(byValue.values()), descending);
+                if (!byKey.isEmpty()) {
+                    assertEquals(byKey.get(0), maps[m].firstKey());
+                    assertEquals(byKey.get(byKey.size() - 1), maps[m].lastKey());
+                    assertEquals(byValue.firstKey(), maps[m].firstValueByValue());
+                    assertEquals(byValue.lastKey(), maps[m].lastValueByValue());
+                }
+            }
+        }
+    }
+
+    public void testNavigation() {
+        TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        Random random = new Random(23);
+        for (int i = 0; i < 200; i++)
+            tbtm.put(new Integer(i * 3), new Integer(i * 7919 % 200 * 3 + 1));
+        checkNavigation(tbtm, random);
+
+        // Each transaction sees its own changes and not the others'
+        tbtm.setAutoCommit(false);
+        String[] ids = { "A", "B" };
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < ids.length; i++) {
+                tbtm.attach(ids[i]);
+                for (int j = 0; j < 10; j++) {
+                    Integer key = new Integer(random.nextInt(650));
+                    try {
+                        if (random.nextBoolean())
+                            tbtm.remove(key);
+                        else
+                            tbtm.put(key, new Integer(random.nextInt(2000)));
+                    }
+                    catch (IllegalArgumentException e) {}
+                    catch (ConcurrentModificationException e) {}
+                }
+                checkNavigation(tbtm, random);
+                tbtm.detach();
+            }
+            checkNavigation(tbtm, random);
+            tbtm.attach(ids[round % ids.length]);
+            tbtm.commit();
+            tbtm.detach();
+        }
+        tbtm.attach("A");
+        tbtm.rollback();
+        tbtm.detach();
+        tbtm.attach("B");
+        tbtm.rollback();
+        tbtm.detach();
+
+        // Polling is part of the transaction
+        tbtm.attach("A");
+        Map.Entry first = tbtm.firstEntry();
+        assertEquals(first, tbtm.pollFirstEntry());
+        assertFalse(tbtm.containsKey(first.getKey()));
+        Map.Entry lastByValue = tbtm.lastEntryByValue();
+        assertEquals(lastByValue, tbtm.pollLastEntryByValue());
+        assertFalse(tbtm.containsValue(lastByValue.getValue()));
+        tbtm.detach();
+        assertEquals(first, tbtm.firstEntry());
+        assertEquals(lastByValue, tbtm.lastEntryByValue());
+        try {
+            tbtm.pollFirstEntry();
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+        tbtm.attach("A");
+        tbtm.rollback();
+        tbtm.detach();
+        assertEquals(first, tbtm.pollFirstEntry());
+        tbtm.commit();
+        assertFalse(tbtm.containsKey(first.getKey()));
+
+        tbtm.setAutoCommit(true);
+        tbtm.clear();
+        assertNull(tbtm.firstEntry());
+        assertNull(tbtm.pollLastEntry());
+        assertNull(tbtm.ceilingKeyByValue(new Integer(1)));
+        try {
+            tbtm.ceilingKey(null);
+            fail("Expected NullPointerException");
+        }
+        catch (NullPointerException expected) {}
+    }
+
+    private void checkNavigation(TransactionalBidiTreeMap tbtm, Random random) {
+        TreeMap byKey = new TreeMap();
+        TreeMap byValue = new TreeMap();
+        for (Iterator i = tbtm.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry)i.next();
+            byKey.put(entry.getKey(), entry.getValue());
+            byValue.put(entry.getValue(), entry.getKey());
+        }
+        assertEquals(byKey.firstEntry(), tbtm.firstEntry());
+        assertEquals(byKey.lastEntry(), tbtm.lastEntry());
+        assertEquals(new ArrayList(byKey.descendingMap().entrySet()), new ArrayList(tbtm.descendingMap().entrySet()));
+        assertEquals(new ArrayList(byKey.descendingKeySet()), new ArrayList(tbtm.descendingKeySet()));
+
+        for (int i = 0; i < 30; i++) {
+            Integer key = new Integer(random.nextInt(700) - 20);
+            assertEquals(byKey.lowerEntry(key), tbtm.lowerEntry(key));
+            assertEquals(byKey.floorEntry(key), tbtm.floorEntry(key));
+            assertEquals(byKey.ceilingKey(key), tbtm.ceilingKey(key));
+            assertEquals(byKey.higherKey(key), tbtm.higherKey(key));
+            assertEquals(byKey.descendingMap().ceilingKey(key), tbtm.descendingMap().ceilingKey(key));
+            assertEquals(byKey.navigableKeySet().floor(key), tbtm.navigableKeySet().floor(key));
+
+            Integer value = new Integer(random.nextInt(2050) - 20);
+            assertEquals(byValue.lowerEntry(value) == null ? null : ((Map.Entry)byValue.lowerEntry(value)).getValue(), tbtm.lowerKeyByValue(value));
+            assertEquals(byValue.floorKey(value), tbtm.floorEntryByValue(value) == null ? null : tbtm.floorEntryByValue(value).getValue());
+            assertEquals(byValue.ceilingEntry(value) == null ? null : ((Map.Entry)byValue.ceilingEntry(value)).getValue(), tbtm.ceilingKeyByValue(value));
+            assertEquals(byValue.higherKey(value), tbtm.higherEntryByValue(value) == null ? null : tbtm.higherEntryByValue(value).getValue());
+
+            // Sub maps with each kind of bound
+            Integer to = new Integer(key.intValue() + random.nextInt(300));
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            NavigableBidiMap sub = (NavigableBidiMap)tbtm.subMap(key, fromInclusive, to, toInclusive);
+            java.util.NavigableMap expected = byKey.subMap(key, fromInclusive, to, toInclusive);
+            assertEquals(new ArrayList(expected.entrySet()), new ArrayList(sub.entrySet()));
+            assertEquals(expected.size(), sub.size());
+            assertEquals(expected.firstEntry(), sub.firstEntry());
+            assertEquals(expected.lastEntry(), sub.lastEntry());
+            assertEquals(new ArrayList(expected.descendingMap().entrySet()), new ArrayList(sub.descendingMap().entrySet()));
+            Integer probe = new Integer(key.intValue() + random.nextInt(300) - 20);
+            assertEquals(expected.lowerKey(probe), sub.lowerKey(probe));
+            assertEquals(expected.floorKey(probe), sub.floorKey(probe));
+            assertEquals(expected.ceilingEntry(probe), sub.ceilingEntry(probe));
+            assertEquals(expected.higherEntry(probe), sub.higherEntry(probe));
+            assertEquals(expected.containsKey(probe), sub.containsKey(probe));
+            if (probe.compareTo(key) > 0 && probe.compareTo(to) < 0) {
+                assertEquals(new ArrayList(expected.headMap(probe, true).keySet()), new ArrayList(sub.headMap(probe, true).keySet()));
+                assertEquals(new ArrayList(expected.descendingMap().headMap(probe, false).keySet()), new ArrayList(sub.descendingMap().headMap(probe, false).keySet()));
+            }
+
+            // Value navigation within a key range
+            TreeMap valuesInRange = new TreeMap();
+            for (Iterator it = expected.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry)it.next();
+                valuesInRange.put(entry.getValue(), entry.getKey());
+            }
+            assertEquals(valuesInRange.ceilingEntry(value) == null ? null : ((Map.Entry)valuesInRange.ceilingEntry(value)).getValue(), sub.ceilingKeyByValue(value));
+            assertEquals(valuesInRange.lowerEntry(value) == null ? null : ((Map.Entry)valuesInRange.lowerEntry(value)).getValue(), sub.lowerKeyByValue(value));
+            assertEquals(valuesInRange.isEmpty() ? null : valuesInRange.firstKey(), sub.firstEntryByValue() == null ? null : sub.firstEntryByValue().getValue());
+        }
+    }
+
+    public void testTransactions_attachAcrossThreads() throws InterruptedException {
+        final TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setAutoCommit(false);
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                tbtm.attach(new String("shared"));
+                tbtm.put(new Integer(7), "X");
+                tbtm.remove(new Integer(1));
+                tbtm.detach();
+            }
+        };
+        t.start();
+        t.join();
+
+        assertNull(tbtm.get(new Integer(7)));
+        assertEquals("D", tbtm.get(new Integer(1)));
+
+        tbtm.attach(new String("shared"));
+        assertEquals("X", tbtm.get(new Integer(7)));
+        assertNull(tbtm.get(new Integer(1)));
+        tbtm.commit();
+        tbtm.detach();
+
+        assertEquals("X", tbtm.get(new Integer(7)));
+        assertNull(tbtm.get(new Integer(1)));
+        assertEquals(4, tbtm.size(true));
+    }
+
+    public void testVersioned_reads() {
+        TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setVersioned(true);
+        assertTrue(tbtm.isSnapshotReadable());
+
+        TreeMap reference = new TreeMap(tbtm);
+        Random random = new Random(20100501L);
+        for (int step = 0; step < 3000; step++) {
+            Integer key = new Integer(random.nextInt(200));
+            if (random.nextBoolean()) {
+                if (!reference.containsKey(key)) {
+                    tbtm.put(key, "V" + step);
+                    reference.put(key, "V" + step);
+                }
+            }
+            else
+                assertEquals(reference.remove(key), tbtm.remove(key));
+
+            assertEquals(reference.size(), tbtm.size());
+            assertEquals(reference.get(key), tbtm.get(key));
+            assertEquals(reference.containsKey(key), tbtm.containsKey(key));
+        }
+
+        assertEquals(new ArrayList(reference.keySet()), new ArrayList(tbtm.keySet()));
+        ArrayList values = new ArrayList(reference.values());
+        Collections.sort(values);
+        assertEquals(values, new ArrayList(tbtm.valuesByValue()));
+        Collections.reverse(values);
+        assertEquals(values, new ArrayList(tbtm.valuesByValueDescending()));
+        for (Iterator i = reference.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry entry = (Map.Entry)i.next();
+            assertEquals(entry.getKey(), tbtm.getKeyForValue(entry.getValue()));
+            assertTrue(tbtm.containsValue(entry.getValue()));
+        }
+    }
+
+    public void testVersioned_iteratorSnapshot() {
+        TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setVersioned(true);
+
+        Iterator i = tbtm.keySet().iterator();
+        tbtm.put(new Integer(5), "E");
+        tbtm.remove(new Integer(2));
+
+        assertEquals(new Integer(1), i.next());
+        assertEquals(new Integer(2), i.next());
+        // Already removed from the map so this does nothing
+        i.remove();
+        assertEquals(new Integer(3), i.next());
+        i.remove();
+        assertEquals(new Integer(4), i.next());
+        assertFalse(i.hasNext());
+
+        assertEquals(3, tbtm.size());
+        assertNull(tbtm.get(new Integer(3)));
+        assertEquals("E", tbtm.get(new Integer(5)));
+    }
+
+    public void testVersioned_transactions() {
+        TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setVersioned(true);
+        tbtm.setAutoCommit(false);
+        assertFalse(tbtm.isSnapshotReadable());
+
+        tbtm.remove(new Integer(3));
+        tbtm.put(new Integer(3), "G");
+        tbtm.put(new Integer(5), "H");
+        tbtm.commit();
+
+        tbtm.remove(new Integer(1));
+        tbtm.put(new Integer(6), "I");
+        tbtm.rollback();
+
+        tbtm.attach("other");
+        tbtm.put(new Integer(7), "J");
+        tbtm.detach();
+
+        // Turning auto commit back on commits the outstanding transaction
+        tbtm.setAutoCommit(true);
+        assertTrue(tbtm.isSnapshotReadable());
+        assertEquals(6, tbtm.size());
+        assertEquals("G", tbtm.get(new Integer(3)));
+        assertEquals(new Integer(3), tbtm.getKeyForValue("G"));
+        assertFalse(tbtm.containsValue("A"));
+        assertEquals("D", tbtm.get(new Integer(1)));
+        assertNull(tbtm.get(new Integer(6)));
+        assertEquals("J", tbtm.get(new Integer(7)));
+
+        ArrayList keys = new ArrayList();
+        for (Iterator i = tbtm.entrySetByValue().iterator(); i.hasNext(); )
+            keys.add(((Map.Entry)i.next()).getKey());
+        assertEquals(Arrays.asList(new Object[] { new Integer(4), new Integer(2), new Integer(1), new Integer(3), new Integer(5), new Integer(7) }), keys);
+    }
+
+    public void testVersioned_publishedSnapshot() {
+        TransactionalBidiTreeMap tbtm = GetDefault();
+        tbtm.setVersioned(true);
+        Map decorated = SynchronizedTransactionalSortedFilterableBidiMap.decorate(tbtm);
+
+        SnapshotReadable.Snapshot snapshot = tbtm.getPublishedSnapshot();
+        assertNotNull(snapshot);
+        Object one = snapshot.get(new Integer(1));
+        assertEquals(tbtm.get(new Integer(1)), one);
+        assertEquals(one, decorated.get(new Integer(1)));
+
+        // A snapshot that has been handed out is unaffected by later changes
+        tbtm.setAutoCommit(false);
+        assertNull(tbtm.getPublishedSnapshot());
+        tbtm.put(new Integer(5), "E");
+        tbtm.remove(new Integer(1));
+        tbtm.commit();
+
+        assertEquals(4, snapshot.size());
+        assertEquals(one, snapshot.get(new Integer(1)));
+        assertEquals(new Integer(1), snapshot.getKeyForValue(one));
+        assertFalse(snapshot.containsKey(new Integer(5)));
+        assertFalse(snapshot.containsValue("E"));
+        try {
+            snapshot.get(null);
+            fail("Expected NullPointerException");
+        }
+        catch (NullPointerException expected) {}
+
+        // Without a published snapshot the decorator reads the map under the lock
+        assertEquals("E", decorated.get(new Integer(5)));
+        assertFalse(decorated.containsKey(new Integer(1)));
+        assertEquals(4, decorated.size());
+    }
+
+    public void testBulkLoad() {
+        Random random = new Random(20100601L);
+        for (int size = 0; size < 300; size += 1 + size / 8) {
+            ArrayList values = new ArrayList();
+            for (int i = 0; i < size; i++)
+                values.add(new Integer(i * 3));
+            Collections.shuffle(values, random);
+
+            TreeMap sorted = new TreeMap();
+            HashMap unsorted = new HashMap();
+            for (int i = 0; i < size; i++) {
+                sorted.put(new Integer(i), values.get(i));
+                unsorted.put(new Integer(i), values.get(i));
+            }
+
+            checkBulkLoaded(new TransactionalBidiTreeMap(sorted), sorted, random);
+            checkBulkLoaded(new TransactionalBidiTreeMap(unsorted), sorted, random);
+
+            TransactionalBidiTreeMap copy = new TransactionalBidiTreeMap();
+            new TransactionalBidiTreeMap(sorted).copyEntries(copy);
+            checkBulkLoaded(copy, sorted, random);
+        }
+    }
+
+    private void checkBulkLoaded(TransactionalBidiTreeMap tbtm, TreeMap expected, Random random) {
+        assertEquals(expected.size(), tbtm.size());
+        assertEquals(new ArrayList(expected.entrySet()), new ArrayList(tbtm.entrySet()));
+        ArrayList values = new ArrayList(expected.values());
+        Collections.sort(values);
+        assertEquals(values, new ArrayList(tbtm.valuesByValue()));
+        for (Iterator i = expected.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry entry = (Map.Entry)i.next();
+            assertEquals(entry.getValue(), tbtm.get(entry.getKey()));
+            assertEquals(entry.getKey(), tbtm.getKeyForValue(entry.getValue()));
+        }
+
+        // The trees must stay balanced and ordered after further changes
+        TreeMap reference = new TreeMap(expected);
+        for (int step = 0; step < 200; step++) {
+            Integer key = new Integer(random.nextInt(expected.size() + 20));
+            if (reference.containsKey(key)) {
+                assertEquals(reference.remove(key), tbtm.remove(key));
+            }
+            else {
+                Integer value = new Integer(-1 - step);
+                tbtm.put(key, value);
+                reference.put(key, value);
+            }
+        }
+        assertEquals(new ArrayList(reference.entrySet()), new ArrayList(tbtm.entrySet()));
+        values = new ArrayList(reference.values());
+        Collections.sort(values);
+        assertEquals(values, new ArrayList(tbtm.valuesByValue()));
+    }
+
+    public void testBulkLoad_duplicateValues() {
+        HashMap map = new HashMap();
+        map.put(new Integer(1), "A");
+        map.put(new Integer(2), "B");
+        map.put(new Integer(3), "A");
+        try {
+            new TransactionalBidiTreeMap(map);
+            fail("should have caught IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    public void testBatch() {
+        Random random = new Random(20100628L);
+        TransactionalBidiTreeMap batched = new TransactionalBidiTreeMap();
+        TransactionalBidiTreeMap looped = new TransactionalBidiTreeMap();
+        for (int i = 0; i < 100; i++) {
+            batched.put(new Integer(i * 10), new Integer(i * 7919 % 100 * 10));
+            looped.put(new Integer(i * 10), new Integer(i * 7919 % 100 * 10));
+        }
+
+        int next_value = 1;
+        for (int round = 0; round < 30; round++) {
+            HashMap puts = new HashMap();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                Integer key = new Integer(random.nextInt(2000));
+                if (!looped.containsKey(key))
+                    puts.put(key, new Integer(next_value++ * 10 + 5));
+            }
+            batched.putAll(puts);
+            for (Iterator i = puts.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry entry = (Map.Entry)i.next();
+                looped.put(entry.getKey(), entry.getValue());
+            }
+            checkBatch(batched, looped, random);
+
+            ArrayList removes = new ArrayList();
+            for (int i = random.nextInt(40); i > 0; i--)
+                removes.add(new Integer(random.nextInt(2000)));
+            boolean removed = false;
+            for (Iterator i = removes.iterator(); i.hasNext(); )
+                removed |= looped.remove(i.next()) != null;
+            assertEquals(removed, batched.removeAll(removes));
+            checkBatch(batched, looped, random);
+        }
+
+        // The same within transactions, each seeing only its own batches.
+        // Each changes only its own keys so neither batch nor loop fails.
+        batched.setAutoCommit(false);
+        looped.setAutoCommit(false);
+        String[] ids = { "A", "B" };
+        for (int round = 0; round < 10; round++) {
+            for (int t = 0; t < ids.length; t++) {
+                batched.attach(ids[t]);
+                looped.attach(ids[t]);
+                HashMap puts = new HashMap();
+                for (int i = random.nextInt(20); i > 0; i--) {
+                    Integer key = new Integer(random.nextInt(2000) * 2 + t);
+                    if (!looped.containsKey(key))
+                        puts.put(key, new Integer((next_value++ * 2 + t) * 10 + 5));
+                }
+                batched.putAll(puts);
+                for (Iterator i = puts.entrySet().iterator(); i.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry)i.next();
+                    looped.put(entry.getKey(), entry.getValue());
+                }
+                ArrayList removes = new ArrayList();
+                for (int i = random.nextInt(20); i > 0; i--)
+                    removes.add(new Integer(random.nextInt(2000) * 2 + t));
+                for (Iterator i = removes.iterator(); i.hasNext(); )
+                    looped.remove(i.next());
+                batched.removeAll(removes);
+                checkBatch(batched, looped, random);
+                batched.detach();
+                looped.detach();
+            }
+            checkBatch(batched, looped, random);
+            batched.attach(ids[round % ids.length]);
+            batched.commit();
+            batched.detach();
+            looped.attach(ids[round % ids.length]);
+            looped.commit();
+            looped.detach();
+            checkBatch(batched, looped, random);
+        }
+        for (int t = 0; t < ids.length; t++) {
+            batched.attach(ids[t]);
+            batched.rollback();
+            batched.detach();
+            looped.attach(ids[t]);
+            looped.rollback();
+            looped.detach();
+        }
+        checkBatch(batched, looped, random);
+    }
+
+    private void checkBatch(TransactionalBidiTreeMap batched, TransactionalBidiTreeMap looped, Random random) {
+        assertEquals(looped.size(), batched.size());
+        assertEquals(new ArrayList(looped.entrySet()), new ArrayList(batched.entrySet()));
+        assertEquals(new ArrayList(looped.entrySetByValue()), new ArrayList(batched.entrySetByValue()));
+        checkRanks(batched, random);
+    }
+
+    public void testBatch_failures() {
+        TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        for (int i = 0; i < 10; i++)
+            tbtm.put(new Integer(i * 2), "V" + i);
+        TreeMap before = new TreeMap(tbtm);
+
+        // A duplicate anywhere in the batch leaves the map as it was
+        HashMap puts = new HashMap();
+        puts.put(new Integer(1), "N1");
+        puts.put(new Integer(3), "V4");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {}
+        assertEquals(before, new TreeMap(tbtm));
+        assertNull(tbtm.getKeyForValue("N1"));
+
+        puts.put(new Integer(3), "N1");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {}
+        puts.put(new Integer(3), "N3");
+        puts.put(new Integer(4), "N4");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {}
+        assertEquals(before, new TreeMap(tbtm));
+
+        puts.remove(new Integer(4));
+        tbtm.putAll(puts);
+        assertEquals(12, tbtm.size());
+        assertEquals(new Integer(3), tbtm.getKeyForValue("N3"));
+
+        // Keys or values added or deleted by another transaction
+        tbtm.setAutoCommit(false);
+        tbtm.attach("A");
+        tbtm.put(new Integer(5), "N5");
+        tbtm.remove(new Integer(6));
+        tbtm.detach();
+        tbtm.attach("B");
+        before = new TreeMap(tbtm);
+        puts.clear();
+        puts.put(new Integer(7), "N7");
+        puts.put(new Integer(5), "X5");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught ConcurrentModificationException");
+        } catch (ConcurrentModificationException ignored) {}
+        puts.remove(new Integer(5));
+        puts.put(new Integer(9), "N5");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught ConcurrentModificationException");
+        } catch (ConcurrentModificationException ignored) {}
+        assertEquals(before, new TreeMap(tbtm));
+
+        try {
+            tbtm.removeAll(Arrays.asList(new Object[] { new Integer(0), new Integer(6) }));
+            fail("should have caught ConcurrentModificationException");
+        } catch (ConcurrentModificationException ignored) {}
+        assertEquals(before, new TreeMap(tbtm));
+        assertFalse(tbtm.removeAll(Arrays.asList(new Object[] { new Integer(5), new Integer(100) })));
+        assertTrue(tbtm.removeAll(Arrays.asList(new Object[] { new Integer(0), new Integer(0), new Integer(1) })));
+        assertEquals(before.size() - 2, tbtm.size());
+        tbtm.detach();
+
+        // A value deleted by its own transaction can be put again in a batch
+        tbtm.attach("A");
+        puts.clear();
+        puts.put(new Integer(60), "V3");
+        puts.put(new Integer(61), "V2");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {}
+        puts.remove(new Integer(61));
+        tbtm.putAll(puts);
+        assertEquals(new Integer(60), tbtm.getKeyForValue("V3"));
+        tbtm.commit();
+        tbtm.detach();
+    }
+
+    public void testBatch_sparse() {
+        // Batches this small in a map this big are put and removed an
+        // entry at a time
+        TransactionalBidiTreeMap tbtm = new TransactionalBidiTreeMap();
+        for (int i = 0; i < 1000; i++)
+            tbtm.put(new Integer(i * 2), "V" + i);
+        TreeMap before = new TreeMap(tbtm);
+
+        HashMap puts = new HashMap();
+        puts.put(new Integer(1), "N1");
+        puts.put(new Integer(501), "N501");
+        puts.put(new Integer(1001), "V4");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {}
+        assertEquals(before, new TreeMap(tbtm));
+        assertNull(tbtm.getKeyForValue("N1"));
+        assertNull(tbtm.getKeyForValue("N501"));
+
+        puts.put(new Integer(1001), "N1001");
+        tbtm.putAll(puts);
+        assertEquals(1003, tbtm.size());
+        assertEquals(new Integer(501), tbtm.getKeyForValue("N501"));
+
+        assertTrue(tbtm.removeAll(Arrays.asList(new Object[] { new Integer(1), new Integer(1001), new Integer(3) })));
+        assertFalse(tbtm.removeAll(Arrays.asList(new Object[] { new Integer(1), new Integer(1001) })));
+        assertEquals(1001, tbtm.size());
+
+        // Within a transaction, a failed batch removes only what it put
+        tbtm.setAutoCommit(false);
+        tbtm.attach("A");
+        tbtm.remove(new Integer(4));
+        puts.clear();
+        puts.put(new Integer(3), "V2");
+        puts.put(new Integer(5), "N5");
+        puts.put(new Integer(7), "V6");
+        try {
+            tbtm.putAll(puts);
+            fail("should have caught IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {}
+        assertNull(tbtm.get(new Integer(3)));
+        assertNull(tbtm.get(new Integer(4)));
+        assertNull(tbtm.get(new Integer(5)));
+        assertNull(tbtm.getKeyForValue("V2"));
+        assertTrue(tbtm.removeAll(Arrays.asList(new Object[] { new Integer(0), new Integer(8) })));
+        tbtm.detach();
+
+        // With another transaction's changes the removals are checked
+        // before any is made
+        tbtm.attach("B");
+        before = new TreeMap(tbtm);
+        try {
+            tbtm.removeAll(Arrays.asList(new Object[] { new Integer(10), new Integer(8) }));
+            fail("should have caught ConcurrentModificationException");
+        } catch (ConcurrentModificationException ignored) {}
+        assertEquals(before, new TreeMap(tbtm));
+        tbtm.detach();
+
+        tbtm.attach("A");
+        tbtm.commit();
+        tbtm.detach();
+        assertEquals(998, tbtm.size());
+        assertNull(tbtm.getKeyForValue("V0"));
+        assertEquals(new Integer(1000), tbtm.getKeyForValue("V500"));
+    }
+
+    public void testSnapshot() throws IOException {
+        Random random = new Random(20100614L);
+        File file = File.createTempFile("TransactionalBidiTreeMapTest", ".snapshot");
+        try {
+            for (int size = 0; size < 300; size += 1 + size / 8) {
+                ArrayList values = new ArrayList();
+                for (int i = 0; i < size; i++)
+                    values.add(new Integer(i * 3));
+                Collections.shuffle(values, random);
+
+                TreeMap sorted = new TreeMap();
+                for (int i = 0; i < size; i++)
+                    sorted.put(new Integer(i), values.get(i));
+
+                TransactionalBidiTreeMap read = new TransactionalBidiTreeMap();
+                writeAndRead(new TransactionalBidiTreeMap(sorted), file, read, OffHeapSerializer.INTEGER);
+                checkBulkLoaded(read, sorted, random);
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testSnapshot_uncommitted() throws IOException {
+        File file = File.createTempFile("TransactionalBidiTreeMapTest", ".snapshot");
+        try {
+            TransactionalBidiTreeMap tbtm = GetDefault();
+            tbtm.setAutoCommit(false);
+            tbtm.put(new Integer(5), "E");
+            tbtm.remove(new Integer(2));
+
+            TransactionalBidiTreeMap read = new TransactionalBidiTreeMap();
+            read.setVersioned(true);
+            writeAndRead(tbtm, file, read, new OffHeapSerializer.Strings(1));
+            assertEquals(GetDefault(), read);
+            assertEquals(new Integer(3), read.firstKeyByValue());
+            assertEquals("D", read.get(new Integer(1)));
+
+            try {
+                writeAndRead(tbtm, file, read, new OffHeapSerializer.Strings(1));
+                fail("should have caught IllegalStateException");
+            } catch (IllegalStateException ignored) {}
+
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                new TransactionalBidiTreeMap().readSnapshot(channel, OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(2));
+                fail("should have caught IOException");
+            } catch (IOException ignored) {}
+            finally {
+                channel.close();
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testSnapshot_position() throws IOException {
+        File file = File.createTempFile("TransactionalBidiTreeMapTest", ".snapshot");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            TransactionalBidiTreeMap tbtm = GetDefault();
+            FileChannel channel = raf.getChannel();
+            raf.writeInt(42);
+            tbtm.writeSnapshot(channel, OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(1));
+            long second = channel.position();
+            tbtm.put(new Integer(5), "E");
+            tbtm.writeSnapshot(channel, OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(1));
+            assertEquals(channel.size(), channel.position());
+
+            channel.position(0);
+            assertEquals(42, raf.readInt());
+            TransactionalBidiTreeMap first = new TransactionalBidiTreeMap();
+            first.readSnapshot(channel, OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(1));
+            assertEquals(GetDefault(), first);
+            assertEquals(second, channel.position());
+            TransactionalBidiTreeMap next = new TransactionalBidiTreeMap();
+            next.readSnapshot(channel, OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(1));
+            assertEquals(tbtm, next);
+            assertEquals(new Integer(5), next.getKeyForValue("E"));
+        }
+        finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    public void testSnapshot_corruptValueOrder() throws IOException {
+        File file = File.createTempFile("TransactionalBidiTreeMapTest", ".snapshot");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            GetDefault().writeSnapshot(channel, OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(1));
+            long last = channel.size() - 4;
+
+            // A repeated record number leaves another record out of the value order
+            raf.seek(last - 4);
+            int previous = raf.readInt();
+            raf.writeInt(previous);
+            assertCorruptSnapshot(channel);
+
+            raf.seek(last);
+            raf.writeInt(4);
+            assertCorruptSnapshot(channel);
+            raf.seek(last);
+            raf.writeInt(-1);
+            assertCorruptSnapshot(channel);
+        }
+        finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private void assertCorruptSnapshot(FileChannel channel) throws IOException {
+        channel.position(0);
+        try {
+            new TransactionalBidiTreeMap().readSnapshot(channel, OffHeapSerializer.INTEGER, new OffHeapSerializer.Strings(1));
+            fail("should have caught IOException");
+        } catch (IOException ignored) {}
+    }
+
+    private void writeAndRead(TransactionalBidiTreeMap tbtm, File file, TransactionalBidiTreeMap read, OffHeapSerializer values) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            tbtm.writeSnapshot(out.getChannel(), OffHeapSerializer.INTEGER, values);
+        }
+        finally {
+            out.close();
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            read.readSnapshot(in.getChannel(), OffHeapSerializer.INTEGER, values);
+        }
+        finally {
+            in.close();
+        }
+    }
+
     protected Map makeMap() {
         return new TransactionalBidiTreeMap();
     }
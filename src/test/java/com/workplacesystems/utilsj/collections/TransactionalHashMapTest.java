@@ -32,6 +32,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
 
 import junit.framework.Test;
@@ -132,6 +133,59 @@ public class TransactionalHashMapTest extends TestCase {
         thm.put(one, "A");
     }
     
+    private int countEntries(TransactionalHashMap thm) {
+        int count = 0;
+        for (Iterator i = thm.entrySet().iterator(); i.hasNext(); i.next())
+            count++;
+        return count;
+    }
+
+    public void testTransactions_sizeMixed() {
+        final TransactionalHashMap thm = GetDefault();
+        thm.setAutoCommit(false);
+
+        String[] ids = new String[] { "tx0", "tx1", "tx2", "tx3" };
+        Random random = new Random(20031015L);
+        for (int step = 0; step < 2000; step++) {
+            thm.attach(ids[random.nextInt(ids.length)]);
+            Integer key = new Integer(random.nextInt(20));
+            try {
+                switch (random.nextInt(6)) {
+                    case 0:
+                    case 1:
+                        thm.put(key, "V" + step);
+                        break;
+                    case 2:
+                    case 3:
+                        thm.remove(key);
+                        break;
+                    case 4:
+                        thm.commit();
+                        break;
+                    default:
+                        thm.rollback();
+                        break;
+                }
+            } catch (ConcurrentModificationException ignored) {}
+
+            for (int i = 0; i < ids.length; i++) {
+                thm.attach(ids[i]);
+                assertEquals(countEntries(thm), thm.size());
+                assertEquals(thm.size() == 0, thm.isEmpty());
+            }
+            thm.detach();
+            assertEquals(countEntries(thm), thm.size());
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            thm.attach(ids[i]);
+            thm.commit();
+        }
+        thm.detach();
+        assertEquals(thm.size(true), thm.size());
+        assertEquals(countEntries(thm), thm.size());
+    }
+
     public void testTransactions_commit(){
         final TransactionalHashMap thm = GetDefault();
         thm.setAutoCommit(false);
@@ -1720,6 +1774,285 @@ public class TransactionalHashMapTest extends TestCase {
         assertEquals(s.hashCode(), hs.hashCode());
     }
     
+    /** Key whose hashCode only depends on group, so every key of a group collides. */
+    private static class CollidingKey implements Comparable<CollidingKey> {
+        private final int group;
+        private final int id;
+        private CollidingKey(int group, int id) {
+            this.group = group;
+            this.id = id;
+        }
+        @Override
+        public int hashCode() {
+            return group;
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey)o).group == group && ((CollidingKey)o).id == id;
+        }
+        public int compareTo(CollidingKey o) {
+            return group != o.group ? (group < o.group ? -1 : 1) : (id < o.id ? -1 : (id == o.id ? 0 : 1));
+        }
+        @Override
+        public String toString() {
+            return group + ":" + id;
+        }
+    }
+    
+    /** Colliding key that can't be ordered beyond its hash. */
+    private static class UnorderedKey {
+        private final int id;
+        private UnorderedKey(int id) {
+            this.id = id;
+        }
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof UnorderedKey && ((UnorderedKey)o).id == id;
+        }
+    }
+    
+    private void checkAgainst(Map expected, TransactionalHashMap thm) {
+        assertEquals(expected.size(), thm.size());
+        assertEquals(expected.size(), countEntries(thm));
+        for (Iterator i = expected.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry e = (Map.Entry)i.next();
+            assertTrue(thm.containsKey(e.getKey()));
+            assertEquals(e.getValue(), thm.get(e.getKey()));
+        }
+        assertEquals(expected, thm);
+    }
+    
+    public void testTreeBins_random() {
+        Random random = new Random(20031016L);
+        TransactionalHashMap thm = new TransactionalHashMap(64);
+        HashMap expected = new HashMap();
+        for (int step = 0; step < 20000; step++) {
+            Object key;
+            switch (random.nextInt(3)) {
+                case 0:
+                    key = new CollidingKey(random.nextInt(3), random.nextInt(200));
+                    break;
+                case 1:
+                    key = new UnorderedKey(random.nextInt(50));
+                    break;
+                default:
+                    key = new Integer(random.nextInt(500));
+                    break;
+            }
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), thm.remove(key));
+            }
+            else {
+                String value = "V" + step;
+                assertEquals(expected.put(key, value), thm.put(key, value));
+            }
+            if (step % 1000 == 0)
+                checkAgainst(expected, thm);
+        }
+        checkAgainst(expected, thm);
+        
+        for (Iterator i = thm.keySet().iterator(); i.hasNext(); ) {
+            Object key = i.next();
+            if (!(key instanceof Integer)) {
+                i.remove();
+                expected.remove(key);
+            }
+        }
+        checkAgainst(expected, thm);
+    }
+    
+    public void testTreeBins_transactions() {
+        final TransactionalHashMap thm = new TransactionalHashMap(64);
+        for (int i = 0; i < 100; i++)
+            thm.put(new CollidingKey(1, i), "C" + i);
+        thm.setAutoCommit(false);
+        
+        thm.attach("tx0");
+        for (int i = 0; i < 100; i += 2)
+            thm.put(new CollidingKey(1, i), "T" + i);
+        for (int i = 1; i < 100; i += 4)
+            thm.remove(new CollidingKey(1, i));
+        for (int i = 100; i < 150; i++)
+            thm.put(new CollidingKey(1, i), "N" + i);
+        assertEquals(125, thm.size());
+        assertEquals(125, countEntries(thm));
+        assertEquals("T0", thm.get(new CollidingKey(1, 0)));
+        assertNull(thm.get(new CollidingKey(1, 1)));
+        assertEquals("N120", thm.get(new CollidingKey(1, 120)));
+        
+        thm.attach("tx1");
+        assertEquals(100, thm.size());
+        assertEquals(100, countEntries(thm));
+        assertEquals("C0", thm.get(new CollidingKey(1, 0)));
+        assertEquals("C1", thm.get(new CollidingKey(1, 1)));
+        assertFalse(thm.containsKey(new CollidingKey(1, 120)));
+        try {
+            thm.put(new CollidingKey(1, 120), "X");
+            fail("Expected ConcurrentModificationException");
+        } catch (ConcurrentModificationException expected) {}
+        
+        thm.attach("tx0");
+        thm.rollback();
+        assertEquals(100, thm.size(true));
+        assertEquals("C0", thm.get(new CollidingKey(1, 0)));
+        
+        for (int i = 0; i < 100; i += 2)
+            thm.put(new CollidingKey(1, i), "T" + i);
+        for (int i = 1; i < 100; i += 4)
+            thm.remove(new CollidingKey(1, i));
+        thm.commit();
+        thm.detach();
+        assertEquals(75, thm.size(true));
+        assertEquals(75, countEntries(thm));
+        assertEquals("T98", thm.get(new CollidingKey(1, 98)));
+        assertEquals("C99", thm.get(new CollidingKey(1, 99)));
+        assertNull(thm.get(new CollidingKey(1, 97)));
+    }
+    
+    public void testTreeBins_resize() {
+        TransactionalHashMap thm = new TransactionalHashMap(64);
+        for (int i = 0; i < 20; i++)
+            thm.put(new CollidingKey(7, i), new Integer(i));
+        // Grow the table well past the colliding bin so it is split and rebuilt
+        for (int i = 0; i < 5000; i++)
+            thm.put(new Integer(i), new Integer(i));
+        for (int i = 0; i < 20; i++)
+            assertEquals(new Integer(i), thm.get(new CollidingKey(7, i)));
+        for (int i = 0; i < 18; i++)
+            assertEquals(new Integer(i), thm.remove(new CollidingKey(7, i)));
+        assertEquals(5002, thm.size());
+        assertEquals(5002, countEntries(thm));
+        assertEquals(new Integer(19), thm.get(new CollidingKey(7, 19)));
+        
+        TransactionalHashMap copy = new TransactionalHashMap(thm);
+        assertEquals(thm, copy);
+    }
+    
+    public void testTransactions_commitAfterRehash() {
+        TransactionalHashMap thm = new TransactionalHashMap(64);
+        for (int i = 0; i < 100; i++)
+            thm.put(new Integer(i), "C" + i);
+        thm.setAutoCommit(false);
+        
+        thm.attach("tx1");
+        thm.put(new Integer(1000), "T1000");
+        thm.remove(new Integer(1));
+        
+        // Change some keys then move them with resizes and treeified bins before committing
+        thm.attach("tx0");
+        thm.put(new Integer(0), "T0");
+        thm.remove(new Integer(2));
+        for (int i = 0; i < 20; i++)
+            thm.put(new CollidingKey(5, i), "K" + i);
+        for (int i = 2000; i < 6000; i++)
+            thm.put(new Integer(i), "A" + i);
+        thm.commit();
+        
+        thm.detach();
+        assertEquals(4119, thm.size());
+        assertEquals(4119, countEntries(thm));
+        assertEquals("T0", thm.get(new Integer(0)));
+        assertEquals("C1", thm.get(new Integer(1)));
+        assertFalse(thm.containsKey(new Integer(2)));
+        assertEquals("K7", thm.get(new CollidingKey(5, 7)));
+        assertFalse(thm.containsKey(new Integer(1000)));
+        
+        thm.attach("tx1");
+        assertNull(thm.get(new Integer(1)));
+        assertEquals("T1000", thm.get(new Integer(1000)));
+        thm.put(new Integer(7000), "T7000");
+        thm.detach();
+        
+        // Auto commit on commits every transaction
+        thm.setAutoCommit(true);
+        assertEquals(4120, thm.size(true));
+        assertEquals(4120, countEntries(thm));
+        assertEquals("T1000", thm.get(new Integer(1000)));
+        assertEquals("T7000", thm.get(new Integer(7000)));
+        assertFalse(thm.containsKey(new Integer(1)));
+    }
+    
+    public void testIncrementalResize_random() {
+        Random random = new Random(20031017L);
+        TransactionalHashMap thm = new TransactionalHashMap();
+        thm.setIncrementalResize(true);
+        Map expected = new HashMap();
+        int migrating = 0;
+        for (int step = 0; step < 20000; step++) {
+            Object key = random.nextInt(4) == 0 ? (Object)new CollidingKey(3, random.nextInt(200))
+                                                : (Object)new Integer(random.nextInt(8000));
+            if (random.nextInt(4) == 0)
+                assertEquals(expected.remove(key), thm.remove(key));
+            else
+                assertEquals(expected.put(key, new Integer(step)), thm.put(key, new Integer(step)));
+            if (thm.oldTable != null) {
+                migrating++;
+                if (migrating % 50 == 0)
+                    checkAgainst(expected, thm);
+            }
+        }
+        assertTrue(migrating > 0);
+        checkAgainst(expected, thm);
+        assertTrue(thm.containsValue(thm.get(new CollidingKey(3, 0))));
+        
+        thm.clear();
+        assertNull(thm.oldTable);
+        assertTrue(thm.isEmpty());
+        assertEquals(0, countEntries(thm));
+    }
+    
+    public void testIncrementalResize_transactions() {
+        TransactionalHashMap thm = new TransactionalHashMap(16);
+        thm.setIncrementalResize(true);
+        for (int i = 0; i < 12; i++)
+            thm.put(new Integer(i), "C" + i);
+        thm.setAutoCommit(false);
+        
+        // Start a resize in one transaction and leave it partway through
+        thm.attach("tx0");
+        thm.put(new Integer(100), "T100");
+        assertNotNull(thm.oldTable);
+        thm.remove(new Integer(0));
+        assertEquals(12, thm.size());
+        assertEquals(12, countEntries(thm));
+        
+        thm.attach("tx1");
+        assertEquals(12, thm.size());
+        assertEquals(12, countEntries(thm));
+        assertEquals("C0", thm.get(new Integer(0)));
+        assertFalse(thm.containsKey(new Integer(100)));
+        assertFalse(thm.containsValue("T100"));
+        assertTrue(thm.containsValue("C11"));
+        
+        thm.attach("tx0");
+        assertNotNull(thm.oldTable);
+        thm.commit();
+        thm.attach("tx1");
+        assertEquals(12, thm.size());
+        assertFalse(thm.containsKey(new Integer(0)));
+        assertEquals("T100", thm.get(new Integer(100)));
+        
+        thm.put(new Integer(101), "T101");
+        thm.rollback();
+        thm.detach();
+        assertNull(thm.get(new Integer(101)));
+        assertEquals(12, thm.size(true));
+        assertEquals(12, countEntries(thm));
+        
+        // Finish the migration and check the tables agree afterwards
+        for (int i = 200; i < 220; i++)
+            thm.put(new Integer(i), "A" + i);
+        thm.commit();
+        assertNull(thm.oldTable);
+        assertEquals(32, thm.size(true));
+        for (int i = 1; i < 12; i++)
+            assertEquals("C" + i, thm.get(new Integer(i)));
+    }
+    
     private LocalTestNode[] makeLocalNodes() {
         
         LocalTestNode nodes[] = new LocalTestNode[1023];
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.AbstractMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TransactionalLongBidiTreeMapTest extends TestCase
+{
+    private TransactionalLongBidiTreeMap<String> getDefault()
+    {
+        TransactionalLongBidiTreeMap<String> map = new TransactionalLongBidiTreeMap<String>();
+        for (long key = -50; key < 50; key++)
+            map.put(key * 3, "V" + key);
+        return map;
+    }
+
+    public void testLongKeys()
+    {
+        TransactionalLongBidiTreeMap<String> map = getDefault();
+        assertEquals(100, map.size());
+        assertEquals(-150L, map.firstLongKey());
+        assertEquals(147L, map.lastLongKey());
+        for (long key = -50; key < 50; key++)
+        {
+            assertEquals("V" + key, map.get(key * 3));
+            assertTrue(map.containsKey(key * 3));
+            assertFalse(map.containsKey(key * 3 + 1));
+            assertNull(map.get(key * 3 + 1));
+        }
+        assertEquals(Long.valueOf(30L), map.getKeyForValue("V10"));
+
+        assertNull(map.remove(1L));
+        assertEquals("V0", map.remove(0L));
+        assertFalse(map.containsKey(0L));
+        assertEquals(99, map.size());
+    }
+
+    public void testPutChecks()
+    {
+        TransactionalLongBidiTreeMap<String> map = getDefault();
+        try
+        {
+            map.put(3L, "N");
+            fail("should have caught IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        try
+        {
+            map.put(4L, "V1");
+            fail("should have caught IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {}
+        try
+        {
+            map.put(4L, null);
+            fail("should have caught NullPointerException");
+        }
+        catch (NullPointerException expected) {}
+        assertEquals(100, map.size());
+        assertFalse(map.containsKey(4L));
+    }
+
+    public void testBoxedKeys()
+    {
+        // The Map methods and views box the keys held as longs
+        TransactionalLongBidiTreeMap<String> map = getDefault();
+        map.put(Long.valueOf(4L), "N4");
+        assertEquals("N4", map.get(Long.valueOf(4L)));
+        assertEquals("V1", map.remove(Long.valueOf(3L)));
+        assertEquals(Long.valueOf(-150L), map.firstKey());
+        assertEquals(Long.valueOf(9L), map.subMap(Long.valueOf(4L), Long.valueOf(10L)).lastKey());
+        assertEquals(3, map.subMap(Long.valueOf(4L), Long.valueOf(10L)).size());
+        long previous = Long.MIN_VALUE;
+        for (Map.Entry<Long,String> entry : map.entrySet())
+        {
+            assertTrue(entry.getKey().longValue() > previous);
+            previous = entry.getKey().longValue();
+            assertEquals(entry.getValue(), map.get(previous));
+        }
+        assertEquals(147L, previous);
+        assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<Long,String>(Long.valueOf(4L), "N4")));
+    }
+
+    public void testTransactions()
+    {
+        TransactionalLongBidiTreeMap<String> map = getDefault();
+        map.setAutoCommit(false);
+
+        map.attach("tx0");
+        map.put(1000L, "T1000");
+        assertEquals("V1", map.remove(3L));
+        assertEquals("T1000", map.get(1000L));
+        assertFalse(map.containsKey(3L));
+
+        map.attach("tx1");
+        assertNull(map.get(1000L));
+        assertEquals("V1", map.get(3L));
+
+        map.attach("tx0");
+        map.commit();
+        map.attach("tx1");
+        assertEquals("T1000", map.get(1000L));
+        assertFalse(map.containsKey(3L));
+        assertEquals(1000L, map.lastLongKey());
+        map.detach();
+    }
+
+    public void testVersioned()
+    {
+        TransactionalLongBidiTreeMap<String> map = getDefault();
+        map.setVersioned(true);
+        assertEquals("V7", map.get(21L));
+        assertFalse(map.containsKey(22L));
+        map.put(22L, "N");
+        assertEquals("N", map.get(22L));
+        assertEquals("V7", map.remove(21L));
+        assertNull(map.get(21L));
+    }
+
+    public void testLoading() throws Exception
+    {
+        // Bulk loading, deserializing and reading a snapshot all make long keyed nodes
+        TransactionalLongBidiTreeMap<String> map = new TransactionalLongBidiTreeMap<String>(getDefault());
+        assertEquals("V-50", map.get(-150L));
+        assertEquals("V49", map.get(147L));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(map);
+        out.close();
+        @SuppressWarnings("unchecked")
+        TransactionalLongBidiTreeMap<String> copy = (TransactionalLongBidiTreeMap<String>)new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals("V10", copy.get(30L));
+        assertFalse(copy.containsKey(31L));
+
+        File file = File.createTempFile("TransactionalLongBidiTreeMapTest", ".snapshot");
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                map.writeSnapshot(raf.getChannel(), OffHeapSerializer.LONG, new OffHeapSerializer.Strings(4));
+                raf.getChannel().position(0);
+                TransactionalLongBidiTreeMap<String> read = new TransactionalLongBidiTreeMap<String>();
+                read.readSnapshot(raf.getChannel(), OffHeapSerializer.LONG, new OffHeapSerializer.Strings(4));
+                assertEquals(100, read.size());
+                assertEquals("V-7", read.get(-21L));
+                assertNull(read.get(-20L));
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TransactionalLongObjectHashMapTest extends TestCase
+{
+    private int countEntries(Map<?,?> map)
+    {
+        int count = 0;
+        for (Iterator<?> i = map.entrySet().iterator(); i.hasNext(); i.next())
+            count++;
+        return count;
+    }
+
+    public void testBasics()
+    {
+        TransactionalLongObjectHashMap<String> map = new TransactionalLongObjectHashMap<String>();
+        assertNull(map.put(1L, "A"));
+        assertNull(map.put(Long.valueOf(-5L), "B"));
+        assertNull(map.put(Long.MAX_VALUE, "C"));
+        assertEquals("A", map.put(1L, "D"));
+        assertEquals(3, map.size());
+        assertEquals("D", map.get(1L));
+        assertEquals("B", map.get(Long.valueOf(-5L)));
+        assertNull(map.get(Integer.valueOf(1)));
+        assertNull(map.get(null));
+        assertTrue(map.containsKey(Long.MAX_VALUE));
+        assertFalse(map.containsKey(2L));
+        assertTrue(map.containsValue("C"));
+        assertFalse(map.containsValue("A"));
+
+        Map<Long,String> expected = new HashMap<Long,String>();
+        expected.put(Long.valueOf(1L), "D");
+        expected.put(Long.valueOf(-5L), "B");
+        expected.put(Long.valueOf(Long.MAX_VALUE), "C");
+        assertEquals(expected, map);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertEquals(map, new TransactionalLongObjectHashMap<String>(expected));
+
+        assertEquals("B", map.remove(-5L));
+        assertNull(map.remove(-5L));
+        assertTrue(map.keySet().remove(Long.valueOf(1L)));
+        for (Iterator<String> i = map.values().iterator(); i.hasNext();)
+        {
+            i.next();
+            i.remove();
+        }
+        assertTrue(map.isEmpty());
+    }
+
+    public void testRandom()
+    {
+        Random random = new Random(20031018L);
+        TransactionalLongObjectHashMap<Integer> map = new TransactionalLongObjectHashMap<Integer>();
+        Map<Long,Integer> expected = new HashMap<Long,Integer>();
+        for (int step = 0; step < 20000; step++)
+        {
+            // Keys differing only in their high bits check the hash spreads them
+            long key = (long)random.nextInt(3000) << (random.nextBoolean() ? 32 : 0);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(Long.valueOf(key)), map.remove(key));
+            else
+                assertEquals(expected.put(Long.valueOf(key), Integer.valueOf(step)), map.put(key, Integer.valueOf(step)));
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.size(), countEntries(map));
+        assertEquals(expected, map);
+    }
+
+    public void testTransactions_visibility()
+    {
+        TransactionalLongObjectHashMap<String> map = new TransactionalLongObjectHashMap<String>();
+        map.put(1L, "A");
+        map.put(2L, "B");
+        map.setAutoCommit(false);
+
+        map.attach("tx0");
+        assertEquals("A", map.put(1L, "C"));
+        assertEquals("C", map.put(1L, "D"));
+        assertEquals("B", map.remove(2L));
+        assertNull(map.put(3L, "E"));
+        assertEquals(2, map.size());
+        assertEquals(2, countEntries(map));
+        assertEquals("D", map.get(1L));
+        assertFalse(map.containsKey(2L));
+
+        map.attach("tx1");
+        assertEquals(2, map.size());
+        assertEquals(2, countEntries(map));
+        assertEquals("A", map.get(1L));
+        assertEquals("B", map.get(2L));
+        assertFalse(map.containsKey(3L));
+        try
+        {
+            map.put(3L, "F");
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+        try
+        {
+            map.remove(2L);
+            fail("Expected ConcurrentModificationException");
+        }
+        catch (ConcurrentModificationException expected) {}
+
+        map.attach("tx0");
+        map.commit();
+        map.attach("tx1");
+        assertEquals("D", map.get(1L));
+        assertNull(map.get(2L));
+        assertEquals("E", map.get(3L));
+        assertEquals(2, map.size(true));
+        map.detach();
+    }
+
+    public void testTransactions_rollback()
+    {
+        TransactionalLongObjectHashMap<String> map = new TransactionalLongObjectHashMap<String>();
+        for (long key = 0; key < 100; key++)
+            map.put(key, "C" + key);
+        map.setAutoCommit(false);
+
+        map.put(5L, "T5");
+        map.remove(6L);
+        // An entry added and removed again by the transaction goes straight away
+        map.put(1000L, "T1000");
+        assertEquals("T1000", map.remove(1000L));
+        for (long key = 100; key < 1000; key++)
+            map.put(key, "T" + key);
+        assertEquals(999, map.size());
+        map.rollback();
+
+        assertEquals(100, map.size(true));
+        assertEquals(100, countEntries(map));
+        for (long key = 0; key < 100; key++)
+            assertEquals("C" + key, map.get(key));
+    }
+
+    public void testTransactions_sizeMixed()
+    {
+        TransactionalLongObjectHashMap<String> map = new TransactionalLongObjectHashMap<String>();
+        map.setAutoCommit(false);
+
+        String[] ids = new String[] { "tx0", "tx1", "tx2", "tx3" };
+        Random random = new Random(20031019L);
+        for (int step = 0; step < 2000; step++)
+        {
+            map.attach(ids[random.nextInt(ids.length)]);
+            long key = random.nextInt(20);
+            try
+            {
+                switch (random.nextInt(6))
+                {
+                    case 0:
+                    case 1:
+                        map.put(key, "V" + step);
+                        break;
+                    case 2:
+                    case 3:
+                        map.remove(key);
+                        break;
+                    case 4:
+                        map.commit();
+                        break;
+                    default:
+                        map.rollback();
+                        break;
+                }
+            }
+            catch (ConcurrentModificationException ignored) {}
+
+            for (int i = 0; i < ids.length; i++)
+            {
+                map.attach(ids[i]);
+                assertEquals(countEntries(map), map.size());
+            }
+        }
+
+        map.detach();
+        map.setAutoCommit(true);
+        assertEquals(map.size(true), map.size());
+        assertEquals(countEntries(map), map.size());
+    }
+}
@@ -18,6 +18,7 @@ package com.workplacesystems.utilsj.collections.helpers;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import junit.framework.TestCase;
 
 public class CollectionSumTest extends TestCase
@@ -35,4 +36,37 @@ public class CollectionSumTest extends TestCase
         coll.add(new Double(5));
         assertEquals(35.0, collection_sum.doubleValue(), 0.01);
     }
+
+    public void testGetSum_maintained()
+    {
+        Collection<Number> coll = new ArrayList<Number>();
+        coll.add(Integer.valueOf(10));
+        coll.add(Long.valueOf(20));
+        CollectionSum collection_sum = new CollectionSum(coll, true);
+        assertEquals(30.0, collection_sum.doubleValue(), 0.01);
+
+        Collection<Number> numbers = collection_sum.getNumbers();
+        numbers.add(Double.valueOf(5.5));
+        assertEquals(35.5, collection_sum.doubleValue(), 0.01);
+        assertEquals(35, collection_sum.intValue());
+        assertEquals(35.5, collection_sum.parallelDoubleValue(), 0.01);
+
+        assertTrue(numbers.remove(Long.valueOf(20)));
+        assertFalse(numbers.remove(Long.valueOf(20)));
+        assertEquals(15.5, collection_sum.doubleValue(), 0.01);
+
+        Iterator<Number> itr = numbers.iterator();
+        itr.next();
+        itr.remove();
+        assertEquals(5.5, collection_sum.doubleValue(), 0.01);
+        assertEquals(1, coll.size());
+
+        // changes made directly to the collection aren't seen
+        coll.add(Integer.valueOf(100));
+        assertEquals(5.5, collection_sum.doubleValue(), 0.01);
+
+        numbers.clear();
+        assertTrue(coll.isEmpty());
+        assertEquals(0.0, collection_sum.doubleValue(), 0.0);
+    }
 }
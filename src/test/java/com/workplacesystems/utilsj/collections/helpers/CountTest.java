@@ -39,4 +39,73 @@ public class CountTest extends TestCase
         size = new Count<String>().iterate(list);
         assertEquals(3, size.intValue());
     }
+
+    public void testCount_accumulated()
+    {
+        FilterableArrayList<Integer> list = new FilterableArrayList<Integer>();
+        for (int i = 0; i < 10000; i++)
+            list.add(Integer.valueOf(i));
+
+        assertEquals(10005, new Count<Integer>(Integer.valueOf(5)).iterate(list).intValue());
+        assertEquals(10005, new Count<Integer>(Integer.valueOf(5)).iterateParallel(list).intValue());
+
+        // a break returns the return object rather than the count
+        Count<Integer> count = new Count<Integer>() {
+            @Override
+            protected void nextObject(Integer obj)
+            {
+                if (obj.intValue() == 10)
+                    _return(Integer.valueOf(-1));
+            }
+        };
+        assertEquals(-1, count.iterate(list).intValue());
+
+        // the count so far can be returned from a step
+        count = new Count<Integer>(Integer.valueOf(5)) {
+            @Override
+            protected void nextObject(Integer obj)
+            {
+                super.nextObject(obj);
+                if (obj.intValue() == 10)
+                    _return(getAmendedObject());
+            }
+        };
+        assertEquals(16, count.iterate(list).intValue());
+    }
+
+    public void testCount_break()
+    {
+        FilterableArrayList<Integer> list = new FilterableArrayList<Integer>();
+        for (int i = 0; i < 100; i++)
+            list.add(Integer.valueOf(i));
+
+        // the count is kept up to date when a subclass breaks
+        CountBelow count = new CountBelow(10);
+        assertNull(count.iterate(list));
+        assertEquals(10, count.getCount());
+    }
+
+    private static class CountBelow extends Count<Integer>
+    {
+        private final int limit;
+
+        CountBelow(int limit)
+        {
+            this.limit = limit;
+        }
+
+        @Override
+        protected void nextObject(Integer obj)
+        {
+            if (obj.intValue() >= limit)
+                _break();
+            else
+                super.nextObject(obj);
+        }
+
+        int getCount()
+        {
+            return getAmendedObject().intValue();
+        }
+    }
 }
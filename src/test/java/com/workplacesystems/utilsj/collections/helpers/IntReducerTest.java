@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections.helpers;
+
+import junit.framework.TestCase;
+import com.workplacesystems.utilsj.collections.FilterableArrayList;
+
+public class IntReducerTest extends TestCase
+{
+    private static final IntReducer.Extractor<String> LENGTH = new IntReducer.Extractor<String>() {
+        public int valueOf(String obj)
+        {
+            return obj.length();
+        }
+    };
+
+    private static FilterableArrayList<String> words(int n)
+    {
+        FilterableArrayList<String> list = new FilterableArrayList<String>();
+        for (int i = 0; i < n; i++)
+            list.add(Integer.toString(i));
+        return list;
+    }
+
+    public void testSum()
+    {
+        // 10 one digit, 90 two digit and 900 three digit numbers
+        FilterableArrayList<String> list = words(1000);
+        assertEquals(2890, new IntReducer<String>(LENGTH).iterate(list)[0]);
+        assertEquals(2890, new IntReducer<String>(LENGTH).iterateParallel(list)[0]);
+
+        IntReducer<String> sum = new IntReducer<String>(LENGTH, 10);
+        sum.iterate(words(0));
+        assertEquals(10, sum.intValue());
+    }
+
+    public void testReduce()
+    {
+        FilterableArrayList<String> list = words(1000);
+        list.add(500, "longest");
+        IntReducer<String> max = new IntReducer<String>(LENGTH, Integer.MIN_VALUE) {
+            @Override
+            protected int identity()
+            {
+                return Integer.MIN_VALUE;
+            }
+
+            @Override
+            protected int reduce(int total, int value)
+            {
+                return Math.max(total, value);
+            }
+        };
+        assertEquals(7, max.iterateParallel(list)[0]);
+        assertEquals(7, max.intValue());
+    }
+}
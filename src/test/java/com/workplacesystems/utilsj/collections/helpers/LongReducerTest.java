@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.collections.helpers;
+
+import junit.framework.TestCase;
+import com.workplacesystems.utilsj.collections.FilterableArrayList;
+
+public class LongReducerTest extends TestCase
+{
+    private static final LongReducer.Extractor<String> LENGTH = new LongReducer.Extractor<String>() {
+        public long valueOf(String obj)
+        {
+            return obj.length();
+        }
+    };
+
+    private static FilterableArrayList<String> words(int n)
+    {
+        FilterableArrayList<String> list = new FilterableArrayList<String>();
+        for (int i = 0; i < n; i++)
+            list.add(Integer.toString(i));
+        return list;
+    }
+
+    public void testSum()
+    {
+        // 10 one digit, 90 two digit and 900 three digit numbers
+        FilterableArrayList<String> list = words(1000);
+        assertEquals(2890L, new LongReducer<String>(LENGTH).iterate(list)[0]);
+        assertEquals(2890L, new LongReducer<String>(LENGTH).iterateParallel(list)[0]);
+
+        LongReducer<String> sum = new LongReducer<String>(LENGTH, 10L);
+        sum.iterate(words(0));
+        assertEquals(10L, sum.longValue());
+    }
+
+    public void testReduce()
+    {
+        FilterableArrayList<String> list = words(1000);
+        list.add(500, "longest");
+        LongReducer<String> max = new LongReducer<String>(LENGTH, Long.MIN_VALUE) {
+            @Override
+            protected long identity()
+            {
+                return Long.MIN_VALUE;
+            }
+
+            @Override
+            protected long reduce(long total, long value)
+            {
+                return Math.max(total, value);
+            }
+        };
+        assertEquals(7L, max.iterateParallel(list)[0]);
+        assertEquals(7L, max.longValue());
+    }
+}
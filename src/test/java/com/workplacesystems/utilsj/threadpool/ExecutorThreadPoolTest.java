@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.threadpool;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ExecutorThreadPoolTest extends TestCase
+{
+    private static class CountingFactory extends ThreadObjectFactory
+    {
+        final Set<Thread> initialised = Collections.synchronizedSet(new HashSet<Thread>());
+        final AtomicInteger activated = new AtomicInteger();
+        final AtomicInteger passivated = new AtomicInteger();
+
+        @Override
+        public void initialiseThread(Thread thread)
+        {
+            initialised.add(thread);
+        }
+
+        @Override
+        public void activateThread(Thread thread)
+        {
+            assertTrue(initialised.contains(thread));
+            activated.incrementAndGet();
+        }
+
+        @Override
+        public void passivateThread(Thread thread)
+        {
+            passivated.incrementAndGet();
+        }
+    }
+
+    public void testLifecycle() throws Exception
+    {
+        CountingFactory factory = new CountingFactory();
+        ExecutorThreadPool pool = new ExecutorThreadPool(factory);
+
+        final CountDownLatch done = new CountDownLatch(20);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        for (int i = 0; i < 20; i++)
+        {
+            final int task = i;
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    threads.add(Thread.currentThread());
+                    done.countDown();
+                    // A failing task doesn't stop the thread or skip passivation
+                    if (task % 5 == 0)
+                        throw new IllegalStateException("Task " + task);
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(20, factory.activated.get());
+        assertEquals(20, factory.passivated.get());
+        assertTrue(threads.size() <= 4);
+        assertTrue(factory.initialised.containsAll(threads));
+        for (Thread thread : threads)
+            assertTrue(thread.isDaemon());
+    }
+
+    public void testSyncObject() throws Exception
+    {
+        ExecutorThreadPool pool = new ExecutorThreadPool(new CountingFactory());
+        final Object sync = new Object();
+        final boolean[] ran = new boolean[1];
+
+        synchronized (sync)
+        {
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    ran[0] = true;
+                }
+            }, sync);
+            sync.wait(10000);
+        }
+        assertTrue(ran[0]);
+        pool.shutdown();
+    }
+
+    public void testVirtualThreads() throws Exception
+    {
+        CountingFactory factory = new CountingFactory();
+        if (!ExecutorThreadPool.isVirtualThreadSupported())
+        {
+            try
+            {
+                new ExecutorThreadPool(factory, null, "virtual", true);
+                fail("Virtual threads created without JDK support");
+            }
+            catch (UnsupportedOperationException e) {}
+            return;
+        }
+
+        ExecutorThreadPool pool = new ExecutorThreadPool(factory, null, "virtual", true);
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++)
+        {
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(100, factory.activated.get());
+        assertEquals(100, factory.passivated.get());
+    }
+}
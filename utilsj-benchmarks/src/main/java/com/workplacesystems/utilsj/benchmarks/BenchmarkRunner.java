@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching a regular expression once for each thread
+ * count and writes the results of each run as JSON.
+ * <pre>
+ * java -cp target/benchmarks.jar com.workplacesystems.utilsj.benchmarks.BenchmarkRunner
+ *     [-threads 1,4,16] [-results target/jmh] [-p name=v1,v2]... [regexp]...
+ * </pre>
+ * The results of the run with N threads are written to
+ * <tt>results/jmh-tN.json</tt>. The default is every benchmark with 1, 4
+ * and 16 threads.
+ */
+public class BenchmarkRunner
+{
+    public static void main(String[] args) throws RunnerException
+    {
+        String threads = "1,4,16";
+        String results = "target/jmh";
+        ChainedOptionsBuilder builder = new OptionsBuilder();
+        boolean included = false;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-threads"))
+                threads = args[++i];
+            else if (args[i].equals("-results"))
+                results = args[++i];
+            else if (args[i].equals("-p"))
+            {
+                String param = args[++i];
+                int equals = param.indexOf('=');
+                builder.param(param.substring(0, equals), param.substring(equals + 1).split(","));
+            }
+            else
+            {
+                builder.include(args[i]);
+                included = true;
+            }
+        }
+
+        if (!included)
+            builder.include("com\\.workplacesystems\\.utilsj\\.benchmarks\\..*");
+
+        new File(results).mkdirs();
+        String[] thread_counts = threads.split(",");
+        for (int i = 0; i < thread_counts.length; i++)
+        {
+            int thread_count = Integer.parseInt(thread_counts[i].trim());
+            builder.threads(thread_count)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(results, "jmh-t" + thread_count + ".json").getPath());
+            new Runner(builder.build()).run();
+        }
+    }
+}
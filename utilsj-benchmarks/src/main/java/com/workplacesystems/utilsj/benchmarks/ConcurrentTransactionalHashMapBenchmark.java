@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.workplacesystems.utilsj.collections.ConcurrentTransactionalHashMap;
+import com.workplacesystems.utilsj.collections.SyncUtils;
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import com.workplacesystems.utilsj.collections.TransactionalMap;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A TransactionalHashMap decorated with SynchronizedMap against a
+ * ConcurrentTransactionalHashMap shared by all the benchmark threads. Run
+ * with BenchmarkRunner -threads 1,4,16,64 to see how they scale.
+ * <p>
+ * <tt>getPut</tt> mixes gets and puts of random keys with auto commit on.
+ * <tt>putCommit</tt> puts <tt>changes</tt> keys from the thread's own key
+ * range and commits them, with auto commit off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ConcurrentTransactionalHashMapBenchmark
+{
+    @Param({ "synchronized", "concurrent" })
+    public String implementation;
+
+    @Param({ "100000" })
+    public int size;
+
+    @Param({ "4" })
+    public int changes;
+
+    /** Percentage of getPut invocations that put */
+    @Param({ "10" })
+    public int put_percentage;
+
+    private Map<Integer,Integer> auto_commit_map;
+
+    private Map<Integer,Integer> transactional_map;
+
+    private TransactionalMap<Integer,Integer> transactional_target;
+
+    private final AtomicInteger next_thread = new AtomicInteger();
+
+    @Setup
+    public void setUp()
+    {
+        auto_commit_map = newMap();
+
+        transactional_map = newMap();
+        for (int i = 0; i < size; i++)
+        {
+            auto_commit_map.put(Integer.valueOf(i), Integer.valueOf(i));
+            transactional_map.put(Integer.valueOf(i), Integer.valueOf(i));
+        }
+        transactional_target.setAutoCommit(false);
+    }
+
+    /**
+     * Sets transactional_target to the undecorated map.
+     */
+    private Map<Integer,Integer> newMap()
+    {
+        if (implementation.equals("synchronized"))
+        {
+            TransactionalHashMap<Integer,Integer> map = new TransactionalHashMap<Integer,Integer>();
+            transactional_target = map;
+            return SynchronizedMap.decorate(map);
+        }
+        if (implementation.equals("concurrent"))
+        {
+            ConcurrentTransactionalHashMap<Integer,Integer> map = new ConcurrentTransactionalHashMap<Integer,Integer>();
+            transactional_target = map;
+            return map;
+        }
+        throw new IllegalArgumentException("Unknown implementation " + implementation);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadKeys
+    {
+        int first_key;
+        int next_key;
+        int key_count;
+
+        @Setup(Level.Trial)
+        public void setUp(final ConcurrentTransactionalHashMapBenchmark benchmark)
+        {
+            // Each thread cycles through its own slice of keys above the preloaded ones
+            key_count = benchmark.changes * 1024;
+            first_key = benchmark.size + benchmark.next_thread.getAndIncrement() * key_count;
+            next_key = 0;
+        }
+    }
+
+    @Benchmark
+    public Integer getPut()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer key = Integer.valueOf(random.nextInt(size));
+        if (random.nextInt(100) < put_percentage)
+            return auto_commit_map.put(key, key);
+        return auto_commit_map.get(key);
+    }
+
+    @Benchmark
+    public void putCommit(final ThreadKeys keys)
+    {
+        for (int i = 0; i < changes; i++)
+        {
+            Integer key = Integer.valueOf(keys.first_key + keys.next_key);
+            transactional_map.put(key, key);
+            keys.next_key = (keys.next_key + 1) % keys.key_count;
+        }
+        commit();
+    }
+
+    private void commit()
+    {
+        if (transactional_map == transactional_target)
+        {
+            transactional_target.commit();
+            return;
+        }
+
+        // The decorator doesn't expose commit so lock the map the way SynchronizedTransactionalSortedBidiMap does
+        Object lock = SyncUtils.getLockObject(transactional_map);
+        SyncUtils.lockWrite(lock);
+        try
+        {
+            transactional_target.commit();
+        }
+        finally
+        {
+            SyncUtils.unlockWrite(lock);
+        }
+    }
+}
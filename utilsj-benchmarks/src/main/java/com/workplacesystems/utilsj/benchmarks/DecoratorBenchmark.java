@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.Callback;
+import com.workplacesystems.utilsj.collections.SyncUtils;
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedMap;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedTransactionalSortedFilterableBidiMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Overhead of the Synchronized* decorators. The <tt>raw</tt> benchmarks
+ * call the undecorated map and are only meaningful with one thread; the
+ * <tt>decorated</tt> benchmarks share one decorated map between all of the
+ * benchmark threads, set with -t or by BenchmarkRunner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoratorBenchmark
+{
+    @Param({ "HashMap", "TransactionalBidiTreeMap" })
+    public String implementation;
+
+    @Param({ "10000", "1000000" })
+    public int size;
+
+    private Map<Integer,Integer> raw;
+
+    private Map<Integer,Integer> decorated;
+
+    @Setup
+    public void setUp()
+    {
+        if (implementation.equals("HashMap"))
+        {
+            raw = new HashMap<Integer,Integer>();
+            decorated = SynchronizedMap.decorate(raw);
+        }
+        else if (implementation.equals("TransactionalBidiTreeMap"))
+        {
+            TransactionalBidiTreeMap<Integer,Integer> map = new TransactionalBidiTreeMap<Integer,Integer>();
+            raw = map;
+            decorated = SynchronizedTransactionalSortedFilterableBidiMap.decorate(map);
+        }
+        else
+            throw new IllegalArgumentException("Unknown implementation " + implementation);
+
+        for (int i = 0; i < size; i++)
+            raw.put(Integer.valueOf(i), Integer.valueOf(i));
+    }
+
+    private Integer randomKey()
+    {
+        return Integer.valueOf(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    public Integer rawGet()
+    {
+        return raw.get(randomKey());
+    }
+
+    @Benchmark
+    public Integer decoratedGet()
+    {
+        return decorated.get(randomKey());
+    }
+
+    @Benchmark
+    public Integer rawRemovePut()
+    {
+        Integer key = randomKey();
+        Integer value = raw.remove(key);
+        raw.put(key, key);
+        return value;
+    }
+
+    @Benchmark
+    public Integer decoratedRemovePut()
+    {
+        // Remove and put under one write lock so other threads never see the key missing
+        final Integer key = randomKey();
+        return SyncUtils.synchronizeWrite(decorated, new Callback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                Integer value = decorated.remove(key);
+                decorated.put(key, key);
+                _return(value);
+            }
+        });
+    }
+
+    @Benchmark
+    public void decoratedIterate(final Blackhole bh)
+    {
+        SyncUtils.synchronizeRead(decorated, new Callback<Object>() {
+            @Override
+            protected void doAction()
+            {
+                for (Iterator<Map.Entry<Integer,Integer>> i = decorated.entrySet().iterator(); i.hasNext(); )
+                    bh.consume(i.next());
+            }
+        });
+    }
+}
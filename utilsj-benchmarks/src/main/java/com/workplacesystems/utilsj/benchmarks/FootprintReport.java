@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import com.workplacesystems.utilsj.collections.OffHeapSerializer;
+import com.workplacesystems.utilsj.collections.OffHeapTransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import com.workplacesystems.utilsj.collections.TransactionalMap;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+
+/**
+ * Prints the field layout of a TransactionalBidiTreeMap node and the retained
+ * size of populated maps, as measured by JOL.
+ * <pre>
+ * java -cp target/benchmarks.jar com.workplacesystems.utilsj.benchmarks.FootprintReport [size]...
+ * </pre>
+ * Each map holds <tt>size</tt> Integer keys and values, default 100000 and
+ * 1000000. The keys and values are measured separately and subtracted so
+ * the bytes per entry are the map's own overhead. The uncommitted rows
+ * leave every entry added by an open transaction. The off-heap column is
+ * the direct memory allocated by OffHeapTransactionalBidiTreeMap, which
+ * JOL doesn't see.
+ */
+public class FootprintReport
+{
+    public static void main(String[] args)
+    {
+        System.out.println(VM.current().details());
+        System.out.println(ClassLayout.parseClass(TransactionalBidiTreeMap.Node.class).toPrintable());
+
+        int[] sizes = args.length == 0 ? new int[] { 100000, 1000000 } : new int[args.length];
+        for (int i = 0; i < args.length; i++)
+            sizes[i] = Integer.parseInt(args[i]);
+
+        System.out.println(String.format("%-40s %10s %14s %10s %14s", "map", "size", "bytes", "per entry", "off-heap"));
+        for (int i = 0; i < sizes.length; i++)
+        {
+            int size = sizes[i];
+            Integer[] data = new Integer[size];
+            for (int j = 0; j < size; j++)
+                data[j] = Integer.valueOf(j - size / 2);
+            long data_bytes = GraphLayout.parseInstance((Object)data).totalSize();
+
+            report("TransactionalBidiTreeMap", size, data, data_bytes,
+                    fill(new TransactionalBidiTreeMap<Integer,Integer>(), data, true));
+            report("TransactionalBidiTreeMap uncommitted", size, data, data_bytes,
+                    fill(new TransactionalBidiTreeMap<Integer,Integer>(), data, false));
+            report("TransactionalHashMap", size, data, data_bytes,
+                    fill(new TransactionalHashMap<Integer,Integer>(), data, true));
+            report("TransactionalHashMap uncommitted", size, data, data_bytes,
+                    fill(new TransactionalHashMap<Integer,Integer>(), data, false));
+            report("OffHeapTransactionalBidiTreeMap", size, data, data_bytes,
+                    fill(new OffHeapTransactionalBidiTreeMap<Integer,Integer>(OffHeapSerializer.INTEGER, OffHeapSerializer.INTEGER), data, true));
+        }
+    }
+
+    private static Object fill(final TransactionalMap<Integer,Integer> map, final Integer[] data, final boolean auto_commit)
+    {
+        map.setAutoCommit(auto_commit);
+        // Keys and values share the Integers so they are only counted once
+        for (int i = 0; i < data.length; i++)
+            map.put(data[i], data[data.length - 1 - i]);
+        return map;
+    }
+
+    private static void report(final String name, final int size, final Integer[] data, final long data_bytes, final Object map)
+    {
+        // Parse the data alongside the map so the Integers are counted once and then taken off
+        long bytes = GraphLayout.parseInstance(map, data).totalSize() - data_bytes;
+        long off_heap = map instanceof OffHeapTransactionalBidiTreeMap ? ((OffHeapTransactionalBidiTreeMap<?,?>)map).offHeapSize() : 0;
+        System.out.println(String.format("%-40s %10d %14d %10.1f %14d", name, size, bytes, (double)bytes / size, off_heap));
+    }
+}
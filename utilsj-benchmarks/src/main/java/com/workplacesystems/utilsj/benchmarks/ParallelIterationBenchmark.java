@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.FilterableArrayList;
+import com.workplacesystems.utilsj.collections.FilterableCollection;
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.helpers.Count;
+import com.workplacesystems.utilsj.collections.helpers.MaximumRetriever;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sequential against parallel IterativeCallback iteration of a
+ * FilterableArrayList and of the values of a TransactionalBidiTreeMap.
+ * The parallel runs use the common ForkJoinPool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ParallelIterationBenchmark
+{
+    @Param({ "FilterableArrayList", "TransactionalBidiTreeMap" })
+    public String collection;
+
+    @Param({ "1000000" })
+    public int size;
+
+    private FilterableCollection<Integer> values;
+
+    @Setup
+    public void setUp()
+    {
+        if (collection.equals("FilterableArrayList"))
+        {
+            FilterableArrayList<Integer> list = new FilterableArrayList<Integer>(size);
+            for (int i = 0; i < size; i++)
+                list.add(Integer.valueOf(i * 7 % size));
+            values = list;
+        }
+        else
+        {
+            TransactionalBidiTreeMap<Integer,Integer> map = new TransactionalBidiTreeMap<Integer,Integer>();
+            for (int i = 0; i < size; i++)
+                map.put(Integer.valueOf(i), Integer.valueOf(i * 7 % size));
+            values = map.valuesByValue();
+        }
+    }
+
+    @Benchmark
+    public Integer sequentialCount()
+    {
+        return new Count<Integer>().iterate(values);
+    }
+
+    @Benchmark
+    public Integer parallelCount()
+    {
+        return new Count<Integer>().iterateParallel(values);
+    }
+
+    @Benchmark
+    public Integer sequentialMaximum()
+    {
+        return new MaximumRetriever<Integer>().iterate(values);
+    }
+
+    @Benchmark
+    public Integer parallelMaximum()
+    {
+        return new MaximumRetriever<Integer>().iterateParallel(values);
+    }
+}
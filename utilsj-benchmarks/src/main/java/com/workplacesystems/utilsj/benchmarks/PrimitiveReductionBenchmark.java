@@ -0,0 +1,203 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.FilterableArrayList;
+import com.workplacesystems.utilsj.collections.MergeableIterativeCallback;
+import com.workplacesystems.utilsj.collections.helpers.CollectionSum;
+import com.workplacesystems.utilsj.collections.helpers.Count;
+import com.workplacesystems.utilsj.collections.helpers.DoubleReducer;
+import com.workplacesystems.utilsj.collections.helpers.IntReducer;
+import com.workplacesystems.utilsj.collections.helpers.LongReducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting and summing a FilterableArrayList of Integers sequentially.
+ * <ul>
+ * <li><tt>boxedCount</tt> - a Count that boxes the running count on every
+ * element, as Count did before it was counted by the iteration</li>
+ * <li><tt>boxedSum</tt> - a callback keeping a boxed running Long</li>
+ * <li><tt>intReducer</tt>, <tt>longReducer</tt>, <tt>doubleReducer</tt> -
+ * the primitive reducers</li>
+ * <li><tt>recomputedSum</tt>, <tt>maintainedSum</tt> - reading a
+ * CollectionSum that visits the list against one that keeps its sum</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class PrimitiveReductionBenchmark
+{
+    @Param({ "10000000" })
+    public int size;
+
+    private FilterableArrayList<Integer> values;
+
+    private CollectionSum recomputed;
+
+    private CollectionSum maintained;
+
+    private static final IntReducer.Extractor<Integer> INT_VALUE = new IntReducer.Extractor<Integer>() {
+        public int valueOf(Integer obj)
+        {
+            return obj.intValue();
+        }
+    };
+
+    private static final LongReducer.Extractor<Integer> LONG_VALUE = new LongReducer.Extractor<Integer>() {
+        public long valueOf(Integer obj)
+        {
+            return obj.intValue();
+        }
+    };
+
+    private static final DoubleReducer.Extractor<Integer> DOUBLE_VALUE = new DoubleReducer.Extractor<Integer>() {
+        public double valueOf(Integer obj)
+        {
+            return obj.intValue();
+        }
+    };
+
+    private static class BoxedCount<T> extends MergeableIterativeCallback<T,Integer>
+    {
+        BoxedCount()
+        {
+            super(Integer.valueOf(0));
+        }
+
+        @Override
+        protected void nextObject(T obj)
+        {
+            setAmendedObject(getAmendedObject().intValue()+1);
+        }
+
+        @Override
+        protected Integer newChunkObject()
+        {
+            return Integer.valueOf(0);
+        }
+
+        @Override
+        protected Integer merge(Integer left, Integer right)
+        {
+            return left.intValue()+right.intValue();
+        }
+    }
+
+    private static class BoxedSum extends MergeableIterativeCallback<Integer,Long>
+    {
+        BoxedSum()
+        {
+            super(Long.valueOf(0));
+        }
+
+        @Override
+        protected void nextObject(Integer obj)
+        {
+            setAmendedObject(getAmendedObject().longValue()+obj.intValue());
+        }
+
+        @Override
+        protected Long newChunkObject()
+        {
+            return Long.valueOf(0);
+        }
+
+        @Override
+        protected Long merge(Long left, Long right)
+        {
+            return left.longValue()+right.longValue();
+        }
+    }
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        values = new FilterableArrayList<Integer>(size);
+        for (int i = 0; i < size; i++)
+            values.add(Integer.valueOf(i * 7 % size));
+
+        Collection<Number> numbers = (Collection<Number>)(Collection<?>)values;
+        recomputed = new CollectionSum(numbers);
+        maintained = new CollectionSum(numbers, true);
+    }
+
+    @Benchmark
+    public Integer boxedCount()
+    {
+        return new BoxedCount<Integer>().iterate(values);
+    }
+
+    @Benchmark
+    public Integer count()
+    {
+        return new Count<Integer>().iterate(values);
+    }
+
+    @Benchmark
+    public Long boxedSum()
+    {
+        return new BoxedSum().iterate(values);
+    }
+
+    @Benchmark
+    public int intReducer()
+    {
+        return new IntReducer<Integer>(INT_VALUE).iterate(values)[0];
+    }
+
+    @Benchmark
+    public long longReducer()
+    {
+        return new LongReducer<Integer>(LONG_VALUE).iterate(values)[0];
+    }
+
+    @Benchmark
+    public double doubleReducer()
+    {
+        return new DoubleReducer<Integer>(DOUBLE_VALUE).iterate(values)[0];
+    }
+
+    @Benchmark
+    public double recomputedSum()
+    {
+        return recomputed.doubleValue();
+    }
+
+    @Benchmark
+    public double maintainedSum()
+    {
+        return maintained.doubleValue();
+    }
+}
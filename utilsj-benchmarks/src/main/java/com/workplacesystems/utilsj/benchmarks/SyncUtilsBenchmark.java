@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.Callback;
+import com.workplacesystems.utilsj.ReadOnlyCallback;
+import com.workplacesystems.utilsj.collections.SyncUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of SyncUtils.synchronizeRead and synchronizeWrite on a single mutex
+ * and of SyncWrapper locking <tt>locks</tt> mutexes at once. All benchmark
+ * threads share the mutexes, set the thread count with -t or with
+ * BenchmarkRunner. <tt>monitor</tt> is a plain synchronized block for
+ * comparison. <tt>optimisticRead</tt> reads a mutex created with optimistic
+ * reads using a ReadOnlyCallback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncUtilsBenchmark
+{
+    @Param({ "1", "2", "4" })
+    public int locks;
+
+    private Object mutex;
+
+    private Object optimistic_mutex;
+
+    private Object[] mutexes;
+
+    private final Object monitor = new Object();
+
+    private int counter;
+
+    @Setup
+    public void setUp()
+    {
+        mutex = SyncUtils.createMutex(new Object());
+        optimistic_mutex = SyncUtils.createMutex(new Object(), true);
+        mutexes = new Object[locks];
+        for (int i = 0; i < locks; i++)
+            mutexes[i] = SyncUtils.createMutex(new Object());
+    }
+
+    @Benchmark
+    public Integer read()
+    {
+        return SyncUtils.synchronizeRead(mutex, new Callback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(counter));
+            }
+        });
+    }
+
+    @Benchmark
+    public Integer optimisticRead()
+    {
+        return SyncUtils.synchronizeRead(optimistic_mutex, new ReadOnlyCallback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(counter));
+            }
+        });
+    }
+
+    @Benchmark
+    public Integer write()
+    {
+        return SyncUtils.synchronizeWrite(mutex, new Callback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(++counter));
+            }
+        });
+    }
+
+    @Benchmark
+    public int monitor()
+    {
+        synchronized (monitor)
+        {
+            return ++counter;
+        }
+    }
+
+    @Benchmark
+    public Integer syncWrapperWrite()
+    {
+        SyncUtils.SyncWrapper sync = SyncUtils.getNewSyncWrapper();
+        for (int i = 0; i < mutexes.length; i++)
+            sync.addObjectToLock(mutexes[i]);
+        return SyncUtils.synchronizeWrite(sync, new Callback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(++counter));
+            }
+        });
+    }
+
+    @Benchmark
+    public Integer syncWrapperRead()
+    {
+        SyncUtils.SyncWrapper sync = SyncUtils.getNewSyncWrapper();
+        for (int i = 0; i < mutexes.length; i++)
+            sync.addObjectToLock(mutexes[i]);
+        return SyncUtils.synchronizeRead(sync, new Callback<Integer>() {
+            @Override
+            protected void doAction()
+            {
+                _return(Integer.valueOf(counter));
+            }
+        });
+    }
+}
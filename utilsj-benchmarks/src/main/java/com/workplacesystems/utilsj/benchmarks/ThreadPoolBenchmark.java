@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.threadpool.ExecutorThreadPool;
+import com.workplacesystems.utilsj.threadpool.ThreadObjectFactory;
+import com.workplacesystems.utilsj.threadpool.ThreadPool;
+import com.workplacesystems.utilsj.threadpool.WorkerThread;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Task submission throughput and handoff latency of the commons-pool
+ * ThreadPool against ExecutorThreadPool with platform threads and, on JDK
+ * 21 and later, with virtual threads (-p pool=virtual).
+ * <p>
+ * <tt>handoff</tt> submits one empty task and waits for it to finish, so
+ * its sample time is the round trip to a pool thread and back.
+ * <tt>submitBatch</tt> submits <tt>tasks</tt> empty tasks and waits for
+ * all of them.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadPoolBenchmark
+{
+    @Param({ "ThreadPool", "executor" })
+    public String pool;
+
+    @Param({ "1000" })
+    public int tasks;
+
+    private ThreadPool thread_pool;
+
+    private ExecutorThreadPool executor_pool;
+
+    private static class NoopFactory extends ThreadObjectFactory
+    {
+        @Override
+        public void initialiseThread(Thread thread) {}
+
+        @Override
+        public void activateThread(Thread thread) {}
+
+        @Override
+        public void passivateThread(Thread thread) {}
+    }
+
+    @Setup
+    public void setUp()
+    {
+        if (pool.equals("ThreadPool"))
+            thread_pool = new ThreadPool(new NoopFactory());
+        else if (pool.equals("executor"))
+            executor_pool = new ExecutorThreadPool(new NoopFactory());
+        else if (pool.equals("virtual"))
+            executor_pool = new ExecutorThreadPool(new NoopFactory(), null, "virtual", true);
+        else
+            throw new IllegalArgumentException("Unknown pool " + pool);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        if (thread_pool != null)
+            thread_pool.close();
+        if (executor_pool != null)
+            executor_pool.shutdown();
+    }
+
+    private void submit(Runnable task) throws Exception
+    {
+        if (thread_pool != null)
+            ((WorkerThread)thread_pool.borrowObject()).execute(task, null);
+        else
+            executor_pool.execute(task);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void handoff() throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        submit(new Runnable() {
+            public void run()
+            {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void submitBatch() throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(tasks);
+        Runnable task = new Runnable() {
+            public void run()
+            {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < tasks; i++)
+            submit(task);
+        done.await();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.workplacesystems.utilsj.collections.OffHeapSerializer;
+import com.workplacesystems.utilsj.collections.TransactionLog;
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a logged commit of 4 puts to a shared TransactionalHashMap by
+ * concurrent threads, each committing under the map's lock and then, with
+ * group commit, waiting for its record to be forced after releasing it.
+ * <ul>
+ * <li><tt>groupCommit=false</tt> - every commit forces the log</li>
+ * <li><tt>groupCommit=true</tt> - one force covers the commits made while
+ * the previous force was running</li>
+ * </ul>
+ * Use -t to change the number of committing threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class TransactionLogBenchmark
+{
+    @Param({ "false", "true" })
+    public boolean groupCommit;
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    private TransactionLog<Long,Long> log;
+
+    private TransactionalHashMap<Long,Long> map;
+
+    private final AtomicLong bases = new AtomicLong();
+
+    @State(Scope.Thread)
+    public static class Committer
+    {
+        private long base;
+
+        private long next = 0;
+
+        @Setup
+        public void setUp(final TransactionLogBenchmark benchmark)
+        {
+            base = benchmark.bases.getAndIncrement() << 32;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("TransactionLogBenchmark", ".log");
+        raf = new RandomAccessFile(file, "rw");
+        log = new TransactionLog<Long,Long>(raf.getChannel(), OffHeapSerializer.LONG, OffHeapSerializer.LONG, groupCommit);
+        map = new TransactionalHashMap<Long,Long>();
+        map.setAutoCommit(false);
+        map.setTransactionLog(log);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        raf.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void commit(final Committer committer) throws IOException
+    {
+        synchronized (map)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                // Cycle through a fixed set of keys so the map stays the same size
+                Long key = Long.valueOf(committer.base + (committer.next++ & 1023));
+                map.put(key, key);
+            }
+            map.commit();
+        }
+        if (groupCommit)
+            log.awaitDurable();
+    }
+}
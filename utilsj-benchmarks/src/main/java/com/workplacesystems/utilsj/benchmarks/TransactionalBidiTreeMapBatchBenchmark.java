@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedTransactionalSortedFilterableBidiMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Putting <tt>batch</tt> entries into a synchronized TransactionalBidiTreeMap
+ * of <tt>size</tt> String keys and values and removing them again, so the
+ * map is the same size for every invocation. The batch keys and values fall
+ * between those already in the map, either spread at <tt>random</tt> or
+ * <tt>clustered</tt> in one run, and are given in key order.
+ * <ul>
+ * <li><tt>batch</tt> - one putAll and one removeAll</li>
+ * <li><tt>loop</tt> - a put and a remove for each entry, each taking the
+ * lock</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalBidiTreeMapBatchBenchmark
+{
+    @Param({ "100000" })
+    public int size;
+
+    @Param({ "1000", "100000" })
+    public int batch;
+
+    @Param({ "random", "clustered" })
+    public String keys;
+
+    private SynchronizedTransactionalSortedFilterableBidiMap<String,String> map;
+
+    private Map<String,String> puts;
+
+    private List<String> removes;
+
+    private static String key(final int i)
+    {
+        return String.format("key-%09d", Integer.valueOf(i));
+    }
+
+    private static String value(final int i)
+    {
+        return String.format("value-%09d", Integer.valueOf(Integer.MAX_VALUE - i));
+    }
+
+    @Setup
+    public void setUp()
+    {
+        map = (SynchronizedTransactionalSortedFilterableBidiMap<String,String>)
+            SynchronizedTransactionalSortedFilterableBidiMap.decorate(new TransactionalBidiTreeMap<String,String>());
+        for (int i = 0; i < size; i++)
+            map.put(key(i * 2), value(i * 2));
+
+        Random random = new Random(batch);
+        puts = new TreeMap<String,String>();
+        if (keys.equals("clustered"))
+        {
+            int start = random.nextInt(size - batch + 1);
+            for (int i = start; i < start + batch; i++)
+                puts.put(key(i * 2 + 1), value(i * 2 + 1));
+        }
+        else
+        {
+            while (puts.size() < batch)
+            {
+                int i = random.nextInt(size) * 2 + 1;
+                puts.put(key(i), value(i));
+            }
+        }
+        removes = new ArrayList<String>(puts.keySet());
+    }
+
+    @Benchmark
+    public boolean batch()
+    {
+        map.putAll(puts);
+        return map.removeAll(removes);
+    }
+
+    @Benchmark
+    public boolean loop()
+    {
+        for (Iterator<Map.Entry<String,String>> i = puts.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry<String,String> entry = i.next();
+            map.put(entry.getKey(), entry.getValue());
+        }
+        boolean removed = false;
+        for (Iterator<String> i = removes.iterator(); i.hasNext(); )
+            removed |= map.remove(i.next()) != null;
+        return removed;
+    }
+}
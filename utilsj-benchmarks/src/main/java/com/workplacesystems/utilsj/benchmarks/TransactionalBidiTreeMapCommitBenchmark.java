@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of committing and rolling back a small transaction against a large
+ * TransactionalBidiTreeMap. Each invocation adds <tt>changes</tt> new
+ * entries and removes the entries added by the previous invocation so the
+ * size of the map stays constant.
+ * <p>
+ * The <tt>fullScan</tt> benchmarks repeat the copy and walk of every node
+ * that commit and rollback used to do before finding the transaction's
+ * changes, for comparison with the per transaction change log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class TransactionalBidiTreeMapCommitBenchmark
+{
+    @Param({ "10000", "1000000", "5000000" })
+    public int size;
+
+    @Param({ "50" })
+    public int changes;
+
+    private TransactionalBidiTreeMap<Integer,Integer> map;
+
+    private int next_key;
+
+    @Setup
+    public void setUp()
+    {
+        map = new TransactionalBidiTreeMap<Integer,Integer>();
+        for (int i = 0; i < size; i++)
+            map.put(Integer.valueOf(i), Integer.valueOf(i));
+        map.setAutoCommit(false);
+        next_key = size;
+    }
+
+    private void change()
+    {
+        int first_key = next_key;
+        for (int i = 0; i < changes; i++)
+        {
+            Integer key = Integer.valueOf(first_key + i);
+            map.put(key, key);
+        }
+        next_key += changes;
+
+        int remove_from = first_key - changes;
+        for (int i = 0; i < changes; i++)
+            map.remove(Integer.valueOf(remove_from + i));
+    }
+
+    @Benchmark
+    public void commit()
+    {
+        change();
+        map.commit();
+    }
+
+    @Benchmark
+    public void rollback()
+    {
+        change();
+        map.rollback();
+        next_key -= changes;
+    }
+
+    @Benchmark
+    public void commitFullScan(Blackhole bh)
+    {
+        change();
+        fullScan(bh);
+        map.commit();
+    }
+
+    @Benchmark
+    public void rollbackFullScan(Blackhole bh)
+    {
+        change();
+        fullScan(bh);
+        map.rollback();
+        next_key -= changes;
+    }
+
+    private void fullScan(Blackhole bh)
+    {
+        ArrayList<Map.Entry<Integer,Integer>> list = new ArrayList<Map.Entry<Integer,Integer>>(map.allEntrySet());
+        int changed = 0;
+        for (Iterator<Map.Entry<Integer,Integer>> i = list.iterator(); i.hasNext(); )
+        {
+            TransactionalBidiTreeMap.Node<Integer,Integer> node = (TransactionalBidiTreeMap.Node<Integer,Integer>)i.next();
+            if (node.getStatus() != TransactionalBidiTreeMap.Node.NO_CHANGE && node.getTransactionId() != null)
+                changed++;
+        }
+        bh.consume(changed);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to load a TransactionalBidiTreeMap from a key sorted map, using the
+ * bulk build of the Map constructor against putting each entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class TransactionalBidiTreeMapLoadBenchmark
+{
+    @Param({ "100000", "1000000", "3000000" })
+    public int size;
+
+    private TreeMap<Integer,Integer> source;
+
+    @Setup
+    public void setUp()
+    {
+        ArrayList<Integer> values = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++)
+            values.add(Integer.valueOf(i));
+        Collections.shuffle(values, new Random(size));
+
+        source = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < size; i++)
+            source.put(Integer.valueOf(i), values.get(i));
+    }
+
+    @Benchmark
+    public TransactionalBidiTreeMap<Integer,Integer> bulkLoad()
+    {
+        return new TransactionalBidiTreeMap<Integer,Integer>(source);
+    }
+
+    @Benchmark
+    public TransactionalBidiTreeMap<Integer,Integer> putEach()
+    {
+        TransactionalBidiTreeMap<Integer,Integer> map = new TransactionalBidiTreeMap<Integer,Integer>();
+        for (Iterator<Map.Entry<Integer,Integer>> i = source.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry<Integer,Integer> entry = i.next();
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the nearest key or value in a TransactionalBidiTreeMap. The
+ * <tt>view</tt> benchmarks build a tail or head map and take its first or
+ * last entry, as callers did before the map was a NavigableBidiMap, and
+ * the others use the navigation methods. The keys and values are even so
+ * that the odd lookups always miss.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalBidiTreeMapNavigationBenchmark
+{
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    private TransactionalBidiTreeMap<Integer,Integer> map;
+
+    @Setup
+    public void setUp()
+    {
+        map = new TransactionalBidiTreeMap<Integer,Integer>();
+        for (int i = 0; i < size; i++)
+            map.put(Integer.valueOf(i * 2), Integer.valueOf((int)((i * 7919L) % size) * 2));
+    }
+
+    private Integer randomOdd()
+    {
+        return Integer.valueOf(ThreadLocalRandom.current().nextInt(size - 1) * 2 + 1);
+    }
+
+    @Benchmark
+    public Integer ceilingKey()
+    {
+        return map.ceilingKey(randomOdd());
+    }
+
+    @Benchmark
+    public Integer ceilingKeyView()
+    {
+        return map.tailMap(randomOdd()).firstKey();
+    }
+
+    @Benchmark
+    public Integer floorKeyByValue()
+    {
+        return map.floorKeyByValue(randomOdd());
+    }
+
+    @Benchmark
+    public Integer floorKeyByValueView()
+    {
+        return map.headMapByValue(randomOdd()).lastKeyByValue();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a commit of <tt>changes</tt> puts and as many removes to a
+ * TransactionalBidiTreeMap with a listener that counts the changes. The
+ * changes are made before each invocation so only the commit is timed.
+ * <ul>
+ * <li><tt>none</tt> - no listener</li>
+ * <li><tt>perNode</tt> - a TransactionNotifiable, called for each node</li>
+ * <li><tt>batch</tt> - a TransactionBatchNotifiable given one change set</li>
+ * <li><tt>batchAsync</tt> - the same with the change set delivered by a
+ * notification executor</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalBidiTreeMapNotifierBenchmark
+{
+    @Param({ "100000" })
+    public int size;
+
+    @Param({ "10000" })
+    public int changes;
+
+    @Param({ "none", "perNode", "batch", "batchAsync" })
+    public String notifier;
+
+    private TransactionalBidiTreeMap<Integer,Integer> map;
+
+    private ExecutorService executor;
+
+    private int next_key;
+
+    private volatile long notified;
+
+    private static class CountingNotifier implements TransactionalBidiTreeMap.TransactionNotifiable
+    {
+        private static final long serialVersionUID = -5193727409436812650L;
+
+        private long count;
+
+        public void addedToMap(Object key, Object value)
+        {
+            count++;
+        }
+
+        public void removedFromMap(Object key, Object value)
+        {
+            count++;
+        }
+    }
+
+    @Setup
+    public void setUp()
+    {
+        map = new TransactionalBidiTreeMap<Integer,Integer>();
+        for (int i = 0; i < size; i++)
+            map.put(Integer.valueOf(i), Integer.valueOf(i));
+        map.setAutoCommit(false);
+        next_key = size;
+
+        if (notifier.equals("perNode"))
+            map.setCommitNotifier(new CountingNotifier());
+        else if (notifier.startsWith("batch"))
+        {
+            map.setBatchNotifier(new TransactionalBidiTreeMap.TransactionBatchNotifiable<Integer,Integer>()
+            {
+                public void committed(TransactionalBidiTreeMap.ChangeSet<Integer,Integer> changes)
+                {
+                    notified += changes.getAdded().size() + changes.getRemoved().size();
+                }
+
+                public void rolledBack(TransactionalBidiTreeMap.ChangeSet<Integer,Integer> changes)
+                {
+                }
+            });
+            if (notifier.equals("batchAsync"))
+            {
+                executor = Executors.newSingleThreadExecutor();
+                map.setNotificationExecutor(executor);
+            }
+        }
+        else if (!notifier.equals("none"))
+            throw new IllegalArgumentException("Unknown notifier " + notifier);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void change()
+    {
+        int first_key = next_key;
+        for (int i = 0; i < changes; i++)
+        {
+            Integer key = Integer.valueOf(first_key + i);
+            map.put(key, key);
+        }
+        next_key += changes;
+
+        int remove_from = first_key - changes;
+        for (int i = 0; i < changes; i++)
+            map.remove(Integer.valueOf(remove_from + i));
+    }
+
+    @Benchmark
+    public void commit()
+    {
+        map.commit();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Paging through a TransactionalBidiTreeMap by position. The
+ * <tt>iterate</tt> benchmarks skip to the offset or count the range
+ * through the entry set, as callers did before the trees held subtree
+ * sizes, and the others use the ranks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalBidiTreeMapRankBenchmark
+{
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    private TransactionalBidiTreeMap<Integer,Integer> map;
+
+    @Setup
+    public void setUp()
+    {
+        map = new TransactionalBidiTreeMap<Integer,Integer>();
+        for (int i = 0; i < size; i++)
+            map.put(Integer.valueOf(i * 2), Integer.valueOf(-i));
+    }
+
+    private int randomOffset()
+    {
+        return ThreadLocalRandom.current().nextInt(size);
+    }
+
+    @Benchmark
+    public Map.Entry<Integer,Integer> getByKeyIndex()
+    {
+        return map.getByKeyIndex(randomOffset());
+    }
+
+    @Benchmark
+    public Map.Entry<Integer,Integer> getByKeyIndexIterate()
+    {
+        int offset = randomOffset();
+        Iterator<Map.Entry<Integer,Integer>> i = map.entrySet().iterator();
+        for (int skipped = 0; skipped < offset; skipped++)
+            i.next();
+        return i.next();
+    }
+
+    @Benchmark
+    public int headMapSize()
+    {
+        return map.headMap(Integer.valueOf(randomOffset() * 2)).size();
+    }
+
+    @Benchmark
+    public int headMapSizeIterate()
+    {
+        int count = 0;
+        for (Iterator<Integer> i = map.headMap(Integer.valueOf(randomOffset() * 2)).keySet().iterator(); i.hasNext(); i.next())
+            count++;
+        return count;
+    }
+}
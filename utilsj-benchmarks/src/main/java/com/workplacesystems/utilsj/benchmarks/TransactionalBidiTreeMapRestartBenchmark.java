@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.OffHeapSerializer;
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to restore a TransactionalBidiTreeMap of Long keys and values at
+ * start up from a file written by the previous run.
+ * <ul>
+ * <li><tt>snapshot</tt> - readSnapshot of a file written by writeSnapshot</li>
+ * <li><tt>serialized</tt> - Java deserialization of the map</li>
+ * </ul>
+ * The stack is large as serialization recurses through the nodes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g", "-Xss1g" })
+public class TransactionalBidiTreeMapRestartBenchmark
+{
+    @Param({ "1000000", "10000000" })
+    public int size;
+
+    @Param({ "snapshot", "serialized" })
+    public String format;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        TreeMap<Long,Long> source = new TreeMap<Long,Long>();
+        for (int i = 0; i < size; i++)
+        {
+            long key = 1000000000L + i * 7L;
+            // An odd multiplier is a bijection so the values are unique, in a different order to the keys
+            source.put(Long.valueOf(key), Long.valueOf(key * 0x9E3779B97F4A7C15L));
+        }
+        TransactionalBidiTreeMap<Long,Long> map = new TransactionalBidiTreeMap<Long,Long>(source);
+        source = null;
+
+        file = File.createTempFile("TransactionalBidiTreeMapRestartBenchmark", "." + format);
+        if (format.equals("snapshot"))
+        {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try
+            {
+                map.writeSnapshot(out.getChannel(), OffHeapSerializer.LONG, OffHeapSerializer.LONG);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        else if (format.equals("serialized"))
+        {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try
+            {
+                out.writeObject(map);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        else
+            throw new IllegalArgumentException("Unknown format " + format);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Benchmark
+    public TransactionalBidiTreeMap<?,?> restore() throws IOException, ClassNotFoundException
+    {
+        if (format.equals("snapshot"))
+        {
+            TransactionalBidiTreeMap<Long,Long> map = new TransactionalBidiTreeMap<Long,Long>();
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try
+            {
+                map.readSnapshot(in.getChannel(), OffHeapSerializer.LONG, OffHeapSerializer.LONG);
+            }
+            finally
+            {
+                in.close();
+            }
+            return map;
+        }
+
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            return (TransactionalBidiTreeMap<?,?>)in.readObject();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.TransactionalSortedFilterableBidiMap;
+import com.workplacesystems.utilsj.collections.decorators.SynchronizedTransactionalSortedFilterableBidiMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read throughput of a synchronized TransactionalBidiTreeMap with 1, 8 and
+ * 32 reader threads calling get while one writer thread puts and removes.
+ * <p>
+ * With <tt>versioned</tt> false every get takes the read lock of the
+ * decorator. With <tt>versioned</tt> true the map publishes snapshots and
+ * the decorator lets gets through without locking.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionalBidiTreeMapSnapshotReadBenchmark
+{
+    @Param({ "100000" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean versioned;
+
+    private TransactionalSortedFilterableBidiMap<Integer,Integer> map;
+
+    private int next_key;
+
+    @Setup
+    public void setUp()
+    {
+        TransactionalBidiTreeMap<Integer,Integer> raw = new TransactionalBidiTreeMap<Integer,Integer>();
+        for (int i = 0; i < size; i++)
+            raw.put(Integer.valueOf(i), Integer.valueOf(i));
+        raw.setVersioned(versioned);
+        map = SynchronizedTransactionalSortedFilterableBidiMap.decorate(raw);
+        next_key = size;
+    }
+
+    private Integer read()
+    {
+        return map.get(Integer.valueOf(ThreadLocalRandom.current().nextInt(next_key)));
+    }
+
+    private void write()
+    {
+        // Only the single writer thread changes next_key
+        Integer key = Integer.valueOf(next_key);
+        map.put(key, key);
+        map.remove(Integer.valueOf(next_key - size));
+        next_key++;
+    }
+
+    @Benchmark
+    @Group("readers1")
+    @GroupThreads(1)
+    public Integer readers1Get()
+    {
+        return read();
+    }
+
+    @Benchmark
+    @Group("readers1")
+    @GroupThreads(1)
+    public void readers1Write()
+    {
+        write();
+    }
+
+    @Benchmark
+    @Group("readers8")
+    @GroupThreads(8)
+    public Integer readers8Get()
+    {
+        return read();
+    }
+
+    @Benchmark
+    @Group("readers8")
+    @GroupThreads(1)
+    public void readers8Write()
+    {
+        write();
+    }
+
+    @Benchmark
+    @Group("readers32")
+    @GroupThreads(32)
+    public Integer readers32Get()
+    {
+        return read();
+    }
+
+    @Benchmark
+    @Group("readers32")
+    @GroupThreads(1)
+    public void readers32Write()
+    {
+        write();
+    }
+}
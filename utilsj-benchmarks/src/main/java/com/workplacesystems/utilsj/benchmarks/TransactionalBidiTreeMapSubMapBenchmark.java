@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.SortedBidiMap;
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Iterating a TransactionalBidiTreeMap restricted by both a key range and
+ * a value range, in key order. The values are a shuffle of the keys.
+ * <ul>
+ * <li><tt>selective</tt> - half of the keys and a thousandth of the
+ * values, so the entries are found in the value tree and sorted</li>
+ * <li><tt>selectiveScan</tt> - the same entries found by walking the key
+ * range and checking each value, as the SubMap did before</li>
+ * <li><tt>nonSelective</tt> - a tenth of the keys and half of the values,
+ * so the key range is walked and the walk stops at its end</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalBidiTreeMapSubMapBenchmark
+{
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    private TransactionalBidiTreeMap<Integer,Integer> map;
+
+    @Setup
+    public void setUp()
+    {
+        map = new TransactionalBidiTreeMap<Integer,Integer>();
+        // A multiplier coprime with the size shuffles the values
+        for (int i = 0; i < size; i++)
+            map.put(Integer.valueOf(i), Integer.valueOf((int)((i * 7919L) % size)));
+    }
+
+    private SortedBidiMap<Integer,Integer> keyRange(final int to)
+    {
+        return (SortedBidiMap<Integer,Integer>)map.subMap(Integer.valueOf(0), Integer.valueOf(to));
+    }
+
+    private static long sum(final Map<Integer,Integer> restricted)
+    {
+        long sum = 0;
+        for (Iterator<Integer> i = restricted.keySet().iterator(); i.hasNext();)
+            sum += i.next().intValue();
+        return sum;
+    }
+
+    @Benchmark
+    public long selective()
+    {
+        return sum(keyRange(size / 2).subMapByValue(Integer.valueOf(size / 2), Integer.valueOf(size / 2 + size / 1000)));
+    }
+
+    @Benchmark
+    public long selectiveScan()
+    {
+        int from = size / 2;
+        int to = size / 2 + size / 1000;
+        long sum = 0;
+        for (Iterator<Map.Entry<Integer,Integer>> i = keyRange(size / 2).entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<Integer,Integer> entry = i.next();
+            int value = entry.getValue().intValue();
+            if (value >= from && value < to)
+                sum += entry.getKey().intValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long nonSelective()
+    {
+        return sum(keyRange(size / 10).subMapByValue(Integer.valueOf(0), Integer.valueOf(size / 2)));
+    }
+}
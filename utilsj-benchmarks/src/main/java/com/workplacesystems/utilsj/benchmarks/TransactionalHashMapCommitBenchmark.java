@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of committing and rolling back a small transaction against a large
+ * TransactionalHashMap. Each invocation adds <tt>changes</tt> new entries
+ * and removes the entries added by the previous invocation so the size of
+ * the map stays constant. <tt>commitAll</tt> commits by turning auto commit
+ * on and off again, which commits every transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class TransactionalHashMapCommitBenchmark
+{
+    @Param({ "10000", "1000000" })
+    public int size;
+
+    @Param({ "50" })
+    public int changes;
+
+    private TransactionalHashMap<Integer,Integer> map;
+
+    private int next_key;
+
+    @Setup
+    public void setUp()
+    {
+        map = new TransactionalHashMap<Integer,Integer>();
+        for (int i = 0; i < size; i++)
+            map.put(Integer.valueOf(i), Integer.valueOf(i));
+        map.setAutoCommit(false);
+        next_key = size;
+    }
+
+    private void change()
+    {
+        int first_key = next_key;
+        for (int i = 0; i < changes; i++)
+        {
+            Integer key = Integer.valueOf(first_key + i);
+            map.put(key, key);
+        }
+        next_key += changes;
+
+        int remove_from = first_key - changes;
+        for (int i = 0; i < changes; i++)
+            map.remove(Integer.valueOf(remove_from + i));
+    }
+
+    @Benchmark
+    public void commit()
+    {
+        change();
+        map.commit();
+    }
+
+    @Benchmark
+    public void commitAll()
+    {
+        change();
+        map.setAutoCommit(true);
+        map.setAutoCommit(false);
+    }
+
+    @Benchmark
+    public void rollback()
+    {
+        change();
+        map.rollback();
+        next_key -= changes;
+    }
+}
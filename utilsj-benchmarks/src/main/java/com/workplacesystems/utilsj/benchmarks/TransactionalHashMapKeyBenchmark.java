@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TransactionalHashMap lookups by key distribution.
+ * <ul>
+ * <li><tt>sequential</tt> - Integers 0 to size-1</li>
+ * <li><tt>multikey</tt> - four part MultiKeys like those HashMap4Template
+ *     builds, whose hashCodes are the xor of small Integers and short
+ *     Strings and so collide heavily</li>
+ * <li><tt>colliding</tt> - Strings made of "Aa" and "BB" blocks, which all
+ *     have the same hashCode</li>
+ * </ul>
+ * With <tt>transactional</tt> true every other key has been replaced by
+ * an uncommitted transaction on another thread, so each lookup has hidden
+ * entries to skip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalHashMapKeyBenchmark
+{
+    @Param({ "sequential", "multikey", "colliding" })
+    public String keys;
+
+    @Param({ "4096" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean transactional;
+
+    private TransactionalHashMap<Object,Integer> map;
+
+    private Object[] present;
+
+    private Object[] absent;
+
+    @Setup
+    public void setUp() throws InterruptedException
+    {
+        present = createKeys(0, size);
+        absent = createKeys(size, size);
+
+        map = new TransactionalHashMap<Object,Integer>();
+        for (int i = 0; i < size; i++)
+            map.put(present[i], Integer.valueOf(i));
+
+        if (transactional)
+        {
+            map.setAutoCommit(false);
+            // Leave replacements pending in another transaction
+            Thread writer = new Thread() {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < size; i += 2)
+                        map.put(present[i], Integer.valueOf(-i));
+                }
+            };
+            writer.start();
+            writer.join();
+        }
+    }
+
+    private Object[] createKeys(final int first, final int count)
+    {
+        Object[] created = new Object[count];
+        for (int i = 0; i < count; i++)
+        {
+            int n = first + i;
+            if (keys.equals("sequential"))
+                created[i] = Integer.valueOf(n);
+            else if (keys.equals("multikey"))
+                created[i] = new MultiKey(Integer.valueOf(n % 16), Integer.valueOf(n / 16 % 16),
+                        "site" + (n / 256 % 8), Integer.valueOf(n / 2048));
+            else if (keys.equals("colliding"))
+            {
+                StringBuilder key = new StringBuilder();
+                for (int bit = 0; bit < 14; bit++)
+                    key.append((n & (1 << bit)) == 0 ? "Aa" : "BB");
+                created[i] = key.toString();
+            }
+            else
+                throw new IllegalArgumentException("Unknown keys " + keys);
+        }
+        return created;
+    }
+
+    @Benchmark
+    public Integer getPresent()
+    {
+        return map.get(present[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    @Benchmark
+    public Integer getAbsent()
+    {
+        return map.get(absent[ThreadLocalRandom.current().nextInt(size)]);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The latency distribution of TransactionalHashMap puts as the map grows
+ * from empty to <tt>size</tt> entries and is started again. Each put adds
+ * a new key, so every resize on the way is included. Compare the p0.999
+ * and p1.0 percentiles with <tt>incremental</tt> false and true.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalHashMapResizeBenchmark
+{
+    @Param({ "false", "true" })
+    public boolean incremental;
+
+    @Param({ "2097152" })
+    public int size;
+
+    private Integer[] keys;
+
+    private TransactionalHashMap<Integer,Integer> map;
+
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        keys = new Integer[size];
+        for (int i = 0; i < size; i++)
+            keys[i] = Integer.valueOf(i);
+    }
+
+    @Setup(Level.Invocation)
+    public void startAgainIfFull()
+    {
+        if (map == null || next == size)
+        {
+            map = new TransactionalHashMap<Integer,Integer>();
+            map.setIncrementalResize(incremental);
+            next = 0;
+        }
+    }
+
+    @Benchmark
+    public Integer put()
+    {
+        Integer key = keys[next++];
+        return map.put(key, key);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.OffHeapSerializer;
+import com.workplacesystems.utilsj.collections.OffHeapTransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import com.workplacesystems.utilsj.collections.TransactionalLongBidiTreeMap;
+import com.workplacesystems.utilsj.collections.TransactionalLongObjectHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of random long record ids in the Long keyed maps against their
+ * primitive keyed variants. The record ids are spread out so few of them
+ * fall in the Long cache. The off-heap tree map decodes the value it
+ * returns from its record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalLongMapBenchmark
+{
+    @Param({ "1000000" })
+    public int size;
+
+    private TransactionalHashMap<Long,String> hashMap;
+
+    private TransactionalLongObjectHashMap<String> longHashMap;
+
+    private TransactionalBidiTreeMap<Long,String> treeMap;
+
+    private TransactionalLongBidiTreeMap<String> longTreeMap;
+
+    private OffHeapTransactionalBidiTreeMap<Long,String> offHeapTreeMap;
+
+    @Setup
+    public void setUp()
+    {
+        hashMap = new TransactionalHashMap<Long,String>();
+        longHashMap = new TransactionalLongObjectHashMap<String>();
+        treeMap = new TransactionalBidiTreeMap<Long,String>();
+        longTreeMap = new TransactionalLongBidiTreeMap<String>();
+        offHeapTreeMap = new OffHeapTransactionalBidiTreeMap<Long,String>(OffHeapSerializer.LONG, new OffHeapSerializer.Strings(8));
+        for (int i = 0; i < size; i++)
+        {
+            long key = recordId(i);
+            String value = "V" + i;
+            hashMap.put(Long.valueOf(key), value);
+            longHashMap.put(key, value);
+            treeMap.put(Long.valueOf(key), value);
+            longTreeMap.put(key, value);
+            offHeapTreeMap.put(Long.valueOf(key), value);
+        }
+    }
+
+    private static long recordId(final int i)
+    {
+        return 1000000000L + i * 7L;
+    }
+
+    private long randomKey()
+    {
+        return recordId(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    public String hashMapGet()
+    {
+        return hashMap.get(Long.valueOf(randomKey()));
+    }
+
+    @Benchmark
+    public String longHashMapGet()
+    {
+        return longHashMap.get(randomKey());
+    }
+
+    @Benchmark
+    public String treeMapGet()
+    {
+        return treeMap.get(Long.valueOf(randomKey()));
+    }
+
+    @Benchmark
+    public String longTreeMapGet()
+    {
+        return longTreeMap.get(randomKey());
+    }
+
+    @Benchmark
+    public String offHeapTreeMapGet()
+    {
+        return offHeapTreeMap.get(Long.valueOf(randomKey()));
+    }
+}
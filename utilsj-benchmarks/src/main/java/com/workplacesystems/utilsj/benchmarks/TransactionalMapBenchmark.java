@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 Workplace Systems PLC (http://www.workplacesystems.com/).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.workplacesystems.utilsj.benchmarks;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.workplacesystems.utilsj.collections.TransactionalBidiTreeMap;
+import com.workplacesystems.utilsj.collections.TransactionalHashMap;
+import com.workplacesystems.utilsj.collections.TransactionalMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Single threaded get, put/remove and iteration cost of the transactional
+ * maps, with auto commit on and off. With auto commit off the benchmark
+ * thread has no outstanding changes except in <tt>putRemove</tt>, which
+ * commits every <tt>changes</tt> operations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TransactionalMapBenchmark
+{
+    @Param({ "TransactionalBidiTreeMap", "TransactionalHashMap" })
+    public String implementation;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    @Param({ "true", "false" })
+    public boolean autoCommit;
+
+    @Param({ "100" })
+    public int changes;
+
+    private TransactionalMap<Integer,Integer> map;
+
+    private int next_key;
+    private int read_key;
+    private int uncommitted;
+
+    @Setup
+    public void setUp()
+    {
+        map = createMap(implementation);
+        for (int i = 0; i < size; i++)
+            map.put(Integer.valueOf(i), Integer.valueOf(i));
+        map.setAutoCommit(autoCommit);
+        next_key = size;
+    }
+
+    static TransactionalMap<Integer,Integer> createMap(String implementation)
+    {
+        if (implementation.equals("TransactionalBidiTreeMap"))
+            return new TransactionalBidiTreeMap<Integer,Integer>();
+        if (implementation.equals("TransactionalHashMap"))
+            return new TransactionalHashMap<Integer,Integer>();
+        throw new IllegalArgumentException("Unknown implementation " + implementation);
+    }
+
+    @Benchmark
+    public Integer get()
+    {
+        // Step through the keys in a scattered order
+        read_key = (read_key + 7919) % size;
+        return map.get(Integer.valueOf(next_key - size + read_key));
+    }
+
+    @Benchmark
+    public Integer putRemove()
+    {
+        Integer key = Integer.valueOf(next_key);
+        map.put(key, key);
+        Integer removed = map.remove(Integer.valueOf(next_key - size));
+        next_key++;
+
+        if (!autoCommit && ++uncommitted == changes)
+        {
+            map.commit();
+            uncommitted = 0;
+        }
+        return removed;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh)
+    {
+        for (Iterator<Map.Entry<Integer,Integer>> i = map.entrySet().iterator(); i.hasNext(); )
+            bh.consume(i.next());
+    }
+
+    @Benchmark
+    public int size()
+    {
+        return map.size();
+    }
+}